@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.tools.sensorsimulator.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openintents.tools.sensorsimulator.ISensorSimulator;
+import org.openintents.tools.sensorsimulator.SensorBinaryProtocol;
+import org.openintents.tools.sensorsimulator.SensorEngine;
+import org.openintents.tools.sensorsimulator.SensorProtocol;
+import org.openintents.tools.sensorsimulator.SensorRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of commands and formatting of answers, as done for every
+ * request a client sends.
+ *
+ * SensorServerThread hands each line to {@link SensorProtocol} and
+ * each binary frame to {@link SensorBinaryProtocol}, so these are
+ * measured directly, without a socket. The answer buffers are reused
+ * like those of a connection; what the gc profiler reports is what
+ * a request allocates.
+ *
+ * @author Peli
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+
+	private SensorProtocol mProtocol;
+
+	private SensorBinaryProtocol mBinaryProtocol;
+
+	private StringBuilder mOut;
+
+	private ByteArrayOutputStream mFrameOut;
+
+	private byte[] mReadSensorFrame;
+
+	private byte[] mReadSensorsFrame;
+
+	private String[] mSensors;
+
+	@Setup
+	public void setUp() throws IOException {
+		SensorEngine engine = new SensorEngine(getAllEnabled());
+		engine.updateSensorPhysics();
+		engine.updateSensorReadoutValues();
+		engine.getSensorState().publish(engine);
+
+		mProtocol = new SensorProtocol(engine);
+		mBinaryProtocol = new SensorBinaryProtocol(mProtocol);
+		mOut = new StringBuilder();
+		mFrameOut = new ByteArrayOutputStream();
+		mSensors = mProtocol.getSupportedSensors();
+
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(frame);
+		data.writeByte(SensorBinaryProtocol.OP_READ_SENSOR);
+		data.writeUTF(ISensorSimulator.TEMPERATURE);
+		mReadSensorFrame = frame.toByteArray();
+
+		frame.reset();
+		data.writeByte(SensorBinaryProtocol.OP_READ_SENSORS);
+		data.writeShort(mSensors.length);
+		for (int i = 0; i < mSensors.length; i++) {
+			data.writeUTF(mSensors[i]);
+		}
+		mReadSensorsFrame = frame.toByteArray();
+	}
+
+	/**
+	 * @return settings with every sensor supported and enabled, with
+	 * some noise so that the values change.
+	 */
+	static Properties getAllEnabled() {
+		Properties settings = new Properties();
+		for (int i = 0; i < SensorRegistry.size(); i++) {
+			String key = SensorEngine.getKey(SensorRegistry.get(i).getName());
+			settings.setProperty(key + ".supported", "true");
+			settings.setProperty(key + ".enabled", "true");
+			settings.setProperty(key + ".random", "1");
+		}
+		return settings;
+	}
+
+	@Benchmark
+	public int readSensor() {
+		mOut.setLength(0);
+		mProtocol.handleLine("readSensor()", mOut);
+		mProtocol.handleLine(ISensorSimulator.TEMPERATURE, mOut);
+		return mOut.length();
+	}
+
+	@Benchmark
+	public int readSensorTagged() {
+		mOut.setLength(0);
+		mProtocol.handleLine("@17 readSensor()", mOut);
+		mProtocol.handleLine(ISensorSimulator.TEMPERATURE, mOut);
+		return mOut.length();
+	}
+
+	@Benchmark
+	public int readSensorsAll() {
+		mOut.setLength(0);
+		mProtocol.handleLine("readSensors()", mOut);
+		mProtocol.handleLine("*", mOut);
+		return mOut.length();
+	}
+
+	@Benchmark
+	public int getSensorUpdateRates() {
+		mOut.setLength(0);
+		mProtocol.handleLine("getSensorUpdateRates()", mOut);
+		mProtocol.handleLine(ISensorSimulator.TEMPERATURE, mOut);
+		return mOut.length();
+	}
+
+	@Benchmark
+	public int getSupportedSensors() {
+		mOut.setLength(0);
+		mProtocol.handleLine("getSupportedSensors()", mOut);
+		return mOut.length();
+	}
+
+	@Benchmark
+	public int binaryReadSensor() throws IOException {
+		mFrameOut.reset();
+		mBinaryProtocol.handleFrame(mReadSensorFrame, 0,
+				mReadSensorFrame.length, mFrameOut);
+		return mFrameOut.size();
+	}
+
+	@Benchmark
+	public int binaryReadSensors() throws IOException {
+		mFrameOut.reset();
+		mBinaryProtocol.handleFrame(mReadSensorsFrame, 0,
+				mReadSensorsFrame.length, mFrameOut);
+		return mFrameOut.size();
+	}
+}
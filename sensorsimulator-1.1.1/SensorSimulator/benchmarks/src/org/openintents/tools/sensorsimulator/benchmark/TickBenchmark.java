@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.tools.sensorsimulator.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openintents.tools.sensorsimulator.SensorEngine;
+import org.openintents.tools.sensorsimulator.swing.MobilePanel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One tick of the simulation, as run by the timer of the Swing window
+ * and by the thread of {@link SensorEngine}.
+ *
+ * The MobilePanel is driven by a SensorEngine with every sensor
+ * enabled, which stands in for the settings of the window. It is
+ * never shown, so the benchmark runs headless.
+ *
+ * @author Peli
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class TickBenchmark {
+
+	private SensorEngine mEngine;
+
+	private MobilePanel mMobilePanel;
+
+	@Setup
+	public void setUp() {
+		mEngine = new SensorEngine(ProtocolBenchmark.getAllEnabled());
+		mMobilePanel = new MobilePanel(mEngine);
+	}
+
+	/**
+	 * The tick of the Swing window: physics, readout and the hand over
+	 * of the values to the connections.
+	 */
+	@Benchmark
+	public void mobilePanelTick() {
+		mMobilePanel.updateSensorPhysics();
+		mMobilePanel.updateSensorReadoutValues();
+		mMobilePanel.updateUserSettings();
+		mEngine.getSensorState().publish(mEngine);
+	}
+
+	@Benchmark
+	public void mobilePanelPhysics() {
+		mMobilePanel.updateSensorPhysics();
+	}
+
+	@Benchmark
+	public void mobilePanelReadout() {
+		mMobilePanel.updateSensorReadoutValues();
+	}
+
+	/**
+	 * The tick of the headless engine.
+	 */
+	@Benchmark
+	public void engineTick() {
+		mEngine.updateSensorPhysics();
+		mEngine.updateSensorReadoutValues();
+		mEngine.updateUserSettings();
+		mEngine.getSensorState().publish(mEngine);
+	}
+
+	@Benchmark
+	public void publish() {
+		mEngine.getSensorState().publish(mEngine);
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.tools.sensorsimulator.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openintents.tools.sensorsimulator.Vector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rotations of {@link Vector}, which copy the vector for each of the
+ * three axes.
+ *
+ * The angles are taken from a table and advance with each call, so
+ * that the compiler cannot fold them into constants.
+ *
+ * @author Peli
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VectorBenchmark {
+
+	private static final int ANGLES = 256;
+
+	private double[] mRoll;
+	private double[] mPitch;
+	private double[] mYaw;
+	private int mIndex;
+
+	private Vector mVector;
+
+	@Setup
+	public void setUp() {
+		mRoll = new double[ANGLES];
+		mPitch = new double[ANGLES];
+		mYaw = new double[ANGLES];
+		Random random = new Random(42);
+		for (int i = 0; i < ANGLES; i++) {
+			mRoll[i] = 360 * random.nextDouble() - 180;
+			mPitch[i] = 360 * random.nextDouble() - 180;
+			mYaw[i] = 360 * random.nextDouble() - 180;
+		}
+		mVector = new Vector(0, 0, -1);
+	}
+
+	private int next() {
+		mIndex = (mIndex + 1) & (ANGLES - 1);
+		return mIndex;
+	}
+
+	@Benchmark
+	public Vector rollpitchyaw() {
+		int i = next();
+		mVector.x = 0;
+		mVector.y = 0;
+		mVector.z = -1;
+		mVector.rollpitchyaw(mRoll[i], mPitch[i], mYaw[i]);
+		return mVector;
+	}
+
+	@Benchmark
+	public Vector reverserollpitchyaw() {
+		int i = next();
+		mVector.x = 0;
+		mVector.y = 0;
+		mVector.z = -1;
+		mVector.reverserollpitchyaw(mRoll[i], mPitch[i], mYaw[i]);
+		return mVector;
+	}
+
+	/**
+	 * A new vector rotated, the way the gravity vector is computed.
+	 */
+	@Benchmark
+	public Vector newVectorRollpitchyaw() {
+		int i = next();
+		Vector vec = new Vector(0, 0, -1);
+		vec.rollpitchyaw(mRoll[i], mPitch[i], mYaw[i]);
+		return vec;
+	}
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.tools.sensorsimulator.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * One command of a client, text or binary.
+ *
+ * @author Peli
+ */
+@Name("org.openintents.sensorsimulator.Command")
+@Label("Protocol Command")
+@Category("Sensor Simulator")
+@Description("Command of a client, from its arrival to its answer")
+@StackTrace(false)
+class CommandEvent extends jdk.jfr.Event {
+
+	@Label("Command")
+	String command;
+
+	@Label("Sensor")
+	String sensor;
+
+	@Label("Client")
+	String client;
+
+	@Label("Latency")
+	@Timespan(Timespan.NANOSECONDS)
+	long latency;
+}
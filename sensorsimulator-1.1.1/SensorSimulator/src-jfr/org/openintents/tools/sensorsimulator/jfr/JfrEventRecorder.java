@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.tools.sensorsimulator.jfr;
+
+import org.openintents.tools.sensorsimulator.EventRecorder;
+
+/**
+ * Emits the events of the simulator as Flight Recorder events, in the
+ * category "Sensor Simulator". Loaded by {@link EventRecorder#get()}.
+ *
+ * The durations are measured by the simulator and kept in fields of
+ * their own, since the events are created once the work is done. An
+ * event that is not enabled in the recording is dropped before its
+ * fields are set.
+ *
+ * @author Peli
+ */
+public class JfrEventRecorder extends EventRecorder {
+
+	@Override
+	public void tick(long tick, long durationNanos, long intervalNanos,
+			long periodNanos, int channels) {
+		TickEvent event = new TickEvent();
+		if (event.isEnabled()) {
+			event.tick = tick;
+			event.tickDuration = durationNanos;
+			event.tickInterval = intervalNanos;
+			event.channels = channels;
+			event.commit();
+		}
+	}
+
+	@Override
+	public void command(String command, String sensor, String client,
+			long latencyNanos) {
+		CommandEvent event = new CommandEvent();
+		if (event.isEnabled()) {
+			event.command = command;
+			event.sensor = sensor;
+			event.client = client;
+			event.latency = latencyNanos;
+			event.commit();
+		}
+	}
+
+	@Override
+	public void telnetCommand(String command, int port, long durationNanos) {
+		TelnetCommandEvent event = new TelnetCommandEvent();
+		if (event.isEnabled()) {
+			event.command = command;
+			event.port = port;
+			event.writeDuration = durationNanos;
+			event.commit();
+		}
+	}
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.tools.sensorsimulator.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * One command sent to the console of the emulator.
+ *
+ * @author Peli
+ */
+@Name("org.openintents.sensorsimulator.TelnetCommand")
+@Label("Telnet Command")
+@Category("Sensor Simulator")
+@Description("Command sent to the console port of the emulator")
+@StackTrace(false)
+class TelnetCommandEvent extends jdk.jfr.Event {
+
+	@Label("Command")
+	String command;
+
+	@Label("Port")
+	int port;
+
+	@Label("Write Duration")
+	@Timespan(Timespan.NANOSECONDS)
+	long writeDuration;
+}
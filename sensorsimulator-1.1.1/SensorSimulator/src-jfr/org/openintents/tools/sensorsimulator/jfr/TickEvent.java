@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.tools.sensorsimulator.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * One simulation tick.
+ *
+ * @author Peli
+ */
+@Name("org.openintents.sensorsimulator.Tick")
+@Label("Simulation Tick")
+@Category("Sensor Simulator")
+@Description("Physics, readout and publishing of the sensor values")
+@StackTrace(false)
+class TickEvent extends jdk.jfr.Event {
+
+	@Label("Tick")
+	long tick;
+
+	@Label("Tick Duration")
+	@Timespan(Timespan.NANOSECONDS)
+	long tickDuration;
+
+	@Label("Tick Interval")
+	@Description("Time since the start of the previous tick")
+	@Timespan(Timespan.NANOSECONDS)
+	long tickInterval;
+
+	@Label("Channels Updated")
+	@Description("Enabled channels whose values changed")
+	int channels;
+}
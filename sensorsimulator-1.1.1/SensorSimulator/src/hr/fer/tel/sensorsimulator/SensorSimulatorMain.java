@@ -22,6 +22,7 @@
 package hr.fer.tel.sensorsimulator;
 
 
+import java.awt.Component;
 import java.awt.Dimension;
 import java.awt.Window;
 import java.awt.event.ActionEvent;
@@ -64,6 +65,10 @@ public class SensorSimulatorMain extends JPanel
 	
 	//variable that holds running instances of Sensor Simulators
 	public static SensorSimulatorInstances simulatorInstances = new SensorSimulatorInstances();
+
+	//whether every tab listens on its own port, instead of all tabs
+	//being served on the port of the first one
+	static boolean separatePorts = Boolean.getBoolean("sensorsimulator.separatePorts");
 	
 	/**
      * Create the GUI and show it.  For thread safety,
@@ -117,6 +122,9 @@ public class SensorSimulatorMain extends JPanel
         JComponent panel1 = firstSensorSimulator;
         //add instance of this simulator to SensorSimulatorInstances
         setFirstSimulatorInstance(firstSensorSimulator);
+        if (!separatePorts) {
+        	firstSensorSimulator.serveInstances(simulatorInstances);
+        }
         tabbedPane.addTab("Sensor Simulator", panel1);
         tabbedPane.setPreferredSize(new Dimension(950, 500));
         frame.pack();
@@ -146,7 +154,7 @@ public class SensorSimulatorMain extends JPanel
      * @param sensorSimulator, SensorSimulator instance we want to add.
      */
 	private static void setFirstSimulatorInstance(SensorSimulator sensorSimulator) {
-		simulatorInstances.addSimulator(sensorSimulator);	
+		simulatorInstances.addSimulator(sensorSimulator, "Sensor Simulator");
 	}
 	
 	/** Add a listener for window events. */
@@ -243,15 +251,19 @@ public class SensorSimulatorMain extends JPanel
 		        }else if(e.getActionCommand()=="New Tab"){
 		        	String st = JOptionPane.showInputDialog(null, "Enter Tab Name.");
 		        	if(!st.equals("")){
-		        		SensorSimulator simulator = new SensorSimulator();
+		        		SensorSimulator simulator = new SensorSimulator(SensorSimulatorMain.separatePorts);
 		        		JComponent panel = simulator;
-		        		sensorSimulatorInstance.addSimulator(simulator);
+		        		sensorSimulatorInstance.addSimulator(simulator, st);
 		        		tabbedPanel.addTab(st, panel);
 		        	}else{
 		        		JOptionPane.showMessageDialog(null, "Please name your Tab");
 		        	}		        	
 		        }else if(e.getActionCommand()=="Close Tab"){
-		        	tabbedPanel.remove(tabbedPanel.getSelectedComponent());
+		        	Component tab = tabbedPanel.getSelectedComponent();
+		        	if (tab instanceof SensorSimulator) {
+		        		sensorSimulatorInstance.removeSimulator((SensorSimulator) tab);
+		        	}
+		        	tabbedPanel.remove(tab);
 		        }
 
 		 }
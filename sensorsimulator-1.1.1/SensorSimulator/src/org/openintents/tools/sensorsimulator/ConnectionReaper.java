@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.tools.sensorsimulator;
+
+import java.util.Iterator;
+
+/**
+ * Closes connections whose client went silent, so that emulators that
+ * crashed or lost their network do not leave connections, threads and
+ * subscriptions behind for the rest of the session.
+ *
+ * A connection is dead once nothing arrived from its client for
+ * longer than its idle timeout: the one following from heartbeat()
+ * (see {@link SensorProtocol}), or else the default of the server.
+ * The default is off, since older clients that only subscribe never
+ * send anything.
+ *
+ * Run periodically on the push executor of the server. The default is
+ * set with the system property "sensorsimulator.idleTimeout", in
+ * milliseconds.
+ *
+ * @author Peli
+ */
+public class ConnectionReaper implements Runnable {
+
+	/**
+	 * Time between two runs.
+	 */
+	public static final long PERIOD_MILLIS = 1000;
+
+	private ISensorSimulator mSensorSimulator;
+
+	private ConnectionRegistry mConnections;
+
+	private long mDefaultIdleTimeout;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param sensorSimulator, simulator to report closed connections to
+	 * @param connections, connections to watch
+	 * @param defaultIdleTimeout, milliseconds, 0 to keep connections
+	 * without a heartbeat open
+	 */
+	public ConnectionReaper(ISensorSimulator sensorSimulator,
+			ConnectionRegistry connections, long defaultIdleTimeout) {
+		mSensorSimulator = sensorSimulator;
+		mConnections = connections;
+		mDefaultIdleTimeout = defaultIdleTimeout;
+	}
+
+	/**
+	 * @return idle timeout for connections without a heartbeat, as set
+	 * by the system property, 0 if off.
+	 */
+	public static long getDefaultIdleTimeout() {
+		return Math.max(0, Long.getLong("sensorsimulator.idleTimeout", 0).longValue());
+	}
+
+	/**
+	 * Closes the dead connections.
+	 */
+	public void run() {
+		long now = System.currentTimeMillis();
+		Iterator<ConnectionStats> it = mConnections.getConnections().iterator();
+		while (it.hasNext()) {
+			ConnectionStats stats = it.next();
+			long timeout = stats.getIdleTimeout();
+			if (timeout <= 0) {
+				timeout = mDefaultIdleTimeout;
+			}
+			long idle = now - stats.getLastActivity();
+			SensorConnection connection = stats.getConnection();
+			if (timeout <= 0 || idle <= timeout || connection == null) {
+				continue;
+			}
+			// closing removes it from the registry, count it once.
+			mConnections.remove(stats);
+			mConnections.addReaped();
+			mSensorSimulator.addMessage("Client " + stats.getRemoteAddress()
+					+ " silent for " + idle + " ms, disconnected.");
+			connection.close();
+		}
+	}
+}
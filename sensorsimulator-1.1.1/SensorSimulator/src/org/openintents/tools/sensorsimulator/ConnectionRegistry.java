@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.tools.sensorsimulator;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * All open connections of a {@link SensorServer}, with their
+ * {@link ConnectionStats}.
+ *
+ * Connections add and remove themselves from their own threads,
+ * the user interface and the stats() command read it at any time.
+ *
+ * @author Peli
+ */
+public class ConnectionRegistry {
+
+	private final ConcurrentHashMap<Long, ConnectionStats> mConnections;
+
+	private final AtomicLong mNextId;
+
+	/**
+	 * Slow client policy actions of connections already closed.
+	 */
+	private final AtomicLong mClosedDropped;
+	private final AtomicLong mClosedCoalesced;
+	private final AtomicLong mClosedDisconnects;
+	private final AtomicLong mClosedBytesIn;
+	private final AtomicLong mClosedBytesOut;
+
+	/**
+	 * Connections closed by the {@link ConnectionReaper}.
+	 */
+	private final AtomicLong mReaped;
+
+	/**
+	 * Other ways to reach the server, advertised to clients by hello().
+	 */
+	private final CopyOnWriteArrayList<String> mTransports;
+
+	/**
+	 * Instances clients may select, null if only one is served.
+	 */
+	private volatile SensorInstanceDirectory mInstances;
+
+	public ConnectionRegistry() {
+		mConnections = new ConcurrentHashMap<Long, ConnectionStats>();
+		mNextId = new AtomicLong(1);
+		mClosedDropped = new AtomicLong();
+		mClosedCoalesced = new AtomicLong();
+		mClosedDisconnects = new AtomicLong();
+		mClosedBytesIn = new AtomicLong();
+		mClosedBytesOut = new AtomicLong();
+		mReaped = new AtomicLong();
+		mTransports = new CopyOnWriteArrayList<String>();
+	}
+
+	/**
+	 * Advertises a transport the server offers besides its connections.
+	 *
+	 * @param name, name of the transport, like "multicast"
+	 * @param address, where clients find it, like "239.255.83.83:8011"
+	 */
+	public void addTransport(String name, String address) {
+		mTransports.add(name + "\t" + address);
+	}
+
+	/**
+	 * @return advertised transports, as name and address separated by a tab.
+	 */
+	public ArrayList<String> getTransports() {
+		return new ArrayList<String>(mTransports);
+	}
+
+	/**
+	 * Serves several simulator instances on the connections.
+	 *
+	 * @param instances, instances clients may select, null for one
+	 */
+	public void setInstances(SensorInstanceDirectory instances) {
+		mInstances = instances;
+	}
+
+	/**
+	 * @return instances clients may select, null if only one is served.
+	 */
+	public SensorInstanceDirectory getInstances() {
+		return mInstances;
+	}
+
+	/**
+	 * Registers a new connection.
+	 *
+	 * @param connection, the new connection
+	 * @return statistics of the connection
+	 */
+	public ConnectionStats add(SensorConnection connection) {
+		ConnectionStats stats = new ConnectionStats(mNextId.getAndIncrement(),
+				connection, connection.getRemoteAddress());
+		mConnections.put(Long.valueOf(stats.getId()), stats);
+		return stats;
+	}
+
+	/**
+	 * Removes a closed connection.
+	 */
+	public void remove(ConnectionStats stats) {
+		if (mConnections.remove(Long.valueOf(stats.getId())) != null) {
+			mClosedDropped.addAndGet(stats.getDropped());
+			mClosedCoalesced.addAndGet(stats.getCoalesced());
+			mClosedDisconnects.addAndGet(stats.getDisconnects());
+			mClosedBytesIn.addAndGet(stats.getBytesIn());
+			mClosedBytesOut.addAndGet(stats.getBytesOut());
+		}
+	}
+
+	/**
+	 * @return number of open connections.
+	 */
+	public int size() {
+		return mConnections.size();
+	}
+
+	/**
+	 * @return open connections, the collection may change while iterating.
+	 */
+	public Collection<ConnectionStats> getConnections() {
+		return mConnections.values();
+	}
+
+	/**
+	 * @return samples dropped since the server started, for all
+	 * connections including closed ones.
+	 */
+	public long getDropped() {
+		long dropped = mClosedDropped.get();
+		Iterator<ConnectionStats> it = mConnections.values().iterator();
+		while (it.hasNext()) {
+			dropped += it.next().getDropped();
+		}
+		return dropped;
+	}
+
+	/**
+	 * @return samples replaced by newer ones since the server started.
+	 */
+	public long getCoalesced() {
+		long coalesced = mClosedCoalesced.get();
+		Iterator<ConnectionStats> it = mConnections.values().iterator();
+		while (it.hasNext()) {
+			coalesced += it.next().getCoalesced();
+		}
+		return coalesced;
+	}
+
+	/**
+	 * @return clients disconnected for falling behind since the server started.
+	 */
+	public long getDisconnects() {
+		long disconnects = mClosedDisconnects.get();
+		Iterator<ConnectionStats> it = mConnections.values().iterator();
+		while (it.hasNext()) {
+			disconnects += it.next().getDisconnects();
+		}
+		return disconnects;
+	}
+
+	/**
+	 * @return bytes received since the server started, from all
+	 * connections including closed ones.
+	 */
+	public long getBytesIn() {
+		long bytes = mClosedBytesIn.get();
+		Iterator<ConnectionStats> it = mConnections.values().iterator();
+		while (it.hasNext()) {
+			bytes += it.next().getBytesIn();
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return bytes sent since the server started.
+	 */
+	public long getBytesOut() {
+		long bytes = mClosedBytesOut.get();
+		Iterator<ConnectionStats> it = mConnections.values().iterator();
+		while (it.hasNext()) {
+			bytes += it.next().getBytesOut();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Counts a connection closed because its client went silent.
+	 */
+	public void addReaped() {
+		mReaped.incrementAndGet();
+	}
+
+	/**
+	 * @return connections closed since the server started because
+	 * their client went silent.
+	 */
+	public long getReaped() {
+		return mReaped.get();
+	}
+
+	/**
+	 * Closes all open connections.
+	 */
+	public void closeAll() {
+		Iterator<ConnectionStats> it = mConnections.values().iterator();
+		while (it.hasNext()) {
+			SensorConnection connection = it.next().getConnection();
+			if (connection != null) {
+				connection.close();
+			}
+		}
+	}
+
+	/**
+	 * Describes all open connections, busiest first.
+	 *
+	 * @return lines of the report
+	 */
+	public ArrayList<String> report() {
+		ArrayList<ConnectionStats> connections
+			= new ArrayList<ConnectionStats>(mConnections.values());
+		// sort by commands per second, few connections expected:
+		int[] rates = new int[connections.size()];
+		for (int i = 0; i < rates.length; i++) {
+			rates[i] = connections.get(i).getCommandsPerSecond();
+		}
+		for (int i = 1; i < rates.length; i++) {
+			for (int j = i; j > 0 && rates[j - 1] < rates[j]; j--) {
+				int rate = rates[j];
+				rates[j] = rates[j - 1];
+				rates[j - 1] = rate;
+				connections.set(j - 1, connections.set(j, connections.get(j - 1)));
+			}
+		}
+
+		ArrayList<String> lines = new ArrayList<String>();
+		lines.add(connections.size() + " connections, slow clients:"
+				+ " dropped=" + getDropped() + " coalesced=" + getCoalesced()
+				+ " disconnected=" + getDisconnects()
+				+ ", idle reaped=" + getReaped());
+		for (int i = 0; i < connections.size(); i++) {
+			connections.get(i).report(lines);
+		}
+		return lines;
+	}
+}
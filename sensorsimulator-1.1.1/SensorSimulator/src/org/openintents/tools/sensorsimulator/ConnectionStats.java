@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.tools.sensorsimulator;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Traffic of one client connection, kept in the {@link ConnectionRegistry}.
+ *
+ * Byte counters may be updated from any thread, commands are
+ * recorded by the thread that handles the connection.
+ *
+ * @author Peli
+ */
+public class ConnectionStats {
+
+	private final long mId;
+	private final String mRemoteAddress;
+	private final long mOpenedTime;
+	private final SensorConnection mConnection;
+
+	private final AtomicLong mBytesIn;
+	private final AtomicLong mBytesOut;
+
+	/**
+	 * Actions of the slow client policy, see {@link OutboundQueue}.
+	 */
+	private final AtomicLong mDropped;
+	private final AtomicLong mCoalesced;
+	private final AtomicLong mDisconnects;
+
+	/**
+	 * Pushes left out because the value stayed within its deadband.
+	 */
+	private final AtomicLong mSuppressed;
+
+	/**
+	 * Time the client last sent something, in milliseconds since 1970.
+	 */
+	private volatile long mLastActivity;
+
+	/**
+	 * Time without anything from the client after which the connection
+	 * is closed, in milliseconds, 0 to use the server default.
+	 */
+	private volatile long mIdleTimeout;
+
+	// guarded by this:
+	private long mCommands;
+	private long mSecond;
+	private int mCommandsThisSecond;
+	private int mCommandsLastSecond;
+
+	/**
+	 * Per command: count, total and maximum latency in nanoseconds.
+	 */
+	private final TreeMap<String, long[]> mLatencies;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param id, number of the connection
+	 * @param connection, the connection, may be null
+	 * @param remoteAddress, address of the client
+	 */
+	public ConnectionStats(long id, SensorConnection connection,
+			String remoteAddress) {
+		mId = id;
+		mConnection = connection;
+		mRemoteAddress = remoteAddress;
+		mOpenedTime = System.currentTimeMillis();
+		mLastActivity = mOpenedTime;
+		mBytesIn = new AtomicLong();
+		mBytesOut = new AtomicLong();
+		mDropped = new AtomicLong();
+		mCoalesced = new AtomicLong();
+		mDisconnects = new AtomicLong();
+		mSuppressed = new AtomicLong();
+		mLatencies = new TreeMap<String, long[]>();
+	}
+
+	public long getId() {
+		return mId;
+	}
+
+	public SensorConnection getConnection() {
+		return mConnection;
+	}
+
+	public String getRemoteAddress() {
+		return mRemoteAddress;
+	}
+
+	public long getOpenedTime() {
+		return mOpenedTime;
+	}
+
+	public long getLastActivity() {
+		return mLastActivity;
+	}
+
+	public long getIdleTimeout() {
+		return mIdleTimeout;
+	}
+
+	/**
+	 * Sets the time after which the connection counts as dead if the
+	 * client sends nothing, see {@link ConnectionReaper}.
+	 *
+	 * @param idleTimeout, milliseconds, 0 to use the server default
+	 */
+	public void setIdleTimeout(long idleTimeout) {
+		mIdleTimeout = idleTimeout;
+	}
+
+	public long getBytesIn() {
+		return mBytesIn.get();
+	}
+
+	public long getBytesOut() {
+		return mBytesOut.get();
+	}
+
+	/**
+	 * Counts bytes received from the client.
+	 */
+	public void addBytesIn(int bytes) {
+		mBytesIn.addAndGet(bytes);
+		mLastActivity = System.currentTimeMillis();
+	}
+
+	/**
+	 * Counts bytes sent to the client.
+	 */
+	public void addBytesOut(int bytes) {
+		mBytesOut.addAndGet(bytes);
+	}
+
+	/**
+	 * Counts a sample dropped because the client fell behind.
+	 */
+	public void addDropped() {
+		mDropped.incrementAndGet();
+	}
+
+	/**
+	 * Counts a queued sample replaced by a newer one.
+	 */
+	public void addCoalesced() {
+		mCoalesced.incrementAndGet();
+	}
+
+	/**
+	 * Counts a disconnect because the client fell behind.
+	 */
+	public void addDisconnect() {
+		mDisconnects.incrementAndGet();
+	}
+
+	/**
+	 * Counts a push left out because the value did not move.
+	 */
+	public void addSuppressed() {
+		mSuppressed.incrementAndGet();
+	}
+
+	public long getSuppressed() {
+		return mSuppressed.get();
+	}
+
+	public long getDropped() {
+		return mDropped.get();
+	}
+
+	public long getCoalesced() {
+		return mCoalesced.get();
+	}
+
+	public long getDisconnects() {
+		return mDisconnects.get();
+	}
+
+	/**
+	 * Records a handled command.
+	 *
+	 * @param command, name of the command, e.g. "readSensor()"
+	 * @param nanos, time from receiving the command to its answer
+	 */
+	public synchronized void addCommand(String command, long nanos) {
+		mCommands++;
+		countSecond(System.currentTimeMillis() / 1000);
+		mCommandsThisSecond++;
+
+		long[] latency = mLatencies.get(command);
+		if (latency == null) {
+			latency = new long[3];
+			mLatencies.put(command, latency);
+		}
+		latency[0]++;
+		latency[1] += nanos;
+		if (nanos > latency[2]) {
+			latency[2] = nanos;
+		}
+	}
+
+	/**
+	 * Moves the counter of commands per second on to another second.
+	 */
+	private void countSecond(long second) {
+		if (second != mSecond) {
+			mCommandsLastSecond = (second == mSecond + 1) ? mCommandsThisSecond : 0;
+			mCommandsThisSecond = 0;
+			mSecond = second;
+		}
+	}
+
+	public synchronized long getCommands() {
+		return mCommands;
+	}
+
+	/**
+	 * @return number of commands during the last complete second.
+	 */
+	public synchronized int getCommandsPerSecond() {
+		countSecond(System.currentTimeMillis() / 1000);
+		return mCommandsLastSecond;
+	}
+
+	/**
+	 * Describes the connection in one line, followed by one line per
+	 * command with its latency.
+	 *
+	 * @param lines, list the lines are added to
+	 */
+	public synchronized void report(ArrayList<String> lines) {
+		long now = System.currentTimeMillis();
+		lines.add("#" + mId + " " + mRemoteAddress
+				+ " in=" + mBytesIn.get() + " out=" + mBytesOut.get()
+				+ " commands=" + mCommands + " rate=" + getCommandsPerSecond() + "/s"
+				+ " idle=" + (now - mLastActivity) + "ms"
+				+ " open=" + ((now - mOpenedTime) / 1000) + "s"
+				+ " dropped=" + mDropped.get() + " coalesced=" + mCoalesced.get()
+				+ " suppressed=" + mSuppressed.get());
+		Iterator<Map.Entry<String, long[]>> it = mLatencies.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, long[]> entry = it.next();
+			long[] latency = entry.getValue();
+			lines.add("  " + entry.getKey() + " n=" + latency[0]
+					+ " avg=" + (latency[1] / latency[0] / 1000) + "us"
+					+ " max=" + (latency[2] / 1000) + "us");
+		}
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.tools.sensorsimulator;
+
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * Records what the simulator spends its time on, for a profiler that
+ * puts it next to the threads, locks and garbage collections of the
+ * same moment.
+ *
+ * Three things are recorded: every simulation tick, every command of a
+ * client, and every command sent to the console of the emulator. This
+ * recorder drops them. Where the JDK has the Flight Recorder (Java 11
+ * and later) and the build compiled src-jfr, {@link #get()} returns
+ * one that emits them as JFR events instead, so that a recording shows
+ * whether the tick, a client or the emulator is slow. The system
+ * property "sensorsimulator.jfr=false" turns that off. Either way the
+ * events first go to the {@link SensorMetrics} of the process.
+ *
+ * Calls are made on the hot paths; an implementation has to return
+ * quickly when nothing is recording.
+ *
+ * @author Peli
+ */
+public class EventRecorder {
+
+	/**
+	 * Class of the Flight Recorder implementation, in src-jfr.
+	 */
+	public static final String JFR_RECORDER =
+		"org.openintents.tools.sensorsimulator.jfr.JfrEventRecorder";
+
+	/**
+	 * Created on first use, not while this class is initialized, as
+	 * SensorMetrics needs this class initialized before itself.
+	 */
+	private static class Holder {
+		static final EventRecorder INSTANCE = new SensorMetrics(load());
+	}
+
+	/**
+	 * @return the recorder of this process, its metrics.
+	 */
+	public static EventRecorder get() {
+		return Holder.INSTANCE;
+	}
+
+	private static EventRecorder load() {
+		if (!Boolean.valueOf(System.getProperty("sensorsimulator.jfr", "true"))
+				.booleanValue()) {
+			return new EventRecorder();
+		}
+		try {
+			Class.forName("jdk.jfr.Event");
+		} catch (ClassNotFoundException e) {
+			// no Flight Recorder in this JDK.
+			return new EventRecorder();
+		}
+		try {
+			return (EventRecorder) Class.forName(JFR_RECORDER)
+					.getDeclaredConstructor().newInstance();
+		} catch (ClassNotFoundException e) {
+			// built without src-jfr.
+		} catch (InvocationTargetException e) {
+			System.err.println("Flight Recorder events not available: " + e.getCause());
+		} catch (Exception e) {
+			System.err.println("Flight Recorder events not available: " + e);
+		} catch (LinkageError e) {
+			System.err.println("Flight Recorder events not available: " + e);
+		}
+		return new EventRecorder();
+	}
+
+	/**
+	 * A simulation tick is done: physics, readout and publishing of the
+	 * values to the connections.
+	 *
+	 * @param tick, number of the tick
+	 * @param durationNanos, time the tick took
+	 * @param intervalNanos, time since the start of the previous tick,
+	 * 0 for the first one
+	 * @param periodNanos, time between two ticks as set
+	 * @param channels, number of enabled channels whose values changed
+	 */
+	public void tick(long tick, long durationNanos, long intervalNanos,
+			long periodNanos, int channels) {
+	}
+
+	/**
+	 * A command of a client is answered.
+	 *
+	 * @param command, command, e.g. "readSensor()"
+	 * @param sensor, sensor it was about, null if none
+	 * @param client, address of the client
+	 * @param latencyNanos, time from its arrival to its answer
+	 */
+	public void command(String command, String sensor, String client,
+			long latencyNanos) {
+	}
+
+	/**
+	 * A command is sent to the console of the emulator.
+	 *
+	 * @param command, command line, e.g. "power capacity 50"
+	 * @param port, console port
+	 * @param durationNanos, time the write took
+	 */
+	public void telnetCommand(String command, int port, long durationNanos) {
+	}
+}
@@ -95,14 +95,14 @@ public class FileThread extends Thread {
     					z++;
     				}
     				//send value to emulator
-    	    		myTelnetServer.out.println("power capacity "+values.get(j));
+    	    		myTelnetServer.sendCommand("power capacity "+values.get(j));
     	    		c++;
     	    		myTelnetServer.mSensorSimulator.addMessage(time.get(j));
     	    		myTelnetServer.mSensorSimulator.addMessage(values.get(j));
     	            j++;
     	        //if we are still in the same date and time go through time intervals    
     			}else{
-    	    		myTelnetServer.out.println("power capacity "+values.get(j));
+    	    		myTelnetServer.sendCommand("power capacity "+values.get(j));
     	    		c++;
     	    		myTelnetServer.mSensorSimulator.addMessage(time.get(j));
     	    		myTelnetServer.mSensorSimulator.addMessage(values.get(j));
@@ -115,11 +115,12 @@ public class FileThread extends Thread {
     				myTelnetServer.mSensorSimulator.addMessage(simulationType.get(0));
     				oneDateAndTime = false;
     			}
-    			myTelnetServer.out.println("power capacity "+values.get(j));
+    			myTelnetServer.sendCommand("power capacity "+values.get(j));
     			myTelnetServer.mSensorSimulator.addMessage(time.get(j));
     			myTelnetServer.mSensorSimulator.addMessage(values.get(j));
                 j++;
     		}
+        	SensorMetrics.get().setReplayProgress(j, i);
         	if(j<time.size()){
         	  try {
 				this.wait(time3[j]-time3[j-1]);
@@ -48,6 +48,7 @@ public interface ISensorSimulator {
     static String move = "move";
     static String timerAction = "timer";
     static String setPortString = "set port";
+    static String showStats = "show stats";
     //action for telnet connection and send gps
     static String connectViaTelnet = "connectViaTelnet";
     static String recordReplay="replay Record";
@@ -82,12 +83,23 @@ public interface ISensorSimulator {
 	 */
 	public IMobilePanel getMobilePanel();
 
+	/**
+	 * @return sensor values and settings as seen by the connections.
+	 */
+	public SensorState getSensorState();
+
 	/*
 	 *
 	 */
 	public int getPort();
 	public int getTelnetPort();
 
+	/**
+	 * @return one of SensorServer.MODE_THREADS, MODE_SELECTOR, MODE_POOL
+	 * or MODE_VIRTUAL
+	 */
+	public String getServerMode();
+
 	/*
 	 * Support Sensors
 	 */
@@ -147,26 +159,32 @@ public interface ISensorSimulator {
     public double getCurrentUpdateRateProximity();
     public boolean updateAverageProximity();
     
+    public double[] getUpdateRatesCarbonMonoxide();
     public double getDefaultUpdateRateCarbonMonoxide();
     public double getCurrentUpdateRateCarbonMonoxide();
     public boolean updateAverageCarbonMonoxide();
     
+    public double[] getUpdateRatesRedGas();
     public double getDefaultUpdateRateRedGas();
     public double getCurrentUpdateRateRedGas();
     public boolean updateAverageRedGas();
     
+    public double[] getUpdateRatesOxGas();
     public double getDefaultUpdateRateOxGas();
     public double getCurrentUpdateRateOxGas();
     public boolean updateAverageOxGas();
     
+    public double[] getUpdateRatesHumidity();
     public double getDefaultUpdateRateHumidity();
     public double getCurrentUpdateRateHumidity();
     public boolean updateAverageHumidity();
     
+    public double[] getUpdateRatesPressure();
     public double getDefaultUpdateRatePressure();
     public double getCurrentUpdateRatePressure();
     public boolean updateAveragePressure();
     
+    public double[] getUpdateRatesInfrared();
     public double getDefaultUpdateRateInfrared();
     public double getCurrentUpdateRateInfrared();
     public boolean updateAverageInfrared();
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.tools.sensorsimulator;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Data waiting to be sent to one client, limited in size.
+ *
+ * Answers are never dropped. Values pushed to subscribers are
+ * handled by the slow client policy once the queue is full:
+ * <ul>
+ * <li>{@link #POLICY_DROP_OLDEST}: the oldest queued sample is dropped.</li>
+ * <li>{@link #POLICY_COALESCE}: a queued sample of the same sensor is
+ * replaced by the new one, otherwise the oldest sample is dropped.</li>
+ * <li>{@link #POLICY_DISCONNECT}: the client is disconnected.</li>
+ * </ul>
+ * If answers alone exceed the limit, the client does not read at all
+ * and is disconnected. Every action is counted in the
+ * {@link ConnectionStats} of the connection. Sensors that lost a
+ * sample this way are remembered, see {@link #takeDamaged(String)}.
+ *
+ * The limit and the default policy can be set with the system
+ * properties "sensorsimulator.outboundLimit" and
+ * "sensorsimulator.slowClientPolicy". Clients choose their own
+ * policy with setSlowClientPolicy().
+ *
+ * @author Peli
+ */
+public class OutboundQueue {
+
+	public static final String POLICY_DROP_OLDEST = "drop-oldest";
+	public static final String POLICY_COALESCE = "coalesce";
+	public static final String POLICY_DISCONNECT = "disconnect";
+
+	/**
+	 * Bytes queued at most, per connection.
+	 */
+	public static final int DEFAULT_LIMIT = Integer.getInteger(
+			"sensorsimulator.outboundLimit", 65536).intValue();
+
+	public static final String DEFAULT_POLICY = System.getProperty(
+			"sensorsimulator.slowClientPolicy", POLICY_COALESCE);
+
+	private final ConnectionStats mStats;
+	private final int mLimit;
+
+	// guarded by this:
+	private final LinkedList<Entry> mEntries;
+	private int mBytes;
+	private String mPolicy;
+	private boolean mClosed;
+
+	/**
+	 * Sensors with a dropped or replaced sample.
+	 */
+	private final HashSet<String> mDamaged;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param stats, statistics of the connection, counts the policy actions
+	 */
+	public OutboundQueue(ConnectionStats stats) {
+		mStats = stats;
+		mLimit = DEFAULT_LIMIT;
+		mEntries = new LinkedList<Entry>();
+		mDamaged = new HashSet<String>();
+		mBytes = 0;
+		mClosed = false;
+		mPolicy = isPolicy(DEFAULT_POLICY) ? DEFAULT_POLICY : POLICY_COALESCE;
+	}
+
+	/**
+	 * Whether this is the name of a slow client policy.
+	 */
+	public static boolean isPolicy(String policy) {
+		return POLICY_DROP_OLDEST.equals(policy)
+			|| POLICY_COALESCE.equals(policy)
+			|| POLICY_DISCONNECT.equals(policy);
+	}
+
+	public synchronized String getPolicy() {
+		return mPolicy;
+	}
+
+	/**
+	 * @param policy, one of the POLICY_* constants
+	 */
+	public synchronized void setPolicy(String policy) {
+		mPolicy = policy;
+	}
+
+	/**
+	 * Queues an answer.
+	 *
+	 * @param data, complete answer
+	 * @return false if the client has to be disconnected
+	 */
+	public synchronized boolean addAnswer(byte[] data) {
+		if (mClosed) {
+			return true;
+		}
+		if (mBytes + data.length > mLimit && !POLICY_DISCONNECT.equals(mPolicy)) {
+			while (mBytes + data.length > mLimit && dropOldestSample()) {
+				mStats.addDropped();
+			}
+		}
+		if (mBytes + data.length > mLimit && !mEntries.isEmpty()) {
+			disconnect();
+			return false;
+		}
+		add(new Entry(null, data));
+		return true;
+	}
+
+	/**
+	 * Queues a value pushed to a subscriber.
+	 *
+	 * @param sensor, name of the sensor
+	 * @param data, complete sample
+	 * @return false if the client has to be disconnected
+	 */
+	public synchronized boolean addSample(String sensor, byte[] data) {
+		if (mClosed) {
+			return true;
+		}
+		if (mBytes + data.length <= mLimit || mEntries.isEmpty()) {
+			add(new Entry(sensor, data));
+			return true;
+		}
+
+		if (POLICY_DISCONNECT.equals(mPolicy)) {
+			disconnect();
+			return false;
+		}
+		if (POLICY_COALESCE.equals(mPolicy)) {
+			Iterator<Entry> it = mEntries.iterator();
+			while (it.hasNext()) {
+				Entry entry = it.next();
+				if (sensor.equals(entry.mSensor)
+						&& mBytes - entry.mData.length + data.length <= mLimit) {
+					mBytes += data.length - entry.mData.length;
+					entry.mData = data;
+					mDamaged.add(sensor);
+					mStats.addCoalesced();
+					return true;
+				}
+			}
+		}
+		while (mBytes + data.length > mLimit) {
+			if (!dropOldestSample()) {
+				// only answers queued, this sample has to go.
+				mDamaged.add(sensor);
+				mStats.addDropped();
+				return true;
+			}
+			mStats.addDropped();
+		}
+		add(new Entry(sensor, data));
+		return true;
+	}
+
+	/**
+	 * Whether a sample of the sensor was dropped or replaced since the
+	 * last call. Pushes that build on earlier samples, like the deltas
+	 * of a deadband subscription, then have to start over.
+	 *
+	 * @param sensor, name of the sensor
+	 */
+	public synchronized boolean takeDamaged(String sensor) {
+		return mDamaged.remove(sensor);
+	}
+
+	/**
+	 * @return next data to send, or null if the queue is empty.
+	 */
+	public synchronized byte[] poll() {
+		Entry entry = mEntries.poll();
+		if (entry == null) {
+			return null;
+		}
+		mBytes -= entry.mData.length;
+		return entry.mData;
+	}
+
+	/**
+	 * @return length of the next data to send, or -1 if the queue is empty.
+	 */
+	public synchronized int peekLength() {
+		Entry entry = mEntries.peek();
+		return entry == null ? -1 : entry.mData.length;
+	}
+
+	public synchronized boolean isEmpty() {
+		return mEntries.isEmpty();
+	}
+
+	/**
+	 * Drops all queued data, data added later is ignored.
+	 * Called when the connection is closed.
+	 */
+	public synchronized void close() {
+		mClosed = true;
+		mEntries.clear();
+		mBytes = 0;
+	}
+
+	/**
+	 * Counts the disconnect once, the connection is closed afterwards.
+	 */
+	private void disconnect() {
+		mStats.addDisconnect();
+		close();
+	}
+
+	private void add(Entry entry) {
+		mEntries.add(entry);
+		mBytes += entry.mData.length;
+	}
+
+	/**
+	 * Removes the oldest sample.
+	 *
+	 * @return false if there is none.
+	 */
+	private boolean dropOldestSample() {
+		Iterator<Entry> it = mEntries.iterator();
+		while (it.hasNext()) {
+			Entry entry = it.next();
+			if (entry.mSensor != null) {
+				it.remove();
+				mBytes -= entry.mData.length;
+				mDamaged.add(entry.mSensor);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Queued answer or sample.
+	 */
+	private static class Entry {
+		/** sensor of a sample, null for answers */
+		final String mSensor;
+		byte[] mData;
+
+		Entry(String sensor, byte[] data) {
+			mSensor = sensor;
+			mData = data;
+		}
+	}
+}
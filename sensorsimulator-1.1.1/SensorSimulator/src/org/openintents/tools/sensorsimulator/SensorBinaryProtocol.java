@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.tools.sensorsimulator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Binary encoding of the sensor protocol.
+ *
+ * A client switches to it by sending binary() and waiting for "OK".
+ * From then on, every request and answer is a frame:
+ * <pre>
+ * int    length of the rest of the frame
+ * byte   opcode
+ * ...    payload
+ * </pre>
+ * All numbers are big endian (as written by DataOutputStream),
+ * sensor values and rates are IEEE-754 floats and sensor names
+ * are written with writeUTF(). Every answer repeats the opcode of
+ * its request, followed by a status byte (STATUS_* of
+ * {@link SensorProtocol}) and, if OK, the result. Values pushed to
+ * subscribers are sent as {@link #OP_SAMPLE} frames.
+ *
+ * A request with {@link #FLAG_TAGGED} set in its opcode carries an
+ * int request id after the opcode. The answer repeats opcode and id.
+ *
+ * From protocol version 12 on, agreed with hello(), the values of
+ * OP_READ_SENSOR, OP_READ_SENSORS and pushed frames are followed by
+ * their stamp: long tick and long generation time in microseconds
+ * of the clock answered to {@link #OP_CLOCK}.
+ *
+ * @author Peli
+ */
+public class SensorBinaryProtocol {
+
+	/** (): short count, count names */
+	public static final byte OP_GET_SUPPORTED_SENSORS = 1;
+	/** (name): boolean enabled before */
+	public static final byte OP_ENABLE_SENSOR = 2;
+	/** (name): boolean enabled before */
+	public static final byte OP_DISABLE_SENSOR = 3;
+	/** (name): byte number of values */
+	public static final byte OP_GET_NUM_SENSOR_VALUES = 4;
+	/** (name): byte count, count floats */
+	public static final byte OP_READ_SENSOR = 5;
+	/** (short count, count names): short count, per sensor name, status, values */
+	public static final byte OP_READ_SENSORS = 6;
+	/** (name): short count, count floats */
+	public static final byte OP_GET_SENSOR_UPDATE_RATES = 7;
+	/** (name): float */
+	public static final byte OP_GET_SENSOR_UPDATE_RATE = 8;
+	/** (name, float) */
+	public static final byte OP_SET_SENSOR_UPDATE_RATE = 9;
+	/** (name) */
+	public static final byte OP_UNSET_SENSOR_UPDATE_RATE = 10;
+	/** (name, float) */
+	public static final byte OP_SUBSCRIBE = 11;
+	/** (name) */
+	public static final byte OP_UNSUBSCRIBE = 12;
+	/** (policy name), see {@link OutboundQueue} */
+	public static final byte OP_SET_SLOW_CLIENT_POLICY = 13;
+	/** () */
+	public static final byte OP_PING = 14;
+	/** (int interval in milliseconds) */
+	public static final byte OP_HEARTBEAT = 15;
+	/** (name or id of an instance), see {@link SensorInstanceDirectory} */
+	public static final byte OP_SELECT = 16;
+	/** (): long time of the server in microseconds, see {@link SensorSnapshot#currentMicros()} */
+	public static final byte OP_CLOCK = 17;
+	/** pushed: name, byte count, count floats */
+	public static final byte OP_SAMPLE = 32;
+	/** pushed: name, byte count, count shorts, changes in steps of the deadband */
+	public static final byte OP_SAMPLE_DELTA = 33;
+
+	/**
+	 * Set in the opcode of requests followed by a request id.
+	 */
+	public static final byte FLAG_TAGGED = 0x40;
+
+	/**
+	 * Largest frame accepted from a client.
+	 */
+	public static final int MAX_FRAME_LENGTH = 65536;
+
+	private SensorProtocol mProtocol;
+
+	private ByteArrayOutputStream mFrame;
+	private DataOutputStream mData;
+
+	private float[] mValues;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param protocol, protocol of the connection, performs the requests.
+	 */
+	public SensorBinaryProtocol(SensorProtocol protocol) {
+		mProtocol = protocol;
+		mFrame = new ByteArrayOutputStream();
+		mData = new DataOutputStream(mFrame);
+		mValues = new float[SensorProtocol.MAX_VALUES];
+	}
+
+	/**
+	 * Handles one request frame and writes the answer frame.
+	 *
+	 * @param frame, buffer holding the frame without its length
+	 * @param offset, start of the frame in the buffer
+	 * @param length, length of the frame
+	 * @param out, stream the answer frame is written to
+	 */
+	public void handleFrame(byte[] frame, int offset, int length,
+			OutputStream out) throws IOException {
+		long start = System.nanoTime();
+		DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(frame, offset, length));
+		byte opcode = in.readByte();
+		String sensor = null;
+
+		mFrame.reset();
+		mData.writeByte(opcode);
+		if ((opcode & FLAG_TAGGED) != 0) {
+			mData.writeInt(in.readInt());
+			opcode &= ~FLAG_TAGGED;
+		}
+
+		if (opcode == OP_GET_SUPPORTED_SENSORS) {
+			String[] sensors = mProtocol.getSupportedSensors();
+			mData.writeByte(SensorProtocol.STATUS_OK);
+			mData.writeShort(sensors.length);
+			for (int i = 0; i < sensors.length; i++) {
+				mData.writeUTF(sensors[i]);
+			}
+		} else if (opcode == OP_READ_SENSORS) {
+			int count = in.readShort();
+			mData.writeByte(SensorProtocol.STATUS_OK);
+			mData.writeShort(count);
+			SensorSnapshot snapshot = mProtocol.getSnapshot();
+			for (int i = 0; i < count; i++) {
+				String name = in.readUTF();
+				mData.writeUTF(name);
+				writeValues(snapshot, name);
+			}
+		} else if (opcode == OP_SET_SLOW_CLIENT_POLICY) {
+			mData.writeByte(mProtocol.setSlowClientPolicy(in.readUTF()));
+		} else if (opcode == OP_PING) {
+			mData.writeByte(SensorProtocol.STATUS_OK);
+		} else if (opcode == OP_HEARTBEAT) {
+			mData.writeByte(mProtocol.setHeartbeat(in.readInt()));
+		} else if (opcode == OP_SELECT) {
+			mData.writeByte(mProtocol.select(in.readUTF()));
+		} else if (opcode == OP_CLOCK) {
+			mData.writeByte(SensorProtocol.STATUS_OK);
+			mData.writeLong(SensorSnapshot.currentMicros());
+		} else if (opcode >= OP_ENABLE_SENSOR && opcode <= OP_UNSUBSCRIBE) {
+			sensor = in.readUTF();
+			if (!mProtocol.isSupported(sensor)) {
+				mData.writeByte(SensorProtocol.STATUS_ILLEGAL_ARGUMENT);
+			} else {
+				handleSensorFrame(opcode, sensor, in);
+			}
+		} else {
+			mProtocol.mSensorSimulator.addMessage(
+					"WARNING: Client sent unexpected opcode: " + opcode);
+			mData.writeByte(SensorProtocol.STATUS_ILLEGAL_ARGUMENT);
+		}
+
+		writeFrame(out);
+		mProtocol.addCommand(getCommandName(opcode), sensor,
+				System.nanoTime() - start);
+	}
+
+	/**
+	 * Name of an opcode in the statistics, the text command where
+	 * there is one.
+	 */
+	static String getCommandName(byte opcode) {
+		if (opcode >= 1 && opcode < COMMAND_NAMES.length) {
+			return COMMAND_NAMES[opcode];
+		}
+		return SensorProtocol.UNKNOWN_COMMAND;
+	}
+
+	private static final String[] COMMAND_NAMES = new String[] {
+		null,
+		"getSupportedSensors()", "enableSensor()", "disableSensor()",
+		"getNumSensorValues()", "readSensor()", "readSensors()",
+		"getSensorUpdateRates()", "getSensorUpdateRate()",
+		"setSensorUpdateRate()", "unsetSensorUpdateRate()",
+		"subscribe()", "unsubscribe()", "setSlowClientPolicy()",
+		"ping()", "heartbeat()", "select()", "clock()"
+	};
+
+	/**
+	 * Performs a request for a supported sensor.
+	 */
+	private void handleSensorFrame(byte opcode, String sensor,
+			DataInputStream in) throws IOException {
+		switch (opcode) {
+		case OP_ENABLE_SENSOR:
+		case OP_DISABLE_SENSOR:
+			mData.writeByte(SensorProtocol.STATUS_OK);
+			mData.writeBoolean(mProtocol.isEnabled(sensor));
+			mProtocol.setEnabled(sensor, opcode == OP_ENABLE_SENSOR);
+			break;
+		case OP_GET_NUM_SENSOR_VALUES:
+			mData.writeByte(SensorProtocol.STATUS_OK);
+			mData.writeByte(mProtocol.getNumValues(sensor));
+			break;
+		case OP_READ_SENSOR:
+			writeValues(mProtocol.getSnapshot(), sensor);
+			break;
+		case OP_GET_SENSOR_UPDATE_RATES:
+			double[] rates = mProtocol.getUpdateRates(sensor);
+			mData.writeByte(SensorProtocol.STATUS_OK);
+			if (rates == null) {
+				mData.writeShort(0);
+			} else {
+				mData.writeShort(rates.length);
+				for (int i = 0; i < rates.length; i++) {
+					mData.writeFloat((float) rates[i]);
+				}
+			}
+			break;
+		case OP_GET_SENSOR_UPDATE_RATE:
+			if (mProtocol.isEnabled(sensor)) {
+				mData.writeByte(SensorProtocol.STATUS_OK);
+				mData.writeFloat((float) mProtocol.getCurrentUpdateRate(sensor));
+			} else {
+				mData.writeByte(SensorProtocol.STATUS_ILLEGAL_STATE);
+			}
+			break;
+		case OP_SET_SENSOR_UPDATE_RATE:
+			mProtocol.setUpdateRate(sensor, in.readFloat());
+			mData.writeByte(SensorProtocol.STATUS_OK);
+			break;
+		case OP_UNSET_SENSOR_UPDATE_RATE:
+			mData.writeByte(mProtocol.unsetUpdateRate(sensor));
+			break;
+		case OP_SUBSCRIBE:
+			float updatesPerSecond = in.readFloat();
+			if (in.available() > 0) {
+				// deadband and keyframe period follow
+				mData.writeByte(mProtocol.subscribe(sensor, updatesPerSecond,
+						in.readFloat(), in.readInt()));
+			} else {
+				mData.writeByte(mProtocol.subscribe(sensor, updatesPerSecond));
+			}
+			break;
+		case OP_UNSUBSCRIBE:
+			mProtocol.unsubscribe(sensor);
+			mData.writeByte(SensorProtocol.STATUS_OK);
+			break;
+		}
+	}
+
+	/**
+	 * Writes status and values of a sensor, as answered to OP_READ_SENSOR.
+	 */
+	private void writeValues(SensorSnapshot snapshot, String sensor)
+			throws IOException {
+		if (!mProtocol.isSupported(snapshot, sensor)) {
+			mData.writeByte(SensorProtocol.STATUS_ILLEGAL_ARGUMENT);
+		} else if (!mProtocol.isEnabled(snapshot, sensor)) {
+			mData.writeByte(SensorProtocol.STATUS_ILLEGAL_STATE);
+		} else {
+			int num = mProtocol.readValues(snapshot, sensor, mValues);
+			mData.writeByte(SensorProtocol.STATUS_OK);
+			mData.writeByte(num);
+			for (int i = 0; i < num; i++) {
+				mData.writeFloat(mValues[i]);
+			}
+			if (mProtocol.isStamped()) {
+				mData.writeLong(snapshot.getTick());
+				mData.writeLong(snapshot.getMicros());
+				SensorMetrics.get().observeSampleAge(snapshot);
+			}
+		}
+	}
+
+	/**
+	 * Writes the collected frame, preceded by its length.
+	 */
+	private void writeFrame(OutputStream out) throws IOException {
+		int length = mFrame.size();
+		out.write(length >>> 24);
+		out.write(length >>> 16);
+		out.write(length >>> 8);
+		out.write(length);
+		mFrame.writeTo(out);
+	}
+
+	/**
+	 * Encodes values pushed to a subscriber as a complete OP_SAMPLE frame.
+	 * May be called from any thread.
+	 *
+	 * @param sensor, name of the sensor
+	 * @param values, current values of the sensor
+	 * @param num, number of values
+	 * @param stamp, snapshot the values stem from, null to send no stamp
+	 */
+	public static byte[] encodeSample(String sensor, float[] values, int num,
+			SensorSnapshot stamp) {
+		ByteArrayOutputStream frame = new ByteArrayOutputStream(32);
+		DataOutputStream data = new DataOutputStream(frame);
+		try {
+			data.writeInt(0); // length, filled in below
+			data.writeByte(OP_SAMPLE);
+			data.writeUTF(sensor);
+			data.writeByte(num);
+			for (int i = 0; i < num; i++) {
+				data.writeFloat(values[i]);
+			}
+			writeStamp(data, stamp);
+		} catch (IOException e) {
+			// not thrown by ByteArrayOutputStream
+		}
+		return withLength(frame.toByteArray());
+	}
+
+	/**
+	 * Encodes the change of a sensor as a complete OP_SAMPLE_DELTA frame.
+	 * May be called from any thread.
+	 *
+	 * @param sensor, name of the sensor
+	 * @param steps, change of each value, in steps of the deadband
+	 * @param num, number of values
+	 * @param stamp, snapshot the values stem from, null to send no stamp
+	 */
+	public static byte[] encodeDelta(String sensor, int[] steps, int num,
+			SensorSnapshot stamp) {
+		ByteArrayOutputStream frame = new ByteArrayOutputStream(32);
+		DataOutputStream data = new DataOutputStream(frame);
+		try {
+			data.writeInt(0); // length, filled in below
+			data.writeByte(OP_SAMPLE_DELTA);
+			data.writeUTF(sensor);
+			data.writeByte(num);
+			for (int i = 0; i < num; i++) {
+				data.writeShort(steps[i]);
+			}
+			writeStamp(data, stamp);
+		} catch (IOException e) {
+			// not thrown by ByteArrayOutputStream
+		}
+		return withLength(frame.toByteArray());
+	}
+
+	private static void writeStamp(DataOutputStream data, SensorSnapshot stamp)
+			throws IOException {
+		if (stamp != null) {
+			data.writeLong(stamp.getTick());
+			data.writeLong(stamp.getMicros());
+		}
+	}
+
+	/**
+	 * Fills in the length at the start of an encoded frame.
+	 */
+	private static byte[] withLength(byte[] bytes) {
+		int length = bytes.length - 4;
+		bytes[0] = (byte) (length >>> 24);
+		bytes[1] = (byte) (length >>> 16);
+		bytes[2] = (byte) (length >>> 8);
+		bytes[3] = (byte) length;
+		return bytes;
+	}
+}
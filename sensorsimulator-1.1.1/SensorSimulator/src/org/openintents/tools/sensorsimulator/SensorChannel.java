@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.tools.sensorsimulator;
+
+/**
+ * One sensor channel served over the protocol.
+ *
+ * Binds the sensor name used on the wire to the methods of
+ * {@link ISensorSimulator} and {@link IMobilePanel} that belong to it.
+ * All channels are listed in {@link SensorRegistry}. The methods are
+ * only called from the simulation thread, connections read the
+ * channels from a {@link SensorSnapshot}.
+ *
+ * @author Peli
+ */
+public abstract class SensorChannel {
+
+	private String mName;
+
+	private int mIndex;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param name, name of the sensor in the protocol.
+	 */
+	protected SensorChannel(String name) {
+		mName = name;
+	}
+
+	/**
+	 * @return name of the sensor in the protocol.
+	 */
+	public String getName() {
+		return mName;
+	}
+
+	/**
+	 * @return position of the channel in the {@link SensorRegistry}
+	 * and in {@link SensorSnapshot}s.
+	 */
+	public int getIndex() {
+		return mIndex;
+	}
+
+	void setIndex(int index) {
+		mIndex = index;
+	}
+
+	/**
+	 * @return number of values the sensor delivers.
+	 */
+	public int getNumValues() {
+		return 1;
+	}
+
+	public abstract boolean isSupported(ISensorSimulator sensorSimulator);
+
+	public abstract boolean isEnabled(ISensorSimulator sensorSimulator);
+
+	public abstract void setEnabled(ISensorSimulator sensorSimulator, boolean enable);
+
+	/**
+	 * Reads the current values from the mobile panel.
+	 *
+	 * @param mobilePanel, panel of the simulator
+	 * @param values, array holding at least {@link #getNumValues()} values
+	 */
+	public abstract void readValues(IMobilePanel mobilePanel, float[] values);
+
+	/**
+	 * Tells the simulator that the emulator read the sensor.
+	 */
+	public abstract void refresh(ISensorSimulator sensorSimulator);
+
+	public abstract double[] getUpdateRates(ISensorSimulator sensorSimulator);
+
+	public abstract double getDefaultUpdateRate(ISensorSimulator sensorSimulator);
+
+	public abstract double getCurrentUpdateRate(ISensorSimulator sensorSimulator);
+
+	public abstract void setCurrentUpdateRate(ISensorSimulator sensorSimulator,
+			double updatesPerSecond);
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.tools.sensorsimulator;
+
+/**
+ * A client connection of the {@link SensorServer}.
+ *
+ * @author Peli
+ */
+public interface SensorConnection {
+
+	/**
+	 * Sends complete lines to the client.
+	 *
+	 * May be called from any thread. Lines of one call are never
+	 * interleaved with lines of another call.
+	 *
+	 * @param lines, one or more lines, each terminated by '\n'
+	 */
+	public void send(CharSequence lines);
+
+	/**
+	 * Sends a complete frame of the {@link SensorBinaryProtocol}.
+	 *
+	 * May be called from any thread, like {@link #send(CharSequence)}.
+	 *
+	 * @param frame, frame including its length
+	 */
+	public void sendFrame(byte[] frame);
+
+	/**
+	 * Sends a value pushed to a subscriber. Never blocks: if the client
+	 * falls behind, the {@link OutboundQueue} of the connection may drop
+	 * or replace the sample, or disconnect the client.
+	 *
+	 * May be called from any thread.
+	 *
+	 * @param sensor, name of the sensor
+	 * @param data, complete "sample()" lines or OP_SAMPLE frame
+	 */
+	public void sendSample(String sensor, byte[] data);
+
+	/**
+	 * @return address and port of the client.
+	 */
+	public String getRemoteAddress();
+
+	/**
+	 * Closes the connection. May be called from any thread.
+	 */
+	public void close();
+}
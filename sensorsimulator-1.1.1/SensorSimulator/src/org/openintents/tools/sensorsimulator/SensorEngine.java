@@ -0,0 +1,862 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.tools.sensorsimulator;
+
+import java.util.Properties;
+import java.util.Random;
+
+import javax.swing.JTextField;
+
+/**
+ * The simulation of the SensorSimulator without a user interface, for
+ * machines without a display.
+ *
+ * Sensor settings are taken from {@link Properties} once, before
+ * {@link #start()}; clients change whether sensors are enabled and
+ * their update rates through the protocol as usual. The simulation
+ * thread does what the timer of the Swing window does: it computes the
+ * sensor values with their random part, the values read by clients at
+ * the current update rates, optionally averaged, and publishes a
+ * snapshot of the state.
+ *
+ * Settings are named after the sensor, without spaces, followed by
+ * the setting, e.g. "carbonMonoxide.enabled=true":
+ * supported, enabled, value, random, rates (comma separated),
+ * defaultRate, currentRate and average. The defaults are those of the
+ * Swing window. Besides, "port", "telnetPort", "serverMode" and
+ * "delay" (milliseconds between two ticks) are read.
+ *
+ * @author Peli
+ */
+public class SensorEngine implements ISensorSimulator, IMobilePanel {
+
+	private static final int CHANNELS = SensorRegistry.size();
+
+	// Channel indices
+	private static final int TEMPERATURE_INDEX = SensorRegistry.get(TEMPERATURE).getIndex();
+	private static final int LIGHT_INDEX = SensorRegistry.get(LIGHT).getIndex();
+	private static final int PROXIMITY_INDEX = SensorRegistry.get(PROXIMITY).getIndex();
+	private static final int CARBON_MONOXIDE_INDEX = SensorRegistry.get(CARBON_MONOXIDE).getIndex();
+	private static final int RED_GAS_INDEX = SensorRegistry.get(RED_GAS).getIndex();
+	private static final int OX_GAS_INDEX = SensorRegistry.get(OX_GAS).getIndex();
+	private static final int HUMIDITY_INDEX = SensorRegistry.get(HUMIDITY).getIndex();
+	private static final int PRESSURE_INDEX = SensorRegistry.get(PRESSURE).getIndex();
+	private static final int INFRARED_INDEX = SensorRegistry.get(INFRARED).getIndex();
+
+	private boolean[] mSupported = new boolean[CHANNELS];
+	private boolean[] mEnabled = new boolean[CHANNELS];
+	private double[] mValue = new double[CHANNELS];
+	private double[] mRandom = new double[CHANNELS];
+	private double[][] mUpdateRates = new double[CHANNELS][];
+	private double[] mDefaultUpdateRate = new double[CHANNELS];
+	private double[] mCurrentUpdateRate = new double[CHANNELS];
+	private boolean[] mAverage = new boolean[CHANNELS];
+
+	// simulation state, only used by the simulation thread:
+	private double[] mSimulated = new double[CHANNELS];
+	private double[] mRead = new double[CHANNELS];
+	private double[] mPartial = new double[CHANNELS];
+	private int[] mPartialCount = new int[CHANNELS];
+	private long[] mNextUpdate = new long[CHANNELS];
+	private Random mRandomGenerator = new Random();
+
+	private int mPort;
+	private int mTelnetPort;
+	private String mServerMode;
+	private volatile int mDelay;
+	private int mIncomingConnections;
+
+	private SensorState mSensorState;
+
+	private Thread mThread;
+	private volatile boolean mRunning;
+
+	/**
+	 * Constructor, with the settings of the Swing window.
+	 */
+	public SensorEngine() {
+		this(new Properties());
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param settings, settings to take over, the defaults for the rest
+	 */
+	public SensorEngine(Properties settings) {
+		mPort = getInt(settings, "port", 8010);
+		mTelnetPort = getInt(settings, "telnetPort", 5554);
+		mServerMode = settings.getProperty("serverMode", SensorServer.MODE_THREADS);
+		mDelay = Math.max(1, getInt(settings, "delay", 10));
+
+		for (int i = 0; i < CHANNELS; i++) {
+			String key = getKey(SensorRegistry.get(i).getName());
+			double value = 100;
+			String rates = "1";
+			if (i == TEMPERATURE_INDEX) {
+				value = 17.7;
+				rates = "0.1, 1";
+			} else if (i == LIGHT_INDEX) {
+				value = 400;
+			} else if (i == PROXIMITY_INDEX) {
+				value = 10;
+			}
+			mSupported[i] = getBoolean(settings, key + ".supported", false);
+			mEnabled[i] = getBoolean(settings, key + ".enabled", false);
+			mValue[i] = getDouble(settings, key + ".value", value);
+			mRandom[i] = getDouble(settings, key + ".random", 0);
+			mUpdateRates[i] = parseList(settings.getProperty(key + ".rates", rates));
+			mDefaultUpdateRate[i] = getDouble(settings, key + ".defaultRate", 1);
+			mCurrentUpdateRate[i] = getDouble(settings, key + ".currentRate",
+					mDefaultUpdateRate[i]);
+			mAverage[i] = getBoolean(settings, key + ".average", true);
+		}
+
+		mSensorState = new SensorState();
+	}
+
+	/**
+	 * @return name of the settings of a sensor, e.g. "carbonMonoxide"
+	 * for "carbon monoxide".
+	 */
+	public static String getKey(String sensor) {
+		StringBuffer key = new StringBuffer();
+		boolean upper = false;
+		for (int i = 0; i < sensor.length(); i++) {
+			char c = sensor.charAt(i);
+			if (!Character.isLetterOrDigit(c)) {
+				upper = key.length() > 0;
+			} else if (upper) {
+				key.append(Character.toUpperCase(c));
+				upper = false;
+			} else {
+				key.append(c);
+			}
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Starts the simulation thread.
+	 */
+	public synchronized void start() {
+		if (mThread != null) {
+			return;
+		}
+		mSensorState.publish(this);
+		mRunning = true;
+		mThread = new Thread(new Runnable() {
+			public void run() {
+				simulate();
+			}
+		}, "SensorEngine");
+		mThread.start();
+	}
+
+	/**
+	 * Stops the simulation thread.
+	 */
+	public synchronized void stop() {
+		mRunning = false;
+		if (mThread != null) {
+			mThread.interrupt();
+			mThread = null;
+		}
+	}
+
+	private void simulate() {
+		long next = System.currentTimeMillis();
+		EventRecorder recorder = EventRecorder.get();
+		long previous = 0;
+		while (mRunning) {
+			long start = System.nanoTime();
+			updateSensorPhysics();
+			updateSensorReadoutValues();
+			updateUserSettings();
+			int changed = mSensorState.publish(this);
+			recorder.tick(mSensorState.getSnapshot().getTick(),
+					System.nanoTime() - start, previous == 0 ? 0 : start - previous,
+					mDelay * 1000000L, changed);
+			previous = start;
+
+			next += mDelay;
+			long wait = next - System.currentTimeMillis();
+			if (wait <= 0) {
+				// behind, like a coalescing timer do not catch up.
+				next = System.currentTimeMillis();
+				wait = 0;
+			}
+			try {
+				Thread.sleep(wait);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	////////////////////////////////////////////////////////////
+	// IMobilePanel
+
+	public void doRepaint() {
+		// nothing to paint.
+	}
+
+	/**
+	 * Computes the sensor values, with their random part.
+	 */
+	public void updateSensorPhysics() {
+		for (int i = 0; i < CHANNELS; i++) {
+			if (mEnabled[i]) {
+				double value = mValue[i];
+				if (mRandom[i] > 0) {
+					value += mRandom[i] * (2 * mRandomGenerator.nextDouble() - 1);
+				}
+				mSimulated[i] = value;
+			} else {
+				mSimulated[i] = 0;
+			}
+		}
+	}
+
+	/**
+	 * Computes the values read by clients, at the current update rates.
+	 */
+	public void updateSensorReadoutValues() {
+		long currentTime = System.currentTimeMillis();
+		for (int i = 0; i < CHANNELS; i++) {
+			if (mAverage[i]) {
+				mPartial[i] += mSimulated[i];
+				mPartialCount[i]++;
+			}
+			if (currentTime < mNextUpdate[i]) {
+				continue;
+			}
+			double rate = mCurrentUpdateRate[i];
+			mNextUpdate[i] += rate != 0 ? (long) (1000. / rate) : 0;
+			if (mNextUpdate[i] < currentTime) {
+				// Don't lag too much behind.
+				mNextUpdate[i] = currentTime;
+			}
+			if (mAverage[i] && mPartialCount[i] > 0) {
+				mRead[i] = mPartial[i] / mPartialCount[i];
+				mPartial[i] = 0;
+				mPartialCount[i] = 0;
+			} else {
+				mRead[i] = mSimulated[i];
+			}
+		}
+	}
+
+	public void updateUserSettings() {
+		// settings are read directly, there is no window to poll.
+	}
+
+	////////////////////////////////////////////////////////////
+	// ISensorSimulator
+
+	public void addMessage(String string) {
+		System.out.println(string);
+	}
+
+	public int getMouseMode() {
+		return 0;
+	}
+
+	public WiiMoteData getWiiMoteData() {
+		return null;
+	}
+
+	public synchronized void newClient() {
+		mIncomingConnections++;
+	}
+
+	public int getDelay() {
+		return mDelay;
+	}
+
+	public void setDelay(int delay) {
+		mDelay = Math.max(1, delay);
+	}
+
+	public IMobilePanel getMobilePanel() {
+		return this;
+	}
+
+	public SensorState getSensorState() {
+		return mSensorState;
+	}
+
+	public int getPort() {
+		return mPort;
+	}
+
+	public int getTelnetPort() {
+		return mTelnetPort;
+	}
+
+	public String getServerMode() {
+		return mServerMode;
+	}
+
+	public double getUpdateSensors() {
+		return mDelay;
+	}
+
+	public double getRefreshAfter() {
+		return 10;
+	}
+
+	public void updateSensorRefresh() {
+		// no display to show the refresh rate on.
+	}
+
+	public boolean useRealDeviceThinkpad() {
+		return false;
+	}
+
+	public boolean useRealDeviceWiimtoe() {
+		return false;
+	}
+
+	public String getRealDevicePath() {
+		return "";
+	}
+
+	public void setRealDeviceOutput(String text) {
+		// no real device without a window to choose it.
+	}
+
+	public double getSafeDouble(JTextField textField, double defaultValue) {
+		return defaultValue;
+	}
+
+	public double getSafeDouble(JTextField textField) {
+		return 0;
+	}
+
+	public double[] getSafeDoubleList(JTextField textField) {
+		return null;
+	}
+
+	////////////////////////////////////////////////////////////
+	// Settings
+
+	private int getInt(Properties settings, String key, int defaultValue) {
+		String s = settings.getProperty(key);
+		if (s == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(s.trim());
+		} catch (NumberFormatException e) {
+			addMessage("Invalid number for " + key + ": " + s);
+			return defaultValue;
+		}
+	}
+
+	private double getDouble(Properties settings, String key, double defaultValue) {
+		String s = settings.getProperty(key);
+		if (s == null) {
+			return defaultValue;
+		}
+		try {
+			return Double.parseDouble(s.trim());
+		} catch (NumberFormatException e) {
+			addMessage("Invalid number for " + key + ": " + s);
+			return defaultValue;
+		}
+	}
+
+	private static boolean getBoolean(Properties settings, String key, boolean defaultValue) {
+		String s = settings.getProperty(key);
+		return s == null ? defaultValue : Boolean.valueOf(s.trim()).booleanValue();
+	}
+
+	/**
+	 * @return the numbers of a comma separated list, null if it is
+	 * empty or invalid, like an empty text field of the Swing window.
+	 */
+	private double[] parseList(String list) {
+		if (list.trim().length() == 0) {
+			return null;
+		}
+		String[] items = list.split(",");
+		double[] numbers = new double[items.length];
+		try {
+			for (int i = 0; i < items.length; i++) {
+				numbers[i] = Double.parseDouble(items[i].trim());
+			}
+		} catch (NumberFormatException e) {
+			addMessage("Invalid list of numbers: " + list);
+			return null;
+		}
+		return numbers;
+	}
+
+	////////////////////////////////////////////////////////////
+	// Sensors
+
+	// Temperature
+
+	public boolean isSupportedTemperature() {
+		return mSupported[TEMPERATURE_INDEX];
+	}
+
+	public boolean isEnabledTemperature() {
+		return mEnabled[TEMPERATURE_INDEX];
+	}
+
+	public void setEnabledTemperature(boolean enable) {
+		mEnabled[TEMPERATURE_INDEX] = enable;
+	}
+
+	public double[] getUpdateRatesThermometer() {
+		return mUpdateRates[TEMPERATURE_INDEX];
+	}
+
+	public double getDefaultUpdateRateThermometer() {
+		return mDefaultUpdateRate[TEMPERATURE_INDEX];
+	}
+
+	public double getCurrentUpdateRateThermometer() {
+		return mCurrentUpdateRate[TEMPERATURE_INDEX];
+	}
+
+	public void setCurrentUpdateRateThermometer(double value) {
+		mCurrentUpdateRate[TEMPERATURE_INDEX] = value;
+	}
+
+	public boolean updateAverageThermometer() {
+		return mAverage[TEMPERATURE_INDEX];
+	}
+
+	public void updateEmulatorThermometerRefresh() {
+		// no display to show the refresh rate on.
+	}
+
+	public double getTemperature() {
+		return mValue[TEMPERATURE_INDEX];
+	}
+
+	public double getRandomTemperature() {
+		return mRandom[TEMPERATURE_INDEX];
+	}
+
+	public double getReadTemperature() {
+		return mRead[TEMPERATURE_INDEX];
+	}
+
+	// Light
+
+	public boolean isSupportedLight() {
+		return mSupported[LIGHT_INDEX];
+	}
+
+	public boolean isEnabledLight() {
+		return mEnabled[LIGHT_INDEX];
+	}
+
+	public void setEnabledLight(boolean enable) {
+		mEnabled[LIGHT_INDEX] = enable;
+	}
+
+	public double[] getUpdateRatesLight() {
+		return mUpdateRates[LIGHT_INDEX];
+	}
+
+	public double getDefaultUpdateRateLight() {
+		return mDefaultUpdateRate[LIGHT_INDEX];
+	}
+
+	public double getCurrentUpdateRateLight() {
+		return mCurrentUpdateRate[LIGHT_INDEX];
+	}
+
+	public void setCurrentUpdateRateLight(double value) {
+		mCurrentUpdateRate[LIGHT_INDEX] = value;
+	}
+
+	public boolean updateAverageLight() {
+		return mAverage[LIGHT_INDEX];
+	}
+
+	public void updateEmulatorLightRefresh() {
+		// no display to show the refresh rate on.
+	}
+
+	public float getLight() {
+		return (float) mValue[LIGHT_INDEX];
+	}
+
+	public double getRandomLight() {
+		return mRandom[LIGHT_INDEX];
+	}
+
+	public float getReadLight() {
+		return (float) mRead[LIGHT_INDEX];
+	}
+
+	// Proximity
+
+	public boolean isSupportedProximity() {
+		return mSupported[PROXIMITY_INDEX];
+	}
+
+	public boolean isEnabledProximity() {
+		return mEnabled[PROXIMITY_INDEX];
+	}
+
+	public void setEnabledProximity(boolean enable) {
+		mEnabled[PROXIMITY_INDEX] = enable;
+	}
+
+	public double[] getUpdateRatesProximity() {
+		return mUpdateRates[PROXIMITY_INDEX];
+	}
+
+	public double getDefaultUpdateRateProximity() {
+		return mDefaultUpdateRate[PROXIMITY_INDEX];
+	}
+
+	public double getCurrentUpdateRateProximity() {
+		return mCurrentUpdateRate[PROXIMITY_INDEX];
+	}
+
+	public void setCurrentUpdateRateProximity(double value) {
+		mCurrentUpdateRate[PROXIMITY_INDEX] = value;
+	}
+
+	public boolean updateAverageProximity() {
+		return mAverage[PROXIMITY_INDEX];
+	}
+
+	public void updateEmulatorProximityRefresh() {
+		// no display to show the refresh rate on.
+	}
+
+	public float getProximity() {
+		return (float) mValue[PROXIMITY_INDEX];
+	}
+
+	public double getRandomProximity() {
+		return mRandom[PROXIMITY_INDEX];
+	}
+
+	public float getReadProximity() {
+		return (float) mRead[PROXIMITY_INDEX];
+	}
+
+	// CarbonMonoxide
+
+	public boolean isSupportedCarbonMonoxide() {
+		return mSupported[CARBON_MONOXIDE_INDEX];
+	}
+
+	public boolean isEnabledCarbonMonoxide() {
+		return mEnabled[CARBON_MONOXIDE_INDEX];
+	}
+
+	public void setEnabledCarbonMonoxide(boolean enable) {
+		mEnabled[CARBON_MONOXIDE_INDEX] = enable;
+	}
+
+	public double[] getUpdateRatesCarbonMonoxide() {
+		return mUpdateRates[CARBON_MONOXIDE_INDEX];
+	}
+
+	public double getDefaultUpdateRateCarbonMonoxide() {
+		return mDefaultUpdateRate[CARBON_MONOXIDE_INDEX];
+	}
+
+	public double getCurrentUpdateRateCarbonMonoxide() {
+		return mCurrentUpdateRate[CARBON_MONOXIDE_INDEX];
+	}
+
+	public void setCurrentUpdateRateCarbonMonoxide(double value) {
+		mCurrentUpdateRate[CARBON_MONOXIDE_INDEX] = value;
+	}
+
+	public boolean updateAverageCarbonMonoxide() {
+		return mAverage[CARBON_MONOXIDE_INDEX];
+	}
+
+	public void updateEmulatorCarbonMonoxideRefresh() {
+		// no display to show the refresh rate on.
+	}
+
+	public float getCarbonMonoxide() {
+		return (float) mValue[CARBON_MONOXIDE_INDEX];
+	}
+
+	public double getRandomCarbonMonoxide() {
+		return mRandom[CARBON_MONOXIDE_INDEX];
+	}
+
+	public double getReadCarbonMonoxide() {
+		return mRead[CARBON_MONOXIDE_INDEX];
+	}
+
+	// RedGas
+
+	public boolean isSupportedRedGas() {
+		return mSupported[RED_GAS_INDEX];
+	}
+
+	public boolean isEnabledRedGas() {
+		return mEnabled[RED_GAS_INDEX];
+	}
+
+	public void setEnabledRedGas(boolean enable) {
+		mEnabled[RED_GAS_INDEX] = enable;
+	}
+
+	public double[] getUpdateRatesRedGas() {
+		return mUpdateRates[RED_GAS_INDEX];
+	}
+
+	public double getDefaultUpdateRateRedGas() {
+		return mDefaultUpdateRate[RED_GAS_INDEX];
+	}
+
+	public double getCurrentUpdateRateRedGas() {
+		return mCurrentUpdateRate[RED_GAS_INDEX];
+	}
+
+	public void setCurrentUpdateRateRedGas(double value) {
+		mCurrentUpdateRate[RED_GAS_INDEX] = value;
+	}
+
+	public boolean updateAverageRedGas() {
+		return mAverage[RED_GAS_INDEX];
+	}
+
+	public void updateEmulatorRedGasRefresh() {
+		// no display to show the refresh rate on.
+	}
+
+	public float getRedGas() {
+		return (float) mValue[RED_GAS_INDEX];
+	}
+
+	public double getRandomRedGas() {
+		return mRandom[RED_GAS_INDEX];
+	}
+
+	public double getReadRedGas() {
+		return mRead[RED_GAS_INDEX];
+	}
+
+	// OxGas
+
+	public boolean isSupportedOxGas() {
+		return mSupported[OX_GAS_INDEX];
+	}
+
+	public boolean isEnabledOxGas() {
+		return mEnabled[OX_GAS_INDEX];
+	}
+
+	public void setEnabledOxGas(boolean enable) {
+		mEnabled[OX_GAS_INDEX] = enable;
+	}
+
+	public double[] getUpdateRatesOxGas() {
+		return mUpdateRates[OX_GAS_INDEX];
+	}
+
+	public double getDefaultUpdateRateOxGas() {
+		return mDefaultUpdateRate[OX_GAS_INDEX];
+	}
+
+	public double getCurrentUpdateRateOxGas() {
+		return mCurrentUpdateRate[OX_GAS_INDEX];
+	}
+
+	public void setCurrentUpdateRateOxGas(double value) {
+		mCurrentUpdateRate[OX_GAS_INDEX] = value;
+	}
+
+	public boolean updateAverageOxGas() {
+		return mAverage[OX_GAS_INDEX];
+	}
+
+	public void updateEmulatorOxGasRefresh() {
+		// no display to show the refresh rate on.
+	}
+
+	public float getOxGas() {
+		return (float) mValue[OX_GAS_INDEX];
+	}
+
+	public double getRandomOxGas() {
+		return mRandom[OX_GAS_INDEX];
+	}
+
+	public double getReadOxGas() {
+		return mRead[OX_GAS_INDEX];
+	}
+
+	// Humidity
+
+	public boolean isSupportedHumidity() {
+		return mSupported[HUMIDITY_INDEX];
+	}
+
+	public boolean isEnabledHumidity() {
+		return mEnabled[HUMIDITY_INDEX];
+	}
+
+	public void setEnabledHumidity(boolean enable) {
+		mEnabled[HUMIDITY_INDEX] = enable;
+	}
+
+	public double[] getUpdateRatesHumidity() {
+		return mUpdateRates[HUMIDITY_INDEX];
+	}
+
+	public double getDefaultUpdateRateHumidity() {
+		return mDefaultUpdateRate[HUMIDITY_INDEX];
+	}
+
+	public double getCurrentUpdateRateHumidity() {
+		return mCurrentUpdateRate[HUMIDITY_INDEX];
+	}
+
+	public void setCurrentUpdateRateHumidity(double value) {
+		mCurrentUpdateRate[HUMIDITY_INDEX] = value;
+	}
+
+	public boolean updateAverageHumidity() {
+		return mAverage[HUMIDITY_INDEX];
+	}
+
+	public void updateEmulatorHumidityRefresh() {
+		// no display to show the refresh rate on.
+	}
+
+	public float getHumidity() {
+		return (float) mValue[HUMIDITY_INDEX];
+	}
+
+	public double getRandomHumidity() {
+		return mRandom[HUMIDITY_INDEX];
+	}
+
+	public double getReadHumidity() {
+		return mRead[HUMIDITY_INDEX];
+	}
+
+	// Pressure
+
+	public boolean isSupportedPressure() {
+		return mSupported[PRESSURE_INDEX];
+	}
+
+	public boolean isEnabledPressure() {
+		return mEnabled[PRESSURE_INDEX];
+	}
+
+	public void setEnabledPressure(boolean enable) {
+		mEnabled[PRESSURE_INDEX] = enable;
+	}
+
+	public double[] getUpdateRatesPressure() {
+		return mUpdateRates[PRESSURE_INDEX];
+	}
+
+	public double getDefaultUpdateRatePressure() {
+		return mDefaultUpdateRate[PRESSURE_INDEX];
+	}
+
+	public double getCurrentUpdateRatePressure() {
+		return mCurrentUpdateRate[PRESSURE_INDEX];
+	}
+
+	public void setCurrentUpdateRatePressure(double value) {
+		mCurrentUpdateRate[PRESSURE_INDEX] = value;
+	}
+
+	public boolean updateAveragePressure() {
+		return mAverage[PRESSURE_INDEX];
+	}
+
+	public void updateEmulatorPressureRefresh() {
+		// no display to show the refresh rate on.
+	}
+
+	public float getPressure() {
+		return (float) mValue[PRESSURE_INDEX];
+	}
+
+	public double getRandomPressure() {
+		return mRandom[PRESSURE_INDEX];
+	}
+
+	public double getReadPressure() {
+		return mRead[PRESSURE_INDEX];
+	}
+
+	// Infrared
+
+	public boolean isSupportedInfrared() {
+		return mSupported[INFRARED_INDEX];
+	}
+
+	public boolean isEnabledInfrared() {
+		return mEnabled[INFRARED_INDEX];
+	}
+
+	public void setEnabledInfrared(boolean enable) {
+		mEnabled[INFRARED_INDEX] = enable;
+	}
+
+	public double[] getUpdateRatesInfrared() {
+		return mUpdateRates[INFRARED_INDEX];
+	}
+
+	public double getDefaultUpdateRateInfrared() {
+		return mDefaultUpdateRate[INFRARED_INDEX];
+	}
+
+	public double getCurrentUpdateRateInfrared() {
+		return mCurrentUpdateRate[INFRARED_INDEX];
+	}
+
+	public void setCurrentUpdateRateInfrared(double value) {
+		mCurrentUpdateRate[INFRARED_INDEX] = value;
+	}
+
+	public boolean updateAverageInfrared() {
+		return mAverage[INFRARED_INDEX];
+	}
+
+	public void updateEmulatorInfraredRefresh() {
+		// no display to show the refresh rate on.
+	}
+
+	public float getInfrared() {
+		return (float) mValue[INFRARED_INDEX];
+	}
+
+	public double getRandomInfrared() {
+		return mRandom[INFRARED_INDEX];
+	}
+
+	public double getReadInfrared() {
+		return mRead[INFRARED_INDEX];
+	}
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.tools.sensorsimulator;
+
+import java.util.HashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes the values of subscribed sensors to all connections of a server.
+ *
+ * Subscriptions to the same sensor at the same rate form a group with a
+ * single push task. Each push reads the values once and encodes them
+ * once per encoding (lines, binary frame or Server-Sent Event); every
+ * connection of the group then queues the same read-only bytes. So the work per push does
+ * not grow with the number of identical subscriptions, only the queueing.
+ *
+ * Subscriptions with a deadband depend on what each client received
+ * before, they run a task of their own, see {@link #schedule(Runnable, long)}.
+ *
+ * All tasks are timed by one {@link TimingWheel}, so every subscription
+ * is pushed at its own rate however many different rates there are.
+ *
+ * @author Peli
+ */
+public class SensorFanout {
+
+	/**
+	 * Encodings of pushed values.
+	 */
+	public static final int ENCODING_LINES = 0;
+	public static final int ENCODING_BINARY = 1;
+	public static final int ENCODING_EVENTS = 2;
+	public static final int ENCODING_LINES_STAMPED = 3;
+	public static final int ENCODING_BINARY_STAMPED = 4;
+
+	private static final int ENCODINGS = 5;
+
+	/**
+	 * Connection values are pushed to.
+	 */
+	public interface Member {
+		/**
+		 * @return one of the ENCODING_* constants, may change over time.
+		 */
+		int getEncoding();
+
+		/**
+		 * Queues a pushed value. The data is shared with other
+		 * members and must not be modified.
+		 *
+		 * @param sensor, name of the sensor
+		 * @param data, encoded value
+		 */
+		void push(String sensor, byte[] data);
+	}
+
+	/**
+	 * Handle of one subscription.
+	 */
+	public interface Subscription {
+		/**
+		 * Stops pushing to the subscriber.
+		 */
+		void cancel();
+	}
+
+	private ISensorSimulator mSensorSimulator;
+
+	private TimingWheel mWheel;
+
+	/**
+	 * Groups by sensor and period, see {@link #key(String, long)}.
+	 */
+	private HashMap<String, Group> mGroups;
+
+	private AtomicLong mEncoded;
+	private AtomicLong mDelivered;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param sensorSimulator, simulator whose values are pushed
+	 * @param executor, executor that runs the push tasks
+	 */
+	public SensorFanout(ISensorSimulator sensorSimulator,
+			ScheduledExecutorService executor) {
+		mSensorSimulator = sensorSimulator;
+		mWheel = new TimingWheel(executor, TimingWheel.DEFAULT_TICK_MICROS);
+		mGroups = new HashMap<String, Group>();
+		mEncoded = new AtomicLong();
+		mDelivered = new AtomicLong();
+	}
+
+	/**
+	 * Adds a connection to the group of the sensor and period, and
+	 * starts the push task of the group if it is new.
+	 *
+	 * @param sensor, name of the sensor
+	 * @param periodMicros, time between pushes
+	 * @param member, connection the values are pushed to
+	 */
+	public Subscription join(String sensor, long periodMicros,
+			Member member) {
+		String key = key(sensor, periodMicros);
+		synchronized (mGroups) {
+			Group group = mGroups.get(key);
+			if (group == null) {
+				group = new Group(key, sensor);
+				mGroups.put(key, group);
+				group.mTimer = mWheel.schedule(group, periodMicros);
+			}
+			group.mMembers.add(member);
+			return new Membership(group, member);
+		}
+	}
+
+	/**
+	 * Runs a push task of a single connection.
+	 *
+	 * @param task, task pushing the values
+	 * @param periodMicros, time between pushes
+	 */
+	public Subscription schedule(Runnable task, long periodMicros) {
+		return mWheel.schedule(task, periodMicros);
+	}
+
+	/**
+	 * @return number of groups with a push task.
+	 */
+	public int getGroupCount() {
+		synchronized (mGroups) {
+			return mGroups.size();
+		}
+	}
+
+	/**
+	 * @return number of push tasks, of groups and of single connections.
+	 */
+	public int getTaskCount() {
+		return mWheel.size();
+	}
+
+	/**
+	 * @return number of times values were encoded for a group.
+	 */
+	public long getEncoded() {
+		return mEncoded.get();
+	}
+
+	/**
+	 * @return number of times encoded values were queued to a connection.
+	 */
+	public long getDelivered() {
+		return mDelivered.get();
+	}
+
+	private static String key(String sensor, long periodMicros) {
+		return sensor + "@" + periodMicros;
+	}
+
+	private void leave(Group group, Member member) {
+		synchronized (mGroups) {
+			group.mMembers.remove(member);
+			if (group.mMembers.isEmpty() && mGroups.get(group.mKey) == group) {
+				mGroups.remove(group.mKey);
+				group.mTimer.cancel();
+			}
+		}
+	}
+
+	/**
+	 * Connections subscribed to one sensor at one rate.
+	 */
+	private class Group implements Runnable {
+		final String mKey;
+		final String mSensor;
+		final CopyOnWriteArrayList<Member> mMembers;
+		Subscription mTimer;
+
+		/**
+		 * Only used by the push task.
+		 */
+		private float[] mValues;
+
+		Group(String key, String sensor) {
+			mKey = key;
+			mSensor = sensor;
+			mMembers = new CopyOnWriteArrayList<Member>();
+			mValues = new float[SensorProtocol.MAX_VALUES];
+		}
+
+		public void run() {
+			SensorChannel channel = SensorRegistry.get(mSensor);
+			SensorState state = mSensorSimulator.getSensorState();
+			SensorSnapshot snapshot = state.getSnapshot();
+			if (channel == null || !snapshot.isEnabled(channel.getIndex())) {
+				// nothing to push while the sensor is disabled.
+				return;
+			}
+			state.countRead(channel.getIndex());
+			int num = snapshot.readValues(channel.getIndex(), mValues);
+
+			byte[][] encoded = new byte[ENCODINGS][];
+			for (Member member : mMembers) {
+				int encoding = member.getEncoding();
+				if (encoded[encoding] == null) {
+					encoded[encoding] = encode(encoding, snapshot, num);
+					mEncoded.incrementAndGet();
+				}
+				member.push(mSensor, encoded[encoding]);
+				mDelivered.incrementAndGet();
+			}
+		}
+
+		private byte[] encode(int encoding, SensorSnapshot snapshot, int num) {
+			switch (encoding) {
+			case ENCODING_BINARY:
+				return SensorBinaryProtocol.encodeSample(mSensor, mValues, num, null);
+			case ENCODING_BINARY_STAMPED:
+				SensorMetrics.get().observeSampleAge(snapshot);
+				return SensorBinaryProtocol.encodeSample(mSensor, mValues, num, snapshot);
+			case ENCODING_EVENTS:
+				return SensorHttpServer.encodeEvent(mSensor, snapshot.getTick(),
+						snapshot.getTime(), mValues, num);
+			case ENCODING_LINES_STAMPED:
+				SensorMetrics.get().observeSampleAge(snapshot);
+				return SensorProtocol.encodeSample(mSensor, mValues, num, snapshot);
+			default:
+				return SensorProtocol.encodeSample(mSensor, mValues, num, null);
+			}
+		}
+	}
+
+	private class Membership implements Subscription {
+		private final Group mGroup;
+		private final Member mMember;
+
+		Membership(Group group, Member member) {
+			mGroup = group;
+			mMember = member;
+		}
+
+		public void cancel() {
+			leave(mGroup, mMember);
+		}
+	}
+}
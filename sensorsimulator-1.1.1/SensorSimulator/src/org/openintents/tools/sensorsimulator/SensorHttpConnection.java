@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.tools.sensorsimulator;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+
+/**
+ * One client connection served by a {@link SensorHttpServer}.
+ *
+ * Reads a single request and answers it. A stream of events is then
+ * kept open until the client closes it. Subscriptions, statistics and
+ * the {@link OutboundQueue} are the ones of a {@link SensorProtocol},
+ * switched to events, so HTTP clients show up in stats() like any other
+ * client and are handled by the same slow client policy.
+ *
+ * Only used from the server thread, except for the send methods and
+ * {@link #close()}.
+ *
+ * @author Peli
+ */
+public class SensorHttpConnection implements SensorConnection {
+
+	/**
+	 * Longest request head accepted from a client.
+	 */
+	public static final int MAX_REQUEST_LENGTH = 8192;
+
+	public ISensorSimulator mSensorSimulator;
+
+	private SensorHttpServer mServer;
+	private SocketChannel mChannel;
+	private SelectionKey mKey;
+	private SensorProtocol mProtocol;
+	private ConnectionStats mStats;
+	private OutboundQueue mOutbound;
+
+	private ByteBuffer mInBuffer;
+	private ByteBuffer mOutBuffer;
+
+	/**
+	 * Head of the request, null once it has been answered.
+	 */
+	private StringBuilder mRequest;
+
+	/**
+	 * Whether the connection is closed once everything is written.
+	 */
+	private boolean mCloseWhenWritten;
+
+	/**
+	 * Whether events are streamed.
+	 */
+	private boolean mStreaming;
+
+	private volatile long mLastWrite;
+
+	private volatile boolean closed;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param newSensorSimulator, SensorSimulator instance whose values are streamed.
+	 * @param server, server serving this connection.
+	 * @param channel, non-blocking client channel.
+	 * @param key, key of the channel at the server's selector.
+	 * @param fanout, pushes values to subscribers.
+	 * @param connections, registry of all connections, may be null.
+	 */
+	public SensorHttpConnection(ISensorSimulator newSensorSimulator,
+			SensorHttpServer server, SocketChannel channel, SelectionKey key,
+			SensorFanout fanout, ConnectionRegistry connections) {
+		mSensorSimulator = newSensorSimulator;
+		mServer = server;
+		mChannel = channel;
+		mKey = key;
+		mProtocol = new SensorProtocol(newSensorSimulator, this, fanout,
+				connections);
+		mProtocol.useEvents();
+		mStats = mProtocol.getStats();
+		mOutbound = mProtocol.getOutbound();
+		mInBuffer = ByteBuffer.allocate(1024);
+		mOutBuffer = ByteBuffer.allocate(4096);
+		mRequest = new StringBuilder();
+		mCloseWhenWritten = false;
+		mStreaming = false;
+		mLastWrite = System.currentTimeMillis();
+		closed = false;
+	}
+
+	/**
+	 * Reads what is available, and answers the request once its head
+	 * is complete. Anything sent after the head is ignored.
+	 */
+	public void read() throws IOException {
+		int n = mChannel.read(mInBuffer);
+		if (n < 0) {
+			close();
+			return;
+		}
+		mStats.addBytesIn(n);
+		mInBuffer.flip();
+		while (mInBuffer.hasRemaining() && mRequest != null) {
+			char c = (char) (mInBuffer.get() & 0xff);
+			if (c == '\r') {
+				continue;
+			}
+			mRequest.append(c);
+			int length = mRequest.length();
+			if (length >= 2 && mRequest.charAt(length - 1) == '\n'
+					&& mRequest.charAt(length - 2) == '\n') {
+				String head = mRequest.toString();
+				mRequest = null;
+				long start = System.nanoTime();
+				handleRequest(head);
+				mStats.addCommand("http", System.nanoTime() - start);
+			} else if (length >= MAX_REQUEST_LENGTH) {
+				mRequest = null;
+				respond("400 Bad Request", "Request too long.");
+			}
+		}
+		mInBuffer.clear();
+	}
+
+	/**
+	 * Answers the request.
+	 *
+	 * @param head, request line and header lines
+	 */
+	private void handleRequest(String head) {
+		String[] request = head.substring(0, head.indexOf('\n')).split(" ");
+		if (request.length < 2) {
+			respond("400 Bad Request", "Malformed request.");
+			return;
+		}
+		if (!request[0].equals("GET")) {
+			respond("405 Method Not Allowed", "Only GET is supported.");
+			return;
+		}
+		String path = request[1];
+		HashMap<String, String> query = new HashMap<String, String>();
+		int q = path.indexOf('?');
+		if (q >= 0) {
+			parseQuery(path.substring(q + 1), query);
+			path = path.substring(0, q);
+		}
+
+		if (path.equals("/sensors")) {
+			String[] sensors = mProtocol.getSupportedSensors();
+			StringBuilder json = new StringBuilder("[");
+			for (int i = 0; i < sensors.length; i++) {
+				if (i > 0) {
+					json.append(',');
+				}
+				json.append('"').append(sensors[i]).append('"');
+			}
+			json.append("]\n");
+			answer("200 OK", "application/json", json.toString());
+		} else if (path.equals("/events")) {
+			stream(query);
+		} else if (path.equals("/metrics")) {
+			StringBuilder metrics = new StringBuilder(8192);
+			SensorMetrics.get().write(metrics);
+			answer("200 OK", SensorMetrics.CONTENT_TYPE, metrics.toString());
+		} else {
+			respond("404 Not Found", "Unknown path: " + path);
+		}
+	}
+
+	/**
+	 * Starts streaming the requested sensors.
+	 */
+	private void stream(HashMap<String, String> query) {
+		double rate = 0;
+		String rateArgument = query.get("rate");
+		if (rateArgument != null) {
+			try {
+				rate = Double.parseDouble(rateArgument);
+			} catch (NumberFormatException e) {
+				respond("400 Bad Request", "Invalid rate: " + rateArgument);
+				return;
+			}
+		}
+		String sensorList = query.get("sensors");
+		String[] sensors;
+		if (sensorList == null || sensorList.trim().equals("*")) {
+			sensors = mProtocol.getSupportedSensors();
+		} else {
+			sensors = sensorList.split(",");
+		}
+		for (int i = 0; i < sensors.length; i++) {
+			sensors[i] = sensors[i].trim();
+			if (!mProtocol.isSupported(sensors[i])) {
+				respond("400 Bad Request", "Unsupported sensor: " + sensors[i]);
+				return;
+			}
+		}
+
+		// the head goes first, events only follow once subscribed.
+		mStreaming = true;
+		send("HTTP/1.1 200 OK\r\n"
+				+ "Content-Type: text/event-stream\r\n"
+				+ "Cache-Control: no-cache\r\n"
+				+ "Access-Control-Allow-Origin: *\r\n"
+				+ "Connection: close\r\n"
+				+ "\r\n"
+				+ "retry: 1000\n\n");
+		for (int i = 0; i < sensors.length; i++) {
+			if (mProtocol.subscribe(sensors[i], rate) != SensorProtocol.STATUS_OK) {
+				mSensorSimulator.addMessage("Could not stream " + sensors[i]
+						+ " to " + getRemoteAddress());
+			}
+		}
+	}
+
+	private static void parseQuery(String query, HashMap<String, String> result) {
+		String[] parameters = query.split("&");
+		for (int i = 0; i < parameters.length; i++) {
+			int eq = parameters[i].indexOf('=');
+			if (eq < 0) {
+				continue;
+			}
+			try {
+				result.put(URLDecoder.decode(parameters[i].substring(0, eq), "UTF-8"),
+						URLDecoder.decode(parameters[i].substring(eq + 1), "UTF-8"));
+			} catch (UnsupportedEncodingException e) {
+				// UTF-8 is always supported.
+			} catch (IllegalArgumentException e) {
+				// malformed escape, parameter ignored.
+			}
+		}
+	}
+
+	/**
+	 * Answers with a plain text message and closes the connection.
+	 */
+	private void respond(String status, String message) {
+		answer(status, "text/plain", message + "\n");
+	}
+
+	/**
+	 * Answers with a complete body and closes the connection.
+	 */
+	private void answer(String status, String contentType, String body) {
+		mCloseWhenWritten = true;
+		send("HTTP/1.1 " + status + "\r\n"
+				+ "Content-Type: " + contentType + "\r\n"
+				+ "Content-Length: " + body.length() + "\r\n"
+				+ "Access-Control-Allow-Origin: *\r\n"
+				+ "Connection: close\r\n"
+				+ "\r\n"
+				+ body);
+	}
+
+	/**
+	 * Sends a comment if nothing was written for a while. Called from
+	 * the server thread.
+	 */
+	void keepAlive(long now) {
+		if (mStreaming && !closed
+				&& now - mLastWrite >= SensorHttpServer.KEEPALIVE_MILLIS) {
+			send(": keepalive\n\n");
+		}
+	}
+
+	/**
+	 * Sends text from any thread.
+	 */
+	public void send(CharSequence lines) {
+		sendFrame(SensorProtocol.toBytes(lines));
+	}
+
+	/**
+	 * Sends data from any thread, written by the server thread.
+	 */
+	public void sendFrame(byte[] frame) {
+		if (closed) return;
+		if (!mOutbound.addAnswer(frame)) {
+			disconnectSlowClient();
+			return;
+		}
+		mServer.requestFlush(this);
+	}
+
+	/**
+	 * Queues an event from any thread.
+	 */
+	public void sendSample(String sensor, byte[] data) {
+		if (closed) return;
+		if (!mOutbound.addSample(sensor, data)) {
+			disconnectSlowClient();
+			return;
+		}
+		mServer.requestFlush(this);
+	}
+
+	/**
+	 * Writes as much queued data as the channel accepts, and waits
+	 * for OP_WRITE if some is left.
+	 */
+	public void write() throws IOException {
+		if (closed) return;
+		while (true) {
+			fill();
+			if (mOutBuffer.position() == 0) {
+				break;
+			}
+			mOutBuffer.flip();
+			int n = mChannel.write(mOutBuffer);
+			mStats.addBytesOut(n);
+			mOutBuffer.compact();
+			if (n == 0) {
+				// channel full
+				break;
+			}
+			mLastWrite = System.currentTimeMillis();
+		}
+		if (mOutBuffer.position() == 0 && mOutbound.isEmpty()) {
+			if (mCloseWhenWritten) {
+				close();
+				return;
+			}
+			mKey.interestOps(SelectionKey.OP_READ);
+		} else {
+			mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Moves queued data into the output buffer while it fits.
+	 */
+	private void fill() {
+		int length;
+		while ((length = mOutbound.peekLength()) >= 0) {
+			if (mOutBuffer.remaining() < length && mOutBuffer.position() > 0) {
+				return;
+			}
+			byte[] data = mOutbound.poll();
+			if (data == null) {
+				return;
+			}
+			if (mOutBuffer.remaining() < data.length) {
+				ByteBuffer bigger = ByteBuffer.allocate(Math.max(
+						mOutBuffer.capacity() * 2, mOutBuffer.position() + data.length));
+				mOutBuffer.flip();
+				bigger.put(mOutBuffer);
+				mOutBuffer = bigger;
+			}
+			mOutBuffer.put(data);
+		}
+	}
+
+	private void disconnectSlowClient() {
+		mSensorSimulator.addMessage("Client " + getRemoteAddress()
+				+ " does not read, disconnected.");
+		close();
+	}
+
+	/**
+	 * @return address and port of the client.
+	 */
+	public String getRemoteAddress() {
+		return "" + mChannel.socket().getRemoteSocketAddress();
+	}
+
+	/**
+	 * Closes the channel. Called from the server thread, other threads
+	 * ask the server to do it.
+	 */
+	public void close() {
+		if (Thread.currentThread() != mServer.mThread) {
+			mServer.requestClose(this);
+			return;
+		}
+		if (closed) return;
+		closed = true;
+		mProtocol.close();
+		mKey.cancel();
+		try {
+			mChannel.close();
+		} catch (IOException e) {
+			System.err.println("Close failed.");
+		}
+	}
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.tools.sensorsimulator;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Streams sensor values over HTTP as Server-Sent Events, for dashboards
+ * and web based test tools:
+ * <pre>
+ * GET /events?sensors=light,temperature&amp;rate=10
+ * </pre>
+ * streams the listed sensors (all supported sensors if "sensors" is
+ * left out or "*") at the given updates per second (the current update
+ * rate of each sensor if left out or 0). Every value is one event,
+ * named after its sensor and carrying the tick as id:
+ * <pre>
+ * id: 1234
+ * event: light
+ * data: {"sensor":"light","tick":1234,"time":1262304000000,"values":[400.0]}
+ * </pre>
+ * GET /sensors answers the supported sensors as a JSON array, GET
+ * /metrics the {@link SensorMetrics} of the process for Prometheus.
+ *
+ * Events are encoded once per sensor and rate by the {@link SensorFanout}
+ * of the server and shared by all subscribers. All connections are
+ * served by a single thread with a Selector, see {@link SensorHttpConnection}.
+ *
+ * Enabled with the system property "sensorsimulator.http=true", the
+ * port is set with "sensorsimulator.httpPort".
+ *
+ * @author Peli
+ */
+public class SensorHttpServer implements Runnable {
+
+	public static final int DEFAULT_PORT = 8012;
+
+	/**
+	 * Time after which an idle stream gets a comment, so that
+	 * proxies and browsers keep it open.
+	 */
+	public static final long KEEPALIVE_MILLIS = 15000;
+
+	public ISensorSimulator mSensorSimulator;
+
+	public Thread mThread;
+
+	public int port;
+
+	private ServerSocketChannel mServerChannel;
+
+	private Selector mSelector;
+
+	private SensorFanout mFanout;
+
+	private ConnectionRegistry mConnections;
+
+	/**
+	 * Connections with data queued by other threads.
+	 */
+	private ConcurrentLinkedQueue<SensorHttpConnection> mFlushRequests;
+
+	/**
+	 * Connections closed from other threads.
+	 */
+	private ConcurrentLinkedQueue<SensorHttpConnection> mCloseRequests;
+
+	/**
+	 * Whether the server is supposed to be continuing work.
+	 */
+	volatile boolean running;
+
+	/**
+	 * Constructor, listens on the port and starts the thread.
+	 *
+	 * @param newSensorSimulator, SensorSimulator instance whose values are streamed.
+	 * @param newPort, port to listen on.
+	 * @param fanout, pushes values to subscribers.
+	 * @param connections, registry of all connections, may be null.
+	 */
+	public SensorHttpServer(ISensorSimulator newSensorSimulator, int newPort,
+			SensorFanout fanout, ConnectionRegistry connections) throws IOException {
+		mSensorSimulator = newSensorSimulator;
+		port = newPort;
+		mFanout = fanout;
+		mConnections = connections;
+		mFlushRequests = new ConcurrentLinkedQueue<SensorHttpConnection>();
+		mCloseRequests = new ConcurrentLinkedQueue<SensorHttpConnection>();
+		mSelector = Selector.open();
+		try {
+			mServerChannel = ServerSocketChannel.open();
+			mServerChannel.socket().setReuseAddress(true);
+			mServerChannel.socket().bind(new InetSocketAddress(port));
+			mServerChannel.configureBlocking(false);
+			mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			mSelector.close();
+			if (mServerChannel != null) {
+				mServerChannel.close();
+			}
+			throw e;
+		}
+		running = true;
+
+		// start ourselves:
+		mThread = new Thread(this, "SensorHttpServer");
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	/**
+	 * Server configured by the system properties, or null if
+	 * HTTP is not enabled or the port cannot be opened.
+	 *
+	 * @param sensorSimulator, simulator whose values are streamed
+	 * @param fanout, pushes values to subscribers
+	 * @param connections, registry of all connections, may be null
+	 */
+	public static SensorHttpServer create(ISensorSimulator sensorSimulator,
+			SensorFanout fanout, ConnectionRegistry connections) {
+		if (!Boolean.getBoolean("sensorsimulator.http")) {
+			return null;
+		}
+		int port = Integer.getInteger("sensorsimulator.httpPort",
+				DEFAULT_PORT).intValue();
+		try {
+			SensorHttpServer server = new SensorHttpServer(sensorSimulator,
+					port, fanout, connections);
+			sensorSimulator.addMessage("Streaming events on http://localhost:"
+					+ port + "/events");
+			return server;
+		} catch (IOException e) {
+			sensorSimulator.addMessage("Could not listen on port: " + port);
+			return null;
+		}
+	}
+
+	/**
+	 * Asks the server thread to write the data a connection got
+	 * from another thread. May be called from any thread.
+	 */
+	public void requestFlush(SensorHttpConnection connection) {
+		mFlushRequests.add(connection);
+		mSelector.wakeup();
+	}
+
+	/**
+	 * Asks the server thread to close a connection. May be called from any thread.
+	 */
+	public void requestClose(SensorHttpConnection connection) {
+		mCloseRequests.add(connection);
+		mSelector.wakeup();
+	}
+
+	/**
+	 * Method that is called when starting the thread.
+	 */
+	public void run() {
+		long keepAliveTime = System.currentTimeMillis();
+		try {
+			while (running) {
+				mSelector.select(KEEPALIVE_MILLIS);
+				flushConnections();
+				closeConnections();
+
+				Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (key.isValid() && key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					SensorHttpConnection connection
+						= (SensorHttpConnection) key.attachment();
+					try {
+						if (key.isValid() && key.isReadable()) {
+							connection.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.write();
+						}
+					} catch (IOException e) {
+						connection.close();
+					}
+				}
+
+				long now = System.currentTimeMillis();
+				if (now - keepAliveTime >= KEEPALIVE_MILLIS) {
+					keepAliveTime = now;
+					keepAlive(now);
+				}
+			}
+		} catch (IOException e) {
+			if (running) {
+				System.err.println("IOException in SensorHttpServer.");
+			}
+		} catch (ClosedSelectorException e) {
+			// everything fine, selector closed.
+		}
+
+		closeAll();
+	}
+
+	/**
+	 * Accepts a waiting client.
+	 */
+	private void accept() {
+		SocketChannel channel = null;
+		try {
+			channel = mServerChannel.accept();
+			if (channel == null) {
+				return;
+			}
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			channel.socket().setKeepAlive(true);
+			SelectionKey key = channel.register(mSelector, SelectionKey.OP_READ);
+			key.attach(new SensorHttpConnection(mSensorSimulator, this,
+					channel, key, mFanout, mConnections));
+		} catch (IOException e) {
+			System.err.println("Could not accept connection.");
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e2) {
+					System.err.println("Close failed as well.");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the data connections got from other threads.
+	 */
+	private void flushConnections() {
+		SensorHttpConnection connection;
+		while ((connection = mFlushRequests.poll()) != null) {
+			try {
+				connection.write();
+			} catch (IOException e) {
+				connection.close();
+			}
+		}
+	}
+
+	/**
+	 * Closes the connections other threads asked to close.
+	 */
+	private void closeConnections() {
+		SensorHttpConnection connection;
+		while ((connection = mCloseRequests.poll()) != null) {
+			connection.close();
+		}
+	}
+
+	/**
+	 * Sends a comment to streams that were idle for a while.
+	 */
+	private void keepAlive(long now) {
+		for (SelectionKey key : mSelector.keys()) {
+			Object attachment = key.attachment();
+			if (attachment instanceof SensorHttpConnection) {
+				((SensorHttpConnection) attachment).keepAlive(now);
+			}
+		}
+	}
+
+	/**
+	 * Closes all connections and the server channel.
+	 */
+	private void closeAll() {
+		try {
+			for (SelectionKey key : mSelector.keys()) {
+				Object attachment = key.attachment();
+				if (attachment instanceof SensorHttpConnection) {
+					((SensorHttpConnection) attachment).close();
+				}
+			}
+			mSelector.close();
+		} catch (ClosedSelectorException e) {
+			// already closed.
+		} catch (IOException e) {
+			System.err.println("Close failed.");
+		}
+		try {
+			mServerChannel.close();
+		} catch (IOException e) {
+			System.err.println("Close failed.");
+		}
+	}
+
+	/**
+	 * Stops the server, all its connections are closed.
+	 */
+	public void stop() {
+		running = false;
+		mSelector.wakeup();
+	}
+
+	/**
+	 * Encodes the values of a sensor as one complete event.
+	 * May be called from any thread.
+	 *
+	 * @param sensor, name of the sensor
+	 * @param tick, simulation tick of the values
+	 * @param time, time of the tick, milliseconds since 1970
+	 * @param values, values of the sensor
+	 * @param num, number of values
+	 */
+	public static byte[] encodeEvent(String sensor, long tick, long time,
+			float[] values, int num) {
+		StringBuilder out = new StringBuilder(96);
+		out.append("id: ").append(tick).append('\n');
+		out.append("event: ").append(sensor).append('\n');
+		out.append("data: {\"sensor\":\"").append(sensor)
+			.append("\",\"tick\":").append(tick)
+			.append(",\"time\":").append(time)
+			.append(",\"values\":[");
+		for (int i = 0; i < num; i++) {
+			if (i > 0) {
+				out.append(',');
+			}
+			if (Float.isNaN(values[i]) || Float.isInfinite(values[i])) {
+				// not allowed in JSON.
+				out.append("null");
+			} else {
+				out.append(values[i]);
+			}
+		}
+		out.append("]}\n\n");
+		return SensorProtocol.toBytes(out);
+	}
+}
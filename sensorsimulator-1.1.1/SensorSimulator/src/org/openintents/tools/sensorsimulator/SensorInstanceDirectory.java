@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.tools.sensorsimulator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Simulator instances served on the port of one {@link SensorServer},
+ * so that many virtual devices share a single acceptor, its event
+ * loops and its push thread.
+ *
+ * A connection starts with the simulator that started the server.
+ * select() switches it to another instance of the
+ * {@link SensorSimulatorInstances}, by name or id (see
+ * {@link SensorProtocol}). Each instance gets its own
+ * {@link SensorFanout}, created on the first subscription, since
+ * pushed values are shared only between clients of the same instance.
+ *
+ * @author Peli
+ */
+public class SensorInstanceDirectory {
+
+	private SensorSimulatorInstances mInstances;
+
+	private ISensorSimulator mDefaultSimulator;
+
+	private ScheduledExecutorService mPushExecutor;
+
+	/**
+	 * Fanouts by simulator, the one of the default simulator included.
+	 */
+	private HashMap<ISensorSimulator, SensorFanout> mFanouts;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param instances, simulators clients may select
+	 * @param defaultSimulator, simulator that started the server
+	 * @param defaultFanout, fanout of the server
+	 * @param pushExecutor, executor the fanouts of the other instances run on
+	 */
+	public SensorInstanceDirectory(SensorSimulatorInstances instances,
+			ISensorSimulator defaultSimulator, SensorFanout defaultFanout,
+			ScheduledExecutorService pushExecutor) {
+		mInstances = instances;
+		mDefaultSimulator = defaultSimulator;
+		mPushExecutor = pushExecutor;
+		mFanouts = new HashMap<ISensorSimulator, SensorFanout>();
+		mFanouts.put(defaultSimulator, defaultFanout);
+	}
+
+	/**
+	 * Finds an instance by its name or id.
+	 *
+	 * @return the simulator, or null if there is none
+	 */
+	public ISensorSimulator findSimulator(String nameOrId) {
+		return mInstances.findSimulator(nameOrId);
+	}
+
+	/**
+	 * @return simulator connections start with.
+	 */
+	public ISensorSimulator getDefaultSimulator() {
+		return mDefaultSimulator;
+	}
+
+	/**
+	 * @return fanout pushing the values of an instance.
+	 */
+	public synchronized SensorFanout getFanout(ISensorSimulator sensorSimulator) {
+		SensorFanout fanout = mFanouts.get(sensorSimulator);
+		if (fanout == null) {
+			fanout = new SensorFanout(sensorSimulator, mPushExecutor);
+			mFanouts.put(sensorSimulator, fanout);
+		}
+		return fanout;
+	}
+
+	/**
+	 * @return id and name of every instance, separated by a tab.
+	 */
+	public ArrayList<String> describe() {
+		return mInstances.describe();
+	}
+}
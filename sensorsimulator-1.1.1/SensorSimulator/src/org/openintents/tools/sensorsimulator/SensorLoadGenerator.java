@@ -0,0 +1,725 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.tools.sensorsimulator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Opens many client sessions against a running {@link SensorServer}
+ * to find out how many emulators it serves at a given rate.
+ *
+ * Usage:
+ * <pre>
+ * java -cp sensorsimulator.jar org.openintents.tools.sensorsimulator.SensorLoadGenerator [key=value ...]
+ * </pre>
+ *
+ * Each session talks like the SensorSimulatorClient of an emulator:
+ * getProtocolVersion() and hello(), binary() unless "binary=false",
+ * heartbeat(), then enableSensor(), setSensorUpdateRate() and
+ * subscribe() with request ids for a few sensors, each at the rate of
+ * a random SENSOR_DELAY_*. From then on it counts the pushed samples
+ * and sends a ping() every "pingMillis"; the round trip of every
+ * request goes into a latency histogram.
+ *
+ * Once a second a line reports the open sessions, samples received
+ * per second, the 50th, 99th and 99.9th percentile of the round
+ * trips and the errors of that second; a summary follows at the end.
+ *
+ * Settings, with their defaults:
+ * <pre>
+ * host=localhost port=8010
+ * sessions=100         sessions to reach
+ * ramp=10              seconds to open them, evenly
+ * profile=             instead of sessions and ramp, seconds:sessions
+ *                      points in between which the number of sessions
+ *                      changes linearly, e.g. 0:0,60:500,120:500,150:0
+ * duration=            seconds, by default 30 after the last point
+ * sensors=             sensors to choose from, all supported if empty
+ * sensorsPerSession=2
+ * delays=fastest,game,ui,normal   SENSOR_DELAY_* to choose from
+ * pingMillis=100       0 for no pings
+ * binary=true
+ * instances=           instances to select() in turn, see
+ *                      {@link SensorInstanceDirectory}
+ * seed=1
+ * </pre>
+ *
+ * Every session has a reading thread, so the generator should run on
+ * another machine than the server for large numbers of sessions.
+ *
+ * @author Peli
+ */
+public class SensorLoadGenerator {
+
+	/**
+	 * Delays of the SENSOR_DELAY_* constants, as the
+	 * SensorSimulatorClient maps them to update rates.
+	 */
+	private static final String[] DELAY_NAMES = { "fastest", "game", "ui", "normal" };
+	private static final int[] DELAY_MS = { 0, 20, 60, 200 };
+
+	private static final int HEARTBEAT_INTERVAL_MS = 10000;
+
+	private static final int HANDSHAKE_TIMEOUT_MS = 5000;
+
+	/**
+	 * How often the number of sessions follows the profile.
+	 */
+	private static final long RAMP_STEP_MILLIS = 50;
+
+	private static final long REPORT_MILLIS = 1000;
+
+	/**
+	 * Round trips in microseconds, counted in buckets of about 1.5%
+	 * of their value, so percentiles need no list of all latencies.
+	 * May be used from any thread.
+	 */
+	static class Histogram {
+		private static final int SUB_BITS = 6;
+		private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+		private final AtomicLongArray mCounts = new AtomicLongArray(64 * SUB_BUCKETS);
+		private final AtomicLong mTotal = new AtomicLong();
+
+		void record(long micros) {
+			mCounts.incrementAndGet(index(Math.max(0, micros)));
+			mTotal.incrementAndGet();
+		}
+
+		long getCount() {
+			return mTotal.get();
+		}
+
+		/**
+		 * @param fraction, like 0.99
+		 * @return highest round trip of the fraction of fastest ones,
+		 * in microseconds, or -1 without any.
+		 */
+		long getPercentile(double fraction) {
+			long total = mTotal.get();
+			if (total == 0) {
+				return -1;
+			}
+			long rank = Math.max(1, (long) Math.ceil(fraction * total));
+			long count = 0;
+			for (int i = 0; i < mCounts.length(); i++) {
+				count += mCounts.get(i);
+				if (count >= rank) {
+					return highestValue(i);
+				}
+			}
+			return highestValue(mCounts.length() - 1);
+		}
+
+		/**
+		 * Values below 2 * SUB_BUCKETS have a bucket each, above that
+		 * every power of two is split into SUB_BUCKETS buckets.
+		 */
+		private static int index(long value) {
+			if (value < 2 * SUB_BUCKETS) {
+				return (int) value;
+			}
+			int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+			return shift * SUB_BUCKETS + (int) (value >> shift);
+		}
+
+		private static long highestValue(int index) {
+			if (index < 2 * SUB_BUCKETS) {
+				return index;
+			}
+			int shift = index / SUB_BUCKETS - 1;
+			long mantissa = index % SUB_BUCKETS + SUB_BUCKETS;
+			return ((mantissa + 1) << shift) - 1;
+		}
+	}
+
+	// Settings
+	private String mHost;
+	private int mPort;
+	private long[] mProfileSeconds;
+	private int[] mProfileSessions;
+	private long mDurationMillis;
+	private String[] mSensors;
+	private int mSensorsPerSession;
+	private int[] mDelays;
+	private long mPingMillis;
+	private boolean mBinary;
+	private String[] mInstances;
+	private long mSeed;
+
+	// Results
+	private final Histogram mTotalLatency = new Histogram();
+	private volatile Histogram mIntervalLatency = new Histogram();
+	private final AtomicLong mSamples = new AtomicLong();
+	private final AtomicLong mConnectErrors = new AtomicLong();
+	private final AtomicLong mRejected = new AtomicLong();
+	private final AtomicLong mDisconnects = new AtomicLong();
+	private final AtomicLong mFailedRequests = new AtomicLong();
+	private final AtomicLong mUnanswered = new AtomicLong();
+	private final AtomicInteger mConnected = new AtomicInteger();
+
+	private ArrayList<Session> mSessions = new ArrayList<Session>();
+	private int mSessionCount = 0;
+
+	private ScheduledExecutorService mPinger;
+
+	/**
+	 * One client connection, read by its own thread.
+	 */
+	private class Session implements Runnable {
+		private final int mIndex;
+		private final Random mRandom;
+		private final Socket mSocket;
+		private DataInputStream mIn;
+		private OutputStream mOut;
+		private boolean mBinaryFrames;
+		private boolean mStamped;
+		private boolean mConnectedCounted;
+		private volatile boolean mClosing;
+		private int mNextId = 1;
+		private ScheduledFuture<?> mPing;
+
+		/**
+		 * Send times of the requests waiting for their answer, by id.
+		 */
+		private final ConcurrentHashMap<Integer, Long> mPending
+			= new ConcurrentHashMap<Integer, Long>();
+
+		Session(int index) {
+			mIndex = index;
+			mRandom = new Random(mSeed + index);
+			mSocket = new Socket();
+		}
+
+		public void run() {
+			try {
+				mSocket.connect(new InetSocketAddress(mHost, mPort), HANDSHAKE_TIMEOUT_MS);
+			} catch (IOException e) {
+				if (!mClosing) {
+					mConnectErrors.incrementAndGet();
+				}
+				return;
+			}
+			try {
+				if (open()) {
+					read();
+				}
+			} catch (IOException e) {
+				if (!mClosing) {
+					mDisconnects.incrementAndGet();
+					mUnanswered.addAndGet(mPending.size());
+				}
+			} catch (NumberFormatException e) {
+				if (!mClosing) {
+					mDisconnects.incrementAndGet();
+				}
+			} finally {
+				close();
+			}
+		}
+
+		/**
+		 * Shakes hands and subscribes to the sensors of the session.
+		 *
+		 * @return false if the server did not accept the session
+		 */
+		private boolean open() throws IOException {
+			mSocket.setTcpNoDelay(true);
+			mSocket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+			mIn = new DataInputStream(new BufferedInputStream(mSocket.getInputStream()));
+			mOut = new BufferedOutputStream(mSocket.getOutputStream());
+
+			String banner = readLine();
+			if (SensorServer.BUSY.equals(banner)) {
+				mRejected.incrementAndGet();
+				return false;
+			} else if (!SensorProtocol.BANNER.equals(banner)) {
+				throw new IOException("Unexpected banner: " + banner);
+			}
+
+			String instance = null;
+			if (mInstances != null) {
+				instance = mInstances[mIndex % mInstances.length];
+			}
+			StringBuilder hello = new StringBuilder("getProtocolVersion()\n");
+			if (instance != null) {
+				hello.append("select()\n").append(instance).append('\n');
+			}
+			hello.append("hello()\n").append(SensorProtocol.PROTOCOL_VERSION).append('\n');
+			write(hello);
+
+			int version = Integer.parseInt(readLine());
+			if (instance != null && version >= 11 && !"OK".equals(readLine())) {
+				mFailedRequests.incrementAndGet();
+			}
+			ArrayList<String> supported = new ArrayList<String>();
+			if (version >= 9) {
+				// the version spoken, pushed lines carry a stamp from 12 on
+				mStamped = Integer.parseInt(readLine()) >= SensorProtocol.STAMPED_VERSION;
+				int lines = Integer.parseInt(readLine());
+				for (int i = 0; i < lines; i++) {
+					String[] fields = readLine().split("\t");
+					if (fields[0].equals("sensor") && fields.length > 1) {
+						supported.add(fields[1]);
+					}
+				}
+			} else {
+				write("getSupportedSensors()\n");
+				int lines = Integer.parseInt(readLine());
+				for (int i = 0; i < lines; i++) {
+					supported.add(readLine());
+				}
+			}
+
+			if (mBinary && version >= 4) {
+				write("binary()\n");
+				if (!"OK".equals(readLine())) {
+					throw new IOException("binary() refused");
+				}
+				mBinaryFrames = true;
+			}
+			mSocket.setSoTimeout(0);
+
+			ArrayList<String> sensors = new ArrayList<String>();
+			for (int i = 0; i < supported.size(); i++) {
+				if (mSensors == null || contains(mSensors, supported.get(i))) {
+					sensors.add(supported.get(i));
+				}
+			}
+			Collections.shuffle(sensors, mRandom);
+			for (int i = 0; i < sensors.size() && i < mSensorsPerSession; i++) {
+				int delay = mDelays[mRandom.nextInt(mDelays.length)];
+				float updatesPerSecond = delay > 0 ? 1000 / delay : 1000;
+				subscribe(sensors.get(i), updatesPerSecond);
+			}
+			if (version >= 10) {
+				heartbeat();
+			}
+
+			synchronized (this) {
+				if (mClosing) {
+					return false;
+				}
+				mConnected.incrementAndGet();
+				mConnectedCounted = true;
+				if (mPingMillis > 0) {
+					mPing = mPinger.scheduleAtFixedRate(new Runnable() {
+						public void run() {
+							try {
+								ping();
+							} catch (IOException e) {
+								// the reading thread notices.
+							}
+						}
+					}, (long) (mRandom.nextDouble() * mPingMillis), mPingMillis,
+							TimeUnit.MILLISECONDS);
+				}
+			}
+			return true;
+		}
+
+		private void subscribe(String sensor, float updatesPerSecond) throws IOException {
+			if (mBinaryFrames) {
+				sendFrame(SensorBinaryProtocol.OP_ENABLE_SENSOR, sensor, Float.NaN);
+				sendFrame(SensorBinaryProtocol.OP_SET_SENSOR_UPDATE_RATE, sensor, updatesPerSecond);
+				sendFrame(SensorBinaryProtocol.OP_SUBSCRIBE, sensor, updatesPerSecond);
+			} else {
+				sendLines("enableSensor()", sensor + "\n");
+				sendLines("setSensorUpdateRate()", sensor + "\n" + updatesPerSecond + "\n");
+				sendLines("subscribe()", sensor + "\n" + updatesPerSecond + "\n");
+			}
+		}
+
+		private void heartbeat() throws IOException {
+			if (mBinaryFrames) {
+				sendFrame(SensorBinaryProtocol.OP_HEARTBEAT, null, HEARTBEAT_INTERVAL_MS);
+			} else {
+				sendLines("heartbeat()", HEARTBEAT_INTERVAL_MS + "\n");
+			}
+		}
+
+		private void ping() throws IOException {
+			if (mBinaryFrames) {
+				sendFrame(SensorBinaryProtocol.OP_PING, null, Float.NaN);
+			} else {
+				sendLines("ping()", "");
+			}
+		}
+
+		/**
+		 * Sends a command with a request id.
+		 */
+		private void sendLines(String command, String arguments) throws IOException {
+			synchronized (mOut) {
+				int id = mNextId++;
+				mPending.put(Integer.valueOf(id), Long.valueOf(System.nanoTime()));
+				write("@" + id + " " + command + "\n" + arguments);
+			}
+		}
+
+		/**
+		 * Sends a tagged binary request.
+		 *
+		 * @param sensor, name written first, or null
+		 * @param argument, float written after the name, int for
+		 * OP_HEARTBEAT, NaN for none
+		 */
+		private void sendFrame(byte opcode, String sensor, float argument) throws IOException {
+			ByteArrayOutputStream frame = new ByteArrayOutputStream();
+			DataOutputStream data = new DataOutputStream(frame);
+			synchronized (mOut) {
+				int id = mNextId++;
+				data.writeByte(opcode | SensorBinaryProtocol.FLAG_TAGGED);
+				data.writeInt(id);
+				if (sensor != null) {
+					data.writeUTF(sensor);
+				}
+				if (opcode == SensorBinaryProtocol.OP_HEARTBEAT) {
+					data.writeInt((int) argument);
+				} else if (!Float.isNaN(argument)) {
+					data.writeFloat(argument);
+				}
+				DataOutputStream out = new DataOutputStream(mOut);
+				out.writeInt(frame.size());
+				frame.writeTo(out);
+				mPending.put(Integer.valueOf(id), Long.valueOf(System.nanoTime()));
+				out.flush();
+			}
+		}
+
+		/**
+		 * Reads answers and pushed samples until the connection ends.
+		 */
+		private void read() throws IOException {
+			if (mBinaryFrames) {
+				readFrames();
+			} else {
+				readLines();
+			}
+		}
+
+		private void readFrames() throws IOException {
+			while (true) {
+				int length = mIn.readInt();
+				if (length <= 0 || length > SensorBinaryProtocol.MAX_FRAME_LENGTH) {
+					throw new IOException("Invalid frame length " + length);
+				}
+				byte[] frame = new byte[length];
+				mIn.readFully(frame);
+				byte opcode = frame[0];
+				if (opcode == SensorBinaryProtocol.OP_SAMPLE
+						|| opcode == SensorBinaryProtocol.OP_SAMPLE_DELTA) {
+					mSamples.incrementAndGet();
+				} else if ((opcode & SensorBinaryProtocol.FLAG_TAGGED) != 0 && length >= 6) {
+					int id = ((frame[1] & 0xff) << 24) | ((frame[2] & 0xff) << 16)
+							| ((frame[3] & 0xff) << 8) | (frame[4] & 0xff);
+					answered(id, frame[5] == SensorProtocol.STATUS_OK);
+				}
+			}
+		}
+
+		private void readLines() throws IOException {
+			while (true) {
+				String line = readLine();
+				if (line.startsWith("@")) {
+					String answer = readLine();
+					answered(Integer.parseInt(line.substring(1)), !answer.startsWith("throw"));
+				} else if (line.equals(SensorProtocol.SAMPLE)
+						|| line.equals(SensorProtocol.DELTA)) {
+					readLine();
+					int num = Integer.parseInt(readLine());
+					for (int i = 0; i < num; i++) {
+						readLine();
+					}
+					if (mStamped) {
+						readLine();
+					}
+					mSamples.incrementAndGet();
+				}
+			}
+		}
+
+		private void answered(int id, boolean ok) {
+			Long sent = mPending.remove(Integer.valueOf(id));
+			if (sent == null) {
+				return;
+			}
+			long micros = (System.nanoTime() - sent.longValue()) / 1000;
+			mTotalLatency.record(micros);
+			mIntervalLatency.record(micros);
+			if (!ok) {
+				mFailedRequests.incrementAndGet();
+			}
+		}
+
+		private void write(CharSequence lines) throws IOException {
+			synchronized (mOut) {
+				mOut.write(SensorProtocol.toBytes(lines));
+				mOut.flush();
+			}
+		}
+
+		/**
+		 * Reads an ASCII line, without its terminator.
+		 */
+		private String readLine() throws IOException {
+			StringBuilder line = new StringBuilder();
+			while (true) {
+				int c = mIn.read();
+				if (c < 0) {
+					throw new EOFException();
+				} else if (c == '\n') {
+					return line.toString();
+				} else if (c != '\r') {
+					line.append((char) c);
+				}
+			}
+		}
+
+		/**
+		 * Ends the session. May be called from any thread.
+		 */
+		void close() {
+			mClosing = true;
+			synchronized (this) {
+				if (mPing != null) {
+					mPing.cancel(false);
+				}
+				if (mConnectedCounted) {
+					mConnected.decrementAndGet();
+					mConnectedCounted = false;
+				}
+			}
+			try {
+				mSocket.close();
+			} catch (IOException e) {
+				// closed anyway.
+			}
+		}
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param settings, key=value settings, see the class comment
+	 */
+	public SensorLoadGenerator(String[] settings) {
+		mHost = get(settings, "host", "localhost");
+		mPort = Integer.parseInt(get(settings, "port", "8010"));
+		String profile = get(settings, "profile", "");
+		if (profile.length() == 0) {
+			int sessions = Integer.parseInt(get(settings, "sessions", "100"));
+			long ramp = Long.parseLong(get(settings, "ramp", "10"));
+			profile = ramp > 0 ? "0:0," + ramp + ":" + sessions : "0:" + sessions;
+		}
+		String[] points = profile.split(",");
+		mProfileSeconds = new long[points.length];
+		mProfileSessions = new int[points.length];
+		for (int i = 0; i < points.length; i++) {
+			String[] point = points[i].trim().split(":");
+			mProfileSeconds[i] = Long.parseLong(point[0].trim());
+			mProfileSessions[i] = Integer.parseInt(point[1].trim());
+		}
+		mDurationMillis = 1000 * Long.parseLong(get(settings, "duration",
+				"" + (mProfileSeconds[points.length - 1] + 30)));
+		String sensors = get(settings, "sensors", "");
+		mSensors = sensors.length() == 0 ? null : sensors.split(",");
+		mSensorsPerSession = Integer.parseInt(get(settings, "sensorsPerSession", "2"));
+		String[] delays = get(settings, "delays", "fastest,game,ui,normal").split(",");
+		mDelays = new int[delays.length];
+		for (int i = 0; i < delays.length; i++) {
+			int index = indexOf(DELAY_NAMES, delays[i].trim().toLowerCase());
+			if (index < 0) {
+				throw new IllegalArgumentException("Unknown delay: " + delays[i]);
+			}
+			mDelays[i] = DELAY_MS[index];
+		}
+		mPingMillis = Long.parseLong(get(settings, "pingMillis", "100"));
+		mBinary = Boolean.valueOf(get(settings, "binary", "true")).booleanValue();
+		String instances = get(settings, "instances", "");
+		mInstances = instances.length() == 0 ? null : instances.split(",");
+		mSeed = Long.parseLong(get(settings, "seed", "1"));
+	}
+
+	/**
+	 * Runs the profile, reporting once a second, and closes all
+	 * sessions at the end.
+	 */
+	public void run() {
+		mPinger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "SensorLoadGeneratorPing");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		long start = System.currentTimeMillis();
+		long nextReport = start + REPORT_MILLIS;
+		long lastSamples = 0;
+		long lastErrors = 0;
+		System.out.println("   time  sessions   samples/s   rtt ms p50     p99    p99.9   errors");
+		while (true) {
+			long now = System.currentTimeMillis();
+			long elapsed = now - start;
+			if (elapsed >= mDurationMillis) {
+				break;
+			}
+			int target = getTargetSessions(elapsed);
+			while (mSessions.size() < target) {
+				Session session = new Session(mSessionCount++);
+				mSessions.add(session);
+				Thread thread = new Thread(session, "SensorLoadSession-" + session.mIndex);
+				thread.setDaemon(true);
+				thread.start();
+			}
+			while (mSessions.size() > target) {
+				mSessions.remove(mSessions.size() - 1).close();
+			}
+
+			if (now >= nextReport) {
+				Histogram interval = mIntervalLatency;
+				mIntervalLatency = new Histogram();
+				long samples = mSamples.get();
+				long errors = getErrors();
+				double seconds = (now - nextReport + REPORT_MILLIS) / 1000.0;
+				System.out.println(format(elapsed / 1000.0, 6, 0) + "s"
+						+ format(mConnected.get(), 10, 0)
+						+ format((samples - lastSamples) / seconds, 12, 1)
+						+ format(interval.getPercentile(0.5) / 1000.0, 13, 2)
+						+ format(interval.getPercentile(0.99) / 1000.0, 8, 2)
+						+ format(interval.getPercentile(0.999) / 1000.0, 9, 2)
+						+ format(errors - lastErrors, 9, 0));
+				lastSamples = samples;
+				lastErrors = errors;
+				nextReport = now + REPORT_MILLIS;
+			}
+			try {
+				Thread.sleep(RAMP_STEP_MILLIS);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+
+		for (int i = 0; i < mSessions.size(); i++) {
+			mSessions.get(i).close();
+		}
+		mPinger.shutdownNow();
+
+		double seconds = (System.currentTimeMillis() - start) / 1000.0;
+		System.out.println();
+		System.out.println("Sessions opened:     " + mSessionCount);
+		System.out.println("Samples:             " + mSamples.get() + " ("
+				+ format(mSamples.get() / seconds, 0, 1) + "/s)");
+		System.out.println("Requests answered:   " + mTotalLatency.getCount());
+		System.out.println("Round trip ms:       p50 " + format(mTotalLatency.getPercentile(0.5) / 1000.0, 0, 2)
+				+ ", p99 " + format(mTotalLatency.getPercentile(0.99) / 1000.0, 0, 2)
+				+ ", p99.9 " + format(mTotalLatency.getPercentile(0.999) / 1000.0, 0, 2));
+		System.out.println("Errors:              " + getErrors()
+				+ " (connect " + mConnectErrors.get()
+				+ ", rejected " + mRejected.get()
+				+ ", disconnected " + mDisconnects.get()
+				+ ", failed requests " + mFailedRequests.get()
+				+ ", unanswered " + mUnanswered.get() + ")");
+	}
+
+	/**
+	 * @return number of sessions the profile asks for at a time.
+	 */
+	int getTargetSessions(long elapsedMillis) {
+		double seconds = elapsedMillis / 1000.0;
+		int last = mProfileSeconds.length - 1;
+		if (seconds <= mProfileSeconds[0]) {
+			return mProfileSessions[0];
+		}
+		for (int i = 1; i <= last; i++) {
+			if (seconds < mProfileSeconds[i]) {
+				double part = (seconds - mProfileSeconds[i - 1])
+						/ (mProfileSeconds[i] - mProfileSeconds[i - 1]);
+				return (int) Math.round(mProfileSessions[i - 1]
+						+ part * (mProfileSessions[i] - mProfileSessions[i - 1]));
+			}
+		}
+		return mProfileSessions[last];
+	}
+
+	private long getErrors() {
+		return mConnectErrors.get() + mRejected.get() + mDisconnects.get()
+				+ mFailedRequests.get() + mUnanswered.get();
+	}
+
+	private static String format(double value, int width, int decimals) {
+		if (value < 0) {
+			return String.format("%" + Math.max(1, width) + "s", "-");
+		}
+		return String.format("%" + (width > 0 ? "" + width : "") + "." + decimals + "f", value);
+	}
+
+	private static String get(String[] settings, String key, String defaultValue) {
+		String prefix = key + "=";
+		for (int i = settings.length - 1; i >= 0; i--) {
+			if (settings[i].startsWith(prefix)) {
+				return settings[i].substring(prefix.length()).trim();
+			}
+		}
+		return defaultValue;
+	}
+
+	private static boolean contains(String[] names, String name) {
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].trim().equals(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int indexOf(String[] names, String name) {
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public static void main(String[] args) {
+		new SensorLoadGenerator(args).run();
+		System.exit(0);
+	}
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.tools.sensorsimulator;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Metrics of the simulator process in the text format of Prometheus,
+ * served as GET /metrics by the {@link SensorHttpServer}:
+ * <ul>
+ * <li>ticks, their duration and jitter, the time between two ticks
+ * that differs from the period set, and the channels they updated,</li>
+ * <li>reads of each sensor by clients,</li>
+ * <li>open connections and the bytes they received and sent,</li>
+ * <li>latency of each command, as a histogram,</li>
+ * <li>commands sent to the console of the emulator, and the progress
+ * of the battery replay from file.</li>
+ * </ul>
+ * Every event updates a few atomic counters, without locks or
+ * allocation; everything else is only computed when scraped. The
+ * metrics are those of all simulators of the process.
+ *
+ * The events arrive as the {@link EventRecorder} of the process, and
+ * are passed on to the recorder loaded there.
+ *
+ * @author Peli
+ */
+public class SensorMetrics extends EventRecorder {
+
+	/**
+	 * Content type of the text format.
+	 */
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4";
+
+	/**
+	 * Upper bounds of the buckets of the histograms, in seconds.
+	 */
+	private static final double[] BUCKETS = new double[] {
+		0.00005, 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005,
+		0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5
+	};
+
+	/**
+	 * Histogram with the buckets above. Observations only increment
+	 * atomic counters.
+	 */
+	static class Histogram {
+		private static final long[] BOUNDS = new long[BUCKETS.length];
+		static {
+			for (int i = 0; i < BUCKETS.length; i++) {
+				BOUNDS[i] = Math.round(BUCKETS[i] * 1e9);
+			}
+		}
+
+		/**
+		 * Observations per bucket, the last one above all bounds.
+		 */
+		private final AtomicLongArray mCounts;
+		private final AtomicLong mSumNanos;
+
+		Histogram() {
+			mCounts = new AtomicLongArray(BUCKETS.length + 1);
+			mSumNanos = new AtomicLong();
+		}
+
+		void observe(long nanos) {
+			int i = 0;
+			while (i < BOUNDS.length && nanos > BOUNDS[i]) {
+				i++;
+			}
+			mCounts.incrementAndGet(i);
+			mSumNanos.addAndGet(nanos);
+		}
+
+		void write(StringBuilder out, String name, String label) {
+			long count = 0;
+			for (int i = 0; i <= BUCKETS.length; i++) {
+				count += mCounts.get(i);
+				out.append(name).append("_bucket{");
+				if (label != null) {
+					out.append(label).append(',');
+				}
+				out.append("le=\"");
+				if (i < BUCKETS.length) {
+					out.append(BUCKETS[i]);
+				} else {
+					out.append("+Inf");
+				}
+				out.append("\"} ").append(count).append('\n');
+			}
+			String labels = label == null ? "" : "{" + label + "}";
+			out.append(name).append("_sum").append(labels).append(' ')
+				.append(mSumNanos.get() / 1e9).append('\n');
+			out.append(name).append("_count").append(labels).append(' ')
+				.append(count).append('\n');
+		}
+	}
+
+	private final EventRecorder mNext;
+
+	private final AtomicLong mTicks;
+	private final AtomicLong mChannelUpdates;
+	private final Histogram mTickDuration;
+	private final Histogram mTickJitter;
+	private final Histogram mSampleAge;
+	private volatile long mTickPeriodNanos;
+
+	private final AtomicLongArray mReads;
+
+	/**
+	 * Histograms of the commands, by name. Filled in the constructor
+	 * and only read afterwards.
+	 */
+	private final HashMap<String, Histogram> mCommands;
+
+	private final AtomicLong mTelnetCommands;
+
+	private volatile int mReplayPosition;
+	private volatile int mReplayEntries;
+
+	private final CopyOnWriteArrayList<ConnectionRegistry> mConnections;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param next, recorder the events are passed on to
+	 */
+	public SensorMetrics(EventRecorder next) {
+		mNext = next;
+		mTicks = new AtomicLong();
+		mChannelUpdates = new AtomicLong();
+		mTickDuration = new Histogram();
+		mTickJitter = new Histogram();
+		mSampleAge = new Histogram();
+		mReads = new AtomicLongArray(SensorRegistry.size());
+		mCommands = new HashMap<String, Histogram>();
+		for (int i = 0; i < SensorProtocol.COMMANDS.length; i++) {
+			mCommands.put(SensorProtocol.COMMANDS[i], new Histogram());
+		}
+		mTelnetCommands = new AtomicLong();
+		mConnections = new CopyOnWriteArrayList<ConnectionRegistry>();
+	}
+
+	/**
+	 * @return the metrics of this process.
+	 */
+	public static SensorMetrics get() {
+		return (SensorMetrics) EventRecorder.get();
+	}
+
+	/**
+	 * Adds the connections of a server to the metrics.
+	 */
+	public void addConnections(ConnectionRegistry connections) {
+		mConnections.addIfAbsent(connections);
+	}
+
+	/**
+	 * Removes the connections of a stopped server.
+	 */
+	public void removeConnections(ConnectionRegistry connections) {
+		mConnections.remove(connections);
+	}
+
+	@Override
+	public void tick(long tick, long durationNanos, long intervalNanos,
+			long periodNanos, int channels) {
+		mTicks.incrementAndGet();
+		mChannelUpdates.addAndGet(channels);
+		mTickDuration.observe(durationNanos);
+		if (intervalNanos > 0) {
+			mTickJitter.observe(Math.abs(intervalNanos - periodNanos));
+		}
+		mTickPeriodNanos = periodNanos;
+		mNext.tick(tick, durationNanos, intervalNanos, periodNanos, channels);
+	}
+
+	@Override
+	public void command(String command, String sensor, String client,
+			long latencyNanos) {
+		Histogram histogram = mCommands.get(command);
+		if (histogram == null) {
+			histogram = mCommands.get(SensorProtocol.UNKNOWN_COMMAND);
+		}
+		histogram.observe(latencyNanos);
+		mNext.command(command, sensor, client, latencyNanos);
+	}
+
+	@Override
+	public void telnetCommand(String command, int port, long durationNanos) {
+		mTelnetCommands.incrementAndGet();
+		mNext.telnetCommand(command, port, durationNanos);
+	}
+
+	/**
+	 * Counts a read of a channel by a client.
+	 */
+	public void countRead(int channel) {
+		mReads.incrementAndGet(channel);
+	}
+
+	/**
+	 * Records the age of values sent to a client with their stamp,
+	 * the time from the tick that produced them to their encoding.
+	 *
+	 * @param snapshot, snapshot the values were taken from
+	 */
+	public void observeSampleAge(SensorSnapshot snapshot) {
+		long micros = SensorSnapshot.currentMicros() - snapshot.getMicros();
+		mSampleAge.observe(Math.max(0, micros) * 1000);
+	}
+
+	/**
+	 * Sets the progress of the battery replay from file.
+	 *
+	 * @param position, entries sent to the emulator
+	 * @param entries, entries of the file
+	 */
+	public void setReplayProgress(int position, int entries) {
+		mReplayEntries = entries;
+		mReplayPosition = position;
+	}
+
+	/**
+	 * Writes all metrics in the text format.
+	 *
+	 * @param out, buffer the metrics are appended to
+	 */
+	public void write(StringBuilder out) {
+		header(out, "sensorsimulator_ticks_total", "counter",
+				"Simulation ticks.");
+		out.append("sensorsimulator_ticks_total ").append(mTicks.get()).append('\n');
+		header(out, "sensorsimulator_tick_period_seconds", "gauge",
+				"Time between two ticks as set.");
+		out.append("sensorsimulator_tick_period_seconds ")
+			.append(mTickPeriodNanos / 1e9).append('\n');
+		header(out, "sensorsimulator_tick_duration_seconds", "histogram",
+				"Time a tick took: physics, readout and publishing.");
+		mTickDuration.write(out, "sensorsimulator_tick_duration_seconds", null);
+		header(out, "sensorsimulator_tick_jitter_seconds", "histogram",
+				"Difference of the time between two ticks from the period set.");
+		mTickJitter.write(out, "sensorsimulator_tick_jitter_seconds", null);
+		header(out, "sensorsimulator_channel_updates_total", "counter",
+				"Enabled channels whose values changed in a tick.");
+		out.append("sensorsimulator_channel_updates_total ")
+			.append(mChannelUpdates.get()).append('\n');
+
+		header(out, "sensorsimulator_sensor_reads_total", "counter",
+				"Reads of a sensor by clients.");
+		for (int i = 0; i < mReads.length(); i++) {
+			out.append("sensorsimulator_sensor_reads_total{sensor=\"");
+			escape(out, SensorRegistry.get(i).getName());
+			out.append("\"} ").append(mReads.get(i)).append('\n');
+		}
+		header(out, "sensorsimulator_sample_age_seconds", "histogram",
+				"Time from the tick that produced stamped values to their encoding for a client.");
+		mSampleAge.write(out, "sensorsimulator_sample_age_seconds", null);
+
+		int open = 0;
+		long bytesIn = 0;
+		long bytesOut = 0;
+		Iterator<ConnectionRegistry> it = mConnections.iterator();
+		while (it.hasNext()) {
+			ConnectionRegistry connections = it.next();
+			open += connections.size();
+			bytesIn += connections.getBytesIn();
+			bytesOut += connections.getBytesOut();
+		}
+		header(out, "sensorsimulator_connections", "gauge",
+				"Open client connections.");
+		out.append("sensorsimulator_connections ").append(open).append('\n');
+		header(out, "sensorsimulator_received_bytes_total", "counter",
+				"Bytes received from clients.");
+		out.append("sensorsimulator_received_bytes_total ").append(bytesIn).append('\n');
+		header(out, "sensorsimulator_sent_bytes_total", "counter",
+				"Bytes sent to clients.");
+		out.append("sensorsimulator_sent_bytes_total ").append(bytesOut).append('\n');
+
+		header(out, "sensorsimulator_command_duration_seconds", "histogram",
+				"Time from the arrival of a command to its answer.");
+		for (int i = 0; i < SensorProtocol.COMMANDS.length; i++) {
+			mCommands.get(SensorProtocol.COMMANDS[i]).write(out,
+					"sensorsimulator_command_duration_seconds",
+					"command=\"" + SensorProtocol.COMMANDS[i] + "\"");
+		}
+
+		header(out, "sensorsimulator_telnet_commands_total", "counter",
+				"Commands sent to the console of the emulator.");
+		out.append("sensorsimulator_telnet_commands_total ")
+			.append(mTelnetCommands.get()).append('\n');
+		header(out, "sensorsimulator_replay_position", "gauge",
+				"Entries of the battery file sent to the emulator.");
+		out.append("sensorsimulator_replay_position ")
+			.append(mReplayPosition).append('\n');
+		header(out, "sensorsimulator_replay_entries", "gauge",
+				"Entries of the battery file being replayed.");
+		out.append("sensorsimulator_replay_entries ")
+			.append(mReplayEntries).append('\n');
+	}
+
+	private static void header(StringBuilder out, String name, String type,
+			String help) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	/**
+	 * Appends a label value, escaped.
+	 */
+	private static void escape(StringBuilder out, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' || c == '"') {
+				out.append('\\').append(c);
+			} else if (c == '\n') {
+				out.append("\\n");
+			} else {
+				out.append(c);
+			}
+		}
+	}
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.tools.sensorsimulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Sends every simulation tick once to a UDP multicast group, so that
+ * any number of emulators can follow the same simulated environment
+ * without a request stream of their own.
+ *
+ * Each datagram holds all channels of one {@link SensorSnapshot}:
+ * <pre>
+ * int    MAGIC
+ * byte   VERSION
+ * long   sequence number of the datagram, gaps mean lost datagrams
+ * long   tick
+ * long   time of the tick, milliseconds since 1970
+ * long   time the datagram was sent, milliseconds since 1970
+ * short  number of channels, then per channel:
+ *   UTF    name
+ *   byte   FLAG_SUPPORTED | FLAG_ENABLED
+ *   byte   number of values
+ *   float  values
+ * </pre>
+ * All numbers are big endian, as written by DataOutputStream. If ticks
+ * come faster than datagrams can be sent, only the latest tick is sent.
+ *
+ * Enabled with the system property "sensorsimulator.multicast=true",
+ * group, port and TTL are set with "sensorsimulator.multicastGroup",
+ * "sensorsimulator.multicastPort" and "sensorsimulator.multicastTtl".
+ *
+ * @author Peli
+ */
+public class SensorMulticastPublisher implements SensorState.Listener {
+
+	public static final int MAGIC = 0x53534d43; // "SSMC"
+	public static final byte VERSION = 1;
+
+	public static final byte FLAG_SUPPORTED = 1;
+	public static final byte FLAG_ENABLED = 2;
+
+	public static final String DEFAULT_GROUP = "239.255.83.83";
+	public static final int DEFAULT_PORT = 8011;
+
+	/**
+	 * Datagrams stay in the local network by default.
+	 */
+	public static final int DEFAULT_TTL = 1;
+
+	private SensorState mSensorState;
+	private MulticastSocket mSocket;
+	private InetAddress mGroup;
+	private int mPort;
+
+	private ExecutorService mExecutor;
+	private Runnable mSendTask;
+
+	/**
+	 * Snapshot waiting to be sent, null if a send is not scheduled.
+	 */
+	private AtomicReference<SensorSnapshot> mPending;
+
+	/**
+	 * Only used by the sending thread.
+	 */
+	private long mSequence;
+	private ByteArrayOutputStream mDatagram;
+	private DataOutputStream mData;
+	private float[] mValues;
+
+	private AtomicLong mSent;
+	private AtomicLong mSkipped;
+
+	/**
+	 * Constructor, opens the socket and starts listening to the ticks.
+	 *
+	 * @param sensorState, state that publishes the ticks
+	 * @param group, multicast group address
+	 * @param port, port of the receivers
+	 * @param ttl, how many routers the datagrams may pass
+	 */
+	public SensorMulticastPublisher(SensorState sensorState, String group,
+			int port, int ttl) throws IOException {
+		mSensorState = sensorState;
+		mGroup = InetAddress.getByName(group);
+		mPort = port;
+		mSocket = new MulticastSocket();
+		mSocket.setTimeToLive(ttl);
+		mPending = new AtomicReference<SensorSnapshot>();
+		mSequence = 0;
+		mDatagram = new ByteArrayOutputStream(512);
+		mData = new DataOutputStream(mDatagram);
+		mValues = new float[SensorProtocol.MAX_VALUES];
+		mSent = new AtomicLong();
+		mSkipped = new AtomicLong();
+		mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "SensorMulticast");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		mSendTask = new Runnable() {
+			public void run() {
+				send(mPending.getAndSet(null));
+			}
+		};
+		mSensorState.addListener(this);
+	}
+
+	/**
+	 * Publisher configured by the system properties, or null if
+	 * multicast is not enabled or the socket cannot be opened.
+	 *
+	 * @param sensorSimulator, simulator to report errors to
+	 */
+	public static SensorMulticastPublisher create(ISensorSimulator sensorSimulator) {
+		if (!Boolean.getBoolean("sensorsimulator.multicast")) {
+			return null;
+		}
+		String group = System.getProperty("sensorsimulator.multicastGroup",
+				DEFAULT_GROUP);
+		int port = Integer.getInteger("sensorsimulator.multicastPort",
+				DEFAULT_PORT).intValue();
+		int ttl = Integer.getInteger("sensorsimulator.multicastTtl",
+				DEFAULT_TTL).intValue();
+		try {
+			SensorMulticastPublisher publisher = new SensorMulticastPublisher(
+					sensorSimulator.getSensorState(), group, port, ttl);
+			sensorSimulator.addMessage("Multicasting ticks to " + group + ":" + port);
+			return publisher;
+		} catch (IOException e) {
+			sensorSimulator.addMessage("Could not multicast to " + group + ":" + port);
+			return null;
+		}
+	}
+
+	/**
+	 * Hands the snapshot to the sending thread.
+	 */
+	public void snapshotPublished(SensorSnapshot snapshot) {
+		if (mPending.getAndSet(snapshot) != null) {
+			// the previous tick was not sent yet, it is replaced.
+			mSkipped.incrementAndGet();
+			return;
+		}
+		try {
+			mExecutor.execute(mSendTask);
+		} catch (RejectedExecutionException e) {
+			// closed.
+		}
+	}
+
+	private void send(SensorSnapshot snapshot) {
+		if (snapshot == null) return;
+		try {
+			mDatagram.reset();
+			mData.writeInt(MAGIC);
+			mData.writeByte(VERSION);
+			mData.writeLong(++mSequence);
+			mData.writeLong(snapshot.getTick());
+			mData.writeLong(snapshot.getTime());
+			mData.writeLong(System.currentTimeMillis());
+			int n = SensorRegistry.size();
+			mData.writeShort(n);
+			for (int i = 0; i < n; i++) {
+				mData.writeUTF(SensorRegistry.get(i).getName());
+				int flags = 0;
+				if (snapshot.isSupported(i)) flags |= FLAG_SUPPORTED;
+				if (snapshot.isEnabled(i)) flags |= FLAG_ENABLED;
+				mData.writeByte(flags);
+				int num = snapshot.readValues(i, mValues);
+				mData.writeByte(num);
+				for (int j = 0; j < num; j++) {
+					mData.writeFloat(mValues[j]);
+				}
+			}
+			mData.flush();
+			byte[] data = mDatagram.toByteArray();
+			mSocket.send(new DatagramPacket(data, data.length, mGroup, mPort));
+			mSent.incrementAndGet();
+		} catch (IOException e) {
+			System.err.println("Multicast send failed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return group and port the datagrams are sent to.
+	 */
+	public String getAddress() {
+		return mGroup.getHostAddress() + ":" + mPort;
+	}
+
+	/**
+	 * @return number of datagrams sent.
+	 */
+	public long getSent() {
+		return mSent.get();
+	}
+
+	/**
+	 * @return number of ticks replaced by a later one before being sent.
+	 */
+	public long getSkipped() {
+		return mSkipped.get();
+	}
+
+	/**
+	 * Stops publishing and closes the socket.
+	 */
+	public void close() {
+		mSensorState.removeListener(this);
+		mExecutor.shutdownNow();
+		mSocket.close();
+	}
+}
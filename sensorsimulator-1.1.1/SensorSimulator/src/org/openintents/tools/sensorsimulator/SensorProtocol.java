@@ -0,0 +1,1292 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.tools.sensorsimulator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Line based sensor protocol spoken with the SensorClient.
+ *
+ * One instance exists per connection. Lines received from the client
+ * are passed to {@link #handleLine(String, StringBuilder)} one at a time,
+ * the answer (if any) is appended to the given buffer. Since commands
+ * may span several lines, the protocol remembers which command is
+ * still waiting for its arguments. This way the same code serves
+ * blocking connections ({@link SensorServerThread}) and non-blocking
+ * ones ({@link SensorSelectorServer}).
+ *
+ * After subscribe() the values of a sensor are pushed to the client
+ * at the requested rate as "sample()" frames, without further requests:
+ * <pre>
+ * sample()
+ * &lt;sensor&gt;
+ * &lt;number of values&gt;
+ * &lt;value&gt;...
+ * </pre>
+ *
+ * The rate line of subscribe() may be followed by a deadband and a
+ * keyframe period in milliseconds, separated by spaces. With a
+ * deadband, a value is only pushed once it moved further than the
+ * deadband from the value the client has. It is then sent as a
+ * "delta()" frame holding the change in whole multiples of the
+ * deadband, which the client adds to its value:
+ * <pre>
+ * delta()
+ * &lt;sensor&gt;
+ * &lt;number of values&gt;
+ * &lt;steps&gt;...
+ * </pre>
+ * A full "sample()" is sent first, once per keyframe period, and
+ * whenever the client may have missed a delta.
+ *
+ * Subscriptions without a deadband are pushed by the {@link SensorFanout}
+ * of the server, which encodes each value once for all clients
+ * subscribed to the same sensor at the same rate.
+ *
+ * setSensorUpdateRate() sets the rate of this connection only, other
+ * clients and the simulator keep theirs; unsetSensorUpdateRate()
+ * returns to the rate of the simulator. A subscription with a rate
+ * of 0 follows the rate of the connection, and is pushed at the new
+ * rate as soon as it is set.
+ *
+ * readSensors() answers several sensors at once, all values taken
+ * from the same simulation tick. It is followed by a comma separated
+ * list of sensor names, or "*" for all enabled sensors:
+ * <pre>
+ * &lt;number of sensors&gt;
+ * &lt;sensor&gt;
+ * &lt;number of values&gt; (or "throw ...")
+ * &lt;value&gt;...
+ * </pre>
+ *
+ * A command line may start with a request id, "@&lt;id&gt; command()".
+ * Its answer then starts with the line "@&lt;id&gt;", so a client can send
+ * several commands without waiting and match the answers afterwards.
+ * Answers are sent in the order of the commands.
+ *
+ * stats() answers the number of lines that follow, and a report
+ * on all connections of the server (see {@link ConnectionRegistry}).
+ *
+ * hello() followed by the protocol version of the client answers,
+ * in one round trip, everything a client asks for before its first
+ * sample: the protocol version both sides speak, then the number of
+ * lines that follow, each with fields separated by tabs:
+ * <pre>
+ * transport  &lt;name&gt;  [&lt;address&gt;]
+ * sensor  &lt;name&gt;  &lt;enabled 0|1&gt;  &lt;number of values&gt;
+ *     &lt;current rate&gt;  &lt;default rate&gt;  &lt;rates, comma separated&gt;
+ * </pre>
+ * with one sensor line per supported sensor. Clients send
+ * getProtocolVersion() and hello() together, and read the answer
+ * to hello() only from version 9 on, as older versions ignore it.
+ *
+ * Everything sent to the client passes its {@link OutboundQueue}.
+ * setSlowClientPolicy() followed by "drop-oldest", "coalesce" or
+ * "disconnect" chooses what happens to pushed values once the client
+ * falls behind, and is answered with "OK".
+ *
+ * ping() is answered with "pong". heartbeat() followed by an interval
+ * in milliseconds promises that the client sends something, a ping()
+ * if nothing else, at least that often, and is answered with "OK".
+ * Once HEARTBEAT_MISSES intervals pass without a line from the client,
+ * the {@link ConnectionReaper} of the server closes the connection.
+ * An interval of 0 takes the promise back.
+ *
+ * A server may serve several simulator instances on one port, see
+ * {@link SensorInstanceDirectory}. hello() then lists them as
+ * <pre>
+ * instance  &lt;id&gt;  &lt;name&gt;
+ * </pre>
+ * and select() followed by the name or id of an instance switches
+ * the connection to it, answered with "OK". Subscriptions and update
+ * rates of the connection end with the switch, so it is sent right
+ * after hello(). Without it, a connection uses the instance that
+ * started the server.
+ *
+ * From version 12 on, as agreed with hello(), the values answered to
+ * readSensor() and readSensors() and those pushed by "sample()" and
+ * "delta()" are followed by a stamp line, "&lt;tick&gt; &lt;time&gt;":
+ * the simulation tick they stem from and the time that tick was
+ * taken, in microseconds of the monotonic clock of the server.
+ * clock() answers the current time of that clock, from which a
+ * client estimates its offset to its own clock, and so the time
+ * from the generation of a value to its delivery.
+ *
+ * After binary() is answered with "OK", the connection continues
+ * with the frames of {@link SensorBinaryProtocol}. Both encodings
+ * use the same sensor operations of this class.
+ *
+ * @author Peli
+ * @author Josip Balic
+ */
+public class SensorProtocol implements SensorFanout.Member {
+
+	/**
+	 * First line sent to every client after connecting.
+	 */
+	public static final String BANNER = "SensorSimulator";
+
+	/**
+	 * Answer to getProtocolVersion(). Version 1 is the original
+	 * request/response protocol, which did not know this command.
+	 * Version 2 adds subscribe() and unsubscribe(),
+	 * version 3 adds readSensors(), version 4 adds binary(),
+	 * version 5 adds request ids, version 6 adds stats(),
+	 * version 7 adds setSlowClientPolicy(), version 8 adds the
+	 * deadband of subscribe(), version 9 adds hello(),
+	 * version 10 adds ping() and heartbeat(), version 11 adds select(),
+	 * version 12 adds clock() and the stamps of values.
+	 */
+	public static final int PROTOCOL_VERSION = 12;
+
+	/**
+	 * First version whose values carry their tick and generation time.
+	 */
+	public static final int STAMPED_VERSION = 12;
+
+	/**
+	 * Name under which commands the protocol does not know are counted.
+	 */
+	static final String UNKNOWN_COMMAND = "unknown";
+
+	/**
+	 * Commands counted by name in the statistics, all others are
+	 * counted as {@link #UNKNOWN_COMMAND}, so that a client cannot
+	 * add names of its own.
+	 */
+	static final String[] COMMANDS = new String[] {
+		"binary()", "clock()", "disableSensor()", "enableSensor()",
+		"getNumSensorValues()", "getProtocolVersion()",
+		"getSensorUpdateRate()", "getSensorUpdateRates()",
+		"getSupportedSensors()", "heartbeat()", "hello()", "ping()",
+		"readSensor()", "readSensors()", "select()",
+		"setSensorUpdateRate()", "setSlowClientPolicy()", "stats()",
+		"subscribe()", "unsetSensorUpdateRate()", "unsubscribe()",
+		UNKNOWN_COMMAND
+	};
+
+	/**
+	 * Heartbeat intervals a client may miss before its connection
+	 * is closed.
+	 */
+	public static final int HEARTBEAT_MISSES = 3;
+
+	/**
+	 * First line of a value pushed to a subscriber.
+	 */
+	public static final String SAMPLE = "sample()";
+
+	/**
+	 * First line of a change pushed to a subscriber with a deadband.
+	 */
+	public static final String DELTA = "delta()";
+
+	/**
+	 * Time between full samples of a subscription with a deadband.
+	 */
+	public static final long DEFAULT_KEYFRAME_MILLIS = 5000;
+
+	/**
+	 * Results of the sensor operations, the binary protocol
+	 * sends them as they are.
+	 */
+	public static final byte STATUS_OK = 0;
+	public static final byte STATUS_ILLEGAL_ARGUMENT = 1;
+	public static final byte STATUS_ILLEGAL_STATE = 2;
+
+	/**
+	 * Most values a sensor delivers.
+	 */
+	public static final int MAX_VALUES = 16;
+
+	/**
+	 * Instance the connection uses, changed by select().
+	 */
+	public volatile ISensorSimulator mSensorSimulator;
+
+	/**
+	 * Connection pushed values are sent to.
+	 */
+	public SensorConnection mConnection;
+
+	/**
+	 * All connections of the server, may be null.
+	 */
+	private ConnectionRegistry mConnections;
+
+	/**
+	 * Traffic of this connection.
+	 */
+	private ConnectionStats mStats;
+
+	/**
+	 * Data waiting to be sent to the client.
+	 */
+	private OutboundQueue mOutbound;
+
+	/**
+	 * Pushes the values of subscriptions, may be null
+	 * if pushing is not available. Changed by select().
+	 */
+	private volatile SensorFanout mFanout;
+
+	/**
+	 * Current subscriptions, by sensor name.
+	 */
+	private HashMap<String, SensorFanout.Subscription> mSubscriptions;
+
+	/**
+	 * Subscriptions that follow the update rate of their sensor, by
+	 * sensor name. Guarded by mSubscriptions.
+	 */
+	private HashMap<String, Following> mFollowing;
+
+	/**
+	 * Update rates set by this client, by sensor name.
+	 * Guarded by mSubscriptions.
+	 */
+	private HashMap<String, Double> mUpdateRates;
+
+	/**
+	 * Binary encoding, set once the client switched to it.
+	 */
+	private volatile SensorBinaryProtocol mBinaryProtocol;
+
+	/**
+	 * Whether values are followed by their stamp, agreed with hello().
+	 */
+	private volatile boolean mStamped;
+
+	/**
+	 * Whether pushed values are sent as Server-Sent Events,
+	 * see {@link SensorHttpConnection}.
+	 */
+	private volatile boolean mEvents;
+
+	/**
+	 * Command that still waits for the sensor name, or null.
+	 */
+	private String mCommand;
+
+	/**
+	 * Sensor that still waits for its update rate, or null.
+	 */
+	private String mRateSensor;
+
+	/**
+	 * Sensor that still waits for its subscription rate, or null.
+	 */
+	private String mSubscribeSensor;
+
+	/**
+	 * Whether hello() still waits for the version of the client.
+	 */
+	private boolean mHelloPending;
+
+	/**
+	 * Id of the command being handled, or null if it has none.
+	 */
+	private String mRequestId;
+
+	/**
+	 * Whether the id line of the current command has been sent.
+	 */
+	private boolean mRequestAnswered;
+
+	/**
+	 * Name, sensor and start of the command being handled, for its
+	 * latency.
+	 */
+	private String mStatsCommand;
+	private String mStatsSensor;
+	private long mStatsStart;
+
+	private EventRecorder mRecorder;
+
+	/**
+	 * Constructor.
+	 * @param newSensorSimulator, SensorSimulator instance that answers the requests
+	 */
+	public SensorProtocol(ISensorSimulator newSensorSimulator) {
+		this(newSensorSimulator, null, null, null);
+	}
+
+	/**
+	 * Constructor for connections that share the push tasks of a server.
+	 * @param newSensorSimulator, SensorSimulator instance that answers the requests
+	 * @param connection, connection pushed values are sent to
+	 * @param fanout, pushes the values of subscriptions
+	 * @param connections, registry the connection is added to, may be null
+	 */
+	public SensorProtocol(ISensorSimulator newSensorSimulator,
+			SensorConnection connection, SensorFanout fanout,
+			ConnectionRegistry connections) {
+		mSensorSimulator = newSensorSimulator;
+		mConnection = connection;
+		mFanout = fanout;
+		mConnections = connections;
+		if (connections != null && connection != null) {
+			mStats = connections.add(connection);
+		} else {
+			mStats = new ConnectionStats(0, connection,
+					connection == null ? "" : connection.getRemoteAddress());
+		}
+		mOutbound = new OutboundQueue(mStats);
+		mSubscriptions = new HashMap<String, SensorFanout.Subscription>();
+		mFollowing = new HashMap<String, Following>();
+		mUpdateRates = new HashMap<String, Double>();
+		mBinaryProtocol = null;
+		mEvents = false;
+		mCommand = null;
+		mRateSensor = null;
+		mSubscribeSensor = null;
+		mHelloPending = false;
+		mRequestId = null;
+		mRequestAnswered = false;
+		mStatsCommand = null;
+		mStatsSensor = null;
+		mRecorder = EventRecorder.get();
+	}
+
+	/**
+	 * @return traffic statistics of this connection.
+	 */
+	public ConnectionStats getStats() {
+		return mStats;
+	}
+
+	/**
+	 * @return data waiting to be sent to the client.
+	 */
+	public OutboundQueue getOutbound() {
+		return mOutbound;
+	}
+
+	/**
+	 * Whether the client switched to binary frames. From then on,
+	 * received data has to be passed to {@link #getBinaryProtocol()}
+	 * instead of {@link #handleLine(String, StringBuilder)}.
+	 */
+	public boolean isBinary() {
+		return mBinaryProtocol != null;
+	}
+
+	/**
+	 * @return binary encoding of this connection, or null while
+	 * lines are used.
+	 */
+	public SensorBinaryProtocol getBinaryProtocol() {
+		return mBinaryProtocol;
+	}
+
+	/**
+	 * Handles one line received from the client.
+	 *
+	 * @param inputLine, line without line terminator
+	 * @param out, buffer the answer lines are appended to
+	 */
+	public void handleLine(String inputLine, StringBuilder out) {
+		boolean waiting = isWaiting();
+		if (!waiting && inputLine.startsWith("@")) {
+			int space = inputLine.indexOf(' ');
+			if (space > 1) {
+				mRequestId = inputLine.substring(1, space);
+				inputLine = inputLine.substring(space + 1);
+			}
+		}
+
+		if (!waiting) {
+			mStatsCommand = getCommandName(inputLine);
+			mStatsStart = System.nanoTime();
+		}
+
+		int start = out.length();
+		handleCommandLine(inputLine, out);
+
+		if (mStatsCommand != null && !isWaiting()) {
+			addCommand(mStatsCommand, mStatsSensor,
+					System.nanoTime() - mStatsStart);
+			mStatsCommand = null;
+			mStatsSensor = null;
+		}
+
+		if (mRequestId != null) {
+			if (out.length() > start && !mRequestAnswered) {
+				out.insert(start, "@" + mRequestId + "\n");
+				mRequestAnswered = true;
+			}
+			if (!isWaiting()) {
+				mRequestId = null;
+				mRequestAnswered = false;
+			}
+		}
+	}
+
+	/**
+	 * Counts an answered command in the statistics of the connection
+	 * and records it.
+	 *
+	 * @param command, name of the command
+	 * @param sensor, sensor or argument of the command, null if none
+	 * @param nanos, time from its arrival to its answer
+	 */
+	void addCommand(String command, String sensor, long nanos) {
+		mStats.addCommand(command, nanos);
+		mRecorder.command(command, sensor, mStats.getRemoteAddress(), nanos);
+	}
+
+	/**
+	 * Whether the current command still waits for more lines.
+	 */
+	private boolean isWaiting() {
+		return mRateSensor != null || mSubscribeSensor != null
+			|| mCommand != null || mHelloPending;
+	}
+
+	/**
+	 * Handles one line, without request id.
+	 */
+	private void handleCommandLine(String inputLine, StringBuilder out) {
+		if (mRateSensor != null) {
+			String sensor = mRateSensor;
+			mRateSensor = null;
+			try {
+				setUpdateRate(sensor, Float.parseFloat(inputLine));
+			} catch (NumberFormatException e) {
+				mSensorSimulator.addMessage("WARNING: Client sent invalid update rate: " + inputLine);
+			}
+		} else if (mSubscribeSensor != null) {
+			String sensor = mSubscribeSensor;
+			mSubscribeSensor = null;
+			try {
+				String[] args = inputLine.trim().split(" +");
+				float deadband = args.length > 1 ? Float.parseFloat(args[1]) : 0;
+				long keyframeMillis = args.length > 2 ? Long.parseLong(args[2])
+						: DEFAULT_KEYFRAME_MILLIS;
+				printStatus(out, subscribe(sensor, Float.parseFloat(args[0]),
+						deadband, keyframeMillis));
+			} catch (NumberFormatException e) {
+				println(out, "throw IllegalArgumentException");
+			}
+		} else if (mHelloPending) {
+			mHelloPending = false;
+			int clientVersion = 1;
+			try {
+				clientVersion = Integer.parseInt(inputLine.trim());
+			} catch (NumberFormatException e) {
+				mSensorSimulator.addMessage("WARNING: Client sent invalid protocol version: " + inputLine);
+			}
+			hello(clientVersion, out);
+		} else if (mCommand != null) {
+			String command = mCommand;
+			mCommand = null;
+			handleSensorCommand(command, inputLine, out);
+		} else if (inputLine.compareTo("getSupportedSensors()") == 0) {
+			String[] supportedSensors = getSupportedSensors();
+			println(out, "" + supportedSensors.length);
+			for (int i=0; i<supportedSensors.length; i++) {
+				println(out, supportedSensors[i]);
+			}
+		} else if (inputLine.compareTo("getProtocolVersion()") == 0) {
+			println(out, "" + PROTOCOL_VERSION);
+		} else if (inputLine.compareTo("ping()") == 0) {
+			println(out, "pong");
+		} else if (inputLine.compareTo("clock()") == 0) {
+			println(out, "" + SensorSnapshot.currentMicros());
+		} else if (inputLine.compareTo("hello()") == 0) {
+			// the version of the client follows on the next line
+			mHelloPending = true;
+		} else if (inputLine.compareTo("stats()") == 0) {
+			ArrayList<String> lines = mConnections == null
+				? new ArrayList<String>() : mConnections.report();
+			println(out, "" + lines.size());
+			for (int i = 0; i < lines.size(); i++) {
+				println(out, lines.get(i));
+			}
+		} else if (inputLine.compareTo("binary()") == 0) {
+			// everything after this answer is binary
+			println(out, "OK");
+			mBinaryProtocol = new SensorBinaryProtocol(this);
+		} else if (inputLine.compareTo("disableSensor()") == 0
+				|| inputLine.compareTo("enableSensor()") == 0
+				|| inputLine.compareTo("getNumSensorValues()") == 0
+				|| inputLine.compareTo("readSensor()") == 0
+				|| inputLine.compareTo("readSensors()") == 0
+				|| inputLine.compareTo("getSensorUpdateRates()") == 0
+				|| inputLine.compareTo("getSensorUpdateRate()") == 0
+				|| inputLine.compareTo("setSensorUpdateRate()") == 0
+				|| inputLine.compareTo("unsetSensorUpdateRate()") == 0
+				|| inputLine.compareTo("subscribe()") == 0
+				|| inputLine.compareTo("unsubscribe()") == 0
+				|| inputLine.compareTo("setSlowClientPolicy()") == 0
+				|| inputLine.compareTo("heartbeat()") == 0
+				|| inputLine.compareTo("select()") == 0) {
+			// sensor name follows on the next line
+			mCommand = inputLine;
+		} else {
+			mSensorSimulator.addMessage("WARNING: Client sent unexpected command: " + inputLine);
+			if (mRequestId != null) {
+				// the client waits for an answer with this id
+				println(out, "throw IllegalArgumentException");
+			}
+		}
+	}
+
+	/**
+	 * @return the command as counted in the statistics, one of {@link #COMMANDS}.
+	 */
+	static String getCommandName(String line) {
+		for (int i = 0; i < COMMANDS.length; i++) {
+			if (COMMANDS[i].equals(line)) {
+				return COMMANDS[i];
+			}
+		}
+		return UNKNOWN_COMMAND;
+	}
+
+	/**
+	 * Answers a command once its sensor name has arrived.
+	 */
+	private void handleSensorCommand(String command, String sensor,
+			StringBuilder out) {
+		mStatsSensor = sensor;
+		if (command.compareTo("readSensors()") == 0) {
+			readSensors(sensor, out);
+		} else if (command.compareTo("subscribe()") == 0) {
+			// the rate follows on the next line, answer after that
+			mSubscribeSensor = sensor;
+		} else if (command.compareTo("setSlowClientPolicy()") == 0) {
+			// not a sensor, but the name of the policy
+			printStatus(out, setSlowClientPolicy(sensor));
+		} else if (command.compareTo("heartbeat()") == 0) {
+			// not a sensor, but the interval
+			try {
+				printStatus(out, setHeartbeat(Long.parseLong(sensor.trim())));
+			} catch (NumberFormatException e) {
+				println(out, "throw IllegalArgumentException");
+			}
+		} else if (command.compareTo("select()") == 0) {
+			// not a sensor, but the name or id of an instance
+			printStatus(out, select(sensor));
+		} else if (!isSupported(sensor)) {
+			println(out, "throw IllegalArgumentException");
+			if (mRequestId != null
+					&& command.compareTo("setSensorUpdateRate()") == 0) {
+				// a pipelining client sends the rate without waiting, skip it
+				mRateSensor = sensor;
+			}
+		} else if (command.compareTo("disableSensor()") == 0 ||
+				command.compareTo("enableSensor()") == 0) {
+			boolean enable = (command.compareTo("enableSensor()") == 0);
+			println(out, "" + isEnabled(sensor));
+			setEnabled(sensor, enable);
+		} else if (command.compareTo("getNumSensorValues()") == 0) {
+			println(out, "" + getNumValues(sensor));
+		} else if (command.compareTo("readSensor()") == 0) {
+			SensorSnapshot snapshot = getSnapshot();
+			if (isEnabled(snapshot, sensor)) {
+				appendValues(snapshot, sensor, out);
+			} else {
+				println(out, "throw IllegalStateException");
+			}
+		} else if (command.compareTo("getSensorUpdateRates()") == 0) {
+			double[] updatesList = getUpdateRates(sensor);
+			if (updatesList == null || updatesList.length < 1) {
+				println(out, "0");
+			} else {
+				int len = updatesList.length;
+				println(out, "" + len);
+				for (int i=0; i<len; i++) {
+					println(out, "" + updatesList[i]);
+				}
+			}
+		} else if (command.compareTo("getSensorUpdateRate()") == 0) {
+			if (isEnabled(sensor)) {
+				println(out, "" + getCurrentUpdateRate(sensor));
+			} else {
+				println(out, "throw IllegalStateException");
+			}
+		} else if (command.compareTo("setSensorUpdateRate()") == 0) {
+			println(out, "OK");
+			// the rate follows on the next line
+			mRateSensor = sensor;
+		} else if (command.compareTo("unsetSensorUpdateRate()") == 0) {
+			printStatus(out, unsetUpdateRate(sensor));
+		} else if (command.compareTo("unsubscribe()") == 0) {
+			unsubscribe(sensor);
+			println(out, "OK");
+		}
+	}
+
+	/**
+	 * Answers readSensors() for the given list of sensors.
+	 *
+	 * All values are taken from the same snapshot, so they stem
+	 * from the same simulation tick.
+	 *
+	 * @param sensorList, comma separated sensor names, or "*"
+	 * @param out, buffer the answer lines are appended to
+	 */
+	private void readSensors(String sensorList, StringBuilder out) {
+		SensorSnapshot snapshot = getSnapshot();
+		boolean allEnabled = sensorList.trim().compareTo("*") == 0;
+		String[] sensors;
+		if (allEnabled) {
+			sensors = getSupportedSensors();
+		} else {
+			sensors = sensorList.split(",");
+		}
+
+		StringBuilder values = new StringBuilder();
+		int count = 0;
+		for (int i = 0; i < sensors.length; i++) {
+			String sensor = sensors[i].trim();
+			if (!isSupported(snapshot, sensor)) {
+				println(values, sensor);
+				println(values, "throw IllegalArgumentException");
+			} else if (!isEnabled(snapshot, sensor)) {
+				if (allEnabled) continue;
+				println(values, sensor);
+				println(values, "throw IllegalStateException");
+			} else {
+				println(values, sensor);
+				appendValues(snapshot, sensor, values);
+			}
+			count++;
+		}
+		println(out, "" + count);
+		out.append(values);
+	}
+
+	/**
+	 * Appends "OK" or the exception to throw for a status.
+	 */
+	private static void printStatus(StringBuilder out, byte status) {
+		if (status == STATUS_OK) {
+			println(out, "OK");
+		} else if (status == STATUS_ILLEGAL_STATE) {
+			println(out, "throw IllegalStateException");
+		} else {
+			println(out, "throw IllegalArgumentException");
+		}
+	}
+
+	/////////////////////////////////////////////////////
+	// Sensor operations, shared by text and binary protocol
+
+	/**
+	 * @return latest state of all sensors.
+	 */
+	SensorSnapshot getSnapshot() {
+		return mSensorSimulator.getSensorState().getSnapshot();
+	}
+
+	/**
+	 * Whether the sensor with this name is supported.
+	 */
+	boolean isSupported(String sensor) {
+		return isSupported(getSnapshot(), sensor);
+	}
+
+	boolean isSupported(SensorSnapshot snapshot, String sensor) {
+		SensorChannel channel = SensorRegistry.get(sensor);
+		return channel != null && snapshot.isSupported(channel.getIndex());
+	}
+
+	/**
+	 * Whether the supported sensor with this name is enabled.
+	 */
+	boolean isEnabled(String sensor) {
+		return isEnabled(getSnapshot(), sensor);
+	}
+
+	boolean isEnabled(SensorSnapshot snapshot, String sensor) {
+		SensorChannel channel = SensorRegistry.get(sensor);
+		return channel != null && snapshot.isEnabled(channel.getIndex());
+	}
+
+	/**
+	 * Enables or disables a supported sensor.
+	 */
+	void setEnabled(String sensor, boolean enable) {
+		SensorChannel channel = SensorRegistry.get(sensor);
+		if (channel != null) {
+			mSensorSimulator.getSensorState().setEnabled(channel.getIndex(), enable);
+		}
+	}
+
+	/**
+	 * Number of values a supported sensor delivers.
+	 */
+	int getNumValues(String sensor) {
+		SensorChannel channel = SensorRegistry.get(sensor);
+		return channel == null ? 0 : channel.getNumValues();
+	}
+
+	/**
+	 * Appends the number of values and the current values of an
+	 * enabled sensor, as answered to readSensor().
+	 */
+	void appendValues(SensorSnapshot snapshot, String sensor, StringBuilder out) {
+		float[] values = new float[MAX_VALUES];
+		int num = readValues(snapshot, sensor, values);
+		println(out, "" + num); // number of data following
+		for (int i = 0; i < num; i++) {
+			println(out, "" + values[i]);
+		}
+		if (mStamped) {
+			println(out, getStamp(snapshot));
+			SensorMetrics.get().observeSampleAge(snapshot);
+		}
+	}
+
+	/**
+	 * @return stamp line of values taken from a snapshot.
+	 */
+	static String getStamp(SensorSnapshot snapshot) {
+		return snapshot.getTick() + " " + snapshot.getMicros();
+	}
+
+	/**
+	 * Reads the current values of an enabled sensor.
+	 *
+	 * @param sensor, name of the sensor
+	 * @param values, array large enough for {@link #getNumValues(String)}
+	 * @return number of values read
+	 */
+	int readValues(String sensor, float[] values) {
+		return readValues(getSnapshot(), sensor, values);
+	}
+
+	int readValues(SensorSnapshot snapshot, String sensor, float[] values) {
+		SensorChannel channel = SensorRegistry.get(sensor);
+		if (channel == null) {
+			return 0;
+		}
+		mSensorSimulator.getSensorState().countRead(channel.getIndex());
+		return snapshot.readValues(channel.getIndex(), values);
+	}
+
+	/**
+	 * Update rates selectable for a supported sensor.
+	 */
+	double[] getUpdateRates(String sensor) {
+		SensorChannel channel = SensorRegistry.get(sensor);
+		return channel == null ? null
+				: getSnapshot().getUpdateRates(channel.getIndex());
+	}
+
+	/**
+	 * Current update rate of a supported sensor, as set by this client
+	 * or else by the simulator.
+	 */
+	double getCurrentUpdateRate(String sensor) {
+		SensorChannel channel = SensorRegistry.get(sensor);
+		if (channel == null) {
+			return 0;
+		}
+		synchronized (mSubscriptions) {
+			Double rate = mUpdateRates.get(sensor);
+			if (rate != null) {
+				return rate.doubleValue();
+			}
+		}
+		return getSnapshot().getCurrentUpdateRate(channel.getIndex());
+	}
+
+	/**
+	 * Sets the update rate of a supported sensor for this connection.
+	 */
+	void setUpdateRate(String sensor, double updatesPerSecond) {
+		if (SensorRegistry.get(sensor) == null) {
+			return;
+		}
+		synchronized (mSubscriptions) {
+			mUpdateRates.put(sensor, Double.valueOf(updatesPerSecond));
+		}
+		followUpdateRate(sensor);
+	}
+
+	/**
+	 * Pushes a subscription that follows the update rate of its
+	 * sensor at the current rate.
+	 */
+	private void followUpdateRate(String sensor) {
+		Following following;
+		synchronized (mSubscriptions) {
+			following = mFollowing.get(sensor);
+		}
+		if (following != null) {
+			subscribe(sensor, 0, following.mDeadband, following.mKeyframeMillis);
+		}
+	}
+
+	/**
+	 * Resets the update rate of an enabled sensor to its default.
+	 */
+	byte unsetUpdateRate(String sensor) {
+		SensorSnapshot snapshot = getSnapshot();
+		if (!isSupported(snapshot, sensor)) {
+			return STATUS_ILLEGAL_ARGUMENT;
+		} else if (!isEnabled(snapshot, sensor)) {
+			return STATUS_ILLEGAL_STATE;
+		}
+		synchronized (mSubscriptions) {
+			mUpdateRates.remove(sensor);
+		}
+		followUpdateRate(sensor);
+		return STATUS_OK;
+	}
+
+	/**
+	 * Answers hello() with the version spoken and the catalog of
+	 * transports and sensors, see the class comment.
+	 *
+	 * @param clientVersion, highest protocol version of the client
+	 */
+	void hello(int clientVersion, StringBuilder out) {
+		ArrayList<String> lines = new ArrayList<String>();
+		lines.add("transport\tlines");
+		lines.add("transport\tbinary");
+		if (mConnections != null) {
+			ArrayList<String> transports = mConnections.getTransports();
+			for (int i = 0; i < transports.size(); i++) {
+				lines.add("transport\t" + transports.get(i));
+			}
+			SensorInstanceDirectory instances = mConnections.getInstances();
+			if (instances != null) {
+				ArrayList<String> list = instances.describe();
+				for (int i = 0; i < list.size(); i++) {
+					lines.add("instance\t" + list.get(i));
+				}
+			}
+		}
+		SensorSnapshot snapshot = getSnapshot();
+		for (int i = 0; i < SensorRegistry.size(); i++) {
+			if (!snapshot.isSupported(i)) {
+				continue;
+			}
+			StringBuilder line = new StringBuilder("sensor\t");
+			line.append(SensorRegistry.get(i).getName()).append('\t');
+			line.append(snapshot.isEnabled(i) ? '1' : '0').append('\t');
+			line.append(SensorRegistry.get(i).getNumValues()).append('\t');
+			line.append(getCurrentUpdateRate(SensorRegistry.get(i).getName())).append('\t');
+			line.append(snapshot.getDefaultUpdateRate(i)).append('\t');
+			double[] rates = snapshot.getUpdateRates(i);
+			for (int k = 0; rates != null && k < rates.length; k++) {
+				if (k > 0) {
+					line.append(',');
+				}
+				line.append(rates[k]);
+			}
+			lines.add(line.toString());
+		}
+
+		int version = Math.max(1, Math.min(clientVersion, PROTOCOL_VERSION));
+		mStamped = version >= STAMPED_VERSION;
+		println(out, "" + version);
+		println(out, "" + lines.size());
+		for (int i = 0; i < lines.size(); i++) {
+			println(out, lines.get(i));
+		}
+	}
+
+	/**
+	 * Starts pushing a sensor to the client.
+	 *
+	 * A rate of 0 or less pushes at the current update rate of the sensor,
+	 * and follows it when this client changes it.
+	 * Subscribing again replaces the previous rate.
+	 *
+	 * @param sensor, name of the sensor
+	 * @param updatesPerSecond, rate of the pushed values
+	 * @return STATUS_OK, or STATUS_ILLEGAL_STATE if pushing is not available
+	 */
+	byte subscribe(String sensor, double updatesPerSecond) {
+		return subscribe(sensor, updatesPerSecond, 0, DEFAULT_KEYFRAME_MILLIS);
+	}
+
+	/**
+	 * Starts pushing a sensor to the client, only when its values change.
+	 *
+	 * @param sensor, name of the sensor
+	 * @param updatesPerSecond, rate at which the values are checked
+	 * @param deadband, smallest change pushed, 0 to push every value
+	 * @param keyframeMillis, time between full samples, 0 for the default
+	 * @return STATUS_OK, STATUS_ILLEGAL_ARGUMENT for a negative deadband,
+	 * or STATUS_ILLEGAL_STATE if pushing is not available
+	 */
+	byte subscribe(String sensor, double updatesPerSecond, float deadband,
+			long keyframeMillis) {
+		if (!isSupported(sensor) || deadband < 0 || Float.isNaN(deadband)
+				|| (deadband > 0 && mEvents)) {
+			return STATUS_ILLEGAL_ARGUMENT;
+		}
+		if (keyframeMillis <= 0) {
+			keyframeMillis = DEFAULT_KEYFRAME_MILLIS;
+		}
+		if (mFanout == null || mConnection == null) {
+			return STATUS_ILLEGAL_STATE;
+		}
+		boolean following = updatesPerSecond <= 0;
+		if (following) {
+			updatesPerSecond = getCurrentUpdateRate(sensor);
+		}
+		long periodMicros = 1000000L;
+		if (updatesPerSecond > 0) {
+			periodMicros = Math.max(1000L, (long) (1000000 / updatesPerSecond));
+		}
+
+		unsubscribe(sensor);
+		synchronized (mSubscriptions) {
+			if (deadband > 0) {
+				mSubscriptions.put(sensor, mFanout.schedule(
+						new PushTask(sensor, deadband, keyframeMillis),
+						periodMicros));
+			} else {
+				mSubscriptions.put(sensor, mFanout.join(sensor, periodMicros, this));
+			}
+			if (following) {
+				mFollowing.put(sensor, new Following(deadband, keyframeMillis));
+			}
+		}
+		return STATUS_OK;
+	}
+
+	/**
+	 * Stops pushing a sensor.
+	 */
+	void unsubscribe(String sensor) {
+		SensorFanout.Subscription subscription;
+		synchronized (mSubscriptions) {
+			subscription = mSubscriptions.remove(sensor);
+			mFollowing.remove(sensor);
+		}
+		if (subscription != null) {
+			subscription.cancel();
+		}
+	}
+
+	/**
+	 * Sends pushed values as Server-Sent Events instead of lines.
+	 * Subscriptions with a deadband are not available then.
+	 */
+	void useEvents() {
+		mEvents = true;
+	}
+
+	/**
+	 * @return encoding of pushed values, see {@link SensorFanout}.
+	 */
+	public int getEncoding() {
+		if (mEvents) {
+			return SensorFanout.ENCODING_EVENTS;
+		}
+		if (mStamped) {
+			return isBinary() ? SensorFanout.ENCODING_BINARY_STAMPED
+					: SensorFanout.ENCODING_LINES_STAMPED;
+		}
+		return isBinary() ? SensorFanout.ENCODING_BINARY
+				: SensorFanout.ENCODING_LINES;
+	}
+
+	/**
+	 * @return whether values are followed by their stamp.
+	 */
+	public boolean isStamped() {
+		return mStamped;
+	}
+
+	/**
+	 * Queues a pushed value for the client. Called by the push tasks.
+	 *
+	 * @param sensor, name of the sensor
+	 * @param data, encoded sample, not modified afterwards
+	 */
+	public void push(String sensor, byte[] data) {
+		mConnection.sendSample(sensor, data);
+	}
+
+	/**
+	 * Chooses what happens to pushed values when the client falls behind.
+	 *
+	 * @param policy, one of the POLICY_* names of {@link OutboundQueue}
+	 * @return STATUS_OK, or STATUS_ILLEGAL_ARGUMENT for an unknown policy.
+	 */
+	byte setSlowClientPolicy(String policy) {
+		if (!OutboundQueue.isPolicy(policy)) {
+			return STATUS_ILLEGAL_ARGUMENT;
+		}
+		mOutbound.setPolicy(policy);
+		return STATUS_OK;
+	}
+
+	/**
+	 * Sets how often the client promises to send something.
+	 *
+	 * @param intervalMillis, heartbeat interval, 0 for none
+	 * @return STATUS_OK, or STATUS_ILLEGAL_ARGUMENT for a negative interval.
+	 */
+	byte setHeartbeat(long intervalMillis) {
+		if (intervalMillis < 0) {
+			return STATUS_ILLEGAL_ARGUMENT;
+		}
+		mStats.setIdleTimeout(intervalMillis * HEARTBEAT_MISSES);
+		return STATUS_OK;
+	}
+
+	/**
+	 * Switches the connection to another simulator instance of the
+	 * server. Its subscriptions and update rates end.
+	 *
+	 * @param nameOrId, name or id of the instance
+	 * @return STATUS_OK, or STATUS_ILLEGAL_ARGUMENT if the server has
+	 * no such instance.
+	 */
+	byte select(String nameOrId) {
+		SensorInstanceDirectory instances = mConnections == null ? null
+				: mConnections.getInstances();
+		ISensorSimulator sensorSimulator = instances == null ? null
+				: instances.findSimulator(nameOrId.trim());
+		if (sensorSimulator == null) {
+			return STATUS_ILLEGAL_ARGUMENT;
+		}
+		synchronized (mSubscriptions) {
+			Iterator<SensorFanout.Subscription> it = mSubscriptions.values().iterator();
+			while (it.hasNext()) {
+				it.next().cancel();
+			}
+			mSubscriptions.clear();
+			mFollowing.clear();
+			mUpdateRates.clear();
+			mSensorSimulator = sensorSimulator;
+			if (mFanout != null) {
+				mFanout = instances.getFanout(sensorSimulator);
+			}
+		}
+		return STATUS_OK;
+	}
+
+	/**
+	 * Ends all subscriptions and removes the connection from the
+	 * registry. Called when the connection is closed.
+	 */
+	public void close() {
+		if (mConnections != null) {
+			mConnections.remove(mStats);
+		}
+		synchronized (mSubscriptions) {
+			Iterator<SensorFanout.Subscription> it = mSubscriptions.values().iterator();
+			while (it.hasNext()) {
+				it.next().cancel();
+			}
+			mSubscriptions.clear();
+		}
+		mOutbound.close();
+	}
+
+	/**
+	 * Subscription that follows the update rate of its sensor.
+	 */
+	private static class Following {
+		final float mDeadband;
+		final long mKeyframeMillis;
+
+		Following(float deadband, long keyframeMillis) {
+			mDeadband = deadband;
+			mKeyframeMillis = keyframeMillis;
+		}
+	}
+
+	/**
+	 * Pushes the values of one subscribed sensor.
+	 */
+	private class PushTask implements Runnable {
+		private String mSensor;
+		private float mDeadband;
+		private long mKeyframeMillis;
+
+		/**
+		 * Values as the client has them, only used with a deadband.
+		 */
+		private float[] mSent;
+		private float[] mValues;
+		private int[] mSteps;
+		/**
+		 * System.nanoTime() of the last full sample, so that a clock
+		 * set back does not hold up the next one.
+		 */
+		private long mKeyframeNanos;
+		private boolean mKeyframeSent;
+
+		/**
+		 * Snapshot the values stem from, if the client wants stamps.
+		 */
+		private SensorSnapshot mStamp;
+
+		PushTask(String sensor, float deadband, long keyframeMillis) {
+			mSensor = sensor;
+			mDeadband = deadband;
+			mKeyframeMillis = keyframeMillis;
+			mSent = new float[MAX_VALUES];
+			mValues = new float[MAX_VALUES];
+			mSteps = new int[MAX_VALUES];
+			mKeyframeSent = false;
+		}
+
+		public void run() {
+			SensorSnapshot snapshot = getSnapshot();
+			if (!isEnabled(snapshot, mSensor)) {
+				// nothing to push while the sensor is disabled.
+				return;
+			}
+			int num = readValues(snapshot, mSensor, mValues);
+			mStamp = mStamped ? snapshot : null;
+			if (mDeadband > 0 && !needsKeyframe()) {
+				boolean moved = false;
+				for (int i = 0; i < num; i++) {
+					if (Math.abs(mValues[i] - mSent[i]) > mDeadband) {
+						moved = true;
+					}
+				}
+				if (!moved) {
+					mStats.addSuppressed();
+					return;
+				}
+				boolean fits = true;
+				for (int i = 0; i < num; i++) {
+					long steps = Math.round((mValues[i] - mSent[i]) / mDeadband);
+					if (steps > Short.MAX_VALUE || steps < Short.MIN_VALUE) {
+						fits = false;
+					}
+					mSteps[i] = (int) steps;
+				}
+				if (fits) {
+					for (int i = 0; i < num; i++) {
+						// the same arithmetic as the client, so both agree
+						mSent[i] += mSteps[i] * mDeadband;
+					}
+					sendDelta(num);
+					return;
+				}
+			}
+			System.arraycopy(mValues, 0, mSent, 0, num);
+			mKeyframeNanos = System.nanoTime();
+			mKeyframeSent = true;
+			sendSample(num);
+		}
+
+		/**
+		 * Whether the client has to get all values again.
+		 */
+		private boolean needsKeyframe() {
+			boolean damaged = mOutbound.takeDamaged(mSensor);
+			return !mKeyframeSent || damaged
+				|| System.nanoTime() - mKeyframeNanos >= mKeyframeMillis * 1000000L;
+		}
+
+		private void sendSample(int num) {
+			if (mStamp != null) {
+				SensorMetrics.get().observeSampleAge(mStamp);
+			}
+			if (isBinary()) {
+				push(mSensor, SensorBinaryProtocol.encodeSample(mSensor, mValues, num, mStamp));
+			} else {
+				push(mSensor, encodeSample(mSensor, mValues, num, mStamp));
+			}
+		}
+
+		private void sendDelta(int num) {
+			if (mStamp != null) {
+				SensorMetrics.get().observeSampleAge(mStamp);
+			}
+			if (isBinary()) {
+				push(mSensor, SensorBinaryProtocol.encodeDelta(mSensor, mSteps, num, mStamp));
+				return;
+			}
+			StringBuilder out = new StringBuilder();
+			println(out, DELTA);
+			println(out, mSensor);
+			println(out, "" + num);
+			for (int i = 0; i < num; i++) {
+				println(out, "" + mSteps[i]);
+			}
+			if (mStamp != null) {
+				println(out, getStamp(mStamp));
+			}
+			push(mSensor, toBytes(out));
+		}
+	}
+
+	/**
+	 * Method used to get currently String[] of currently supported sensors.
+	 *
+	 * @return String[] filled with names of currently supported sensors.
+	 */
+	public String[] getSupportedSensors() {
+		SensorSnapshot snapshot = getSnapshot();
+		ArrayList<String> sensorList = new ArrayList<String>();
+		for (int i = 0; i < SensorRegistry.size(); i++) {
+			if (snapshot.isSupported(i)) {
+				sensorList.add(SensorRegistry.get(i).getName());
+			}
+		}
+		return sensorList.toArray(new String[sensorList.size()]);
+	}
+
+	/**
+	 * Encodes the values of a sensor as a complete "sample()" frame.
+	 * May be called from any thread.
+	 *
+	 * @param sensor, name of the sensor
+	 * @param values, values of the sensor
+	 * @param num, number of values
+	 * @param stamp, snapshot the values stem from, null to send no stamp
+	 */
+	static byte[] encodeSample(String sensor, float[] values, int num,
+			SensorSnapshot stamp) {
+		StringBuilder out = new StringBuilder();
+		println(out, SAMPLE);
+		println(out, sensor);
+		println(out, "" + num);
+		for (int i = 0; i < num; i++) {
+			println(out, "" + values[i]);
+		}
+		if (stamp != null) {
+			println(out, getStamp(stamp));
+		}
+		return toBytes(out);
+	}
+
+	/**
+	 * The protocol only uses ASCII, so characters map to bytes directly.
+	 */
+	static byte[] toBytes(CharSequence lines) {
+		int len = lines.length();
+		byte[] data = new byte[len];
+		for (int i = 0; i < len; i++) {
+			data[i] = (byte) lines.charAt(i);
+		}
+		return data;
+	}
+
+	private static void println(StringBuilder out, String line) {
+		out.append(line).append('\n');
+	}
+}
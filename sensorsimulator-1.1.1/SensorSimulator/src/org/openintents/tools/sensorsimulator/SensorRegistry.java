@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.tools.sensorsimulator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * All sensor channels the SensorSimulator serves, by protocol name.
+ *
+ * To serve a new sensor, add its {@link SensorChannel} here. Every
+ * protocol command looks sensors up in this table.
+ *
+ * @author Peli
+ */
+public class SensorRegistry {
+
+	/**
+	 * Protocol name of the pressure sensor. Android calls it "pressure",
+	 * {@link ISensorSimulator#PRESSURE} is accepted as well.
+	 */
+	public static final String PRESSURE = "pressure";
+
+	private static final HashMap<String, SensorChannel> sChannels
+		= new HashMap<String, SensorChannel>();
+
+	/**
+	 * Channels in the order they are listed by getSupportedSensors().
+	 */
+	private static final ArrayList<SensorChannel> sChannelList
+		= new ArrayList<SensorChannel>();
+
+	static {
+		add(new SensorChannel(ISensorSimulator.TEMPERATURE) {
+			public boolean isSupported(ISensorSimulator s) {
+				return s.isSupportedTemperature();
+			}
+			public boolean isEnabled(ISensorSimulator s) {
+				return s.isEnabledTemperature();
+			}
+			public void setEnabled(ISensorSimulator s, boolean enable) {
+				s.setEnabledTemperature(enable);
+			}
+			public void readValues(IMobilePanel panel, float[] values) {
+				values[0] = (float) panel.getReadTemperature();
+			}
+			public void refresh(ISensorSimulator s) {
+				s.updateEmulatorThermometerRefresh();
+			}
+			public double[] getUpdateRates(ISensorSimulator s) {
+				return s.getUpdateRatesThermometer();
+			}
+			public double getDefaultUpdateRate(ISensorSimulator s) {
+				return s.getDefaultUpdateRateThermometer();
+			}
+			public double getCurrentUpdateRate(ISensorSimulator s) {
+				return s.getCurrentUpdateRateThermometer();
+			}
+			public void setCurrentUpdateRate(ISensorSimulator s, double value) {
+				s.setCurrentUpdateRateThermometer(value);
+			}
+		});
+
+		add(new SensorChannel(ISensorSimulator.LIGHT) {
+			public boolean isSupported(ISensorSimulator s) {
+				return s.isSupportedLight();
+			}
+			public boolean isEnabled(ISensorSimulator s) {
+				return s.isEnabledLight();
+			}
+			public void setEnabled(ISensorSimulator s, boolean enable) {
+				s.setEnabledLight(enable);
+			}
+			public void readValues(IMobilePanel panel, float[] values) {
+				values[0] = panel.getReadLight();
+			}
+			public void refresh(ISensorSimulator s) {
+				s.updateEmulatorLightRefresh();
+			}
+			public double[] getUpdateRates(ISensorSimulator s) {
+				return s.getUpdateRatesLight();
+			}
+			public double getDefaultUpdateRate(ISensorSimulator s) {
+				return s.getDefaultUpdateRateLight();
+			}
+			public double getCurrentUpdateRate(ISensorSimulator s) {
+				return s.getCurrentUpdateRateLight();
+			}
+			public void setCurrentUpdateRate(ISensorSimulator s, double value) {
+				s.setCurrentUpdateRateLight(value);
+			}
+		});
+
+		add(new SensorChannel(ISensorSimulator.PROXIMITY) {
+			public boolean isSupported(ISensorSimulator s) {
+				return s.isSupportedProximity();
+			}
+			public boolean isEnabled(ISensorSimulator s) {
+				return s.isEnabledProximity();
+			}
+			public void setEnabled(ISensorSimulator s, boolean enable) {
+				s.setEnabledProximity(enable);
+			}
+			public void readValues(IMobilePanel panel, float[] values) {
+				values[0] = panel.getReadProximity();
+			}
+			public void refresh(ISensorSimulator s) {
+				s.updateEmulatorProximityRefresh();
+			}
+			public double[] getUpdateRates(ISensorSimulator s) {
+				return s.getUpdateRatesProximity();
+			}
+			public double getDefaultUpdateRate(ISensorSimulator s) {
+				return s.getDefaultUpdateRateProximity();
+			}
+			public double getCurrentUpdateRate(ISensorSimulator s) {
+				return s.getCurrentUpdateRateProximity();
+			}
+			public void setCurrentUpdateRate(ISensorSimulator s, double value) {
+				s.setCurrentUpdateRateProximity(value);
+			}
+		});
+
+		add(new SensorChannel(ISensorSimulator.CARBON_MONOXIDE) {
+			public boolean isSupported(ISensorSimulator s) {
+				return s.isSupportedCarbonMonoxide();
+			}
+			public boolean isEnabled(ISensorSimulator s) {
+				return s.isEnabledCarbonMonoxide();
+			}
+			public void setEnabled(ISensorSimulator s, boolean enable) {
+				s.setEnabledCarbonMonoxide(enable);
+			}
+			public void readValues(IMobilePanel panel, float[] values) {
+				values[0] = (float) panel.getReadCarbonMonoxide();
+			}
+			public void refresh(ISensorSimulator s) {
+				s.updateEmulatorCarbonMonoxideRefresh();
+			}
+			public double[] getUpdateRates(ISensorSimulator s) {
+				return s.getUpdateRatesCarbonMonoxide();
+			}
+			public double getDefaultUpdateRate(ISensorSimulator s) {
+				return s.getDefaultUpdateRateCarbonMonoxide();
+			}
+			public double getCurrentUpdateRate(ISensorSimulator s) {
+				return s.getCurrentUpdateRateCarbonMonoxide();
+			}
+			public void setCurrentUpdateRate(ISensorSimulator s, double value) {
+				s.setCurrentUpdateRateCarbonMonoxide(value);
+			}
+		});
+
+		add(new SensorChannel(ISensorSimulator.RED_GAS) {
+			public boolean isSupported(ISensorSimulator s) {
+				return s.isSupportedRedGas();
+			}
+			public boolean isEnabled(ISensorSimulator s) {
+				return s.isEnabledRedGas();
+			}
+			public void setEnabled(ISensorSimulator s, boolean enable) {
+				s.setEnabledRedGas(enable);
+			}
+			public void readValues(IMobilePanel panel, float[] values) {
+				values[0] = (float) panel.getReadRedGas();
+			}
+			public void refresh(ISensorSimulator s) {
+				s.updateEmulatorRedGasRefresh();
+			}
+			public double[] getUpdateRates(ISensorSimulator s) {
+				return s.getUpdateRatesRedGas();
+			}
+			public double getDefaultUpdateRate(ISensorSimulator s) {
+				return s.getDefaultUpdateRateRedGas();
+			}
+			public double getCurrentUpdateRate(ISensorSimulator s) {
+				return s.getCurrentUpdateRateRedGas();
+			}
+			public void setCurrentUpdateRate(ISensorSimulator s, double value) {
+				s.setCurrentUpdateRateRedGas(value);
+			}
+		});
+
+		add(new SensorChannel(ISensorSimulator.OX_GAS) {
+			public boolean isSupported(ISensorSimulator s) {
+				return s.isSupportedOxGas();
+			}
+			public boolean isEnabled(ISensorSimulator s) {
+				return s.isEnabledOxGas();
+			}
+			public void setEnabled(ISensorSimulator s, boolean enable) {
+				s.setEnabledOxGas(enable);
+			}
+			public void readValues(IMobilePanel panel, float[] values) {
+				values[0] = (float) panel.getReadOxGas();
+			}
+			public void refresh(ISensorSimulator s) {
+				s.updateEmulatorOxGasRefresh();
+			}
+			public double[] getUpdateRates(ISensorSimulator s) {
+				return s.getUpdateRatesOxGas();
+			}
+			public double getDefaultUpdateRate(ISensorSimulator s) {
+				return s.getDefaultUpdateRateOxGas();
+			}
+			public double getCurrentUpdateRate(ISensorSimulator s) {
+				return s.getCurrentUpdateRateOxGas();
+			}
+			public void setCurrentUpdateRate(ISensorSimulator s, double value) {
+				s.setCurrentUpdateRateOxGas(value);
+			}
+		});
+
+		add(new SensorChannel(ISensorSimulator.HUMIDITY) {
+			public boolean isSupported(ISensorSimulator s) {
+				return s.isSupportedHumidity();
+			}
+			public boolean isEnabled(ISensorSimulator s) {
+				return s.isEnabledHumidity();
+			}
+			public void setEnabled(ISensorSimulator s, boolean enable) {
+				s.setEnabledHumidity(enable);
+			}
+			public void readValues(IMobilePanel panel, float[] values) {
+				values[0] = (float) panel.getReadHumidity();
+			}
+			public void refresh(ISensorSimulator s) {
+				s.updateEmulatorHumidityRefresh();
+			}
+			public double[] getUpdateRates(ISensorSimulator s) {
+				return s.getUpdateRatesHumidity();
+			}
+			public double getDefaultUpdateRate(ISensorSimulator s) {
+				return s.getDefaultUpdateRateHumidity();
+			}
+			public double getCurrentUpdateRate(ISensorSimulator s) {
+				return s.getCurrentUpdateRateHumidity();
+			}
+			public void setCurrentUpdateRate(ISensorSimulator s, double value) {
+				s.setCurrentUpdateRateHumidity(value);
+			}
+		});
+
+		add(new SensorChannel(PRESSURE) {
+			public boolean isSupported(ISensorSimulator s) {
+				return s.isSupportedPressure();
+			}
+			public boolean isEnabled(ISensorSimulator s) {
+				return s.isEnabledPressure();
+			}
+			public void setEnabled(ISensorSimulator s, boolean enable) {
+				s.setEnabledPressure(enable);
+			}
+			public void readValues(IMobilePanel panel, float[] values) {
+				values[0] = (float) panel.getReadPressure();
+			}
+			public void refresh(ISensorSimulator s) {
+				s.updateEmulatorPressureRefresh();
+			}
+			public double[] getUpdateRates(ISensorSimulator s) {
+				return s.getUpdateRatesPressure();
+			}
+			public double getDefaultUpdateRate(ISensorSimulator s) {
+				return s.getDefaultUpdateRatePressure();
+			}
+			public double getCurrentUpdateRate(ISensorSimulator s) {
+				return s.getCurrentUpdateRatePressure();
+			}
+			public void setCurrentUpdateRate(ISensorSimulator s, double value) {
+				s.setCurrentUpdateRatePressure(value);
+			}
+		});
+
+		add(new SensorChannel(ISensorSimulator.INFRARED) {
+			public boolean isSupported(ISensorSimulator s) {
+				return s.isSupportedInfrared();
+			}
+			public boolean isEnabled(ISensorSimulator s) {
+				return s.isEnabledInfrared();
+			}
+			public void setEnabled(ISensorSimulator s, boolean enable) {
+				s.setEnabledInfrared(enable);
+			}
+			public void readValues(IMobilePanel panel, float[] values) {
+				values[0] = (float) panel.getReadInfrared();
+			}
+			public void refresh(ISensorSimulator s) {
+				s.updateEmulatorInfraredRefresh();
+			}
+			public double[] getUpdateRates(ISensorSimulator s) {
+				return s.getUpdateRatesInfrared();
+			}
+			public double getDefaultUpdateRate(ISensorSimulator s) {
+				return s.getDefaultUpdateRateInfrared();
+			}
+			public double getCurrentUpdateRate(ISensorSimulator s) {
+				return s.getCurrentUpdateRateInfrared();
+			}
+			public void setCurrentUpdateRate(ISensorSimulator s, double value) {
+				s.setCurrentUpdateRateInfrared(value);
+			}
+		});
+		sChannels.put(ISensorSimulator.PRESSURE, get(PRESSURE));
+	}
+
+	private static void add(SensorChannel channel) {
+		channel.setIndex(sChannelList.size());
+		sChannels.put(channel.getName(), channel);
+		sChannelList.add(channel);
+	}
+
+	/**
+	 * @param name, name of the sensor in the protocol
+	 * @return channel of the sensor, or null if there is none.
+	 */
+	public static SensorChannel get(String name) {
+		return sChannels.get(name);
+	}
+
+	/**
+	 * @return number of channels.
+	 */
+	public static int size() {
+		return sChannelList.size();
+	}
+
+	/**
+	 * @param index, index between 0 and {@link #size()} - 1
+	 * @return channel at this index.
+	 */
+	public static SensorChannel get(int index) {
+		return sChannelList.get(index);
+	}
+}
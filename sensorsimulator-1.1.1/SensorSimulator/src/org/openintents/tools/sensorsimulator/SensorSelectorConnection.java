@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.tools.sensorsimulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * One client connection served by a {@link SensorSelectorLoop}.
+ *
+ * Splits the incoming bytes into lines (or, after binary(), into
+ * frames), passes them to the {@link SensorProtocol} and keeps
+ * the answers in the {@link OutboundQueue} until the channel accepts
+ * them. Only ever used from the loop thread, except for
+ * {@link #send(CharSequence)}, {@link #sendFrame(byte[])} and
+ * {@link #sendSample(String, byte[])}.
+ *
+ * @author Peli
+ */
+public class SensorSelectorConnection implements SensorConnection {
+
+	/**
+	 * Longest line accepted from a client.
+	 */
+	public static final int MAX_LINE_LENGTH = 1024;
+
+	public ISensorSimulator mSensorSimulator;
+
+	private SensorSelectorLoop mLoop;
+	private SocketChannel mChannel;
+	private SelectionKey mKey;
+	private SensorProtocol mProtocol;
+	private ConnectionStats mStats;
+
+	private ByteBuffer mInBuffer;
+	private ByteBuffer mOutBuffer;
+	private StringBuilder mLine;
+	private StringBuilder mOutputLines;
+
+	/**
+	 * Length and content of the binary frame being received,
+	 * mFrameLength is -1 while the length is not complete.
+	 */
+	private ByteBuffer mFrameHeader;
+	private ByteBuffer mFrame;
+	private int mFrameLength;
+	private ByteArrayOutputStream mFrameAnswer;
+
+	/**
+	 * Data waiting to be moved into mOutBuffer, from any thread.
+	 */
+	private OutboundQueue mOutbound;
+
+	private volatile boolean closed;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param newSensorSimulator, SensorSimulator instance that answers the requests.
+	 * @param loop, loop serving this connection.
+	 * @param channel, non-blocking client channel.
+	 * @param key, key of the channel at the loop's selector.
+	 * @param fanout, pushes values to subscribers.
+	 * @param connections, registry of all connections, may be null.
+	 */
+	public SensorSelectorConnection(ISensorSimulator newSensorSimulator,
+			SensorSelectorLoop loop, SocketChannel channel, SelectionKey key,
+			SensorFanout fanout, ConnectionRegistry connections) {
+		mSensorSimulator = newSensorSimulator;
+		mLoop = loop;
+		mChannel = channel;
+		mKey = key;
+		mProtocol = new SensorProtocol(newSensorSimulator, this, fanout,
+				connections);
+		mStats = mProtocol.getStats();
+		mOutbound = mProtocol.getOutbound();
+		mInBuffer = ByteBuffer.allocate(4096);
+		mOutBuffer = ByteBuffer.allocate(4096);
+		mLine = new StringBuilder();
+		mOutputLines = new StringBuilder();
+		mFrameHeader = ByteBuffer.allocate(4);
+		mFrame = null;
+		mFrameLength = -1;
+		mFrameAnswer = null;
+		closed = false;
+	}
+
+	/**
+	 * Sends the banner.
+	 */
+	public void open() throws IOException {
+		mSensorSimulator.addMessage("Incoming connection opened.");
+		mOutputLines.append(SensorProtocol.BANNER).append('\n');
+		sendLines();
+	}
+
+	/**
+	 * Reads what is available and answers all complete lines or frames.
+	 */
+	public void read() throws IOException {
+		int n = mChannel.read(mInBuffer);
+		if (n < 0) {
+			close();
+			return;
+		}
+		mStats.addBytesIn(n);
+		mInBuffer.flip();
+		while (mInBuffer.hasRemaining() && !closed) {
+			if (mProtocol.isBinary()) {
+				readFrame();
+				continue;
+			}
+			char c = (char) (mInBuffer.get() & 0xff);
+			if (c == '\n') {
+				mProtocol.handleLine(mLine.toString(), mOutputLines);
+				mLine.setLength(0);
+				if (mOutputLines.length() > 0) {
+					sendLines();
+				}
+			} else if (c != '\r') {
+				if (mLine.length() >= MAX_LINE_LENGTH) {
+					mSensorSimulator.addMessage("WARNING: Client sent too long line.");
+					close();
+					return;
+				}
+				mLine.append(c);
+			}
+		}
+		mInBuffer.clear();
+	}
+
+	/**
+	 * Takes bytes of the current binary frame from the input buffer,
+	 * and answers the frame once it is complete.
+	 */
+	private void readFrame() throws IOException {
+		if (mFrameLength < 0) {
+			while (mFrameHeader.hasRemaining() && mInBuffer.hasRemaining()) {
+				mFrameHeader.put(mInBuffer.get());
+			}
+			if (mFrameHeader.hasRemaining()) {
+				return;
+			}
+			mFrameHeader.flip();
+			mFrameLength = mFrameHeader.getInt();
+			mFrameHeader.clear();
+			if (mFrameLength <= 0
+					|| mFrameLength > SensorBinaryProtocol.MAX_FRAME_LENGTH) {
+				mSensorSimulator.addMessage("WARNING: Client sent invalid frame length: "
+						+ mFrameLength);
+				close();
+				return;
+			}
+			if (mFrame == null || mFrame.capacity() < mFrameLength) {
+				mFrame = ByteBuffer.allocate(Math.max(256, mFrameLength));
+				mFrameAnswer = new ByteArrayOutputStream();
+			}
+			mFrame.clear();
+			mFrame.limit(mFrameLength);
+		}
+
+		int n = Math.min(mFrame.remaining(), mInBuffer.remaining());
+		int limit = mInBuffer.limit();
+		mInBuffer.limit(mInBuffer.position() + n);
+		mFrame.put(mInBuffer);
+		mInBuffer.limit(limit);
+
+		if (!mFrame.hasRemaining()) {
+			mFrameAnswer.reset();
+			mProtocol.getBinaryProtocol().handleFrame(mFrame.array(), 0,
+					mFrameLength, mFrameAnswer);
+			mFrameLength = -1;
+			answer(mFrameAnswer.toByteArray());
+		}
+	}
+
+	/**
+	 * Sends lines from any thread. Lines from other threads are
+	 * handed to the loop thread and written from there.
+	 */
+	public void send(CharSequence lines) {
+		sendFrame(SensorProtocol.toBytes(lines));
+	}
+
+	/**
+	 * Sends a binary frame from any thread, see {@link #send(CharSequence)}.
+	 */
+	public void sendFrame(byte[] frame) {
+		if (closed) return;
+		if (!mOutbound.addAnswer(frame)) {
+			disconnectSlowClient();
+			return;
+		}
+		mLoop.requestFlush(this);
+	}
+
+	/**
+	 * Queues a pushed value from any thread.
+	 */
+	public void sendSample(String sensor, byte[] data) {
+		if (closed) return;
+		if (!mOutbound.addSample(sensor, data)) {
+			disconnectSlowClient();
+			return;
+		}
+		mLoop.requestFlush(this);
+	}
+
+	/**
+	 * Writes data queued by other threads. Called from the loop thread.
+	 */
+	public void flushPending() throws IOException {
+		if (closed) return;
+		write();
+	}
+
+	/**
+	 * Writes as much queued data as the channel accepts, and waits
+	 * for OP_WRITE if some is left.
+	 */
+	public void write() throws IOException {
+		while (true) {
+			fill();
+			if (mOutBuffer.position() == 0) {
+				break;
+			}
+			mOutBuffer.flip();
+			int n = mChannel.write(mOutBuffer);
+			mStats.addBytesOut(n);
+			mOutBuffer.compact();
+			if (n == 0) {
+				// channel full
+				break;
+			}
+		}
+		if (mOutBuffer.position() == 0 && mOutbound.isEmpty()) {
+			// all written, stop waiting for OP_WRITE
+			mKey.interestOps(SelectionKey.OP_READ);
+		} else {
+			mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Queues the collected answer lines and writes as much as
+	 * possible right away.
+	 */
+	private void sendLines() throws IOException {
+		byte[] data = SensorProtocol.toBytes(mOutputLines);
+		mOutputLines.setLength(0);
+		answer(data);
+	}
+
+	/**
+	 * Queues an answer from the loop thread and writes it.
+	 */
+	private void answer(byte[] data) throws IOException {
+		if (!mOutbound.addAnswer(data)) {
+			disconnectSlowClient();
+			return;
+		}
+		write();
+	}
+
+	/**
+	 * Moves queued data into the output buffer while it fits. The
+	 * buffer only grows for data larger than itself, so whatever
+	 * waits beyond it stays in the bounded {@link OutboundQueue}.
+	 */
+	private void fill() {
+		int length;
+		while ((length = mOutbound.peekLength()) >= 0) {
+			if (mOutBuffer.remaining() < length && mOutBuffer.position() > 0) {
+				return;
+			}
+			byte[] data = mOutbound.poll();
+			if (data == null) {
+				return;
+			}
+			queue(data);
+		}
+	}
+
+	/**
+	 * Appends bytes to the output buffer, growing it if needed.
+	 */
+	private void queue(byte[] data) {
+		if (mOutBuffer.remaining() < data.length) {
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(
+					mOutBuffer.capacity() * 2, mOutBuffer.position() + data.length));
+			mOutBuffer.flip();
+			bigger.put(mOutBuffer);
+			mOutBuffer = bigger;
+		}
+		mOutBuffer.put(data);
+	}
+
+	/**
+	 * Closes the connection of a client that falls behind, according
+	 * to its slow client policy.
+	 */
+	private void disconnectSlowClient() {
+		mSensorSimulator.addMessage("Client " + getRemoteAddress()
+				+ " does not read, disconnected.");
+		close();
+	}
+
+	/**
+	 * @return address and port of the client.
+	 */
+	public String getRemoteAddress() {
+		return "" + mChannel.socket().getRemoteSocketAddress();
+	}
+
+	/**
+	 * Closes the channel. Called from the loop thread, other threads
+	 * ask the loop to do it.
+	 */
+	public void close() {
+		if (Thread.currentThread() != mLoop.mThread) {
+			mLoop.requestClose(this);
+			return;
+		}
+		if (closed) return;
+		closed = true;
+		mProtocol.close();
+		mKey.cancel();
+		try {
+			mChannel.close();
+		} catch (IOException e) {
+			System.err.println("Close failed.");
+		}
+		mSensorSimulator.addMessage("Incoming connection closed.");
+	}
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.tools.sensorsimulator;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Event loop of the {@link SensorSelectorServer}.
+ *
+ * Serves any number of {@link SensorSelectorConnection}s from one
+ * thread and one Selector.
+ *
+ * @author Peli
+ */
+public class SensorSelectorLoop implements Runnable {
+
+	public ISensorSimulator mSensorSimulator;
+
+	public Thread mThread;
+
+	private Selector mSelector;
+
+	/**
+	 * Channels handed over by the acceptor, registered by the loop thread.
+	 */
+	private ConcurrentLinkedQueue<SocketChannel> mNewChannels;
+
+	/**
+	 * Connections with lines sent from other threads.
+	 */
+	private ConcurrentLinkedQueue<SensorSelectorConnection> mFlushRequests;
+
+	private SensorFanout mFanout;
+
+	private ConnectionRegistry mConnections;
+
+	/**
+	 * Connections closed from other threads.
+	 */
+	private ConcurrentLinkedQueue<SensorSelectorConnection> mCloseRequests;
+
+	/**
+	 * Whether loop is supposed to be continuing work.
+	 */
+	volatile boolean running;
+
+	/**
+	 * Constructor to start as thread.
+	 *
+	 * @param newSensorSimulator, SensorSimulator instance that started server.
+	 * @param index, number of this loop, used for the thread name.
+	 * @param fanout, pushes values to subscribers.
+	 * @param connections, registry of all connections, may be null.
+	 */
+	public SensorSelectorLoop(ISensorSimulator newSensorSimulator, int index,
+			SensorFanout fanout, ConnectionRegistry connections)
+			throws IOException {
+		mSensorSimulator = newSensorSimulator;
+		mFanout = fanout;
+		mConnections = connections;
+		mCloseRequests = new ConcurrentLinkedQueue<SensorSelectorConnection>();
+		mSelector = Selector.open();
+		mNewChannels = new ConcurrentLinkedQueue<SocketChannel>();
+		mFlushRequests = new ConcurrentLinkedQueue<SensorSelectorConnection>();
+		running = true;
+
+		// start ourselves:
+		mThread = new Thread(this, "SensorSelectorLoop-" + index);
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	/**
+	 * Hands over a freshly accepted channel. May be called from any thread.
+	 *
+	 * @param channel, accepted client channel.
+	 */
+	public void addChannel(SocketChannel channel) {
+		mNewChannels.add(channel);
+		mSelector.wakeup();
+	}
+
+	/**
+	 * Asks the loop thread to write the lines a connection got
+	 * from another thread. May be called from any thread.
+	 *
+	 * @param connection, connection with pending lines.
+	 */
+	public void requestFlush(SensorSelectorConnection connection) {
+		mFlushRequests.add(connection);
+		mSelector.wakeup();
+	}
+
+	/**
+	 * Asks the loop thread to close a connection. May be called from any thread.
+	 *
+	 * @param connection, connection to close.
+	 */
+	public void requestClose(SensorSelectorConnection connection) {
+		mCloseRequests.add(connection);
+		mSelector.wakeup();
+	}
+
+	/**
+	 * Method that is called when starting the thread.
+	 */
+	public void run() {
+		try {
+			while (running) {
+				mSelector.select();
+				registerNewChannels();
+				flushConnections();
+				closeConnections();
+
+				Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					SensorSelectorConnection connection
+						= (SensorSelectorConnection) key.attachment();
+					try {
+						if (key.isValid() && key.isReadable()) {
+							connection.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.write();
+						}
+					} catch (IOException e) {
+						connection.close();
+					}
+				}
+			}
+		} catch (IOException e) {
+			if (running) {
+				System.err.println("IOException in SensorSelectorLoop.");
+			}
+		} catch (ClosedSelectorException e) {
+			// everything fine, selector closed by stop().
+		}
+
+		closeAll();
+	}
+
+	/**
+	 * Registers channels handed over by the acceptor with our selector.
+	 */
+	private void registerNewChannels() {
+		SocketChannel channel;
+		while ((channel = mNewChannels.poll()) != null) {
+			try {
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				channel.socket().setKeepAlive(true);
+				SelectionKey key = channel.register(mSelector, SelectionKey.OP_READ);
+				SensorSelectorConnection connection
+					= new SensorSelectorConnection(mSensorSimulator, this,
+							channel, key, mFanout, mConnections);
+				key.attach(connection);
+				connection.open();
+			} catch (IOException e) {
+				System.err.println("Could not register channel.");
+				try {
+					channel.close();
+				} catch (IOException e2) {
+					System.err.println("Close failed as well.");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the lines connections got from other threads.
+	 */
+	private void flushConnections() {
+		SensorSelectorConnection connection;
+		while ((connection = mFlushRequests.poll()) != null) {
+			try {
+				connection.flushPending();
+			} catch (IOException e) {
+				connection.close();
+			}
+		}
+	}
+
+	/**
+	 * Closes the connections other threads asked to close.
+	 */
+	private void closeConnections() {
+		SensorSelectorConnection connection;
+		while ((connection = mCloseRequests.poll()) != null) {
+			connection.close();
+		}
+	}
+
+	/**
+	 * Closes all connections of this loop.
+	 */
+	private void closeAll() {
+		try {
+			for (SelectionKey key : mSelector.keys()) {
+				((SensorSelectorConnection) key.attachment()).close();
+			}
+			mSelector.close();
+		} catch (ClosedSelectorException e) {
+			// already closed.
+		} catch (IOException e) {
+			System.err.println("Close failed.");
+		}
+		SocketChannel channel;
+		while ((channel = mNewChannels.poll()) != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				System.err.println("Close failed.");
+			}
+		}
+	}
+
+	/**
+	 * Stops the loop, all its connections are closed.
+	 */
+	public void stop() {
+		running = false;
+		mSelector.wakeup();
+	}
+}
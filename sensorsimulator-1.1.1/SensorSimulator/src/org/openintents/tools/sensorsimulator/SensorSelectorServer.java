@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.tools.sensorsimulator;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking variant of the {@link SensorServer} accept loop.
+ *
+ * Instead of one thread per client, accepted connections are handed
+ * round robin to a small fixed number of {@link SensorSelectorLoop}s,
+ * each of which serves all of its clients from a single Selector.
+ *
+ * @author Peli
+ */
+public class SensorSelectorServer {
+
+	public ISensorSimulator mSensorSimulator;
+
+	public SensorSelectorLoop[] mLoops;
+
+	private ServerSocketChannel serverChannel;
+
+	private SensorFanout mFanout;
+
+	private ConnectionRegistry mConnections;
+
+	public int port;
+	public boolean listening;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param newSensorSimulator, SensorSimulator instance that started server.
+	 * @param newPort, port to listen on.
+	 * @param loopCount, number of event loop threads.
+	 * @param fanout, pushes values to subscribers.
+	 * @param connections, registry of all connections, may be null.
+	 */
+	public SensorSelectorServer(ISensorSimulator newSensorSimulator,
+			int newPort, int loopCount, SensorFanout fanout,
+			ConnectionRegistry connections) {
+		mSensorSimulator = newSensorSimulator;
+		mFanout = fanout;
+		mConnections = connections;
+		port = newPort;
+		mLoops = new SensorSelectorLoop[loopCount];
+		listening = true;
+	}
+
+	/**
+	 * Number of event loops used by default: one per processor, at most 4.
+	 */
+	public static int getDefaultLoopCount() {
+		return Math.max(1, Math.min(4,
+				Runtime.getRuntime().availableProcessors()));
+	}
+
+	/**
+	 * Accepts connections until {@link #stop()} is called.
+	 *
+	 * This blocks the calling thread, the event loops run in their
+	 * own threads.
+	 */
+	public void listen() {
+		try {
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.socket().setReuseAddress(true);
+			serverChannel.socket().bind(new InetSocketAddress(port));
+		} catch (IOException e) {
+			mSensorSimulator.addMessage("Could not listen on port: " + port);
+			return;
+		}
+
+		try {
+			for (int i = 0; i < mLoops.length; i++) {
+				mLoops[i] = new SensorSelectorLoop(mSensorSimulator, i, mFanout,
+						mConnections);
+			}
+		} catch (IOException e) {
+			mSensorSimulator.addMessage("Could not open selector: " + e.getMessage());
+			stop();
+			return;
+		}
+
+		int next = 0;
+		try {
+			mSensorSimulator.addMessage("Listening on port " + port
+					+ " (" + mLoops.length + " event loops)...");
+			while (listening) {
+				SocketChannel clientChannel = serverChannel.accept();
+
+				// First we notify this:
+				mSensorSimulator.newClient();
+
+				mLoops[next].addChannel(clientChannel);
+				next = (next + 1) % mLoops.length;
+			}
+		} catch (IOException e) {
+			if (listening) {
+				System.err.println("Accept failed.");
+			} else {
+				// everything ok, socket closed by user.
+			}
+		}
+
+		stop();
+	}
+
+	/**
+	 * Closes the listening channel and all event loops.
+	 */
+	public void stop() {
+		listening = false;
+
+		for (int i = 0; i < mLoops.length; i++) {
+			if (mLoops[i] != null) {
+				mLoops[i].stop();
+			}
+		}
+
+		try {
+			if (serverChannel != null) {
+				serverChannel.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Close failed.");
+		}
+	}
+}
@@ -17,31 +17,188 @@
 package org.openintents.tools.sensorsimulator;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Listens for incoming connections from an Android phone or emulator.
  *
- * Connections are then passed to the {@link SensorServerThread}.
+ * Connections are then passed to the {@link SensorServerThread}, or,
+ * in {@link #MODE_SELECTOR}, served by a {@link SensorSelectorServer}.
+ *
+ * In the blocking modes at most {@link #maxConnections} clients are
+ * served at the same time. Further clients are either closed right
+ * away ({@link #REJECT_CLOSE}) or wait in the accept backlog until
+ * a connection ends ({@link #REJECT_WAIT}). Both can be set with the
+ * system properties "sensorsimulator.maxConnections" and
+ * "sensorsimulator.rejectPolicy".
+ *
+ * A connection keeps its thread until the client disconnects, so in
+ * {@link #MODE_POOL} at most {@link #poolThreads} clients are served,
+ * set with "sensorsimulator.poolThreads", if that is fewer. Further
+ * clients are rejected the same way, rather than accepted and left
+ * without an answer.
+ *
+ * Output to each client is limited by its {@link OutboundQueue}, so
+ * that a client that stops reading cannot hold up the others. Values
+ * pushed to subscribers are encoded once per sensor and rate by the
+ * {@link SensorFanout}, however many clients subscribed.
+ *
+ * Optionally, every tick is also sent to a multicast group by a
+ * {@link SensorMulticastPublisher}, and written to a memory-mapped file
+ * for programs on the same host by a {@link SensorSharedMemoryPublisher}.
+ * A {@link SensorHttpServer} can stream the values to web clients.
+ *
+ * After {@link #serveInstances(SensorSimulatorInstances)}, clients may
+ * select any of the instances with select(), so that one port and one
+ * set of event loops serve many simulated devices.
  *
  * @author Peli
  *
  */
 public class SensorServer implements Runnable {
 
-	public ISensorSimulator mSensorSimulator;
+	/**
+	 * One thread per connection.
+	 */
+	public static final String MODE_THREADS = "threads";
 
 	/**
-	 * linked list of all successors, so that we can destroy them
-	 * when needed.
+	 * All connections served by a few non-blocking event loops.
 	 */
+	public static final String MODE_SELECTOR = "selector";
+
+	/**
+	 * Blocking connections, run by a fixed pool of a few threads per
+	 * processor that are reused for later connections. Bounds the
+	 * number of clients served to the size of the pool.
+	 */
+	public static final String MODE_POOL = "pool";
+
+	/**
+	 * Blocking connections, each on its own virtual thread. Needs a
+	 * Java runtime with virtual threads, otherwise {@link #MODE_THREADS}
+	 * is used.
+	 */
+	public static final String MODE_VIRTUAL = "virtual";
+
+	/**
+	 * Rejected clients are sent {@link #BUSY} and closed.
+	 */
+	public static final String REJECT_CLOSE = "close";
+
+	/**
+	 * Rejected clients are not accepted before a connection ends.
+	 */
+	public static final String REJECT_WAIT = "wait";
+
+	/**
+	 * Sent instead of the banner to rejected clients.
+	 */
+	public static final String BUSY = "SensorSimulator busy";
+
+	public static final int DEFAULT_MAX_CONNECTIONS = 1000;
+
+	/**
+	 * Threads of the pool per processor, in {@link #MODE_POOL}.
+	 */
+	public static final int DEFAULT_POOL_THREADS_PER_CPU = 4;
+
+	public ISensorSimulator mSensorSimulator;
+
 	public Thread mThread;
-	public SensorServerThread firstThread;
-	public SensorServerThread lastThread;
+
+	/**
+	 * All open connections, so that we can destroy them when needed.
+	 */
+	public ConnectionRegistry mConnections;
 
 	private ServerSocket serverSocket;
 
+	/**
+	 * Only used in {@link #MODE_SELECTOR}.
+	 */
+	public SensorSelectorServer mSelectorServer;
+
+	public String mode;
+
+	/**
+	 * Most connections served at the same time, in the blocking modes.
+	 */
+	public int maxConnections;
+
+	/**
+	 * Threads of the pool in {@link #MODE_POOL}, and so the most
+	 * connections served at the same time in that mode.
+	 */
+	public int poolThreads;
+
+	/**
+	 * {@link #REJECT_CLOSE} or {@link #REJECT_WAIT}.
+	 */
+	public String rejectPolicy;
+
+	/**
+	 * One permit per connection that may still be opened.
+	 */
+	private Semaphore mConnectionSlots;
+
+	/**
+	 * Runs the connections in {@link #MODE_POOL} and {@link #MODE_VIRTUAL},
+	 * null in {@link #MODE_THREADS}.
+	 */
+	private ExecutorService mConnectionExecutor;
+
+	/**
+	 * Pushes values to clients that subscribed to sensors.
+	 */
+	public ScheduledExecutorService mPushExecutor;
+
+	/**
+	 * Groups the subscriptions of all connections, runs on mPushExecutor.
+	 */
+	public SensorFanout mFanout;
+
+	/**
+	 * Writes pushed values in the blocking modes. Only clients that
+	 * do not read keep a thread of it busy.
+	 */
+	private ExecutorService mWriterExecutor;
+
+	/**
+	 * Sends the ticks to a multicast group, null if not enabled.
+	 */
+	public SensorMulticastPublisher mMulticastPublisher;
+
+	/**
+	 * Writes every tick to shared memory, null if not enabled.
+	 */
+	public SensorSharedMemoryPublisher mSharedMemoryPublisher;
+
+	/**
+	 * Streams values as Server-Sent Events, null if not enabled.
+	 */
+	public SensorHttpServer mHttpServer;
+
+	/**
+	 * Closes connections whose client went silent, runs on mPushExecutor.
+	 */
+	public ConnectionReaper mReaper;
+
+	/**
+	 * Instances clients may select, null if only the one that started
+	 * the server is served.
+	 */
+	public SensorInstanceDirectory mInstances;
 
 	public int port;
 	public boolean listening;
@@ -54,9 +211,51 @@ public class SensorServer implements Runnable {
 	 */
 	public SensorServer(ISensorSimulator newSensorSimulator) {
 		mSensorSimulator = newSensorSimulator;
-		firstThread = null;
-		lastThread = null;
+		mConnections = new ConnectionRegistry();
+		SensorMetrics.get().addConnections(mConnections);
 		listening = true;
+		maxConnections = Integer.getInteger("sensorsimulator.maxConnections",
+				DEFAULT_MAX_CONNECTIONS).intValue();
+		poolThreads = Math.max(1, Integer.getInteger("sensorsimulator.poolThreads",
+				DEFAULT_POOL_THREADS_PER_CPU
+				* Runtime.getRuntime().availableProcessors()).intValue());
+		rejectPolicy = System.getProperty("sensorsimulator.rejectPolicy",
+				REJECT_CLOSE);
+		mConnectionSlots = new Semaphore(maxConnections);
+		mPushExecutor = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "SensorServerPush");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		mFanout = new SensorFanout(mSensorSimulator, mPushExecutor);
+		mReaper = new ConnectionReaper(mSensorSimulator, mConnections,
+				ConnectionReaper.getDefaultIdleTimeout());
+		mPushExecutor.scheduleWithFixedDelay(mReaper,
+				ConnectionReaper.PERIOD_MILLIS, ConnectionReaper.PERIOD_MILLIS,
+				TimeUnit.MILLISECONDS);
+		mWriterExecutor = Executors.newCachedThreadPool(
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "SensorServerWriter");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		mMulticastPublisher = SensorMulticastPublisher.create(mSensorSimulator);
+		mSharedMemoryPublisher = SensorSharedMemoryPublisher.create(mSensorSimulator);
+		mHttpServer = SensorHttpServer.create(mSensorSimulator, mFanout, mConnections);
+		if (mMulticastPublisher != null) {
+			mConnections.addTransport("multicast", mMulticastPublisher.getAddress());
+		}
+		if (mSharedMemoryPublisher != null) {
+			mConnections.addTransport("sharedmemory", mSharedMemoryPublisher.getPath());
+		}
+		if (mHttpServer != null) {
+			mConnections.addTransport("http", "" + mHttpServer.port);
+		}
 
 		// start ourselves:
 		mThread = new Thread(this);
@@ -64,6 +263,19 @@ public class SensorServer implements Runnable {
 	}
 
 
+	/**
+	 * Lets clients select any of the instances, by name or id, instead
+	 * of only the one that started the server. May be called while
+	 * the server runs.
+	 *
+	 * @param instances, simulators to serve
+	 */
+	public void serveInstances(SensorSimulatorInstances instances) {
+		mInstances = new SensorInstanceDirectory(instances, mSensorSimulator,
+				mFanout, mPushExecutor);
+		mConnections.setInstances(mInstances);
+	}
+
 	/**
 	 * Method that is called when starting a thread for network connection.
 	 */
@@ -79,6 +291,17 @@ public class SensorServer implements Runnable {
     	port = mSensorSimulator.getPort();
     	if (port == 0) return;
 
+    	mode = mSensorSimulator.getServerMode();
+    	if (MODE_SELECTOR.equals(mode)) {
+    		mSelectorServer = new SensorSelectorServer(mSensorSimulator, port,
+    				SensorSelectorServer.getDefaultLoopCount(), mFanout,
+    				mConnections);
+    		if (listening) {
+    			mSelectorServer.listen();
+    		}
+    		return;
+    	}
+
     	serverSocket = null;
         try {
             serverSocket = new ServerSocket(port);
@@ -87,29 +310,70 @@ public class SensorServer implements Runnable {
         	return;
         }
 
+        if (MODE_VIRTUAL.equals(mode)) {
+        	mConnectionExecutor = newVirtualThreadExecutor();
+        	if (mConnectionExecutor == null) {
+        		mSensorSimulator.addMessage("Virtual threads not available, using a thread per connection.");
+        		mode = MODE_THREADS;
+        	}
+        }
+        if (MODE_POOL.equals(mode)) {
+        	mConnectionExecutor = Executors.newFixedThreadPool(poolThreads,
+        			new ThreadFactory() {
+        				private int count = 0;
+        				public synchronized Thread newThread(Runnable r) {
+        					Thread t = new Thread(r, "SensorServerThread-" + (++count));
+        					t.setDaemon(true);
+        					return t;
+        				}
+        			});
+        }
+        // a pool thread is taken until its client disconnects.
+        mConnectionSlots = new Semaphore(getConnectionLimit());
+        boolean waitForSlot = REJECT_WAIT.equals(rejectPolicy);
+
         Socket clientSocket = null;
         try {
-        	mSensorSimulator.addMessage("Listening on port " + port + "...");
+        	mSensorSimulator.addMessage("Listening on port " + port + " (" + mode
+        			+ ", at most " + getConnectionLimit() + " connections)...");
         	while (listening) {
+        		if (waitForSlot) {
+        			mConnectionSlots.acquireUninterruptibly();
+        		}
         		clientSocket = serverSocket.accept();
+        		if (!waitForSlot && !mConnectionSlots.tryAcquire()) {
+        			reject(clientSocket);
+        			continue;
+        		}
+
+        		try {
+        			// notice a peer that vanished even if nobody writes to it:
+        			clientSocket.setKeepAlive(true);
+        		} catch (IOException e) {
+        			// not supported, the ConnectionReaper still notices.
+        		}
 
         		// First we notify this:
         		mSensorSimulator.newClient();
 
         		 // Start again new thread:
                 SensorServerThread newThread
-                	= new SensorServerThread(mSensorSimulator, clientSocket);
-
-                // set the linking:
-                if (firstThread == null) {
-                	// this is the first thread:
-                	firstThread = newThread;
-                	lastThread = newThread;
+                	= new SensorServerThread(mSensorSimulator, clientSocket,
+                			mFanout, mConnections, mWriterExecutor);
+                Runnable connection = new ConnectionTask(newThread);
+                if (mConnectionExecutor != null) {
+                	try {
+                		mConnectionExecutor.execute(connection);
+                	} catch (RejectedExecutionException e) {
+                		// executor shut down by stop().
+                		newThread.mProtocol.close();
+                		mConnectionSlots.release();
+                		reject(clientSocket);
+                		continue;
+                	}
                 } else {
-                	// link into chain:
-                	lastThread.nextThread = newThread;
-                	newThread.previousThread = lastThread;
-                	lastThread = newThread;
+                	newThread.mThread = new Thread(connection);
+                	newThread.mThread.start();
                 }
         	}
 
@@ -121,6 +385,11 @@ public class SensorServer implements Runnable {
         	}
         }
 
+        if (waitForSlot) {
+        	// the slot taken before the last accept was not used.
+        	mConnectionSlots.release();
+        }
+
         try {
         	serverSocket.close();
         } catch (IOException e) {
@@ -129,23 +398,97 @@ public class SensorServer implements Runnable {
         }
     }
 
+    /**
+     * @return most connections served at the same time in the current mode.
+     */
+    public int getConnectionLimit() {
+    	if (MODE_POOL.equals(mode)) {
+    		return Math.min(maxConnections, poolThreads);
+    	}
+    	return maxConnections;
+    }
+
+    /**
+     * Tells a client that no more connections are served and closes it.
+     */
+    private void reject(Socket clientSocket) {
+    	mSensorSimulator.addMessage("Connection rejected, "
+    			+ getConnectionLimit() + " connections open.");
+    	try {
+    		OutputStream out = clientSocket.getOutputStream();
+    		out.write((BUSY + "\n").getBytes("US-ASCII"));
+    		out.flush();
+    		clientSocket.close();
+    	} catch (IOException e) {
+    		System.err.println("Close failed.");
+    	}
+    }
+
+    /**
+     * Executor that starts a virtual thread per task, or null if the
+     * Java runtime has no virtual threads. Looked up by reflection, so
+     * the simulator still builds and runs on older Java versions.
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+    	try {
+    		Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+    		return (ExecutorService) factory.invoke(null);
+    	} catch (Exception e) {
+    		return null;
+    	}
+    }
+
+    /**
+     * Serves one connection and frees its slot afterwards.
+     */
+    private class ConnectionTask implements Runnable {
+    	private SensorServerThread mServerThread;
+
+    	ConnectionTask(SensorServerThread serverThread) {
+    		mServerThread = serverThread;
+    	}
+
+    	public void run() {
+    		try {
+    			mServerThread.run();
+    		} finally {
+    			mConnectionSlots.release();
+    		}
+    	}
+    }
+
     /**
      * Stop all active threads and then oneself.
      */
     public void stop() {
 
-    	// go through the list and kill in turn
-    	SensorServerThread sst;
-    	SensorServerThread ssthelp;
-    	for (sst = firstThread; sst != null; sst = ssthelp) {
-    		// first remember next pointer before it is gone:
-    		ssthelp = sst.nextThread;
-    		//sst.mThread.interrupt();
-    		sst.stop();
-    	}
+    	// close all connections in turn
+    	mConnections.closeAll();
+    	SensorMetrics.get().removeConnections(mConnections);
 
     	// finally kill ourselves:
     	listening = false;
+    	mPushExecutor.shutdownNow();
+    	mWriterExecutor.shutdownNow();
+    	if (mMulticastPublisher != null) {
+    		mMulticastPublisher.close();
+    	}
+    	if (mSharedMemoryPublisher != null) {
+    		mSharedMemoryPublisher.close();
+    	}
+    	if (mHttpServer != null) {
+    		mHttpServer.stop();
+    	}
+    	if (mConnectionExecutor != null) {
+    		mConnectionExecutor.shutdownNow();
+    	}
+    	// let a listener waiting for a slot reach accept() and fail there.
+    	mConnectionSlots.release();
+
+    	if (mSelectorServer != null) {
+    		mSensorSimulator.addMessage("Closing listening server...");
+    		mSelectorServer.stop();
+    	}
 
     	try {
     		if (serverSocket != null) {
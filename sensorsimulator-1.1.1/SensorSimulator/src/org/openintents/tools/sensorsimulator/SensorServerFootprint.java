@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.tools.sensorsimulator;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.Socket;
+import java.util.ArrayList;
+
+/**
+ * Measures the memory and threads the {@link SensorServer} needs
+ * at startup and per idle connection, for each server mode.
+ *
+ * Usage:
+ * <pre>
+ * java -cp sensorsimulator.jar org.openintents.tools.sensorsimulator.SensorServerFootprint [connections] [port] [modes...]
+ * </pre>
+ * Every mode is measured with a fresh server that has no sensors.
+ * Results are best compared when each mode runs in its own JVM.
+ * Connections that got no banner, because the server rejected them or
+ * let them wait, are counted as failed and not in the cost per connection.
+ *
+ * @author Peli
+ */
+public class SensorServerFootprint {
+
+	/**
+	 * Used heap, platform threads and resident set size at one moment.
+	 */
+	static class Sample {
+		long heap;
+		int threads;
+		long rss;
+
+		static Sample take() {
+			Runtime runtime = Runtime.getRuntime();
+			for (int i = 0; i < 3; i++) {
+				System.gc();
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					// measure anyway.
+				}
+			}
+			Sample sample = new Sample();
+			sample.heap = runtime.totalMemory() - runtime.freeMemory();
+			sample.threads = ManagementFactory.getThreadMXBean().getThreadCount();
+			sample.rss = readResidentSetSize();
+			return sample;
+		}
+	}
+
+	/**
+	 * @return resident set size in bytes, or -1 where /proc is not available.
+	 */
+	static long readResidentSetSize() {
+		try {
+			BufferedReader in = new BufferedReader(new FileReader("/proc/self/status"));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (line.startsWith("VmRSS:")) {
+						String kb = line.substring(6).trim().split("\\s+")[0];
+						return Long.parseLong(kb) * 1024;
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// not on Linux.
+		}
+		return -1;
+	}
+
+	/**
+	 * SensorSimulator without sensors and without user interface.
+	 */
+	static ISensorSimulator createSimulator(final int port, final String mode) {
+		final SensorState state = new SensorState();
+		InvocationHandler handler = new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String name = method.getName();
+				Class<?> type = method.getReturnType();
+				if (name.equals("getPort")) {
+					return Integer.valueOf(port);
+				} else if (name.equals("getServerMode")) {
+					return mode;
+				} else if (name.equals("getSensorState")) {
+					return state;
+				} else if (type == boolean.class) {
+					return Boolean.FALSE;
+				} else if (type == int.class) {
+					return Integer.valueOf(0);
+				} else if (type == float.class) {
+					return Float.valueOf(0);
+				} else if (type == double.class) {
+					return Double.valueOf(0);
+				}
+				return null;
+			}
+		};
+		return (ISensorSimulator) Proxy.newProxyInstance(
+				ISensorSimulator.class.getClassLoader(),
+				new Class<?>[] { ISensorSimulator.class }, handler);
+	}
+
+	/**
+	 * Starts a server in the given mode, opens idle connections and
+	 * prints what the server needed.
+	 */
+	static void measure(String mode, int port, int connections) throws Exception {
+		Sample before = Sample.take();
+		SensorServer server = new SensorServer(createSimulator(port, mode));
+		Thread.sleep(500);
+		Sample started = Sample.take();
+
+		ArrayList<Socket> sockets = new ArrayList<Socket>();
+		int opened = 0;
+		int failed = 0;
+		try {
+			for (int i = 0; i < connections; i++) {
+				sockets.add(new Socket("localhost", port));
+			}
+			Thread.sleep(500);
+			for (int i = 0; i < sockets.size(); i++) {
+				// a connection that is not served has no banner to read.
+				Socket socket = sockets.get(i);
+				if (socket.getInputStream().available() == 0) {
+					failed++;
+					continue;
+				}
+				BufferedReader in = new BufferedReader(
+						new InputStreamReader(socket.getInputStream()));
+				if (SensorProtocol.BANNER.equals(in.readLine())) {
+					opened++;
+				} else {
+					failed++;
+				}
+			}
+			Sample connected = Sample.take();
+
+			System.out.println(mode + ": startup " + kb(started.heap - before.heap)
+					+ " heap, " + (started.threads - before.threads) + " threads");
+			if (opened > 0) {
+				System.out.println(mode + ": " + opened + " connections, per connection "
+						+ kb((connected.heap - started.heap) / opened) + " heap, "
+						+ ((float) (connected.threads - started.threads) / opened)
+						+ " threads"
+						+ (connected.rss < 0 ? "" : ", "
+								+ kb((connected.rss - started.rss) / opened) + " resident"));
+			}
+			if (failed > 0) {
+				System.out.println(mode + ": " + failed + " of " + sockets.size()
+						+ " connections FAILED, not served");
+			}
+		} finally {
+			for (int i = 0; i < sockets.size(); i++) {
+				sockets.get(i).close();
+			}
+			server.stop();
+			Thread.sleep(500);
+		}
+	}
+
+	private static String kb(long bytes) {
+		return (bytes / 1024) + " KB";
+	}
+
+	/**
+	 * @param args, number of connections, first port, and the modes to measure
+	 */
+	public static void main(String[] args) throws Exception {
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : 18010;
+		String[] modes = new String[] {
+				SensorServer.MODE_THREADS, SensorServer.MODE_POOL,
+				SensorServer.MODE_VIRTUAL, SensorServer.MODE_SELECTOR };
+		if (args.length > 2) {
+			modes = new String[args.length - 2];
+			System.arraycopy(args, 2, modes, 0, modes.length);
+		}
+
+		for (int i = 0; i < modes.length; i++) {
+			measure(modes[i], port + i, connections);
+		}
+		System.exit(0);
+	}
+}
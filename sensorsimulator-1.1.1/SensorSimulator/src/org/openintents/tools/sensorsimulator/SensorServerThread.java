@@ -21,11 +21,19 @@
 
 package org.openintents.tools.sensorsimulator;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Handles the communication with the SensorClient from the Android phone or emulator.
@@ -35,20 +43,48 @@ import java.net.Socket;
  * @author Peli
  * @author Josip Balic
  */
-public class SensorServerThread implements Runnable {
+public class SensorServerThread implements Runnable, SensorConnection {
 
 	public ISensorSimulator mSensorSimulator;
 
 	/**
-	 * linked list of all successors, so that we can destroy them
-	 * when needed.
+	 * Thread serving this connection, set once it runs.
 	 */
 	public Thread mThread;
-	public SensorServerThread nextThread;
-	public SensorServerThread previousThread;
 
 	public Socket mClientSocket;
 
+	/**
+	 * Answers the commands received over this connection.
+	 */
+	public SensorProtocol mProtocol;
+
+	/**
+	 * Stream to the client, only written while mDraining is held.
+	 */
+	private volatile OutputStream mOut;
+
+	private ConnectionStats mStats;
+
+	/**
+	 * Answers and pushed values waiting to be written.
+	 */
+	private OutboundQueue mOutbound;
+
+	/**
+	 * Writes pushed values, so that a client that does not read
+	 * blocks neither the push thread nor other clients. May be null,
+	 * then values are written by the thread that pushes them.
+	 */
+	private Executor mWriter;
+
+	/**
+	 * Set while a thread writes the queued data.
+	 */
+	private AtomicBoolean mDraining;
+
+	private Runnable mDrainTask;
+
 
 	/**
 	 * Whether thread is supposed to be continuing work.
@@ -56,27 +92,48 @@ public class SensorServerThread implements Runnable {
 	boolean talking;
 
 	/**
-	 * Constructor to start as thread.
+	 * Constructor. The connection is served once {@link #run()} is called,
+	 * by a thread or executor of the {@link SensorServer}.
 	 * @param newSensorSimulator, SensorSimulator instance of simulator that starts thread
 	 * @param newClientSocket, Socket that is used in connecting
 	 */
 	public SensorServerThread(ISensorSimulator newSensorSimulator,
 			Socket newClientSocket) {
+		this(newSensorSimulator, newClientSocket, null, null, null);
+	}
+
+	/**
+	 * Constructor for a connection that shares the push tasks of the server.
+	 * @param newSensorSimulator, SensorSimulator instance of simulator that starts thread
+	 * @param newClientSocket, Socket that is used in connecting
+	 * @param fanout, pushes values to subscribers
+	 * @param connections, registry of all connections, may be null
+	 * @param writer, executor that writes pushed values, may be null
+	 */
+	public SensorServerThread(ISensorSimulator newSensorSimulator,
+			Socket newClientSocket, SensorFanout fanout,
+			ConnectionRegistry connections, Executor writer) {
 		mSensorSimulator = newSensorSimulator;
-		nextThread = null;
-		previousThread = null;
 		mClientSocket = newClientSocket;
+		mProtocol = new SensorProtocol(newSensorSimulator, this, fanout,
+				connections);
+		mStats = mProtocol.getStats();
+		mOutbound = mProtocol.getOutbound();
+		mWriter = writer;
+		mDraining = new AtomicBoolean(false);
+		mDrainTask = new Runnable() {
+			public void run() {
+				drain();
+			}
+		};
 		talking = true;
-
-		// start ourselves:
-		mThread = new Thread(this);
-		mThread.start();
 	}
 
 	/**
 	 * Method to call only once thread.
 	 */
 	public void run() {
+		mThread = Thread.currentThread();
 		listenThread();
 	}
 
@@ -84,509 +141,36 @@ public class SensorServerThread implements Runnable {
 	 * Handles communication with the client.
 	 *
 	 * In a simple protocol, all Android Sensors class methods are
-	 * received and answered. If necessary, exceptions are thrown
-	 * as specified in the Sensors class.
+	 * received and answered by {@link SensorProtocol}. If necessary,
+	 * exceptions are thrown as specified in the Sensors class.
 	 */
     public void listenThread() {
-    	double updatesPerSecond;
-        double[] updatesList;
-        int len;
-
         try {
-	        PrintWriter out = new PrintWriter(mClientSocket.getOutputStream(), true);
+	        mOut = new BufferedOutputStream(mClientSocket.getOutputStream());
 	        BufferedReader in = new BufferedReader(
 					new InputStreamReader(
 					mClientSocket.getInputStream()));
-	        String inputLine, outputLine;
+	        String inputLine;
+	        StringBuilder outputLines = new StringBuilder();
 
-	        outputLine = "SensorSimulator";
-	        out.println(outputLine);
+	        send(SensorProtocol.BANNER + "\n");
 
 	        mSensorSimulator.addMessage("Incoming connection opened.");
 
-
 	        while ((inputLine = in.readLine()) != null) {
-	        	//////////////////////////////////////////////////////////
-	        	if (inputLine.compareTo("getSupportedSensors()") == 0) {
-	        		String[] supportedSensors = getSupportedSensors();
-	        		out.println("" + supportedSensors.length);
-	        		for (int i=0; i<supportedSensors.length; i++) {
-	        			out.println(supportedSensors[i]);
-	        		}
-
-	        	//////////////////////////////////////////////////////////
-		        } else if (inputLine.compareTo("disableSensor()") == 0 ||
-	        			inputLine.compareTo("enableSensor()") == 0) {
-	        		boolean enable = (inputLine.compareTo("enableSensor()") == 0);
-
-	        		inputLine = in.readLine();
-	        		// Test which sensor is meant and whether that sensor is supported.
-//	        		if (inputLine.compareTo(ISensorSimulator.ACCELEROMETER) == 0
-//	        				&& mSensorSimulator.isSupportedAccelerometer()) {
-//	        			out.println("" + mSensorSimulator.isEnabledAccelerometer());
-//	        			mSensorSimulator.setEnabledAccelerometer(enable);
-////	        			mSensorSimulator.mRefreshEmulatorAccelerometerLabel.setText("-");
-//	        		} else if (inputLine.compareTo(ISensorSimulator.MAGNETIC_FIELD) == 0
-//	        				&& mSensorSimulator.isSupportedMagneticField()) {
-//	        			out.println("" + mSensorSimulator.isEnabledMagneticField());
-//	        			mSensorSimulator.setEnabledMagneticField(enable);
-////	        			mSensorSimulator.mRefreshEmulatorCompassLabel.setText("-");
-//	        		} else if (inputLine.compareTo(ISensorSimulator.ORIENTATION) == 0
-//	        				&& mSensorSimulator.isSupportedOrientation()) {
-//	        			out.println("" + mSensorSimulator.isEnabledOrientation());
-//	        			mSensorSimulator.setEnabledOrientation(enable);
-//	        			mSensorSimulator.mRefreshEmulatorOrientationLabel.setText("-");
-	        		if (inputLine.compareTo(ISensorSimulator.TEMPERATURE) == 0
-	        				&& mSensorSimulator.isSupportedTemperature()) {
-	        			out.println("" + mSensorSimulator.isEnabledTemperature());
-	        			mSensorSimulator.setEnabledTemperature(enable);
-//	        			mSensorSimulator.mRefreshEmulatorThermometerLabel.setText("-");
-//	        		} else if (inputLine.compareTo(ISensorSimulator.BARCODE_READER) == 0
-//	        				&& mSensorSimulator.isSupportedBarcodeReader()) {
-//	        			out.println("" + mSensorSimulator.isEnabledBarcodeReader());
-//	        			mSensorSimulator.setEnabledBarcodeReader(enable);
-	        		} else if (inputLine.compareTo(ISensorSimulator.LIGHT) == 0
-							&& mSensorSimulator.isSupportedLight()) {
-						out.println("" + mSensorSimulator.isEnabledLight());
-						mSensorSimulator.setEnabledLight(enable);
-					} else if (inputLine.compareTo(ISensorSimulator.PROXIMITY) == 0
-                            && mSensorSimulator.isSupportedProximity()) {
-                        out.println("" + mSensorSimulator.isEnabledProximity());
-                        mSensorSimulator.setEnabledProximity(enable);
-                    } else {
-	        			// This sensor is not supported
-	        			out.println("throw IllegalArgumentException");
-	        		}
-	        	//////////////////////////////////////////////////////////
-		        } else if (inputLine.compareTo("getNumSensorValues()") == 0) {
-	    	        inputLine = in.readLine();
-//	        		if (inputLine.compareTo(ISensorSimulator.ACCELEROMETER) == 0
-//	        				&& mSensorSimulator.isSupportedAccelerometer()) {
-//	        			out.println("3");
-//	        		} else if (inputLine.compareTo(ISensorSimulator.MAGNETIC_FIELD) == 0
-//	        				&& mSensorSimulator.isSupportedMagneticField()) {
-//	        			out.println("3");
-//	        		} else if (inputLine.compareTo(ISensorSimulator.ORIENTATION) == 0
-//	        				&& mSensorSimulator.isSupportedOrientation()) {
-//	        			out.println("3");
-//	        		} else
-	        		if (inputLine.compareTo(ISensorSimulator.TEMPERATURE) == 0
-	        				&& mSensorSimulator.isSupportedTemperature()) {
-	        			out.println("1");
-//	        		} else if (inputLine.compareTo(ISensorSimulator.BARCODE_READER) == 0
-//	        				&& mSensorSimulator.isSupportedBarcodeReader()) {
-//	        			out.println("1");
-	        		} else if (inputLine.compareTo(ISensorSimulator.LIGHT) == 0
-							&& mSensorSimulator.isSupportedLight()) {
-						out.println("1");
-					} else if (inputLine.compareTo(ISensorSimulator.PROXIMITY) == 0
-                            && mSensorSimulator.isSupportedProximity()) {
-                        out.println("1");
-                    } else {
-	        			// This sensor is not supported
-	        			out.println("throw IllegalArgumentException");
-	        		}
-	        	//////////////////////////////////////////////////////////
-		        } else if (inputLine.compareTo("readSensor()") == 0) {
-	        		inputLine = in.readLine();
-//	        		if (inputLine.compareTo(ISensorSimulator.ACCELEROMETER) == 0
-//	        				&& mSensorSimulator.isSupportedAccelerometer()) {
-//	        			if (mSensorSimulator.isEnabledAccelerometer()) {
-//	        				//out.println("3"); // number of data following
-//		        			//out.println(mSensorSimulator.mobile.read_accelx);
-//		        			//out.println(mSensorSimulator.mobile.read_accely);
-//		        			//out.println(mSensorSimulator.mobile.read_accelz);
-//
-//	        				// For performance reasons, send these commands together
-//	        				String sensorData = "3\n"  // number of data following
-//	        					+ mSensorSimulator.getMobilePanel().getReadAccelerometerX() + "\n"
-//	        					+ mSensorSimulator.getMobilePanel().getReadAccelerometerY() + "\n"
-//	        					+ mSensorSimulator.getMobilePanel().getReadAccelerometerZ();
-//	        				out.println(sensorData);
-//		        			mSensorSimulator.updateEmulatorAccelerometerRefresh();
-//	        			} else {
-//	        				// This sensor is currently disabled
-//	        				out.println("throw IllegalStateException");
-//	        			}
-//	        		} else if (inputLine.compareTo(ISensorSimulator.MAGNETIC_FIELD) == 0
-//	        				&& mSensorSimulator.isSupportedMagneticField()) {
-//	        			if (mSensorSimulator.isEnabledMagneticField()) {
-//		        			//out.println("3"); // number of data following
-//		        			//out.println(mSensorSimulator.mobile.read_compassx);
-//		        			//out.println(mSensorSimulator.mobile.read_compassy);
-//		        			//out.println(mSensorSimulator.mobile.read_compassz);
-//
-//		        			// For performance reasons, send these commands together
-//	        				String sensorData = "3\n"  // number of data following
-//	        					+ mSensorSimulator.getMobilePanel().getReadCompassX() + "\n"
-//	        					+ mSensorSimulator.getMobilePanel().getReadCompassY() + "\n"
-//	        					+ mSensorSimulator.getMobilePanel().getReadCompassZ();
-//	        				out.println(sensorData);
-//		        			mSensorSimulator.updateEmulatorCompassRefresh();
-//	        			} else {
-//	        				// This sensor is currently disabled
-//	        				out.println("throw IllegalStateException");
-//	        			}
-//	        		} else if (inputLine.compareTo(ISensorSimulator.ORIENTATION) == 0
-//	        				&& mSensorSimulator.isSupportedOrientation()) {
-//	        			if (mSensorSimulator.isEnabledOrientation()) {
-//			        		//out.println("3"); // number of data following
-//		        			//out.println(mSensorSimulator.mobile.read_yaw);
-//		        			//out.println(mSensorSimulator.mobile.read_pitch);
-//		        			//out.println(mSensorSimulator.mobile.read_roll);
-//
-//		        			// For performance reasons, send these commands together
-//	        				String sensorData = "3\n"  // number of data following
-//	        					+ mSensorSimulator.getMobilePanel().getReadYaw() + "\n"
-//	        					+ mSensorSimulator.getMobilePanel().getReadPitch() + "\n"
-//	        					+ mSensorSimulator.getMobilePanel().getReadRoll();
-//	        				out.println(sensorData);
-//		        			mSensorSimulator.updateEmulatorOrientationRefresh();
-//	        			} else {
-//	        				// This sensor is currently disabled
-//	        				out.println("throw IllegalStateException");
-//	        			}
-//	        		} else
-	        		if (inputLine.compareTo(ISensorSimulator.TEMPERATURE) == 0
-	        				&& mSensorSimulator.isSupportedTemperature()) {
-	        			if (mSensorSimulator.isEnabledTemperature()) {
-				        	//out.println("1"); // number of data following
-				        	//out.println(mSensorSimulator.mobile.read_temperature);
-
-				        	// For performance reasons, send these commands together
-				        	// (yes, we need a fast thermometer)
-	        				String sensorData = "1\n"  // number of data following
-	        					+ mSensorSimulator.getMobilePanel().getReadTemperature();
-	        				out.println(sensorData);
-		        			mSensorSimulator.updateEmulatorThermometerRefresh();
-	        			} else {
-	        				// This sensor is currently disabled
-	        				out.println("throw IllegalStateException");
-	        			}
-
-//	        		} else if (inputLine.compareTo(ISensorSimulator.BARCODE_READER) == 0
-//	        				&& mSensorSimulator.isSupportedBarcodeReader()) {
-//	        			if (mSensorSimulator.isEnabledBarcodeReader()) {
-//
-//	        				if(mSensorSimulator.getMobilePanel().getBarcode().length()==13){
-//	        				String sensorData = "1\n"  // number of data following
-//	        					+ mSensorSimulator.getMobilePanel().getBarcode();
-//	        				out.println(sensorData);
-//	        				}else{
-//	        					String sensorData = "1\n"
-//	        						+ "1";
-//	        					out.println(sensorData);
-//	        				}
-//	        			} else {
-//	        				// This sensor is currently disabled
-//	        				out.println("throw IllegalStateException");
-//	        			}
-	        		} else if (inputLine.compareTo(ISensorSimulator.LIGHT) == 0
-							&& mSensorSimulator.isSupportedLight()) {
-						if (mSensorSimulator.isEnabledLight()) {
-							String sensorData = "1\n" // number of data
-														// following
-									+ mSensorSimulator.getMobilePanel()
-											.getReadLight();
-							out.println(sensorData);
-							mSensorSimulator.updateEmulatorLightRefresh();
-						} else {
-							// This sensor is currently disabled
-							out.println("throw IllegalStateException");
-						}
-					} else if (inputLine.compareTo(ISensorSimulator.PROXIMITY) == 0
-                            && mSensorSimulator.isSupportedProximity()) {
-                        if (mSensorSimulator.isEnabledProximity()) {
-                            String sensorData = "1\n" // number of data
-                                                        // following
-                                    + mSensorSimulator.getMobilePanel()
-                                            .getReadProximity();
-                            out.println(sensorData);
-                            mSensorSimulator.updateEmulatorProximityRefresh();
-                        } else {
-                            // This sensor is currently disabled
-                            out.println("throw IllegalStateException");
-                        }
-                    } else {
-	        			// This sensor is not supported
-	        			out.println("throw IllegalArgumentException");
-	        		}
-	        	//////////////////////////////////////////////////////////
-		        } else if (inputLine.compareTo("getSensorUpdateRates()") == 0) {
-	    	        inputLine = in.readLine();
-//	        		if (inputLine.compareTo(ISensorSimulator.ACCELEROMETER) == 0
-//	        				&& mSensorSimulator.isSupportedAccelerometer()) {
-//	        			updatesList = mSensorSimulator.getUpdateRatesAccelerometer();
-//	        			if (updatesList == null || updatesList.length < 1) {
-//	        				out.println("0");
-//	        			} else {
-//	        				len = updatesList.length;
-//		        			out.println("" + len);
-//	        				for (int i=0; i<len; i++) {
-//	        					out.println("" + updatesList[i]);
-//	        				}
-//	        			}
-//	        		} else if (inputLine.compareTo(ISensorSimulator.MAGNETIC_FIELD) == 0
-//	        				&& mSensorSimulator.isSupportedMagneticField()) {
-//	        			updatesList = mSensorSimulator.getUpdateRatesCompass();
-//	        			if (updatesList == null || updatesList.length < 1) {
-//	        				out.println("0");
-//	        			} else {
-//	        				len = updatesList.length;
-//		        			out.println("" + len);
-//	        				for (int i=0; i<len; i++) {
-//	        					out.println("" + updatesList[i]);
-//	        				}
-//	        			}
-//	        		} else if (inputLine.compareTo(ISensorSimulator.ORIENTATION) == 0
-//	        				&& mSensorSimulator.isSupportedOrientation()) {
-//	        			updatesList = mSensorSimulator.getUpdateRatesOrientation();
-//	        			if (updatesList == null || updatesList.length < 1) {
-//	        				out.println("0");
-//	        			} else {
-//	        				len = updatesList.length;
-//		        			out.println("" + len);
-//	        				for (int i=0; i<len; i++) {
-//	        					out.println("" + updatesList[i]);
-//	        				}
-//	        			}
-//	        		} else
-	        			if (inputLine.compareTo(ISensorSimulator.TEMPERATURE) == 0
-	        				&& mSensorSimulator.isSupportedTemperature()) {
-	        			updatesList = mSensorSimulator.getUpdateRatesThermometer();
-	        			if (updatesList == null || updatesList.length < 1) {
-	        				out.println("0");
-	        			} else {
-	        				len = updatesList.length;
-		        			out.println("" + len);
-	        				for (int i=0; i<len; i++) {
-	        					out.println("" + updatesList[i]);
-	        				}
-	        			}
-	        		} else if (inputLine.compareTo(ISensorSimulator.LIGHT) == 0
-							&& mSensorSimulator.isSupportedLight()) {
-						updatesList = mSensorSimulator.getUpdateRatesLight();
-						if (updatesList == null || updatesList.length < 1) {
-							out.println("0");
-						} else {
-							len = updatesList.length;
-							out.println("" + len);
-							for (int i = 0; i < len; i++) {
-								out.println("" + updatesList[i]);
-							}
-						}
-					} else if (inputLine.compareTo(ISensorSimulator.PROXIMITY) == 0
-                            && mSensorSimulator.isSupportedProximity()) {
-                        updatesList = mSensorSimulator.getUpdateRatesProximity();
-                        if (updatesList == null || updatesList.length < 1) {
-                            out.println("0");
-                        } else {
-                            len = updatesList.length;
-                            out.println("" + len);
-                            for (int i = 0; i < len; i++) {
-                                out.println("" + updatesList[i]);
-                            }
-                        }
-                    } else {
-	        			// This sensor is not supported
-	        			out.println("throw IllegalArgumentException");
-	        		}
-
-	        	//////////////////////////////////////////////////////////
-		        } else if (inputLine.compareTo("getSensorUpdateRate()") == 0) {
-	    	        inputLine = in.readLine();
-//	    	        if (inputLine.compareTo(ISensorSimulator.ACCELEROMETER) == 0
-//	        				&& mSensorSimulator.isSupportedAccelerometer()) {
-//	        			if (mSensorSimulator.isEnabledAccelerometer()) {
-//	        				updatesPerSecond = mSensorSimulator.getCurrentUpdateRateAccelerometer();
-//	        				out.println("" + updatesPerSecond);
-//	        			} else {
-//	        				// This sensor is currently disabled
-//	        				out.println("throw IllegalStateException");
-//	        			}
-//	        		} else if (inputLine.compareTo(ISensorSimulator.MAGNETIC_FIELD) == 0
-//	        				&& mSensorSimulator.isSupportedMagneticField()) {
-//	        			if (mSensorSimulator.isEnabledMagneticField()) {
-//	        				updatesPerSecond = mSensorSimulator.getCurrentUpdateRateCompass();
-//	        				out.println("" + updatesPerSecond);
-//	        			} else {
-//	        				// This sensor is currently disabled
-//	        				out.println("throw IllegalStateException");
-//	        			}
-//	        		} else if (inputLine.compareTo(ISensorSimulator.ORIENTATION) == 0
-//	        				&& mSensorSimulator.isSupportedOrientation()) {
-//	        			if (mSensorSimulator.isEnabledOrientation()) {
-//	        				updatesPerSecond = mSensorSimulator.getCurrentUpdateRateOrientation();
-//	        				out.println("" + updatesPerSecond);
-//	        			} else {
-//	        				// This sensor is currently disabled
-//	        				out.println("throw IllegalStateException");
-//	        			}
-//	        		} else 
-	        			if (inputLine.compareTo(ISensorSimulator.TEMPERATURE) == 0
-	        				&& mSensorSimulator.isSupportedTemperature()) {
-	        			if (mSensorSimulator.isEnabledTemperature()) {
-	        				updatesPerSecond = mSensorSimulator.getCurrentUpdateRateThermometer();
-	        				out.println("" + updatesPerSecond);
-	        			} else {
-	        				// This sensor is currently disabled
-	        				out.println("throw IllegalStateException");
-	        			}
-	        		} else if (inputLine.compareTo(ISensorSimulator.LIGHT) == 0
-							&& mSensorSimulator.isSupportedLight()) {
-						if (mSensorSimulator.isEnabledLight()) {
-							updatesPerSecond = mSensorSimulator
-									.getCurrentUpdateRateLight();
-							out.println("" + updatesPerSecond);
-						} else {
-							// This sensor is currently disabled
-							out.println("throw IllegalStateException");
-						}
-					} else if (inputLine.compareTo(ISensorSimulator.PROXIMITY) == 0
-                            && mSensorSimulator.isSupportedProximity()) {
-                        if (mSensorSimulator.isEnabledProximity()) {
-                            updatesPerSecond = mSensorSimulator
-                                    .getCurrentUpdateRateProximity();
-                            out.println("" + updatesPerSecond);
-                        } else {
-                            // This sensor is currently disabled
-                            out.println("throw IllegalStateException");
-                        }
-                    } else {
-	        			// This sensor is not supported
-	        			out.println("throw IllegalArgumentException");
-	        		}
-	    	    //////////////////////////////////////////////////////////
-		        } else if (inputLine.compareTo("setSensorUpdateRate()") == 0) {
-	    	        inputLine = in.readLine();
-//	    	        if (inputLine.compareTo(ISensorSimulator.ACCELEROMETER) == 0
-//	        				&& mSensorSimulator.isSupportedAccelerometer()) {
-//        				out.println("OK");
-//        				inputLine = in.readLine();
-//        				updatesPerSecond = Float.parseFloat(inputLine);
-//        				mSensorSimulator.setCurrentUpdateRateAccelerometer(updatesPerSecond);
-//	        		} else if (inputLine.compareTo(ISensorSimulator.MAGNETIC_FIELD) == 0
-//	        				&& mSensorSimulator.isSupportedMagneticField()) {
-//        				out.println("OK");
-//        				inputLine = in.readLine();
-//        				updatesPerSecond = Float.parseFloat(inputLine);
-//        				mSensorSimulator.setCurrentUpdateRateCompass(updatesPerSecond);
-//        			} else if (inputLine.compareTo(ISensorSimulator.ORIENTATION) == 0
-//	        				&& mSensorSimulator.isSupportedOrientation()) {
-//        				out.println("OK");
-//        				inputLine = in.readLine();
-//        				updatesPerSecond = Float.parseFloat(inputLine);
-//        				mSensorSimulator.setCurrentUpdateRateOrientation(updatesPerSecond);
-//        			} else
-        				if (inputLine.compareTo(ISensorSimulator.TEMPERATURE) == 0
-	        				&& mSensorSimulator.isSupportedTemperature()) {
-        				out.println("OK");
-        				inputLine = in.readLine();
-        				updatesPerSecond = Float.parseFloat(inputLine);
-        				mSensorSimulator.setCurrentUpdateRateThermometer(updatesPerSecond);
-
-//        			} else if (inputLine.compareTo(ISensorSimulator.BARCODE_READER) == 0
-//	        				&& mSensorSimulator.isSupportedBarcodeReader()) {
-//        				out.println("OK");
-//        				inputLine = in.readLine();
-//        				updatesPerSecond = Float.parseFloat(inputLine);
-        			}  else if (inputLine.compareTo(ISensorSimulator.LIGHT) == 0
-							&& mSensorSimulator.isSupportedLight()) {
-						out.println("OK");
-						inputLine = in.readLine();
-						updatesPerSecond = Float.parseFloat(inputLine);
-						mSensorSimulator
-								.setCurrentUpdateRateLight(updatesPerSecond);
-
-					}  else if (inputLine.compareTo(ISensorSimulator.PROXIMITY) == 0
-                            && mSensorSimulator.isSupportedProximity()) {
-                        out.println("OK");
-                        inputLine = in.readLine();
-                        updatesPerSecond = Float.parseFloat(inputLine);
-                        mSensorSimulator
-                                .setCurrentUpdateRateProximity(updatesPerSecond);
-                    } else {
-	        			// This sensor is not supported
-	        			out.println("throw IllegalArgumentException");
-	        		}
-
-	    	    //////////////////////////////////////////////////////////
-		        } else if (inputLine.compareTo("unsetSensorUpdateRate()") == 0) {
-	    	        inputLine = in.readLine();
-//	    	        if (inputLine.compareTo(ISensorSimulator.ACCELEROMETER) == 0
-//	        				&& mSensorSimulator.isSupportedAccelerometer()) {
-//	        			if (mSensorSimulator.isEnabledAccelerometer()) {
-//	        				out.println("OK");
-//	        				mSensorSimulator.setCurrentUpdateRateAccelerometer(
-//	        						mSensorSimulator.getDefaultUpdateRateAccelerometer());
-//	        			} else {
-//	        				// This sensor is currently disabled
-//	        				out.println("throw IllegalStateException");
-//	        			}
-//	        		} else if (inputLine.compareTo(ISensorSimulator.MAGNETIC_FIELD) == 0
-//	        				&& mSensorSimulator.isSupportedMagneticField()) {
-//	        			if (mSensorSimulator.isEnabledMagneticField()) {
-//	        				out.println("OK");
-//	        				mSensorSimulator.setCurrentUpdateRateCompass(
-//	        						mSensorSimulator.getDefaultUpdateRateCompass());
-//	        			} else {
-//	        				// This sensor is currently disabled
-//	        				out.println("throw IllegalStateException");
-//	        			}
-//	        		} else if (inputLine.compareTo(ISensorSimulator.ORIENTATION) == 0
-//	        				&& mSensorSimulator.isSupportedOrientation()) {
-//	        			if (mSensorSimulator.isEnabledOrientation()) {
-//	        				out.println("OK");
-//	        				mSensorSimulator.setCurrentUpdateRateOrientation(
-//	        						mSensorSimulator.getDefaultUpdateRateOrientation());
-//	        			} else {
-//	        				// This sensor is currently disabled
-//	        				out.println("throw IllegalStateException");
-//	        			}
-//	        		} else 
-	        			if (inputLine.compareTo(ISensorSimulator.TEMPERATURE) == 0
-	        				&& mSensorSimulator.isSupportedTemperature()) {
-	        			if (mSensorSimulator.isEnabledTemperature()) {
-	        				out.println("OK");
-	        				mSensorSimulator.setCurrentUpdateRateThermometer(
-	        						mSensorSimulator.getDefaultUpdateRateThermometer());
-	        			} else {
-	        				// This sensor is currently disabled
-	        				out.println("throw IllegalStateException");
-	        			}
-	        		} else if (inputLine.compareTo(ISensorSimulator.LIGHT) == 0
-							&& mSensorSimulator.isSupportedLight()) {
-						if (mSensorSimulator.isEnabledLight()) {
-							out.println("OK");
-							mSensorSimulator
-									.setCurrentUpdateRateLight(mSensorSimulator
-											.getDefaultUpdateRateLight());
-						} else {
-							// This sensor is currently disabled
-							out.println("throw IllegalStateException");
-						}
-					} else if (inputLine.compareTo(ISensorSimulator.PROXIMITY) == 0
-                            && mSensorSimulator.isSupportedProximity()) {
-                        if (mSensorSimulator.isEnabledProximity()) {
-                            out.println("OK");
-                            mSensorSimulator
-                                    .setCurrentUpdateRateProximity(mSensorSimulator
-                                            .getDefaultUpdateRateProximity());
-                        } else {
-                            // This sensor is currently disabled
-                            out.println("throw IllegalStateException");
-                        }
-                    } else {
-	        			// This sensor is not supported
-	        			out.println("throw IllegalArgumentException");
-	        		}
-	        	//////////////////////////////////////////////////////////
-			    } else {
-		        	// ??? The client is violating the protocol.
-			        mSensorSimulator.addMessage("WARNING: Client sent unexpected command: " + inputLine);
-		        }
+	        	mStats.addBytesIn(inputLine.length() + 1);
+	        	mProtocol.handleLine(inputLine, outputLines);
+	        	if (outputLines.length() > 0) {
+	        		send(outputLines);
+	        		outputLines.setLength(0);
+	        	}
+	        	if (mProtocol.isBinary()) {
+	        		// The client waits for our "OK" before sending
+	        		// frames, so nothing is left in the reader.
+	        		listenBinary();
+	        		break;
+	        	}
 	        }
-	        out.close();
 	        in.close();
 	        mClientSocket.close();
 
@@ -602,59 +186,145 @@ public class SensorServerThread implements Runnable {
         		// everything fine. Our mouth was shut deliberately.
         	}
         }
-
-        //  Here we finish program execution and we take ourselves out of the chained list:
-        if (previousThread != null) {
-        	previousThread.nextThread = nextThread;
-        }
-        if (nextThread != null) {
-        	nextThread.previousThread = previousThread;
-        }
+        // Here we finish program execution and we take ourselves out of the registry:
+        mProtocol.close();
         mSensorSimulator.addMessage("Incoming connection closed.");
 
     }
 
+    /**
+     * Handles communication after the client switched to binary frames.
+     */
+    private void listenBinary() throws IOException {
+    	DataInputStream in = new DataInputStream(new BufferedInputStream(
+    			mClientSocket.getInputStream()));
+    	SensorBinaryProtocol binaryProtocol = mProtocol.getBinaryProtocol();
+    	ByteArrayOutputStream answer = new ByteArrayOutputStream();
+    	byte[] frame = new byte[256];
+
+    	while (true) {
+    		int length;
+    		try {
+    			length = in.readInt();
+    		} catch (EOFException e) {
+    			// connection closed by client.
+    			return;
+    		}
+    		if (length <= 0 || length > SensorBinaryProtocol.MAX_FRAME_LENGTH) {
+    			mSensorSimulator.addMessage("WARNING: Client sent invalid frame length: " + length);
+    			return;
+    		}
+    		if (frame.length < length) {
+    			frame = new byte[length];
+    		}
+    		in.readFully(frame, 0, length);
+    		mStats.addBytesIn(4 + length);
+
+    		binaryProtocol.handleFrame(frame, 0, length, answer);
+    		sendFrame(answer.toByteArray());
+    		answer.reset();
+    	}
+    }
+
     /**
      * Method used to get currently String[] of currently supported sensors.
      *
      * @return String[] filled with names of currently supported sensors.
      */
     public String[] getSupportedSensors() {
-    	String[] sensorList = new String[7]; // currently max. 7 possible!
-		int sensorMax = 0;
-//		if (mSensorSimulator.isSupportedAccelerometer()) {
-//			sensorList[sensorMax] = ISensorSimulator.ACCELEROMETER;
-//			sensorMax++;
-//		}
-//		if (mSensorSimulator.isSupportedMagneticField()) {
-//			sensorList[sensorMax] = ISensorSimulator.MAGNETIC_FIELD;
-//			sensorMax++;
-//		}
-//		if (mSensorSimulator.isSupportedOrientation()) {
-//			sensorList[sensorMax] = ISensorSimulator.ORIENTATION;
-//			sensorMax++;
-//		}
-		if (mSensorSimulator.isSupportedTemperature()) {
-			sensorList[sensorMax] = ISensorSimulator.TEMPERATURE;
-			sensorMax++;
-		}
-//		if (mSensorSimulator.isSupportedBarcodeReader()) {
-//			sensorList[sensorMax] = ISensorSimulator.BARCODE_READER;
-//			sensorMax++;
-//		}
-		if (mSensorSimulator.isSupportedLight()) {
-			sensorList[sensorMax] = ISensorSimulator.LIGHT;
-			sensorMax++;
-		}
-	    if (mSensorSimulator.isSupportedProximity()) {
-	        sensorList[sensorMax] = ISensorSimulator.PROXIMITY;
-	        sensorMax++;
-	    }
-		String[] returnSensorList = new String[sensorMax];
-		for (int i=0; i<sensorMax; i++)
-			returnSensorList[i] = sensorList[i];
-
-		return returnSensorList;
+    	return mProtocol.getSupportedSensors();
+    }
+
+    /**
+     * Sends lines to the client, from this or a push thread.
+     *
+     * @param lines, lines terminated by '\n'
+     */
+    public void send(CharSequence lines) {
+    	sendFrame(SensorProtocol.toBytes(lines));
+    }
+
+    /**
+     * Sends an answer to the client, from this or a push thread.
+     * Data queued before is written first.
+     *
+     * @param frame, frame including its length, or lines
+     */
+    public void sendFrame(byte[] frame) {
+    	if (!mOutbound.addAnswer(frame)) {
+    		disconnectSlowClient();
+    		return;
+    	}
+    	drain();
+    }
+
+    /**
+     * Queues a pushed value, written by the writer executor.
+     */
+    public void sendSample(String sensor, byte[] data) {
+    	if (!mOutbound.addSample(sensor, data)) {
+    		disconnectSlowClient();
+    		return;
+    	}
+    	if (mWriter == null) {
+    		drain();
+    	} else if (!mDraining.get()) {
+    		try {
+    			mWriter.execute(mDrainTask);
+    		} catch (RejectedExecutionException e) {
+    			// server shutting down.
+    		}
+    	}
+    }
+
+    /**
+     * Writes all queued data, unless another thread already does.
+     * Blocks while the client does not read.
+     */
+    private void drain() {
+    	OutputStream out = mOut;
+    	if (out == null) return;
+    	// check again after releasing, data may have been queued meanwhile.
+    	while (!mOutbound.isEmpty() && mDraining.compareAndSet(false, true)) {
+    		try {
+    			byte[] data;
+    			while ((data = mOutbound.poll()) != null) {
+    				out.write(data);
+    				mStats.addBytesOut(data.length);
+    			}
+    			out.flush();
+    		} catch (IOException e) {
+    			// reported by the reading side once the socket is gone.
+    			mOutbound.close();
+    			return;
+    		} finally {
+    			mDraining.set(false);
+    		}
+    	}
+    }
+
+    /**
+     * Closes the connection of a client that falls behind, according
+     * to its slow client policy.
+     */
+    private void disconnectSlowClient() {
+    	mSensorSimulator.addMessage("Client " + getRemoteAddress()
+    			+ " does not read, disconnected.");
+    	close();
+    }
+
+    /**
+     * @return address and port of the client.
+     */
+    public String getRemoteAddress() {
+    	return "" + mClientSocket.getRemoteSocketAddress();
+    }
+
+    /**
+     * Closes the connection, see {@link #stop()}.
+     */
+    public void close() {
+    	stop();
     }
 
     /**
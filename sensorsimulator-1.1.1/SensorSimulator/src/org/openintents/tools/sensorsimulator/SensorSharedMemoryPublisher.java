@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.tools.sensorsimulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes every simulation tick into a memory-mapped file, so that
+ * programs on the same host (a test harness, or a helper forwarding
+ * values to an emulator) read the values without any system call,
+ * see {@link SensorSharedMemoryReader}.
+ *
+ * The file starts with a header and the names of the channels, followed
+ * by a ring of slots, each holding all channels of one tick:
+ * <pre>
+ * header, HEADER_SIZE bytes:
+ *   int    MAGIC
+ *   int    VERSION
+ *   int    number of channels
+ *   int    number of slots
+ *   int    size of a slot
+ *   int    offset of the first slot
+ *   long   number of ticks written, the latest is in slot (count - 1) % slots
+ *   int    1 while the simulator writes, 0 once it stopped
+ * names, NAME_SIZE bytes per channel:
+ *   byte   length, then the name in ASCII
+ * slot:
+ *   long   sequence, odd while the slot is written, 2 * count once complete
+ *   long   tick
+ *   long   time of the tick, milliseconds since 1970
+ *   long   time the slot was written, milliseconds since 1970
+ *   per channel, CHANNEL_SIZE bytes:
+ *     byte   FLAG_SUPPORTED | FLAG_ENABLED
+ *     byte   number of values
+ *     short  unused
+ *     float  MAX_VALUES values
+ * </pre>
+ * Numbers are in the native byte order of the host. Readers check the
+ * sequence before and after copying a slot, and read again if it changed
+ * (a seqlock), so the writer never waits for them.
+ *
+ * Enabled with the system property "sensorsimulator.sharedMemory" set
+ * to the path of the file, the number of slots is set with
+ * "sensorsimulator.sharedMemorySlots".
+ *
+ * @author Peli
+ */
+public class SensorSharedMemoryPublisher implements SensorState.Listener {
+
+	public static final int MAGIC = 0x5353534d; // "SSSM"
+	public static final int VERSION = 1;
+
+	public static final byte FLAG_SUPPORTED = 1;
+	public static final byte FLAG_ENABLED = 2;
+
+	public static final int DEFAULT_SLOTS = 64;
+
+	static final int HEADER_SIZE = 64;
+	static final int NAME_SIZE = 32;
+	static final int SLOT_HEADER_SIZE = 32;
+	static final int CHANNEL_SIZE = 4 + 4 * SensorProtocol.MAX_VALUES;
+
+	// offsets within the header
+	static final int OFFSET_CHANNELS = 8;
+	static final int OFFSET_SLOTS = 12;
+	static final int OFFSET_SLOT_SIZE = 16;
+	static final int OFFSET_DATA = 20;
+	static final int OFFSET_COUNT = 24;
+	static final int OFFSET_OPEN = 32;
+
+	/**
+	 * Only used as a memory barrier, see {@link #fence()}.
+	 */
+	private static volatile int sFence;
+
+	private SensorState mSensorState;
+	private String mPath;
+	private RandomAccessFile mFile;
+	private MappedByteBuffer mBuffer;
+
+	private int mChannels;
+	private int mSlots;
+	private int mSlotSize;
+	private int mDataOffset;
+
+	// guarded by this:
+	private long mCount;
+	private float[] mValues;
+	private boolean mClosed;
+
+	/**
+	 * Constructor, creates the file and starts listening to the ticks.
+	 *
+	 * @param sensorState, state that publishes the ticks
+	 * @param file, file to map, replaced if it exists
+	 * @param slots, number of ticks kept in the ring
+	 */
+	public SensorSharedMemoryPublisher(SensorState sensorState, File file,
+			int slots) throws IOException {
+		mSensorState = sensorState;
+		mPath = file.getPath();
+		mChannels = SensorRegistry.size();
+		mSlots = Math.max(1, slots);
+		mSlotSize = SLOT_HEADER_SIZE + mChannels * CHANNEL_SIZE;
+		mDataOffset = HEADER_SIZE + mChannels * NAME_SIZE;
+		mValues = new float[SensorProtocol.MAX_VALUES];
+		mCount = 0;
+		mClosed = false;
+
+		int size = mDataOffset + mSlots * mSlotSize;
+		mFile = new RandomAccessFile(file, "rw");
+		mFile.setLength(0);
+		mFile.setLength(size);
+		mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		mBuffer.order(ByteOrder.nativeOrder());
+
+		for (int i = 0; i < mChannels; i++) {
+			String name = SensorRegistry.get(i).getName();
+			int position = HEADER_SIZE + i * NAME_SIZE;
+			int length = Math.min(name.length(), NAME_SIZE - 1);
+			mBuffer.put(position, (byte) length);
+			for (int k = 0; k < length; k++) {
+				mBuffer.put(position + 1 + k, (byte) name.charAt(k));
+			}
+		}
+		mBuffer.putInt(OFFSET_CHANNELS, mChannels);
+		mBuffer.putInt(OFFSET_SLOTS, mSlots);
+		mBuffer.putInt(OFFSET_SLOT_SIZE, mSlotSize);
+		mBuffer.putInt(OFFSET_DATA, mDataOffset);
+		mBuffer.putLong(OFFSET_COUNT, 0);
+		mBuffer.putInt(OFFSET_OPEN, 1);
+		mBuffer.putInt(4, VERSION);
+		fence();
+		// readers check the magic last, once everything else is in place.
+		mBuffer.putInt(0, MAGIC);
+
+		snapshotPublished(sensorState.getSnapshot());
+		mSensorState.addListener(this);
+	}
+
+	/**
+	 * Publisher configured by the system properties, or null if
+	 * shared memory is not enabled or the file cannot be mapped.
+	 *
+	 * @param sensorSimulator, simulator to report errors to
+	 */
+	public static SensorSharedMemoryPublisher create(ISensorSimulator sensorSimulator) {
+		String path = System.getProperty("sensorsimulator.sharedMemory");
+		if (path == null || path.length() == 0) {
+			return null;
+		}
+		int slots = Integer.getInteger("sensorsimulator.sharedMemorySlots",
+				DEFAULT_SLOTS).intValue();
+		try {
+			SensorSharedMemoryPublisher publisher = new SensorSharedMemoryPublisher(
+					sensorSimulator.getSensorState(), new File(path), slots);
+			sensorSimulator.addMessage("Writing ticks to shared memory " + path);
+			return publisher;
+		} catch (IOException e) {
+			sensorSimulator.addMessage("Could not map shared memory " + path
+					+ ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the snapshot into the next slot of the ring.
+	 */
+	public synchronized void snapshotPublished(SensorSnapshot snapshot) {
+		if (mClosed || snapshot == null) return;
+		long count = mCount + 1;
+		int slot = mDataOffset + (int) ((count - 1) % mSlots) * mSlotSize;
+
+		mBuffer.putLong(slot, 2 * count - 1);
+		fence();
+		mBuffer.putLong(slot + 8, snapshot.getTick());
+		mBuffer.putLong(slot + 16, snapshot.getTime());
+		mBuffer.putLong(slot + 24, System.currentTimeMillis());
+		for (int i = 0; i < mChannels; i++) {
+			int position = slot + SLOT_HEADER_SIZE + i * CHANNEL_SIZE;
+			int flags = 0;
+			if (snapshot.isSupported(i)) flags |= FLAG_SUPPORTED;
+			if (snapshot.isEnabled(i)) flags |= FLAG_ENABLED;
+			int num = snapshot.readValues(i, mValues);
+			mBuffer.put(position, (byte) flags);
+			mBuffer.put(position + 1, (byte) num);
+			for (int j = 0; j < num; j++) {
+				mBuffer.putFloat(position + 4 + 4 * j, mValues[j]);
+			}
+		}
+		fence();
+		mBuffer.putLong(slot, 2 * count);
+		mBuffer.putLong(OFFSET_COUNT, count);
+		mCount = count;
+	}
+
+	/**
+	 * @return path of the file.
+	 */
+	public String getPath() {
+		return mPath;
+	}
+
+	/**
+	 * @return number of ticks written.
+	 */
+	public synchronized long getCount() {
+		return mCount;
+	}
+
+	/**
+	 * Stops publishing. The file stays, marked as no longer written.
+	 */
+	public synchronized void close() {
+		if (mClosed) return;
+		mClosed = true;
+		mSensorState.removeListener(this);
+		mBuffer.putInt(OFFSET_OPEN, 0);
+		mBuffer.force();
+		try {
+			mFile.close();
+		} catch (IOException e) {
+			System.err.println("Close failed.");
+		}
+	}
+
+	/**
+	 * Keeps the accesses to the mapped file on either side in program
+	 * order: a volatile write followed by a volatile read is a full
+	 * barrier in the Java memory model, and compilers keep to it.
+	 */
+	static void fence() {
+		sFence = 0;
+		if (sFence != 0) {
+			// never happens, the read is what matters.
+			sFence = 0;
+		}
+	}
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.tools.sensorsimulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the ticks a {@link SensorSharedMemoryPublisher} writes into a
+ * memory-mapped file, for programs on the same host as the simulator.
+ *
+ * Reading copies one slot of the ring into this reader, without system
+ * calls or allocations; the values are then taken with the getters:
+ * <pre>
+ * SensorSharedMemoryReader reader = new SensorSharedMemoryReader(file);
+ * int light = reader.getChannelIndex("light");
+ * float[] values = new float[SensorProtocol.MAX_VALUES];
+ * if (reader.readLatest() &amp;&amp; reader.isEnabled(light)) {
+ *     int num = reader.getValues(light, values);
+ * }
+ * </pre>
+ * Not thread-safe, use one reader per thread.
+ *
+ * @author Peli
+ */
+public class SensorSharedMemoryReader {
+
+	private RandomAccessFile mFile;
+	private MappedByteBuffer mBuffer;
+
+	private String[] mNames;
+	private int mSlots;
+	private int mSlotSize;
+	private int mDataOffset;
+
+	/**
+	 * Copy of the slot read last.
+	 */
+	private long mCount;
+	private long mTick;
+	private long mTickTime;
+	private long mWriteTime;
+	private byte[] mFlags;
+	private byte[] mNum;
+	private float[][] mValues;
+
+	/**
+	 * Slot being read, swapped with the copy above once the read
+	 * turned out complete, so a torn read never shows through the getters.
+	 */
+	private byte[] mReadFlags;
+	private byte[] mReadNum;
+	private float[][] mReadValues;
+
+	/**
+	 * Constructor, maps the file.
+	 *
+	 * @param file, file written by the simulator
+	 * @throws IOException if the file cannot be mapped or was not
+	 * written by a SensorSharedMemoryPublisher
+	 */
+	public SensorSharedMemoryReader(File file) throws IOException {
+		mFile = new RandomAccessFile(file, "r");
+		long size = mFile.length();
+		if (size < SensorSharedMemoryPublisher.HEADER_SIZE) {
+			mFile.close();
+			throw new IOException("Not a sensor shared memory file: " + file);
+		}
+		mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+		mBuffer.order(ByteOrder.nativeOrder());
+		if (mBuffer.getInt(0) != SensorSharedMemoryPublisher.MAGIC
+				|| mBuffer.getInt(4) != SensorSharedMemoryPublisher.VERSION) {
+			mFile.close();
+			throw new IOException("Not a sensor shared memory file: " + file);
+		}
+		SensorSharedMemoryPublisher.fence();
+
+		int channels = mBuffer.getInt(SensorSharedMemoryPublisher.OFFSET_CHANNELS);
+		mSlots = mBuffer.getInt(SensorSharedMemoryPublisher.OFFSET_SLOTS);
+		mSlotSize = mBuffer.getInt(SensorSharedMemoryPublisher.OFFSET_SLOT_SIZE);
+		mDataOffset = mBuffer.getInt(SensorSharedMemoryPublisher.OFFSET_DATA);
+		mNames = new String[channels];
+		for (int i = 0; i < channels; i++) {
+			int position = SensorSharedMemoryPublisher.HEADER_SIZE
+					+ i * SensorSharedMemoryPublisher.NAME_SIZE;
+			int length = mBuffer.get(position);
+			StringBuilder name = new StringBuilder(length);
+			for (int k = 0; k < length; k++) {
+				name.append((char) mBuffer.get(position + 1 + k));
+			}
+			mNames[i] = name.toString();
+		}
+		mFlags = new byte[channels];
+		mNum = new byte[channels];
+		mValues = new float[channels][SensorProtocol.MAX_VALUES];
+		mReadFlags = new byte[channels];
+		mReadNum = new byte[channels];
+		mReadValues = new float[channels][SensorProtocol.MAX_VALUES];
+		mCount = 0;
+	}
+
+	/**
+	 * @return names of the channels, in the order of their index.
+	 */
+	public String[] getChannelNames() {
+		return mNames.clone();
+	}
+
+	/**
+	 * @return index of the channel with this name, or -1.
+	 */
+	public int getChannelIndex(String name) {
+		for (int i = 0; i < mNames.length; i++) {
+			if (mNames[i].equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return number of ticks written so far.
+	 */
+	public long getWrittenCount() {
+		return mBuffer.getLong(SensorSharedMemoryPublisher.OFFSET_COUNT);
+	}
+
+	/**
+	 * Whether the simulator still writes the file.
+	 */
+	public boolean isOpen() {
+		return mBuffer.getInt(SensorSharedMemoryPublisher.OFFSET_OPEN) != 0;
+	}
+
+	/**
+	 * Reads the latest tick. Gives up after as many attempts as the
+	 * ring has slots, if the simulator overwrote the tick every time.
+	 *
+	 * @return false if nothing has been written yet, or no tick could
+	 * be read; the tick read before is kept then.
+	 */
+	public boolean readLatest() {
+		for (int attempt = 0; attempt < mSlots; attempt++) {
+			long count = getWrittenCount();
+			if (count == 0) {
+				return false;
+			}
+			if (read(count)) {
+				return true;
+			}
+			// overwritten while reading, take the newer one.
+		}
+		return false;
+	}
+
+	/**
+	 * Reads a tick that is still kept in the ring, so that a reader
+	 * that fell behind a little can catch up on every tick.
+	 *
+	 * @param count, number of the tick as counted by {@link #getWrittenCount()}
+	 * @return false if the tick is not written yet or already overwritten;
+	 * the getters keep returning the tick read before then.
+	 */
+	public boolean read(long count) {
+		if (count <= 0) {
+			return false;
+		}
+		int slot = mDataOffset + (int) ((count - 1) % mSlots) * mSlotSize;
+		long sequence = mBuffer.getLong(slot);
+		if (sequence != 2 * count) {
+			return false;
+		}
+		SensorSharedMemoryPublisher.fence();
+		long tick = mBuffer.getLong(slot + 8);
+		long tickTime = mBuffer.getLong(slot + 16);
+		long writeTime = mBuffer.getLong(slot + 24);
+		for (int i = 0; i < mNames.length; i++) {
+			int position = slot + SensorSharedMemoryPublisher.SLOT_HEADER_SIZE
+					+ i * SensorSharedMemoryPublisher.CHANNEL_SIZE;
+			mReadFlags[i] = mBuffer.get(position);
+			int num = Math.max(0, Math.min(mBuffer.get(position + 1),
+					SensorProtocol.MAX_VALUES));
+			mReadNum[i] = (byte) num;
+			for (int j = 0; j < num; j++) {
+				mReadValues[i][j] = mBuffer.getFloat(position + 4 + 4 * j);
+			}
+		}
+		SensorSharedMemoryPublisher.fence();
+		if (mBuffer.getLong(slot) != sequence) {
+			return false;
+		}
+		byte[] flags = mFlags;
+		mFlags = mReadFlags;
+		mReadFlags = flags;
+		byte[] nums = mNum;
+		mNum = mReadNum;
+		mReadNum = nums;
+		float[][] values = mValues;
+		mValues = mReadValues;
+		mReadValues = values;
+		mCount = count;
+		mTick = tick;
+		mTickTime = tickTime;
+		mWriteTime = writeTime;
+		return true;
+	}
+
+	/**
+	 * @return number of the tick read last, as counted by {@link #getWrittenCount()}.
+	 */
+	public long getCount() {
+		return mCount;
+	}
+
+	/**
+	 * @return simulation tick read last.
+	 */
+	public long getTick() {
+		return mTick;
+	}
+
+	/**
+	 * @return time of the tick read last, milliseconds since 1970.
+	 */
+	public long getTickTime() {
+		return mTickTime;
+	}
+
+	/**
+	 * @return time the tick read last was written, milliseconds since 1970.
+	 */
+	public long getWriteTime() {
+		return mWriteTime;
+	}
+
+	public boolean isSupported(int channel) {
+		return (mFlags[channel] & SensorSharedMemoryPublisher.FLAG_SUPPORTED) != 0;
+	}
+
+	public boolean isEnabled(int channel) {
+		return (mFlags[channel] & SensorSharedMemoryPublisher.FLAG_ENABLED) != 0;
+	}
+
+	/**
+	 * Copies the values of a channel, as of the tick read last.
+	 *
+	 * @param channel, index of the channel
+	 * @param values, receives the values
+	 * @return number of values.
+	 */
+	public int getValues(int channel, float[] values) {
+		int num = Math.min(mNum[channel], values.length);
+		System.arraycopy(mValues[channel], 0, values, 0, num);
+		return num;
+	}
+
+	/**
+	 * Closes the file.
+	 */
+	public void close() {
+		try {
+			mFile.close();
+		} catch (IOException e) {
+			System.err.println("Close failed.");
+		}
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.tools.sensorsimulator;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Runs the SensorSimulator without a window, for machines without a
+ * display, e.g. to test against in continuous integration:
+ *
+ * <pre>
+ * java -cp sensorsimulator.jar org.openintents.tools.sensorsimulator.SensorSimulatorHeadless
+ *     [settings file] [key=value ...]
+ * </pre>
+ *
+ * The settings file is read as {@link Properties}; settings given on
+ * the command line replace those of the file. See {@link SensorEngine}
+ * for the settings of the sensors. "telnet=true" connects to the
+ * command port of the emulator. Settings starting with
+ * "sensorsimulator." are set as system properties, the way the server
+ * is configured otherwise, e.g. "sensorsimulator.http=true
+ * sensorsimulator.httpPort=8080".
+ *
+ * "instances" lists names of simulated devices, separated by commas,
+ * all served on the port of the first one; clients select() them by
+ * name. Settings starting with the name of an instance and a dot
+ * apply to that instance only, e.g. "phone2.light.value=20".
+ *
+ * @author Peli
+ */
+public class SensorSimulatorHeadless {
+
+	private static final String SYSTEM_PREFIX = "sensorsimulator.";
+
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+
+		// the file comes first, settings after it replace its own.
+		Properties settings = new Properties();
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			int equals = arg.indexOf('=');
+			if (equals > 0) {
+				settings.setProperty(arg.substring(0, equals).trim(),
+						arg.substring(equals + 1).trim());
+			} else if (i == 0) {
+				if (!load(settings, arg)) {
+					System.exit(1);
+				}
+			} else {
+				System.err.println("Usage: SensorSimulatorHeadless "
+						+ "[settings file] [key=value ...]");
+				System.exit(1);
+			}
+		}
+		Iterator<Map.Entry<Object, Object>> it = settings.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Object, Object> entry = it.next();
+			String key = (String) entry.getKey();
+			if (key.startsWith(SYSTEM_PREFIX)) {
+				System.setProperty(key, (String) entry.getValue());
+			}
+		}
+
+		String[] names = settings.getProperty("instances", "").split(",");
+		final SensorEngine[] engines = new SensorEngine[names.length];
+		SensorSimulatorInstances instances = new SensorSimulatorInstances();
+		for (int i = 0; i < names.length; i++) {
+			String name = names[i].trim();
+			engines[i] = new SensorEngine(getInstanceSettings(settings, name));
+			engines[i].start();
+			instances.addSimulator(engines[i], name);
+		}
+		final SensorEngine engine = engines[0];
+		final SensorServer server = new SensorServer(engine);
+		if (engines.length > 1) {
+			server.serveInstances(instances);
+		}
+
+		final TelnetServer telnet;
+		if (Boolean.valueOf(settings.getProperty("telnet", "false")).booleanValue()) {
+			telnet = new TelnetServer(engine);
+			telnet.connect();
+		} else {
+			telnet = null;
+		}
+
+		Runtime.getRuntime().addShutdownHook(new Thread("SensorSimulator shutdown") {
+			public void run() {
+				server.stop();
+				if (telnet != null) {
+					telnet.disconnect();
+				}
+				for (int i = 0; i < engines.length; i++) {
+					engines[i].stop();
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return the settings with those of an instance in place of the
+	 * general ones.
+	 */
+	private static Properties getInstanceSettings(Properties settings, String name) {
+		Properties instance = new Properties();
+		instance.putAll(settings);
+		if (name.length() == 0) {
+			return instance;
+		}
+		String prefix = name + ".";
+		Iterator<Map.Entry<Object, Object>> it = settings.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Object, Object> entry = it.next();
+			String key = (String) entry.getKey();
+			if (key.startsWith(prefix)) {
+				instance.put(key.substring(prefix.length()), entry.getValue());
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Reads a settings file.
+	 *
+	 * @return false if it could not be read
+	 */
+	private static boolean load(Properties settings, String file) {
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			settings.load(in);
+			return true;
+		} catch (IOException e) {
+			System.err.println("Could not read settings " + file + ": " + e);
+			return false;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// read already.
+				}
+			}
+		}
+	}
+}
@@ -28,6 +28,10 @@ import java.util.ArrayList;
  * running sensor simulator instances. This class is used to merge LIS
  * emulator with our simulators.
  *
+ * Every instance gets an id that stays the same while it runs, and
+ * may have a name, so that clients of a {@link SensorServer} serving
+ * several instances can select one (see {@link SensorInstanceDirectory}).
+ *
  * @author Josip Balic
  */
 public class SensorSimulatorInstances {
@@ -36,18 +40,83 @@ public class SensorSimulatorInstances {
 
 	public ArrayList<ISensorSimulator> simulators;
 
+	/**
+	 * Ids and names of the simulators, in the same order.
+	 */
+	private ArrayList<Integer> ids = new ArrayList<Integer>();
+	private ArrayList<String> names = new ArrayList<String>();
+	private int nextId = 1;
+
 	/**
 	 * Method that adds instance of sensorSimulator to ArrayList.
 	 *
 	 * @param sensorSimulator, SensorSimulator instance we want to add to ArrayList
 	 */
 	public void addSimulator(ISensorSimulator sensorSimulator) {
+		addSimulator(sensorSimulator, "");
+	}
+
+	/**
+	 * Adds a simulator under a name, like the title of its tab.
+	 *
+	 * @param sensorSimulator, SensorSimulator instance we want to add to ArrayList
+	 * @param name, name clients select it by, may be empty
+	 * @return id of the simulator
+	 */
+	public synchronized int addSimulator(ISensorSimulator sensorSimulator, String name) {
         if(simulators == null){
         	simulators = new ArrayList<ISensorSimulator>();
-        	simulators.add(sensorSimulator);
-        }else{
-        	simulators.add(sensorSimulator);
         }
+        simulators.add(sensorSimulator);
+        ids.add(Integer.valueOf(nextId));
+        names.add(name == null ? "" : name);
+        return nextId++;
+	}
+
+	/**
+	 * Removes a simulator that is no longer used, like the one of a
+	 * closed tab.
+	 *
+	 * @param sensorSimulator, SensorSimulator instance to remove
+	 */
+	public synchronized void removeSimulator(ISensorSimulator sensorSimulator) {
+		if (simulators == null) return;
+		int index = simulators.indexOf(sensorSimulator);
+		if (index >= 0) {
+			simulators.remove(index);
+			ids.remove(index);
+			names.remove(index);
+		}
+	}
+
+	/**
+	 * Finds a simulator by its name, or else by its id.
+	 *
+	 * @param nameOrId, name or id of the simulator
+	 * @return the simulator, or null if there is none
+	 */
+	public synchronized ISensorSimulator findSimulator(String nameOrId) {
+		if (simulators == null) return null;
+		int index = names.indexOf(nameOrId);
+		if (index < 0) {
+			try {
+				index = ids.indexOf(Integer.valueOf(nameOrId.trim()));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+		return index < 0 ? null : simulators.get(index);
+	}
+
+	/**
+	 * @return id and name of every simulator, separated by a tab.
+	 */
+	public synchronized ArrayList<String> describe() {
+		ArrayList<String> list = new ArrayList<String>();
+		for (int i = 0; simulators != null && i < simulators.size(); i++) {
+			list.add(ids.get(i) + "\t" + names.get(i));
+		}
+		return list;
 	}
 
 }
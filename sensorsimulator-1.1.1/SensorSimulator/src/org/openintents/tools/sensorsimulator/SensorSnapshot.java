@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.tools.sensorsimulator;
+
+/**
+ * Values and settings of all sensor channels at one simulation tick.
+ *
+ * Captured by the simulation thread and never changed afterwards,
+ * so any number of connection threads may read it without locks.
+ * Channels are addressed by {@link SensorChannel#getIndex()}.
+ *
+ * @author Peli
+ */
+public final class SensorSnapshot {
+
+	/**
+	 * Origin of the monotonic clock, see {@link #currentMicros()}.
+	 */
+	private static final long ORIGIN_NANOS = System.nanoTime();
+
+	private final long mTick;
+	private final long mTime;
+	private final long mMicros;
+
+	private final boolean[] mSupported;
+	private final boolean[] mEnabled;
+
+	/**
+	 * Values of all channels, those of channel i start at mOffsets[i].
+	 */
+	private final float[] mValues;
+	private final int[] mOffsets;
+
+	private final double[] mCurrentUpdateRates;
+	private final double[] mDefaultUpdateRates;
+	private final double[][] mUpdateRates;
+
+	private SensorSnapshot(long tick, long time, long micros, boolean[] supported,
+			boolean[] enabled, float[] values, int[] offsets,
+			double[] currentUpdateRates, double[] defaultUpdateRates,
+			double[][] updateRates) {
+		mTick = tick;
+		mTime = time;
+		mMicros = micros;
+		mSupported = supported;
+		mEnabled = enabled;
+		mValues = values;
+		mOffsets = offsets;
+		mCurrentUpdateRates = currentUpdateRates;
+		mDefaultUpdateRates = defaultUpdateRates;
+		mUpdateRates = updateRates;
+	}
+
+	/**
+	 * Snapshot with all channels unsupported, used before the first tick.
+	 */
+	static SensorSnapshot empty() {
+		int n = SensorRegistry.size();
+		int[] offsets = new int[n + 1];
+		for (int i = 0; i < n; i++) {
+			offsets[i + 1] = offsets[i] + SensorRegistry.get(i).getNumValues();
+		}
+		return new SensorSnapshot(0, System.currentTimeMillis(), currentMicros(),
+				new boolean[n], new boolean[n], new float[offsets[n]], offsets,
+				new double[n], new double[n], new double[n][]);
+	}
+
+	/**
+	 * Reads all channels from the simulator. Has to be called from
+	 * the thread that owns the simulator's user interface.
+	 *
+	 * @param sensorSimulator, simulator to read from
+	 * @param tick, number of the simulation tick
+	 */
+	static SensorSnapshot capture(ISensorSimulator sensorSimulator, long tick) {
+		int n = SensorRegistry.size();
+		IMobilePanel mobilePanel = sensorSimulator.getMobilePanel();
+		boolean[] supported = new boolean[n];
+		boolean[] enabled = new boolean[n];
+		int[] offsets = new int[n + 1];
+		for (int i = 0; i < n; i++) {
+			offsets[i + 1] = offsets[i] + SensorRegistry.get(i).getNumValues();
+		}
+		float[] values = new float[offsets[n]];
+		float[] channelValues = new float[SensorProtocol.MAX_VALUES];
+		double[] currentUpdateRates = new double[n];
+		double[] defaultUpdateRates = new double[n];
+		double[][] updateRates = new double[n][];
+
+		for (int i = 0; i < n; i++) {
+			SensorChannel channel = SensorRegistry.get(i);
+			supported[i] = channel.isSupported(sensorSimulator);
+			enabled[i] = channel.isEnabled(sensorSimulator);
+			if (mobilePanel != null) {
+				channel.readValues(mobilePanel, channelValues);
+				System.arraycopy(channelValues, 0, values, offsets[i],
+						offsets[i + 1] - offsets[i]);
+			}
+			currentUpdateRates[i] = channel.getCurrentUpdateRate(sensorSimulator);
+			defaultUpdateRates[i] = channel.getDefaultUpdateRate(sensorSimulator);
+			updateRates[i] = channel.getUpdateRates(sensorSimulator);
+		}
+		return new SensorSnapshot(tick, System.currentTimeMillis(),
+				currentMicros(), supported,
+				enabled, values, offsets, currentUpdateRates, defaultUpdateRates,
+				updateRates);
+	}
+
+	/**
+	 * @return copy of this snapshot with one channel enabled or disabled.
+	 */
+	SensorSnapshot withEnabled(int channel, boolean enable) {
+		boolean[] enabled = mEnabled.clone();
+		enabled[channel] = enable;
+		return new SensorSnapshot(mTick, mTime, mMicros, mSupported, enabled, mValues,
+				mOffsets, mCurrentUpdateRates, mDefaultUpdateRates, mUpdateRates);
+	}
+
+	/**
+	 * @return copy of this snapshot with another update rate for one channel.
+	 */
+	SensorSnapshot withCurrentUpdateRate(int channel, double updatesPerSecond) {
+		double[] currentUpdateRates = mCurrentUpdateRates.clone();
+		currentUpdateRates[channel] = updatesPerSecond;
+		return new SensorSnapshot(mTick, mTime, mMicros, mSupported, mEnabled, mValues,
+				mOffsets, currentUpdateRates, mDefaultUpdateRates, mUpdateRates);
+	}
+
+	/**
+	 * @return number of the simulation tick, 0 before the first tick.
+	 */
+	public long getTick() {
+		return mTick;
+	}
+
+	/**
+	 * @return time of the tick, in milliseconds since 1970.
+	 */
+	public long getTime() {
+		return mTime;
+	}
+
+	/**
+	 * @return time of the tick on the monotonic clock of the server,
+	 * see {@link #currentMicros()}.
+	 */
+	public long getMicros() {
+		return mMicros;
+	}
+
+	/**
+	 * Monotonic clock of the server, in microseconds since it started.
+	 * Unlike the time of day it never jumps, so clients can estimate
+	 * its offset to their own clock once and convert the time of a
+	 * tick to theirs. Answered to clock().
+	 *
+	 * @return current time on the monotonic clock
+	 */
+	public static long currentMicros() {
+		return (System.nanoTime() - ORIGIN_NANOS) / 1000;
+	}
+
+	public boolean isSupported(int channel) {
+		return mSupported[channel];
+	}
+
+	public boolean isEnabled(int channel) {
+		return mEnabled[channel];
+	}
+
+	public int getNumValues(int channel) {
+		return mOffsets[channel + 1] - mOffsets[channel];
+	}
+
+	/**
+	 * Copies the values of a channel.
+	 *
+	 * @param channel, index of the channel
+	 * @param values, array large enough for {@link #getNumValues(int)}
+	 * @return number of values copied
+	 */
+	public int readValues(int channel, float[] values) {
+		int num = mOffsets[channel + 1] - mOffsets[channel];
+		System.arraycopy(mValues, mOffsets[channel], values, 0, num);
+		return num;
+	}
+
+	public double getCurrentUpdateRate(int channel) {
+		return mCurrentUpdateRates[channel];
+	}
+
+	public double getDefaultUpdateRate(int channel) {
+		return mDefaultUpdateRates[channel];
+	}
+
+	/**
+	 * @return copy of the selectable update rates, or null.
+	 */
+	public double[] getUpdateRates(int channel) {
+		double[] updateRates = mUpdateRates[channel];
+		return updateRates == null ? null : updateRates.clone();
+	}
+
+	/**
+	 * @param previous, snapshot of an earlier tick
+	 * @return number of channels enabled in this snapshot whose values
+	 * differ from those in the earlier one.
+	 */
+	int countChanged(SensorSnapshot previous) {
+		int changed = 0;
+		for (int i = 0; i < mEnabled.length; i++) {
+			if (!mEnabled[i]) {
+				continue;
+			}
+			for (int j = mOffsets[i]; j < mOffsets[i + 1]; j++) {
+				if (Float.floatToIntBits(mValues[j])
+						!= Float.floatToIntBits(previous.mValues[j])) {
+					changed++;
+					break;
+				}
+			}
+		}
+		return changed;
+	}
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.tools.sensorsimulator;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands the sensor state from the simulation to the connections.
+ *
+ * The simulation thread calls {@link #publish(ISensorSimulator)} once
+ * per tick, which replaces the current {@link SensorSnapshot}.
+ * Connections only read that snapshot and never touch the user
+ * interface. Changes requested by clients are queued and applied
+ * by the simulation thread on its next tick; until then, they are
+ * already visible in the published snapshot.
+ *
+ * A {@link Listener} is told about every snapshot published for a tick.
+ *
+ * @author Peli
+ */
+public class SensorState {
+
+	/**
+	 * Latest snapshot, replaced as a whole.
+	 */
+	private final AtomicReference<SensorSnapshot> mSnapshot;
+
+	/**
+	 * Changes not yet applied to the simulator.
+	 */
+	private final ConcurrentLinkedQueue<Change> mChanges;
+
+	/**
+	 * Reads per channel since the last tick, shown as emulator refresh.
+	 */
+	private final AtomicIntegerArray mReads;
+
+	private final CopyOnWriteArrayList<Listener> mListeners;
+
+	/**
+	 * Only used by the simulation thread.
+	 */
+	private long mTick;
+
+	public SensorState() {
+		mSnapshot = new AtomicReference<SensorSnapshot>(SensorSnapshot.empty());
+		mChanges = new ConcurrentLinkedQueue<Change>();
+		mReads = new AtomicIntegerArray(SensorRegistry.size());
+		mListeners = new CopyOnWriteArrayList<Listener>();
+		mTick = 0;
+	}
+
+	/**
+	 * @return latest snapshot, never null. May be called from any thread.
+	 */
+	public SensorSnapshot getSnapshot() {
+		return mSnapshot.get();
+	}
+
+	/**
+	 * Receives the snapshot of every tick, on the simulation thread.
+	 * Has to return quickly, e.g. by handing the snapshot to another thread.
+	 */
+	public interface Listener {
+		public void snapshotPublished(SensorSnapshot snapshot);
+	}
+
+	public void addListener(Listener listener) {
+		mListeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		mListeners.remove(listener);
+	}
+
+	/**
+	 * Enables or disables a channel. May be called from any thread.
+	 */
+	public void setEnabled(int channel, boolean enable) {
+		change(new Change(channel, enable));
+	}
+
+	/**
+	 * Sets the update rate of a channel. May be called from any thread.
+	 */
+	public void setCurrentUpdateRate(int channel, double updatesPerSecond) {
+		change(new Change(channel, updatesPerSecond));
+	}
+
+	/**
+	 * Counts a read of a channel by a client. May be called from any thread.
+	 */
+	public void countRead(int channel) {
+		mReads.incrementAndGet(channel);
+		SensorMetrics.get().countRead(channel);
+	}
+
+	/**
+	 * Applies the queued changes to the simulator and publishes a new
+	 * snapshot. Has to be called from the thread that owns the
+	 * simulator's user interface.
+	 *
+	 * @param sensorSimulator, simulator to update and read
+	 * @return number of enabled channels whose values changed
+	 */
+	public int publish(ISensorSimulator sensorSimulator) {
+		SensorSnapshot previous = mSnapshot.get();
+		Change change;
+		while ((change = mChanges.poll()) != null) {
+			change.apply(sensorSimulator);
+		}
+		for (int i = 0; i < mReads.length(); i++) {
+			int reads = mReads.getAndSet(i, 0);
+			SensorChannel channel = SensorRegistry.get(i);
+			for (int j = 0; j < reads; j++) {
+				channel.refresh(sensorSimulator);
+			}
+		}
+
+		mTick++;
+		SensorSnapshot captured = SensorSnapshot.capture(sensorSimulator, mTick);
+		SensorSnapshot next;
+		while (true) {
+			SensorSnapshot current = mSnapshot.get();
+			// changes queued after the poll above are not in the
+			// simulator yet, keep them visible:
+			next = captured;
+			Iterator<Change> it = mChanges.iterator();
+			while (it.hasNext()) {
+				next = it.next().apply(next);
+			}
+			if (mSnapshot.compareAndSet(current, next)) {
+				break;
+			}
+		}
+		Iterator<Listener> listeners = mListeners.iterator();
+		while (listeners.hasNext()) {
+			listeners.next().snapshotPublished(next);
+		}
+		return captured.countChanged(previous);
+	}
+
+	/**
+	 * Queues a change and makes it visible right away.
+	 */
+	private void change(Change change) {
+		mChanges.add(change);
+		while (true) {
+			SensorSnapshot current = mSnapshot.get();
+			if (mSnapshot.compareAndSet(current, change.apply(current))) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Change of a channel setting requested by a client.
+	 */
+	private static class Change {
+		private final int mChannel;
+		private final boolean mRate;
+		private final boolean mEnable;
+		private final double mUpdatesPerSecond;
+
+		Change(int channel, boolean enable) {
+			mChannel = channel;
+			mRate = false;
+			mEnable = enable;
+			mUpdatesPerSecond = 0;
+		}
+
+		Change(int channel, double updatesPerSecond) {
+			mChannel = channel;
+			mRate = true;
+			mEnable = false;
+			mUpdatesPerSecond = updatesPerSecond;
+		}
+
+		void apply(ISensorSimulator sensorSimulator) {
+			SensorChannel channel = SensorRegistry.get(mChannel);
+			if (mRate) {
+				channel.setCurrentUpdateRate(sensorSimulator, mUpdatesPerSecond);
+			} else {
+				channel.setEnabled(sensorSimulator, mEnable);
+			}
+		}
+
+		SensorSnapshot apply(SensorSnapshot snapshot) {
+			if (mRate) {
+				return snapshot.withCurrentUpdateRate(mChannel, mUpdatesPerSecond);
+			} else {
+				return snapshot.withEnabled(mChannel, mEnable);
+			}
+		}
+	}
+}
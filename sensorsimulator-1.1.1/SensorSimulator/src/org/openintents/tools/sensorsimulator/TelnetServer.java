@@ -83,6 +83,10 @@ public class TelnetServer{
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
+		if (serverSocket == null) {
+			mSensorSimulator.addMessage("Telnet connection to port " + port + " failed");
+			return;
+		}
 		try {
 			out = new PrintStream(serverSocket.getOutputStream());
 		} catch (IOException e) {
@@ -108,13 +112,25 @@ public class TelnetServer{
 		return false;
 	}
 
+	/**
+	 * Sends one command to the console of the emulator.
+	 *
+	 * @param command, command line without line terminator
+	 */
+	public void sendCommand(String command) {
+		long start = System.nanoTime();
+		out.println(command);
+		EventRecorder.get().telnetCommand(command, port,
+				System.nanoTime() - start);
+	}
+
 	/**
 	 * Used to change power capacity.
 	 *
 	 * @param value, integer value of desired capacity
 	 */
 	public void changePower(int value) {
-		out.println("power capacity "+Integer.toString(value));
+		sendCommand("power capacity "+Integer.toString(value));
 
 	}
 
@@ -125,9 +141,9 @@ public class TelnetServer{
 	 */
 	public void changePresence(boolean presence) {
 		if(presence){
-			out.println("power present true");
+			sendCommand("power present true");
 		}else{
-			out.println("power present false");
+			sendCommand("power present false");
 		}
 	}
 
@@ -138,9 +154,9 @@ public class TelnetServer{
 	 */
 	public void changeAC(boolean ac) {
 		if(ac){
-			out.println("power ac on");
+			sendCommand("power ac on");
 		}else{
-			out.println("power ac off");
+			sendCommand("power ac off");
 		}
 	}
 
@@ -150,7 +166,7 @@ public class TelnetServer{
 	 * @param selectedItem, Object
 	 */
 	public void changeHealth(Object selectedItem) {
-		out.println("power health "+selectedItem.toString());
+		sendCommand("power health "+selectedItem.toString());
 	}
 
 	/**
@@ -159,7 +175,7 @@ public class TelnetServer{
 	 * @param selectedItem, Object
 	 */
 	public void changeStatus(Object selectedItem) {
-		out.println("power status "+selectedItem.toString());
+		sendCommand("power status "+selectedItem.toString());
 	}
 
 	/**
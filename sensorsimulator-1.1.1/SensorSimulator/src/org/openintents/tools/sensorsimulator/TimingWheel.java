@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.tools.sensorsimulator;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs periodic tasks, like the pushes of subscriptions, each at its
+ * own period, at a cost that does not depend on how many there are.
+ *
+ * Time advances in ticks of a fixed length. A timer is kept in one
+ * slot of a hierarchy of wheels: the first wheel has a slot for each
+ * of the next SLOTS ticks, the second a slot for each of the next
+ * SLOTS rounds of the first, and so on. Adding and cancelling a timer
+ * are constant time list operations. Each tick runs the timers of one
+ * slot of the first wheel; whenever a wheel completes a round, the next
+ * slot of the wheel above is moved down. Periods are kept in
+ * microseconds, so a period that is not a whole number of ticks keeps
+ * its average rate.
+ *
+ * The wheel is driven by a task on the given executor, which also runs
+ * the timers, and only while there are any. A timer that is late by
+ * more than a period skips the pushes it missed instead of catching up.
+ *
+ * @author Peli
+ */
+public class TimingWheel {
+
+	/**
+	 * Length of a tick, the shortest period pushes are timed by.
+	 */
+	public static final long DEFAULT_TICK_MICROS = 1000;
+
+	private static final int SLOT_BITS = 6;
+	private static final int SLOTS = 1 << SLOT_BITS;
+	private static final int SLOT_MASK = SLOTS - 1;
+	private static final int LEVELS = 4;
+
+	/**
+	 * Longest distance in ticks a timer can be placed at. Timers
+	 * further away are placed at the end and moved on from there.
+	 */
+	private static final long RANGE = 1L << (SLOT_BITS * LEVELS);
+
+	/**
+	 * A task run periodically.
+	 */
+	public class Timer implements SensorFanout.Subscription {
+		private final Runnable mTask;
+		private final long mPeriodMicros;
+		private long mNextMicros;
+		private long mDeadline;
+		private volatile boolean mCancelled;
+
+		/**
+		 * Whether the timer is in a slot, and not taken out to run.
+		 */
+		private boolean mLinked;
+		private Timer mPrev;
+		private Timer mNext;
+
+		Timer(Runnable task, long periodMicros) {
+			mTask = task;
+			mPeriodMicros = periodMicros;
+		}
+
+		/**
+		 * Stops running the task. It may still be running right now.
+		 */
+		public void cancel() {
+			synchronized (TimingWheel.this) {
+				if (mCancelled) return;
+				mCancelled = true;
+				mCount--;
+				if (mLinked) {
+					unlink(this);
+				}
+			}
+		}
+	}
+
+	private final ScheduledExecutorService mExecutor;
+
+	private final long mTickMicros;
+
+	private final long mStartNanos;
+
+	/**
+	 * Empty list heads of the slots, the slots of the first wheel first.
+	 */
+	private final Timer[] mSlots;
+
+	private final Runnable mDriver;
+
+	// guarded by this:
+	private long mTick;
+	private long mNow;
+	private int mCount;
+	private long mFired;
+	private ScheduledFuture<?> mDriverFuture;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param executor, executor the timers run on
+	 * @param tickMicros, length of a tick in microseconds
+	 */
+	public TimingWheel(ScheduledExecutorService executor, long tickMicros) {
+		mExecutor = executor;
+		mTickMicros = Math.max(1, tickMicros);
+		mStartNanos = System.nanoTime();
+		mSlots = new Timer[LEVELS * SLOTS];
+		for (int i = 0; i < mSlots.length; i++) {
+			Timer head = new Timer(null, 0);
+			head.mPrev = head;
+			head.mNext = head;
+			mSlots[i] = head;
+		}
+		mDriver = new Runnable() {
+			public void run() {
+				advance();
+			}
+		};
+		mTick = 0;
+		mCount = 0;
+		mFired = 0;
+	}
+
+	/**
+	 * Runs a task every period, the first time one period from now.
+	 *
+	 * @param task, task to run on the executor
+	 * @param periodMicros, time between two runs
+	 * @return the timer, to cancel it
+	 */
+	public Timer schedule(Runnable task, long periodMicros) {
+		Timer timer = new Timer(task, Math.max(1, periodMicros));
+		synchronized (this) {
+			if (mCount == 0) {
+				// nothing to run until now, jump there.
+				mNow = currentTick();
+				mTick = mNow;
+			}
+			timer.mNextMicros = currentMicros() + timer.mPeriodMicros;
+			timer.mDeadline = Math.max(mTick + 1, timer.mNextMicros / mTickMicros);
+			insert(timer);
+			mCount++;
+			if (mDriverFuture == null) {
+				mDriverFuture = mExecutor.scheduleAtFixedRate(mDriver,
+						mTickMicros, mTickMicros, TimeUnit.MICROSECONDS);
+			}
+		}
+		return timer;
+	}
+
+	/**
+	 * @return number of scheduled timers.
+	 */
+	public synchronized int size() {
+		return mCount;
+	}
+
+	/**
+	 * @return number of times a timer ran.
+	 */
+	public synchronized long getFired() {
+		return mFired;
+	}
+
+	/**
+	 * @return length of a tick in microseconds.
+	 */
+	public long getTickMicros() {
+		return mTickMicros;
+	}
+
+	private long currentMicros() {
+		return (System.nanoTime() - mStartNanos) / 1000;
+	}
+
+	private long currentTick() {
+		return currentMicros() / mTickMicros;
+	}
+
+	/**
+	 * Moves on to the current tick, running the timers that are due.
+	 * Runs on the executor.
+	 */
+	private void advance() {
+		long now = currentTick();
+		while (true) {
+			Timer due;
+			synchronized (this) {
+				mNow = now;
+				if (mCount == 0) {
+					mTick = now;
+					if (mDriverFuture != null) {
+						mDriverFuture.cancel(false);
+						mDriverFuture = null;
+					}
+					return;
+				}
+				if (mTick >= now) {
+					return;
+				}
+				mTick++;
+				int index = (int) (mTick & SLOT_MASK);
+				for (int level = 1; level < LEVELS && index == 0; level++) {
+					index = (int) ((mTick >> (SLOT_BITS * level)) & SLOT_MASK);
+					cascade(level * SLOTS + index);
+				}
+				due = detach(mSlots[(int) (mTick & SLOT_MASK)]);
+			}
+			while (due != null) {
+				Timer timer = due;
+				due = timer.mNext;
+				timer.mNext = null;
+				run(timer);
+			}
+		}
+	}
+
+	/**
+	 * Runs a due timer and places it at its next deadline.
+	 */
+	private void run(Timer timer) {
+		if (timer.mCancelled) {
+			return;
+		}
+		try {
+			timer.mTask.run();
+		} catch (RuntimeException e) {
+			System.err.println("Push task failed, stopped: " + e);
+			timer.cancel();
+		}
+		synchronized (this) {
+			mFired++;
+			if (timer.mCancelled) {
+				return;
+			}
+			timer.mNextMicros += timer.mPeriodMicros;
+			long earliest = Math.max(mTick + 1, mNow);
+			long late = earliest * mTickMicros - timer.mNextMicros;
+			if (late > 0) {
+				// skip the pushes that are already overdue.
+				long periods = (late + timer.mPeriodMicros - 1) / timer.mPeriodMicros;
+				timer.mNextMicros += periods * timer.mPeriodMicros;
+			}
+			timer.mDeadline = timer.mNextMicros / mTickMicros;
+			insert(timer);
+		}
+	}
+
+	/**
+	 * Puts a timer into the slot of its deadline.
+	 */
+	private void insert(Timer timer) {
+		long deadline = timer.mDeadline;
+		long ticks = deadline - mTick;
+		int slot;
+		if (ticks < SLOTS) {
+			slot = (int) (deadline & SLOT_MASK);
+		} else if (ticks >= RANGE) {
+			// beyond the last wheel, wait at its far end.
+			int level = LEVELS - 1;
+			slot = level * SLOTS + (int) (((mTick + RANGE - 1)
+					>> (SLOT_BITS * level)) & SLOT_MASK);
+		} else {
+			int level = 1;
+			while (ticks >= 1L << (SLOT_BITS * (level + 1))) {
+				level++;
+			}
+			slot = level * SLOTS + (int) ((deadline >> (SLOT_BITS * level)) & SLOT_MASK);
+		}
+		Timer head = mSlots[slot];
+		timer.mPrev = head.mPrev;
+		timer.mNext = head;
+		head.mPrev.mNext = timer;
+		head.mPrev = timer;
+		timer.mLinked = true;
+	}
+
+	/**
+	 * Moves the timers of a slot of a higher wheel down.
+	 */
+	private void cascade(int slot) {
+		Timer timer = detach(mSlots[slot]);
+		while (timer != null) {
+			Timer next = timer.mNext;
+			insert(timer);
+			timer = next;
+		}
+	}
+
+	/**
+	 * Empties a slot.
+	 *
+	 * @return its timers as a list linked by mNext, or null
+	 */
+	private Timer detach(Timer head) {
+		if (head.mNext == head) {
+			return null;
+		}
+		Timer first = head.mNext;
+		head.mPrev.mNext = null;
+		head.mPrev = head;
+		head.mNext = head;
+		for (Timer timer = first; timer != null; timer = timer.mNext) {
+			timer.mPrev = null;
+			timer.mLinked = false;
+		}
+		return first;
+	}
+
+	private static void unlink(Timer timer) {
+		timer.mPrev.mNext = timer.mNext;
+		timer.mNext.mPrev = timer.mPrev;
+		timer.mPrev = null;
+		timer.mNext = null;
+		timer.mLinked = false;
+	}
+}
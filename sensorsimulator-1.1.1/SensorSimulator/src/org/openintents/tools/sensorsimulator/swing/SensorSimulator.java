@@ -45,6 +45,7 @@ import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Random;
@@ -54,6 +55,7 @@ import javax.swing.BoxLayout;
 import javax.swing.ButtonGroup;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -73,10 +75,13 @@ import javax.swing.event.ChangeListener;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
 
+import org.openintents.tools.sensorsimulator.EventRecorder;
 import org.openintents.tools.sensorsimulator.FileData;
 import org.openintents.tools.sensorsimulator.IMobilePanel;
 import org.openintents.tools.sensorsimulator.ISensorSimulator;
 import org.openintents.tools.sensorsimulator.SensorServer;
+import org.openintents.tools.sensorsimulator.SensorSimulatorInstances;
+import org.openintents.tools.sensorsimulator.SensorState;
 import org.openintents.tools.sensorsimulator.TelnetServer;
 import org.openintents.tools.sensorsimulator.WiiMoteData;
 
@@ -99,6 +104,12 @@ public class SensorSimulator extends JPanel implements ISensorSimulator,
 
 	// Simulation delay:
 	private int delay;
+
+	/**
+	 * Start of the previous tick, 0 before the first one.
+	 */
+	private long mLastTickNanos;
+
 	private Timer timer;
 
 	// for measuring updates:
@@ -140,6 +151,9 @@ public class SensorSimulator extends JPanel implements ISensorSimulator,
 	// Text fields:
 	private JTextField socketText;
 
+	// Server mode, applied when the socket port is set:
+	private JComboBox<String> serverModeBox;
+
 	// Text fields and button for Telnet socket port
 	private JTextField telnetSocketText;
 
@@ -288,10 +302,17 @@ public class SensorSimulator extends JPanel implements ISensorSimulator,
 	private JFileChooser fileChooser;
 	private JButton openButton;
 
-	// Server for sending out sensor data
+	// Server for sending out sensor data, null if the tab is served
+	// by the server of another one
 	private SensorServer mSensorServer;
+
+	// Instances served by our server as well, or null
+	private SensorSimulatorInstances mServedInstances;
 	private int mIncomingConnections;
 
+	// Sensor values published to the server on every tick
+	private SensorState mSensorState;
+
 	// telnet server variable
 	private TelnetServer mTelnetServer;
 
@@ -299,6 +320,16 @@ public class SensorSimulator extends JPanel implements ISensorSimulator,
 	FileData replayData = new FileData();
 
 	public SensorSimulator() {
+		this(true);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param listen, whether to start a server, false for a tab served
+	 *                by the server of another one
+	 */
+	public SensorSimulator(boolean listen) {
 		// Initialize variables
 		mIncomingConnections = 0;
 
@@ -342,6 +373,24 @@ public class SensorSimulator extends JPanel implements ISensorSimulator,
 		socketButton.setActionCommand(setPortString);
 		socketButton.addActionListener(this);
 
+		c.gridx = 0;
+		c.gridy++;
+		c.gridwidth = 1;
+		JLabel serverModeLabel = new JLabel("Server mode", JLabel.LEFT);
+		leftPanel.add(serverModeLabel, c);
+
+		c.gridx = 1;
+		serverModeBox = new JComboBox<String>(new String[] {
+				SensorServer.MODE_THREADS, SensorServer.MODE_SELECTOR,
+				SensorServer.MODE_POOL, SensorServer.MODE_VIRTUAL });
+		leftPanel.add(serverModeBox, c);
+
+		c.gridx = 2;
+		JButton statsButton = new JButton("Stats");
+		leftPanel.add(statsButton, c);
+		statsButton.setActionCommand(showStats);
+		statsButton.addActionListener(this);
+
 		// add telnet JLabel, text field and button
 		c.gridx = 0;
 		c.gridy++;
@@ -1384,8 +1433,16 @@ public class SensorSimulator extends JPanel implements ISensorSimulator,
 					.append("Socket exception. Could not obtain IP addresses.");
 		}
 
+		// Publish the initial sensor state before clients connect:
+		mSensorState = new SensorState();
+		mSensorState.publish(this);
+
 		// Set up the server:
-		mSensorServer = new SensorServer(this);
+		if (listen) {
+			mSensorServer = new SensorServer(this);
+		} else {
+			addMessage("Served on the port of the first tab, select() it by name.");
+		}
 
 		// Variables for timing:
 		updateSensorCount = 0;
@@ -1629,6 +1686,8 @@ public class SensorSimulator extends JPanel implements ISensorSimulator,
 			doTimer();
 		} else if (action.equals(setPortString)) {
 			setPort();
+		} else if (action.equals(showStats)) {
+			showStats();
 		} else if (action.equals(connectViaTelnet)) {
 			connectViaTelnet();
 		} else if (action.equals(emulateBattery)) {
@@ -1683,6 +1742,8 @@ public class SensorSimulator extends JPanel implements ISensorSimulator,
 //
 //		updateFromFile();
 
+		long start = System.nanoTime();
+
 		// Update sensors:
 		mobile.updateSensorPhysics();
 
@@ -1690,6 +1751,14 @@ public class SensorSimulator extends JPanel implements ISensorSimulator,
 
 		mobile.updateUserSettings();
 
+		// Hand the new values to the connections:
+		int changed = mSensorState.publish(this);
+		EventRecorder.get().tick(mSensorState.getSnapshot().getTick(),
+				System.nanoTime() - start,
+				mLastTickNanos == 0 ? 0 : start - mLastTickNanos,
+				delay * 1000000L, changed);
+		mLastTickNanos = start;
+
 		// Measure refresh
 		updateSensorRefresh();
 
@@ -1981,12 +2050,43 @@ public class SensorSimulator extends JPanel implements ISensorSimulator,
 	 * Sets the socket port for listening
 	 */
 	private void setPort() {
-		addMessage("Closing port " + mSensorServer.port);
-		// First close all old ports:
-		mSensorServer.stop();
+		if (mSensorServer != null) {
+			addMessage("Closing port " + mSensorServer.port);
+			// First close all old ports:
+			mSensorServer.stop();
+		}
 
 		// now restart
 		mSensorServer = new SensorServer(this);
+		if (mServedInstances != null) {
+			mSensorServer.serveInstances(mServedInstances);
+		}
+	}
+
+	/**
+	 * Lets clients of our server select any of the instances.
+	 *
+	 * @param instances, all instances, this one included
+	 */
+	public void serveInstances(SensorSimulatorInstances instances) {
+		mServedInstances = instances;
+		if (mSensorServer != null) {
+			mSensorServer.serveInstances(instances);
+		}
+	}
+
+	/**
+	 * Shows traffic statistics of all connections
+	 */
+	private void showStats() {
+		if (mSensorServer == null) {
+			addMessage("Served on the port of the first tab, see its stats.");
+			return;
+		}
+		ArrayList<String> lines = mSensorServer.mConnections.report();
+		for (int i = 0; i < lines.size(); i++) {
+			addMessage(lines.get(i));
+		}
 	}
 
 	/**
@@ -2057,6 +2157,16 @@ public class SensorSimulator extends JPanel implements ISensorSimulator,
 		return port;
 	}
 
+	/**
+	 * Get the mode the sensor server is started in.
+	 * 
+	 * @return SensorServer.MODE_THREADS, MODE_SELECTOR, MODE_POOL
+	 * or MODE_VIRTUAL.
+	 */
+	public String getServerMode() {
+		return (String) serverModeBox.getSelectedItem();
+	}
+
 	/**
 	 * Get telnet socket port number.
 	 * 
@@ -2268,6 +2378,10 @@ public class SensorSimulator extends JPanel implements ISensorSimulator,
 		return mobile;
 	}
 
+	public SensorState getSensorState() {
+		return mSensorState;
+	}
+
 	public boolean isSupportedTemperature() {
 		return mSupportedTemperature.isSelected();
 	}
@@ -2494,6 +2608,10 @@ public class SensorSimulator extends JPanel implements ISensorSimulator,
 		mEnabledInfrared.setSelected(enable);
 	}
 
+	public double[] getUpdateRatesCarbonMonoxide() {
+		return getSafeDoubleList(mUpdateRatesCarbonMonoxideText);
+	}
+
 	public double getDefaultUpdateRateCarbonMonoxide() {
 		return getSafeDouble(mDefaultUpdateRateCarbonMonoxideText);
 	}
@@ -2506,6 +2624,10 @@ public class SensorSimulator extends JPanel implements ISensorSimulator,
 		return mUpdateAverageCarbonMonoxide.isSelected();
 	}
 
+	public double[] getUpdateRatesRedGas() {
+		return getSafeDoubleList(mUpdateRatesRedGasText);
+	}
+
 	public double getDefaultUpdateRateRedGas() {
 		return getSafeDouble(mDefaultUpdateRateRedGasText);
 	}
@@ -2518,6 +2640,10 @@ public class SensorSimulator extends JPanel implements ISensorSimulator,
 		return mUpdateAverageRedGas.isSelected();
 	}
 
+	public double[] getUpdateRatesOxGas() {
+		return getSafeDoubleList(mUpdateRatesOxGasText);
+	}
+
 	public double getDefaultUpdateRateOxGas() {
 		return getSafeDouble(mDefaultUpdateRateOxGasText);
 	}
@@ -2530,6 +2656,10 @@ public class SensorSimulator extends JPanel implements ISensorSimulator,
 		return mUpdateAverageOxGas.isSelected();
 	}
 
+	public double[] getUpdateRatesHumidity() {
+		return getSafeDoubleList(mUpdateRatesHumidityText);
+	}
+
 	public double getDefaultUpdateRateHumidity() {
 		return getSafeDouble(mDefaultUpdateRateHumidityText);
 	}
@@ -2542,6 +2672,10 @@ public class SensorSimulator extends JPanel implements ISensorSimulator,
 		return mUpdateAverageHumidity.isSelected();
 	}
 
+	public double[] getUpdateRatesPressure() {
+		return getSafeDoubleList(mUpdateRatesPressureText);
+	}
+
 	public double getDefaultUpdateRatePressure() {
 		return getSafeDouble(mDefaultUpdateRatePressureText);
 	}
@@ -2554,6 +2688,10 @@ public class SensorSimulator extends JPanel implements ISensorSimulator,
 		return mUpdateAveragePressure.isSelected();
 	}
 
+	public double[] getUpdateRatesInfrared() {
+		return getSafeDoubleList(mUpdateRatesInfraredText);
+	}
+
 	public double getDefaultUpdateRateInfrared() {
 		return getSafeDouble(mDefaultUpdateRateInfraredText);
 	}
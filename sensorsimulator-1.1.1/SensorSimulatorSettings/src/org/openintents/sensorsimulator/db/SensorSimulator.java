@@ -78,6 +78,14 @@ public abstract class SensorSimulator {
 	 */
 	public static final String DEFAULT_SOCKET = "8010";
 	
+	/**
+	 * The key for the simulator instance to use, by name or id, for
+	 * SensorSimulators serving several on one socket. Empty for the
+	 * default one.
+	 * Value: 'Instance'.
+	 */
+	public static final String KEY_INSTANCE = "Instance";
+	
 	/**
 	 * Default projection of table columns.
 	 */
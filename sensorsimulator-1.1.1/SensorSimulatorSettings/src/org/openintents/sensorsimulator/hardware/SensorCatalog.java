@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.sensorsimulator.hardware;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Transports and sensors the SensorSimulator announced in its answer
+ * to hello(), kept for the whole connection so that the number of
+ * values and the update rates of a sensor need no round trip.
+ *
+ * Only what does not change while connected is taken from here;
+ * whether a sensor is enabled and its current rate are still asked.
+ *
+ * @author Peli
+ */
+class SensorCatalog {
+
+	private ArrayList<String> mSensors = new ArrayList<String>();
+	private HashMap<String, Integer> mNumValues = new HashMap<String, Integer>();
+	private HashMap<String, float[]> mRates = new HashMap<String, float[]>();
+	private HashMap<String, Float> mDefaultRates = new HashMap<String, Float>();
+	private HashMap<String, String> mTransports = new HashMap<String, String>();
+
+	/**
+	 * Takes over the lines of a hello() answer. Unknown lines are
+	 * skipped, newer SensorSimulators may add some.
+	 *
+	 * @param lines, lines following the number of lines
+	 */
+	SensorCatalog(String[] lines) {
+		for (int i = 0; i < lines.length; i++) {
+			String[] fields = lines[i].split("\t", -1);
+			if (fields[0].equals("transport") && fields.length >= 2) {
+				mTransports.put(fields[1], fields.length > 2 ? fields[2] : "");
+			} else if (fields[0].equals("sensor") && fields.length >= 7) {
+				try {
+					String name = fields[1];
+					mNumValues.put(name, Integer.valueOf(fields[3]));
+					mDefaultRates.put(name, Float.valueOf(fields[5]));
+					mRates.put(name, parseRates(fields[6]));
+					mSensors.add(name);
+				} catch (NumberFormatException e) {
+					// sensor left out, asked for if used.
+				}
+			}
+		}
+	}
+
+	private static float[] parseRates(String list) {
+		if (list.length() == 0) {
+			return null;
+		}
+		String[] items = list.split(",");
+		float[] rates = new float[items.length];
+		for (int i = 0; i < items.length; i++) {
+			rates[i] = Float.parseFloat(items[i]);
+		}
+		return rates;
+	}
+
+	/**
+	 * @return names of the supported sensors.
+	 */
+	String[] getSupportedSensors() {
+		return mSensors.toArray(new String[mSensors.size()]);
+	}
+
+	boolean isSupported(String sensor) {
+		return mNumValues.containsKey(sensor);
+	}
+
+	/**
+	 * @return number of values of a supported sensor.
+	 */
+	int getNumValues(String sensor) {
+		return mNumValues.get(sensor).intValue();
+	}
+
+	/**
+	 * @return update rates of a supported sensor, null if it has none.
+	 */
+	float[] getUpdateRates(String sensor) {
+		float[] rates = mRates.get(sensor);
+		return rates == null ? null : rates.clone();
+	}
+
+	/**
+	 * @return default update rate of a supported sensor.
+	 */
+	float getDefaultUpdateRate(String sensor) {
+		return mDefaultRates.get(sensor).floatValue();
+	}
+
+	/**
+	 * @return address of a transport the SensorSimulator offers,
+	 * "" if it needs none, or null if it is not offered.
+	 */
+	String getTransport(String name) {
+		return mTransports.get(name);
+	}
+}
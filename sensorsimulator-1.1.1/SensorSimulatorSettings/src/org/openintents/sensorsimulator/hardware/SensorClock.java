@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.sensorsimulator.hardware;
+
+/**
+ * Offset between the monotonic clock of the SensorSimulator and
+ * System.nanoTime() of this client, and the latency of the values
+ * delivered to the listeners (protocol version 12 and higher).
+ *
+ * The offset is estimated from answers to clock(): the server read
+ * its clock somewhere between sending the request and receiving the
+ * answer, so it is taken to be in the middle. The answer with the
+ * shortest round trip is the most accurate and is kept. As the two
+ * clocks may drift apart, a kept answer counts as a little less
+ * accurate the older it gets, so that later answers replace it.
+ *
+ * Latencies are counted in buckets of LATENCY_STEP_NANOS, enough
+ * for their percentiles without keeping every one.
+ *
+ * @author Peli
+ */
+class SensorClock {
+
+	/**
+	 * Round trip added to the kept answer per millisecond of its age.
+	 */
+	private static final long DRIFT_NANOS_PER_MS = 1000;
+
+	/**
+	 * Width of a latency bucket.
+	 */
+	private static final long LATENCY_STEP_NANOS = 100000;
+
+	/**
+	 * Number of latency buckets, the last counts all longer ones.
+	 */
+	private static final int LATENCY_BUCKETS = 5000;
+
+	private boolean mSynchronized;
+	private long mOffsetNanos;
+	private long mRoundTripNanos;
+	private long mSampleTime;
+
+	private int[] mLatencies;
+	private long mCount;
+	private long mSumNanos;
+	private long mMinNanos;
+	private long mMaxNanos;
+
+	SensorClock() {
+		mSynchronized = false;
+		mLatencies = new int[LATENCY_BUCKETS];
+		mCount = 0;
+		mSumNanos = 0;
+		mMinNanos = Long.MAX_VALUE;
+		mMaxNanos = 0;
+	}
+
+	/**
+	 * Adds an answer to clock().
+	 *
+	 * @param sentNanos, System.nanoTime() when the request was sent
+	 * @param serverMicros, time answered by the SensorSimulator
+	 * @param receivedNanos, System.nanoTime() when the answer arrived
+	 */
+	void addSample(long sentNanos, long serverMicros, long receivedNanos) {
+		long roundTrip = receivedNanos - sentNanos;
+		if (mSynchronized) {
+			long age = (receivedNanos - mSampleTime) / 1000000;
+			if (roundTrip > mRoundTripNanos + age * DRIFT_NANOS_PER_MS) {
+				return;
+			}
+		}
+		mOffsetNanos = sentNanos + roundTrip / 2 - serverMicros * 1000;
+		mRoundTripNanos = roundTrip;
+		mSampleTime = receivedNanos;
+		mSynchronized = true;
+	}
+
+	/**
+	 * @return whether an answer to clock() has been added.
+	 */
+	boolean isSynchronized() {
+		return mSynchronized;
+	}
+
+	/**
+	 * @return round trip of the answer the offset is taken from.
+	 */
+	long getRoundTripNanos() {
+		return mRoundTripNanos;
+	}
+
+	/**
+	 * Converts a time of the SensorSimulator to this client.
+	 *
+	 * @param serverMicros, time on the clock of the SensorSimulator
+	 * @return time in System.nanoTime(), 0 if not synchronized yet
+	 */
+	long toLocalNanos(long serverMicros) {
+		if (!mSynchronized) {
+			return 0;
+		}
+		return serverMicros * 1000 + mOffsetNanos;
+	}
+
+	/**
+	 * Counts the latency of a value delivered to a listener.
+	 *
+	 * @param latencyNanos, time from its generation to its delivery
+	 */
+	void addLatency(long latencyNanos) {
+		// an inexact offset may make short latencies negative.
+		long latency = Math.max(0, latencyNanos);
+		int bucket = (int) Math.min(LATENCY_BUCKETS - 1, latency / LATENCY_STEP_NANOS);
+		mLatencies[bucket]++;
+		mCount++;
+		mSumNanos += latency;
+		mMinNanos = Math.min(mMinNanos, latency);
+		mMaxNanos = Math.max(mMaxNanos, latency);
+	}
+
+	/**
+	 * @return number of latencies counted.
+	 */
+	long getCount() {
+		return mCount;
+	}
+
+	/**
+	 * Latency below which a share of the counted ones are, rounded
+	 * up to the end of its bucket.
+	 *
+	 * @param fraction, share between 0 and 1, 0.5 for the median
+	 * @return latency in nanoseconds, 0 if none counted
+	 */
+	long getPercentile(double fraction) {
+		if (mCount == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(fraction * mCount);
+		long seen = 0;
+		for (int i = 0; i < LATENCY_BUCKETS; i++) {
+			seen += mLatencies[i];
+			if (seen >= rank && seen > 0) {
+				return Math.min(mMaxNanos, (i + 1) * LATENCY_STEP_NANOS);
+			}
+		}
+		return mMaxNanos;
+	}
+
+	/**
+	 * @return summary of the latencies, in milliseconds.
+	 */
+	@Override
+	public String toString() {
+		if (mCount == 0) {
+			return "no stamped values delivered";
+		}
+		return mCount + " values, latency min " + millis(mMinNanos)
+			+ " mean " + millis(mSumNanos / mCount)
+			+ " median " + millis(getPercentile(0.5))
+			+ " p99 " + millis(getPercentile(0.99))
+			+ " max " + millis(mMaxNanos) + " ms"
+			+ " (clock round trip " + millis(mRoundTripNanos) + " ms)";
+	}
+
+	private static String millis(long nanos) {
+		return String.valueOf(Math.round(nanos / 10000.0) / 100.0);
+	}
+}
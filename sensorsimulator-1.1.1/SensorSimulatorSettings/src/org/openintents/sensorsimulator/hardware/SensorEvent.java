@@ -43,6 +43,19 @@ public class SensorEvent extends Object{
 	public String time;
 	public float[] values = null;
 	public int type;
+	
+	/**
+	 * Simulation tick of the SensorSimulator the values stem from,
+	 * 0 if not known (protocol version 12 and higher only).
+	 */
+	public long tick;
+	
+	/**
+	 * Time the values were generated at the SensorSimulator, in
+	 * nanoseconds of System.nanoTime() of this process, so that
+	 * System.nanoTime() - timestamp is their latency. 0 if not known.
+	 */
+	public long timestamp;
 	@SuppressWarnings("unused")
 	private Context mContext;
 	
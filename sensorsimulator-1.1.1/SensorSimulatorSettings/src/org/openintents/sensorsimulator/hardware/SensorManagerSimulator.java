@@ -216,6 +216,39 @@ public class SensorManagerSimulator {
 		mClient.connect();
 	};
 	
+	/**
+	 * Only receive changes of a sensor larger than the deadband,
+	 * e.g. for slowly changing gas or pressure values. Has to be
+	 * set before the listener for the sensor is registered.
+	 * 
+	 * @param type, sensor type, e.g. Sensor.TYPE_PRESSURE
+	 * @param deadband, smallest change received, 0 for every change
+	 */
+	public void setDeadband(int type, float deadband) {
+		mClient.setDeadband(type, deadband);
+	}
+	
+	/**
+	 * Receive the sensor values the Sensor Simulator multicasts, instead
+	 * of connecting to it. The Sensor Simulator has to be started with
+	 * -Dsensorsimulator.multicast=true.
+	 * 
+	 * @param group, multicast group address, e.g. "239.255.83.83"
+	 * @param port, port the Sensor Simulator sends to, e.g. 8011
+	 */
+	public void connectSimulatorMulticast(String group, int port) {
+		mClient.connectMulticast(group, port);
+	}
+	
+	/**
+	 * Receive the sensor values the Sensor Simulator multicasts
+	 * to its default group and port.
+	 */
+	public void connectSimulatorMulticast() {
+		mClient.connectMulticast(SensorMulticastReceiver.DEFAULT_GROUP,
+				SensorMulticastReceiver.DEFAULT_PORT);
+	}
+	
 	/**
 	 * Disconnect from the Sensor Simulator.
 	 */
@@ -230,6 +263,16 @@ public class SensorManagerSimulator {
 		return mClient.connected;
 	}
 	
+	/**
+	 * Returns a summary of the time from the generation of sensor values
+	 * at the Sensor Simulator to their delivery to the listeners: count,
+	 * min, mean, median, 99th percentile and max in milliseconds. The
+	 * latency of a single event is System.nanoTime() - event.timestamp.
+	 */
+	public String getLatencySummary() {
+		return mClient.getLatencySummary();
+	}
+	
 	/**
 	 * When we register Sensor we use SensorManager.getDefaultSensor(SENSOR.TYPE).
 	 * This method simulates that command. If it's first time we are registering new
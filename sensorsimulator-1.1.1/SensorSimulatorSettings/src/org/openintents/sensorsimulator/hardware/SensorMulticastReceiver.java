@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2008-2010 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.sensorsimulator.hardware;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.util.ArrayList;
+
+import android.content.Context;
+import android.net.wifi.WifiManager;
+import android.util.Log;
+
+/**
+ * Receives the ticks the SensorSimulator multicasts to a group
+ * (see SensorMulticastPublisher of the SensorSimulator), and keeps
+ * the latest values of every sensor.
+ *
+ * The datagrams carry sequence numbers, so lost datagrams are
+ * counted, and late datagrams are ignored. On a real device the
+ * application needs the permission
+ * android.permission.CHANGE_WIFI_MULTICAST_STATE, otherwise Wi-Fi
+ * may filter the datagrams.
+ *
+ * @author Peli
+ */
+class SensorMulticastReceiver implements Runnable {
+
+	static final String TAG = "SensorMulticast";
+
+	static final int MAGIC = 0x53534d43; // "SSMC"
+	static final byte VERSION = 1;
+	static final byte FLAG_SUPPORTED = 1;
+	static final byte FLAG_ENABLED = 2;
+
+	public static final String DEFAULT_GROUP = "239.255.83.83";
+	public static final int DEFAULT_PORT = 8011;
+
+	private static final int MAX_SENSOR = SensorNames.SENSOR_MAX_BIT;
+
+	private MulticastSocket mSocket;
+	private InetAddress mGroup;
+	private WifiManager.MulticastLock mLock;
+	private Thread mThread;
+	private volatile boolean mRunning;
+
+	// guarded by this:
+	private float[][] mValues = new float[MAX_SENSOR][];
+	private boolean[] mEnabled = new boolean[MAX_SENSOR];
+	private ArrayList<String> mSupported = new ArrayList<String>();
+	private long mSequence;
+	private long mTick;
+	private long mTickTime;
+	private long mReceived;
+	private long mLost;
+
+	/**
+	 * Constructor, joins the group.
+	 *
+	 * @param context, Context used to keep Wi-Fi multicast open, may be null
+	 * @param group, multicast group address
+	 * @param port, port the SensorSimulator sends to
+	 */
+	SensorMulticastReceiver(Context context, String group, int port) throws IOException {
+		mGroup = InetAddress.getByName(group);
+		mSocket = new MulticastSocket(port);
+		mSocket.joinGroup(mGroup);
+		if (context != null) {
+			try {
+				WifiManager wifi = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
+				if (wifi != null) {
+					mLock = wifi.createMulticastLock(TAG);
+					mLock.setReferenceCounted(false);
+					mLock.acquire();
+				}
+			} catch (SecurityException e) {
+				Log.w(TAG, "No permission CHANGE_WIFI_MULTICAST_STATE, datagrams may be filtered.");
+			}
+		}
+	}
+
+	/**
+	 * Starts receiving on a thread of its own.
+	 */
+	void start() {
+		mRunning = true;
+		mThread = new Thread(this, TAG);
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	public void run() {
+		byte[] buffer = new byte[2048];
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		while (mRunning) {
+			try {
+				packet.setLength(buffer.length);
+				mSocket.receive(packet);
+				parse(buffer, packet.getLength());
+			} catch (IOException e) {
+				if (mRunning) {
+					Log.w(TAG, "Receiving failed: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Takes over the values of one datagram.
+	 */
+	private void parse(byte[] data, int length) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, length));
+		if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+			Log.w(TAG, "Unknown datagram ignored.");
+			return;
+		}
+		long sequence = in.readLong();
+		long tick = in.readLong();
+		long tickTime = in.readLong();
+		in.readLong(); // time sent
+
+		synchronized (this) {
+			if (mReceived > 0 && sequence <= mSequence && sequence != 1) {
+				// arrived late, a newer tick is already known.
+				return;
+			}
+			if (mReceived > 0 && sequence > mSequence + 1) {
+				mLost += sequence - mSequence - 1;
+			}
+			mSequence = sequence;
+			mTick = tick;
+			mTickTime = tickTime;
+			mSupported.clear();
+
+			int count = in.readShort();
+			for (int k = 0; k < count; k++) {
+				String sensor = in.readUTF();
+				byte flags = in.readByte();
+				int num = in.readByte();
+				if ((flags & FLAG_SUPPORTED) != 0) {
+					mSupported.add(sensor);
+				}
+				int i = SensorNames.getSensorInteger(sensor) - 1;
+				boolean known = (i >= 0 && i < MAX_SENSOR);
+				if (known) {
+					mEnabled[i] = (flags & FLAG_ENABLED) != 0;
+					if (mValues[i] == null || mValues[i].length != num) {
+						mValues[i] = new float[num];
+					}
+				}
+				for (int j = 0; j < num; j++) {
+					float val = in.readFloat();
+					if (known) {
+						mValues[i][j] = val;
+					}
+				}
+			}
+			mReceived++;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Waits for the first datagram.
+	 *
+	 * @param timeoutMillis, longest time to wait
+	 * @return true if a datagram has been received.
+	 */
+	synchronized boolean waitForTick(long timeoutMillis) {
+		long end = System.currentTimeMillis() + timeoutMillis;
+		while (mReceived == 0) {
+			long wait = end - System.currentTimeMillis();
+			if (wait <= 0) {
+				return false;
+			}
+			try {
+				wait(wait);
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return names of the supported sensors, as of the latest tick.
+	 */
+	synchronized String[] getSupportedSensors() {
+		return mSupported.toArray(new String[mSupported.size()]);
+	}
+
+	/**
+	 * Copies the latest values of all enabled sensors.
+	 *
+	 * @param values, values per sensor integer - 1, null entries are skipped
+	 * @param received, set to true for every sensor values were copied for
+	 */
+	synchronized void readValues(float[][] values, boolean[] received) {
+		for (int i = 0; i < MAX_SENSOR && i < values.length; i++) {
+			if (mEnabled[i] && mValues[i] != null && values[i] != null) {
+				int num = Math.min(mValues[i].length, values[i].length);
+				System.arraycopy(mValues[i], 0, values[i], 0, num);
+				received[i] = true;
+			}
+		}
+	}
+
+	synchronized long getTick() {
+		return mTick;
+	}
+
+	/**
+	 * @return time of the latest tick at the SensorSimulator, milliseconds since 1970.
+	 */
+	synchronized long getTickTime() {
+		return mTickTime;
+	}
+
+	synchronized long getReceived() {
+		return mReceived;
+	}
+
+	/**
+	 * @return number of datagrams lost on the way.
+	 */
+	synchronized long getLost() {
+		return mLost;
+	}
+
+	/**
+	 * Leaves the group and stops receiving.
+	 */
+	void close() {
+		mRunning = false;
+		try {
+			mSocket.leaveGroup(mGroup);
+		} catch (IOException e) {
+			// closed anyway.
+		}
+		mSocket.close();
+		if (mLock != null && mLock.isHeld()) {
+			mLock.release();
+		}
+	}
+}
@@ -20,7 +20,13 @@
  */
 
 package org.openintents.sensorsimulator.hardware;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
@@ -64,15 +70,146 @@ final class SensorSimulatorClient {
 	 */
 	private static final boolean LOG_PROTOCOL = false;
 	
+	/**
+	 * Highest protocol version this client speaks.
+	 */
+	private static final int PROTOCOL_VERSION = 12;
+	
+	/**
+	 * Answers to clock() taken right after connecting, to estimate
+	 * the offset to the clock of the SensorSimulator.
+	 */
+	private static final int CLOCK_PROBES = 5;
+	
+	/**
+	 * Push periods a subscribed sensor may stay silent before it is
+	 * read again instead, and the shortest such wait.
+	 */
+	private static final int PUSH_STALE_PERIODS = 3;
+	private static final long PUSH_STALE_MIN_MS = 1000;
+	
+	/**
+	 * Time between full samples the SensorSimulator pushes for a
+	 * subscription with a deadband, its default keyframe period.
+	 */
+	private static final long KEYFRAME_MS = 5000;
+	
+	/**
+	 * How often the client promises to send something
+	 * (protocol version 10 and higher). The SensorSimulator closes
+	 * the connection after a few intervals without a request.
+	 */
+	private static final int HEARTBEAT_INTERVAL_MS = 10000;
+	
+	/**
+	 * How long to wait for the answer to getProtocolVersion().
+	 * Older SensorSimulator versions do not answer at all.
+	 */
+	private static final int PROTOCOL_PROBE_TIMEOUT_MS = 1000;
+	
+	/**
+	 * First line of a value pushed by the SensorSimulator
+	 * for a subscribed sensor.
+	 */
+	private static final String SAMPLE = "sample()";
+	
+	/**
+	 * First line of a change pushed for a sensor subscribed
+	 * with a deadband (protocol version 8 and higher).
+	 */
+	private static final String DELTA = "delta()";
+	
+	/**
+	 * Whether to switch to binary frames if the SensorSimulator
+	 * supports them (protocol version 4 and higher).
+	 */
+	private static final boolean USE_BINARY_PROTOCOL = true;
+	
+	/**
+	 * Opcodes of the binary frames, see SensorBinaryProtocol
+	 * of the SensorSimulator.
+	 */
+	private static final byte OP_GET_SUPPORTED_SENSORS = 1;
+	private static final byte OP_ENABLE_SENSOR = 2;
+	private static final byte OP_DISABLE_SENSOR = 3;
+	private static final byte OP_GET_NUM_SENSOR_VALUES = 4;
+	private static final byte OP_READ_SENSOR = 5;
+	private static final byte OP_READ_SENSORS = 6;
+	private static final byte OP_GET_SENSOR_UPDATE_RATES = 7;
+	private static final byte OP_GET_SENSOR_UPDATE_RATE = 8;
+	private static final byte OP_SET_SENSOR_UPDATE_RATE = 9;
+	private static final byte OP_UNSET_SENSOR_UPDATE_RATE = 10;
+	private static final byte OP_SUBSCRIBE = 11;
+	private static final byte OP_UNSUBSCRIBE = 12;
+	private static final byte OP_PING = 14;
+	private static final byte OP_HEARTBEAT = 15;
+	private static final byte OP_CLOCK = 17;
+	private static final byte OP_SAMPLE = 32;
+	private static final byte OP_SAMPLE_DELTA = 33;
+	private static final byte FLAG_TAGGED = 0x40;
+	
+	private static final byte STATUS_ILLEGAL_ARGUMENT = 1;
+	private static final byte STATUS_ILLEGAL_STATE = 2;
+	
 	private Context mContext;
 	private SensorSimulatorConvenience mSensorSimulatorConvenience;
 	
 	protected boolean connected;
 	
+	/**
+	 * Protocol version of the SensorSimulator, 1 if it does not
+	 * know getProtocolVersion().
+	 */
+	protected int mProtocolVersion;
+	
+	/**
+	 * Whether sensor values are pushed by the SensorSimulator
+	 * (protocol version 2 and higher) instead of read one by one.
+	 */
+	protected boolean mStreaming;
+	
+	/**
+	 * Whether sensor values are followed by the tick and time they
+	 * were generated at (protocol version 12 and higher).
+	 */
+	protected boolean mStamped;
+	
+	/**
+	 * Offset to the clock of the SensorSimulator and latency of the
+	 * values delivered, used while mStamped.
+	 */
+	private SensorClock mClock = new SensorClock();
+	
+	/**
+	 * Sensors and transports announced by hello() (protocol version 9
+	 * and higher), null if the SensorSimulator does not know it.
+	 */
+	SensorCatalog mCatalog;
+	
 	Socket mSocket;
     PrintWriter mOut;
     BufferedReader mIn;
     
+    /**
+     * Streams used instead of mOut and mIn after switching to binary frames.
+     */
+    protected boolean mBinary;
+    DataOutputStream mDataOut;
+    DataInputStream mDataIn;
+    private ByteArrayOutputStream mRequest = new ByteArrayOutputStream();
+    private DataOutputStream mRequestData = new DataOutputStream(mRequest);
+    
+    /**
+     * Receiver of multicast ticks, used instead of the connection
+     * after connectMulticast(). Null otherwise.
+     */
+    private SensorMulticastReceiver mMulticast;
+    
+    /**
+     * Id of the next pipelined request.
+     */
+    private int mNextRequestId = 1;
+    
     private ArrayList<Listener> mListeners = new ArrayList<Listener>();
     
     @SuppressWarnings("unused")
@@ -99,6 +236,10 @@ final class SensorSimulatorClient {
         mSocket = null;
         mOut = null;
         mIn = null;
+        mBinary = false;
+        mDataOut = null;
+        mDataIn = null;
+        mCatalog = null;
 
         Log.i(TAG, "Starting connection...");
         
@@ -142,6 +283,29 @@ final class SensorSimulatorClient {
 		if (fromServer.equals("SensorSimulator")) {
 			connected = true;
 			Log.i(TAG, "Connected");
+			
+			mProtocolVersion = hello();
+			mStreaming = (mProtocolVersion >= 2);
+			mStamped = (mProtocolVersion >= 12);
+			Log.i(TAG, "Protocol version " + mProtocolVersion);
+			
+			if (USE_BINARY_PROTOCOL && mProtocolVersion >= 4) {
+				switchToBinary();
+			}
+			mClock = new SensorClock();
+			for (int i = 0; i < MAX_SENSOR; i++) {
+				mValuesPushed[i] = false;
+				mTicks[i] = 0;
+				mDeliveredTicks[i] = 0;
+			}
+			if (mStamped) {
+				for (int i = 0; i < CLOCK_PROBES; i++) {
+					readClock();
+				}
+			}
+			if (mProtocolVersion >= 10) {
+				startHeartbeat();
+			}
 		} else {
 			Log.i(TAG, "Problem connecting: Wrong string sent.");
 			disconnect();
@@ -149,12 +313,53 @@ final class SensorSimulatorClient {
                
 	}
 	
+	/**
+	 * Receives the sensor values multicast by the SensorSimulator, instead
+	 * of connecting to it. Nothing is sent to the SensorSimulator, so any
+	 * number of emulators can listen at no extra cost. Which sensors are
+	 * enabled is decided at the SensorSimulator.
+	 * 
+	 * @param group, multicast group address
+	 * @param port, port the SensorSimulator sends to
+	 */
+	protected void connectMulticast(String group, int port) {
+		Log.i(TAG, "Joining " + group + " : " + port);
+		try {
+			mMulticast = new SensorMulticastReceiver(mContext, group, port);
+		} catch (IOException e) {
+			Log.e(TAG, "Couldn't join multicast group " + group + " : " + port);
+			mMulticast = null;
+			return;
+		}
+		mMulticast.start();
+		if (!mMulticast.waitForTick(PROTOCOL_PROBE_TIMEOUT_MS)) {
+			Log.w(TAG, "No sensor values received yet from " + group + " : " + port);
+		}
+		// no requests are sent, so no request features are used.
+		mProtocolVersion = 1;
+		mStreaming = false;
+		mStamped = false;
+		mBinary = false;
+		connected = true;
+		Log.i(TAG, "Connected (multicast)");
+	}
+	
 	/**
 	 * Method used to disconnect our application and SensorSimulator GUI.
 	 */
 	protected void disconnect() {
-		if (connected) {
+		if (connected && mMulticast != null) {
+			Log.i(TAG, "Disconnect() multicast, " + mMulticast.getReceived()
+					+ " ticks received, " + mMulticast.getLost() + " lost");
+			mMulticast.close();
+			mMulticast = null;
+			connected = false;
+		} else if (connected) {
 			Log.i(TAG, "Disconnect()");
+			mHandler.removeMessages(MSG_HEARTBEAT);
+			if (mStamped) {
+				Log.i(TAG, "Latency: " + mClock);
+			}
 	        
 			try {
 				mOut.close();
@@ -165,6 +370,7 @@ final class SensorSimulatorClient {
 	            System.exit(1);
 			}
 			
+			mCatalog = null;
 			connected = false;
 		} else {
 			//already disconnected, nothing to do.
@@ -438,19 +644,32 @@ final class SensorSimulatorClient {
     	Iterator<String> iter = sensornames.iterator();
     	do{
     		try{
-    			if(delay==-1){
+    			if (mMulticast != null) {
+    				// only listening, nothing to enable.
+    				sensorString = iter.next().toString();
+    			}else if(delay==-1){
     				sensorString = iter.next().toString();
+    				if (mStreaming) {
+    					unsubscribe(sensorString);
+    				}
     				disableSensor(sensorString);
     			}else{
 
     				sensorString = iter.next().toString();
 
-    				enableSensor(sensorString);
     				float updatesPerSecond = 1000;
     				if (delay > 0) {
     					updatesPerSecond = 1000 / delay;
     				}
-    				setSensorUpdateRate(sensorString, updatesPerSecond);
+    				if (mProtocolVersion >= 5) {
+    					enableSensorPipelined(sensorString, updatesPerSecond);
+    				} else {
+    					enableSensor(sensorString);
+    					setSensorUpdateRate(sensorString, updatesPerSecond);
+    					if (mStreaming) {
+    						subscribe(sensorString, updatesPerSecond);
+    					}
+    				}
     			}
     			result = true;
     		}catch (IllegalArgumentException e) {
@@ -468,12 +687,54 @@ final class SensorSimulatorClient {
     }
        
     private static final int MSG_UPDATE_SENSORS = 1;
+    private static final int MSG_HEARTBEAT = 2;
     
     //Increase needed if new sensor is added
     private static int MAX_SENSOR = 9;
     private float[][] mValues = new float[MAX_SENSOR][];
     private boolean[] mValuesCached = new boolean[MAX_SENSOR];
     
+    /**
+     * Whether a value has been pushed for the sensor since it was subscribed.
+     */
+    private boolean[] mValuesPushed = new boolean[MAX_SENSOR];
+    
+    /**
+     * Longest expected time between two pushes of a subscribed sensor,
+     * and when the last one arrived, in SystemClock.uptimeMillis().
+     */
+    private long[] mPushPeriods = new long[MAX_SENSOR];
+    private long[] mPushTimes = new long[MAX_SENSOR];
+    
+    /**
+     * Smallest change the SensorSimulator pushes, per sensor, 0 for every change.
+     */
+    private float[] mDeadbands = new float[MAX_SENSOR];
+    
+    /**
+     * Deadband each sensor was subscribed with, which the SensorSimulator
+     * keeps using for its deltas even if mDeadbands changes afterwards.
+     */
+    private float[] mSubscribedDeadbands = new float[MAX_SENSOR];
+    
+    /**
+     * Tick and time of the SensorSimulator the current values of each
+     * sensor were generated at, 0 if not known.
+     */
+    private long[] mTicks = new long[MAX_SENSOR];
+    private long[] mGenerated = new long[MAX_SENSOR];
+    
+    /**
+     * Tick whose latency was counted last, per sensor, so that values
+     * delivered again are not counted again.
+     */
+    private long[] mDeliveredTicks = new long[MAX_SENSOR];
+    
+    /**
+     * Sensors that have to be read in the current update.
+     */
+    private boolean[] mSensorsDue = new boolean[MAX_SENSOR];
+    
     //String that is used for barcode output
     private String barcode;
     
@@ -498,6 +759,36 @@ final class SensorSimulatorClient {
             			mValues[i] = new float[3];
             		}
             	}
+            	
+            	// Take over the values pushed since the last update
+            	if (mMulticast != null) {
+            		mMulticast.readValues(mValues, mValuesPushed);
+            	} else if (mStreaming) {
+            		readPushedSamples();
+            		expirePushes(current);
+            	}
+            	
+            	// If several sensors are due, read them in one go
+            	if (mProtocolVersion >= 3) {
+            		int numDue = 0;
+            		for (int i = 0; i < MAX_SENSOR; i++) {
+            			mSensorsDue[i] = false;
+            		}
+            		for (Listener l : mListeners) {
+            			if (current >= l.mNextUpdateTime) {
+            				for (int i = 0; i < MAX_SENSOR; i++) {
+            					if (!mSensorsDue[i] && !mValuesPushed[i]
+            							&& hasSensor(l.mSensors, i + 1)) {
+            						mSensorsDue[i] = true;
+            						numDue++;
+            					}
+            				}
+            			}
+            		}
+            		if (numDue > 1) {
+            			readSensors(mSensorsDue);
+            		}
+            	}
 
  
             	for (Listener l : mListeners) {
@@ -510,7 +801,9 @@ final class SensorSimulatorClient {
             				if (hasSensor(l.mSensors, sensorbit)) {
             					// Get current sensor values (if not yet cached)
             					if (!mValuesCached[i]) {
-            						readSensor(sensorbit, mValues[i], barcode);
+            						if (!mValuesPushed[i] && mMulticast == null) {
+            							readSensor(sensorbit, mValues[i], barcode);
+            						}
             						mValuesCached[i] = true;
             					}
             					//Check if input received is for barcode sensor or for other
@@ -521,6 +814,7 @@ final class SensorSimulatorClient {
             						l.mSensorListener.onSensorChanged(event);
             					}else{
             					SensorEvent event = new SensorEvent(mContext, mValues[i], sensorbit);
+            					stampEvent(event, i);
             					l.mSensorListener.onSensorChanged(event);
             					}
             				}
@@ -552,12 +846,122 @@ final class SensorSimulatorClient {
                 	// Autoupdate
                 	sendMessageAtTime(obtainMessage(MSG_UPDATE_SENSORS), nextTime);
                 }
+            } else if (msg.what == MSG_HEARTBEAT) {
+            	if (connected && mMulticast == null) {
+            		ping();
+            		sendMessageDelayed(obtainMessage(MSG_HEARTBEAT),
+            				HEARTBEAT_INTERVAL_MS);
+            	}
             }
 
 		}
 	};
 	
 
+	/**
+	 * Sets tick and generation time of the values of a sensor, and
+	 * counts their latency the first time they are delivered.
+	 * 
+	 * @param event, event about to be delivered
+	 * @param i, sensor integer - 1
+	 */
+	private void stampEvent(SensorEvent event, int i) {
+		if (mTicks[i] == 0) {
+			return;
+		}
+		event.tick = mTicks[i];
+		event.timestamp = mClock.toLocalNanos(mGenerated[i]);
+		if (event.timestamp != 0 && mDeliveredTicks[i] != mTicks[i]) {
+			mDeliveredTicks[i] = mTicks[i];
+			mClock.addLatency(System.nanoTime() - event.timestamp);
+		}
+	}
+	
+	/**
+	 * Remembers the stamp of the values of a sensor.
+	 * 
+	 * @param i, sensor integer - 1, ignored if out of range
+	 * @param tick, simulation tick of the SensorSimulator
+	 * @param micros, generation time on the clock of the SensorSimulator
+	 */
+	private void setStamp(int i, long tick, long micros) {
+		if (i >= 0 && i < MAX_SENSOR) {
+			mTicks[i] = tick;
+			mGenerated[i] = micros;
+		}
+	}
+	
+	/**
+	 * Reads the stamp line "&lt;tick&gt; &lt;time&gt;" that follows
+	 * the values of a sensor, if the connection has stamps.
+	 * 
+	 * @param i, sensor integer - 1
+	 */
+	private void readStampLine(int i) throws IOException {
+		if (!mStamped) {
+			return;
+		}
+		String line = mIn.readLine();
+		if (LOG_PROTOCOL) Log.i(TAG, "Stamp: " + line);
+		String[] fields = line.split(" ");
+		if (fields.length == 2) {
+			setStamp(i, Long.parseLong(fields[0]), Long.parseLong(fields[1]));
+		}
+	}
+	
+	/**
+	 * Reads the stamp that follows the values of a sensor in a
+	 * binary frame, if the connection has stamps.
+	 * 
+	 * @param i, sensor integer - 1
+	 * @param frame, stream positioned after the values
+	 */
+	private void readStamp(int i, DataInputStream frame) throws IOException {
+		if (mStamped) {
+			long tick = frame.readLong();
+			setStamp(i, tick, frame.readLong());
+		}
+	}
+	
+	/**
+	 * Asks the SensorSimulator for the time of its clock, and adds
+	 * the answer to the estimate of the offset to it.
+	 */
+	private void readClock() {
+		try {
+			long sent;
+			long micros;
+			if (mBinary) {
+				beginRequest(OP_CLOCK);
+				sent = System.nanoTime();
+				micros = sendRequest("clock").readLong();
+			} else {
+				if (LOG_PROTOCOL) Log.i(TAG, "Send: clock()");
+				sent = System.nanoTime();
+				mOut.println("clock()");
+				micros = Long.parseLong(readAnswer());
+			}
+			mClock.addSample(sent, micros, System.nanoTime());
+		} catch (IOException e) {
+			System.err.println("Couldn't get I/O for the connection to: x.x.x.x.");
+            System.exit(1);
+		}
+	}
+	
+	/**
+	 * Summary of the time from the generation of values at the
+	 * SensorSimulator to their delivery to the listeners.
+	 * 
+	 * @return summary, in milliseconds
+	 */
+	protected String getLatencySummary() {
+		if (!mStamped) {
+			return "SensorSimulator sends no stamps (protocol version "
+					+ mProtocolVersion + ")";
+		}
+		return mClock.toString();
+	}
+	
 	/////////////////////////////////////////////////////////////
 	// Bridge to old API
 
@@ -597,105 +1001,934 @@ final class SensorSimulatorClient {
     	return getNumSensorValues(sensorname);
 	}
 	
-	//////////////////////////////////////////////////////////////////
-	// DEPRECATED FUNCTIONS FOLLOW
-	
-
-	protected void disableSensor(String sensor) {
-		Log.i(TAG2, "disableSensor()");
-		mOut.println("disableSensor()");
-		Log.i(TAG2, "Send: " + sensor);
-        mOut.println(sensor);
-        
-		try {
-			String answer = mIn.readLine();
-			if (answer.compareTo("throw IllegalArgumentException") == 0) {
-				throw new IllegalArgumentException(
-						"Sensor '" + sensor
-						+ "' is not supported.");
+	/**
+	 * Reads several sensors in one request. All values stem
+	 * from the same simulation tick. Sensors that were read
+	 * are marked in mValuesCached.
+	 * 
+	 * @param sensorsDue, sensors to read, indexed by sensor integer - 1
+	 */
+	private void readSensors(boolean[] sensorsDue) {
+		StringBuilder sensorList = new StringBuilder();
+		for (int i = 0; i < MAX_SENSOR; i++) {
+			if (sensorsDue[i]) {
+				if (sensorList.length() > 0) {
+					sensorList.append(',');
+				}
+				sensorList.append(SensorNames.getSensorName(i + 1));
 			}
-			Log.i(TAG2, "Received: " + answer);
-			
-		} catch (IOException e) {
-			System.err.println("Couldn't get I/O for the connection to: x.x.x.x.");
-            System.exit(1);
 		}
-	}
-
-    protected void enableSensor(String sensor) {
-		Log.i(TAG2, "enableSensor()");
-		mOut.println("enableSensor()");
-		Log.i(TAG2, "Send: " + sensor);
-        mOut.println(sensor);
-		
-		try {
-			String answer = mIn.readLine();
-			if (answer.compareTo("throw IllegalArgumentException") == 0) {
-				throw new IllegalArgumentException(
-						"Sensor '" + sensor
-						+ "' is not supported.");
+		ArrayList<String> notEnabled = new ArrayList<String>();
+		if (mBinary) {
+			try {
+				DataOutputStream request = beginRequest(OP_READ_SENSORS);
+				String[] sensors = sensorList.toString().split(",");
+				request.writeShort(sensors.length);
+				for (int k = 0; k < sensors.length; k++) {
+					request.writeUTF(sensors[k]);
+				}
+				DataInputStream in = sendRequest(null);
+				int count = in.readShort();
+				for (int k = 0; k < count; k++) {
+					String sensor = in.readUTF();
+					byte status = in.readByte();
+					if (status == STATUS_ILLEGAL_ARGUMENT) {
+						Log.d(TAG, "Sensor " + sensor + " not supported.");
+						continue;
+					} else if (status == STATUS_ILLEGAL_STATE) {
+						notEnabled.add(sensor);
+						continue;
+					}
+					int num = in.readByte();
+					int i = SensorNames.getSensorInteger(sensor) - 1;
+					for (int j = 0; j < num; j++) {
+						float val = in.readFloat();
+						if (i >= 0 && i < MAX_SENSOR && j < mValues[i].length) {
+							mValues[i][j] = val;
+						}
+					}
+					readStamp(i, in);
+					if (i >= 0 && i < MAX_SENSOR) {
+						mValuesCached[i] = true;
+					}
+				}
+			} catch (IOException e) {
+				System.err.println("Couldn't get I/O for the connection to: x.x.x.x.");
+	            System.exit(1);
 			}
-			Log.i(TAG2, "Received: " + answer);
+		} else try {
+			if (LOG_PROTOCOL) Log.i(TAG, "Send: readSensors() " + sensorList);
+			mOut.println("readSensors()\n" + sensorList);
 			
+			int count = Integer.parseInt(readAnswer());
+			for (int k = 0; k < count; k++) {
+				String sensor = mIn.readLine();
+				String numstr = mIn.readLine();
+				if (numstr.compareTo("throw IllegalArgumentException") == 0) {
+					Log.d(TAG, "Sensor " + sensor + " not supported.");
+					continue;
+				} else if (numstr.compareTo("throw IllegalStateException") == 0) {
+					notEnabled.add(sensor);
+					continue;
+				}
+				int num = Integer.parseInt(numstr);
+				int i = SensorNames.getSensorInteger(sensor) - 1;
+				for (int j = 0; j < num; j++) {
+					String val = mIn.readLine();
+					if (LOG_PROTOCOL) Log.i(TAG, "Received: " + sensor + " " + val);
+					if (i >= 0 && i < MAX_SENSOR && j < mValues[i].length) {
+						mValues[i][j] = Float.parseFloat(val);
+					}
+				}
+				readStampLine(i);
+				if (i >= 0 && i < MAX_SENSOR) {
+					mValuesCached[i] = true;
+				}
+			}
 		} catch (IOException e) {
 			System.err.println("Couldn't get I/O for the connection to: x.x.x.x.");
             System.exit(1);
 		}
+		
+		// Sensors that are currently not enabled are enabled now,
+		// as readSensor(int, ...) does.
+		for (String sensor : notEnabled) {
+			Log.d(TAG, "Sensor not enabled -> enable it now");
+			try {
+    			enableSensor(sensor);
+    		} catch (IllegalArgumentException e) {
+        		Log.d(TAG, "Sensor not supported.");
+    		}
+		}
 	}
 	
-    protected String[] getSupportedSensors() {
-		Log.i(TAG, "getSupportedSensors()");
-        
-		mOut.println("getSupportedSensors()");
-		String[] sensors = {""};
-		int num = 0;
-		
-		try {
-			String numstr = mIn.readLine();
-			Log.i(TAG, "Received: " + numstr);
-	        
-			num = Integer.parseInt(numstr);
-			
-			sensors = new String[num];
-			for (int i=0; i<num; i++) {
-				sensors[i] = mIn.readLine();
-				Log.i(TAG, "Received: " + sensors[i]);
-		        
+	/**
+	 * Reads the next answer line. Values pushed for subscribed
+	 * sensors may arrive before the answer, they are stored
+	 * for the next update of the listeners.
+	 * 
+	 * @return answer line
+	 */
+	private String readAnswer() throws IOException {
+		String line = mIn.readLine();
+		while (SAMPLE.equals(line) || DELTA.equals(line)) {
+			if (SAMPLE.equals(line)) {
+				readSample();
+			} else {
+				readDelta();
 			}
-			
-		} catch (IOException e) {
-			System.err.println("Couldn't get I/O for the connection to: x.x.x.x.");
-            System.exit(1);
+			line = mIn.readLine();
 		}
-		
-		return sensors;
+		return line;
 	}
 	
-    protected int getNumSensorValues(String sensor) {
-		if (LOG_PROTOCOL) Log.i(TAG, "Send: getNumSensorValues()");
-		mOut.println("getNumSensorValues()");
-		
-		if (LOG_PROTOCOL) Log.i(TAG, "Send: " + sensor);
-        mOut.println(sensor);
-        
-		int num = 0;
-		
+	/**
+	 * Reads all pushed values that already arrived, without blocking.
+	 */
+	private void readPushedSamples() {
 		try {
-			String numstr = mIn.readLine();
-			if (numstr.compareTo("throw IllegalArgumentException") == 0) {
-				throw new IllegalArgumentException(
-						"Sensor '" + sensor
-						+ "' is not supported.");
+			if (mBinary) {
+				while (mDataIn.available() > 0) {
+					DataInputStream frame = readFrame();
+					if (!readPushedFrame(frame.readByte(), frame)) {
+						Log.w(TAG, "Unexpected frame from SensorSimulator.");
+					}
+				}
+				return;
+			}
+			while (mIn.ready()) {
+				String line = mIn.readLine();
+				if (SAMPLE.equals(line)) {
+					readSample();
+				} else if (DELTA.equals(line)) {
+					readDelta();
+				} else {
+					Log.w(TAG, "Unexpected line from SensorSimulator: " + line);
+				}
 			}
-			if (LOG_PROTOCOL) Log.i(TAG, "Received: " + numstr);
-	        
-			num = Integer.parseInt(numstr);
 		} catch (IOException e) {
 			System.err.println("Couldn't get I/O for the connection to: x.x.x.x.");
             System.exit(1);
 		}
-		
-		return num;
+	}
+	
+	/**
+	 * Reads one pushed value, after its first line "sample()".
+	 */
+	private void readSample() throws IOException {
+		String sensor = mIn.readLine();
+		int num = Integer.parseInt(mIn.readLine());
+		int i = SensorNames.getSensorInteger(sensor) - 1;
+		for (int j = 0; j < num; j++) {
+			String val = mIn.readLine();
+			if (LOG_PROTOCOL) Log.i(TAG, "Pushed: " + sensor + " " + val);
+			if (i >= 0 && i < MAX_SENSOR && mValues[i] != null
+					&& j < mValues[i].length) {
+				mValues[i][j] = Float.parseFloat(val);
+			}
+		}
+		readStampLine(i);
+		if (i >= 0 && i < MAX_SENSOR && mValues[i] != null) {
+			mValuesPushed[i] = true;
+			mPushTimes[i] = SystemClock.uptimeMillis();
+		}
+	}
+	
+	/**
+	 * Reads one pushed change, after its first line "delta()".
+	 * The change is given in steps of the deadband of the sensor.
+	 */
+	private void readDelta() throws IOException {
+		String sensor = mIn.readLine();
+		int num = Integer.parseInt(mIn.readLine());
+		int i = SensorNames.getSensorInteger(sensor) - 1;
+		for (int j = 0; j < num; j++) {
+			int steps = Integer.parseInt(mIn.readLine());
+			if (i >= 0 && i < MAX_SENSOR && mValues[i] != null
+					&& j < mValues[i].length) {
+				mValues[i][j] += steps * mSubscribedDeadbands[i];
+			}
+		}
+		readStampLine(i);
+		if (i >= 0 && i < MAX_SENSOR) {
+			mPushTimes[i] = SystemClock.uptimeMillis();
+		}
+	}
+	
+	/**
+	 * Notes the push period of a subscription about to be sent, after
+	 * its deadband was taken with {@link #getDeadband(String)}.
+	 * 
+	 * @param sensor, name of the sensor
+	 * @param updatesPerSecond, rate of pushed values
+	 */
+	private void expectPushes(String sensor, float updatesPerSecond) {
+		int i = SensorNames.getSensorInteger(sensor) - 1;
+		if (i < 0 || i >= MAX_SENSOR) {
+			return;
+		}
+		if (mSubscribedDeadbands[i] > 0) {
+			// unchanged values are only pushed with the keyframes.
+			mPushPeriods[i] = KEYFRAME_MS;
+		} else if (updatesPerSecond > 0) {
+			mPushPeriods[i] = (long) Math.ceil(1000 / updatesPerSecond);
+		} else {
+			mPushPeriods[i] = DELAY_MS_NORMAL;
+		}
+		mPushTimes[i] = SystemClock.uptimeMillis();
+	}
+	
+	/**
+	 * Goes back to reading the sensors whose pushes stopped, because
+	 * the SensorSimulator disabled the sensor or ended the subscription.
+	 * Their values and stamps are no longer current.
+	 * 
+	 * @param now, SystemClock.uptimeMillis()
+	 */
+	private void expirePushes(long now) {
+		for (int i = 0; i < MAX_SENSOR; i++) {
+			long wait = Math.max(PUSH_STALE_MIN_MS,
+					PUSH_STALE_PERIODS * mPushPeriods[i]);
+			if (mValuesPushed[i] && now - mPushTimes[i] > wait) {
+				Log.d(TAG, "No values pushed for sensor " + (i + 1)
+						+ " since " + (now - mPushTimes[i]) + " ms, reading it");
+				mValuesPushed[i] = false;
+				mTicks[i] = 0;
+			}
+		}
+	}
+	
+	/**
+	 * Switches the connection to binary frames.
+	 */
+	private void switchToBinary() {
+		mOut.println("binary()");
+		try {
+			String answer = mIn.readLine();
+			if ("OK".equals(answer)) {
+				// The SensorSimulator sends nothing more until our
+				// first request, so mIn has nothing buffered.
+				mDataOut = new DataOutputStream(new BufferedOutputStream(
+						mSocket.getOutputStream()));
+				mDataIn = new DataInputStream(new BufferedInputStream(
+						mSocket.getInputStream()));
+				mBinary = true;
+				Log.i(TAG, "Using binary protocol");
+			} else {
+				Log.w(TAG, "Binary protocol refused: " + answer);
+			}
+		} catch (IOException e) {
+			System.err.println("Couldn't get I/O for the connection to: x.x.x.x.");
+            System.exit(1);
+		}
+	}
+	
+	/**
+	 * Starts a binary request. The payload is written to the
+	 * returned stream before calling {@link #sendRequest(String)}.
+	 * 
+	 * @param opcode, opcode of the request
+	 * @return stream for the payload
+	 */
+	private DataOutputStream beginRequest(byte opcode) throws IOException {
+		mRequest.reset();
+		mRequestData.writeByte(opcode);
+		return mRequestData;
+	}
+	
+	/**
+	 * Sends the binary request and waits for its answer. Pushed
+	 * values that arrive before the answer are stored.
+	 * 
+	 * @param sensor, sensor of the request, used for exceptions
+	 * @return stream positioned after the status byte of the answer
+	 */
+	private DataInputStream sendRequest(String sensor) throws IOException {
+		queueRequest();
+		mDataOut.flush();
+		
+		while (true) {
+			DataInputStream frame = readFrame();
+			byte opcode = frame.readByte();
+			if (readPushedFrame(opcode, frame)) {
+				continue;
+			}
+			byte status = frame.readByte();
+			if (status == STATUS_ILLEGAL_ARGUMENT) {
+				throw new IllegalArgumentException(
+						"Sensor '" + sensor
+						+ "' is not supported.");
+			} else if (status == STATUS_ILLEGAL_STATE) {
+				throw new IllegalStateException(
+						"Sensor '" + sensor
+						+ "' is currently not enabled.");
+			}
+			return frame;
+		}
+	}
+	
+	/**
+	 * Reads one binary frame.
+	 * 
+	 * @return stream over the frame, starting at the opcode
+	 */
+	private DataInputStream readFrame() throws IOException {
+		int length = mDataIn.readInt();
+		byte[] frame = new byte[length];
+		mDataIn.readFully(frame);
+		return new DataInputStream(new ByteArrayInputStream(frame));
+	}
+	
+	/**
+	 * Reads a pushed value or change, if the frame is one.
+	 * 
+	 * @param opcode, opcode of the frame, already read
+	 * @param frame, stream positioned after the opcode
+	 * @return false if the frame is not pushed
+	 */
+	private boolean readPushedFrame(byte opcode, DataInputStream frame) throws IOException {
+		if (opcode == OP_SAMPLE) {
+			readSampleFrame(frame);
+			return true;
+		} else if (opcode == OP_SAMPLE_DELTA) {
+			String sensor = frame.readUTF();
+			int num = frame.readByte();
+			int i = SensorNames.getSensorInteger(sensor) - 1;
+			for (int j = 0; j < num; j++) {
+				int steps = frame.readShort();
+				if (i >= 0 && i < MAX_SENSOR && mValues[i] != null
+						&& j < mValues[i].length) {
+					mValues[i][j] += steps * mSubscribedDeadbands[i];
+				}
+			}
+			readStamp(i, frame);
+			if (i >= 0 && i < MAX_SENSOR) {
+				mPushTimes[i] = SystemClock.uptimeMillis();
+			}
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Reads a pushed value from a binary frame, after its opcode.
+	 */
+	private void readSampleFrame(DataInputStream frame) throws IOException {
+		String sensor = frame.readUTF();
+		int num = frame.readByte();
+		int i = SensorNames.getSensorInteger(sensor) - 1;
+		for (int j = 0; j < num; j++) {
+			float val = frame.readFloat();
+			if (LOG_PROTOCOL) Log.i(TAG, "Pushed: " + sensor + " " + val);
+			if (i >= 0 && i < MAX_SENSOR && mValues[i] != null
+					&& j < mValues[i].length) {
+				mValues[i][j] = val;
+			}
+		}
+		readStamp(i, frame);
+		if (i >= 0 && i < MAX_SENSOR && mValues[i] != null) {
+			mValuesPushed[i] = true;
+			mPushTimes[i] = SystemClock.uptimeMillis();
+		}
+	}
+	
+	/**
+	 * Enables a sensor, sets its update rate and subscribes to it,
+	 * like {@link #enableSensor(String)}, {@link #setSensorUpdateRate(String, float)}
+	 * and {@link #subscribe(String, float)}. All requests are sent
+	 * at once, tagged with request ids, so this waits for the
+	 * SensorSimulator only once instead of three times.
+	 * 
+	 * @param sensor, name of the sensor
+	 * @param updatesPerSecond, update rate of the sensor
+	 */
+	private void enableSensorPipelined(String sensor, float updatesPerSecond) {
+		int requests = mStreaming ? 3 : 2;
+		int firstId = mNextRequestId;
+		mNextRequestId += requests;
+		// status of each request, by id - firstId
+		byte[] status = new byte[requests];
+		
+		try {
+			if (mBinary) {
+				beginTaggedRequest(OP_ENABLE_SENSOR, firstId).writeUTF(sensor);
+				queueRequest();
+				DataOutputStream request = beginTaggedRequest(
+						OP_SET_SENSOR_UPDATE_RATE, firstId + 1);
+				request.writeUTF(sensor);
+				request.writeFloat(updatesPerSecond);
+				queueRequest();
+				if (mStreaming) {
+					request = beginTaggedRequest(OP_SUBSCRIBE, firstId + 2);
+					request.writeUTF(sensor);
+					request.writeFloat(updatesPerSecond);
+					writeDeadband(request, sensor);
+					expectPushes(sensor, updatesPerSecond);
+					queueRequest();
+				}
+				mDataOut.flush();
+				
+				for (int k = 0; k < requests; k++) {
+					DataInputStream frame = readFrame();
+					byte opcode = frame.readByte();
+					if (readPushedFrame(opcode, frame)) {
+						k--;
+						continue;
+					}
+					int index = frame.readInt() - firstId;
+					if (index >= 0 && index < requests) {
+						status[index] = frame.readByte();
+					}
+				}
+			} else {
+				if (LOG_PROTOCOL) Log.i(TAG, "Send: pipelined enable " + sensor);
+				StringBuilder request = new StringBuilder();
+				request.append("@" + firstId + " enableSensor()\n" + sensor + "\n");
+				request.append("@" + (firstId + 1) + " setSensorUpdateRate()\n"
+						+ sensor + "\n" + updatesPerSecond + "\n");
+				if (mStreaming) {
+					request.append("@" + (firstId + 2) + " subscribe()\n"
+							+ sensor + "\n" + updatesPerSecond + getDeadbandArgument(sensor)
+							+ "\n");
+					expectPushes(sensor, updatesPerSecond);
+				}
+				mOut.print(request);
+				mOut.flush();
+				
+				for (int k = 0; k < requests; k++) {
+					String id = readAnswer();
+					String answer = readAnswer();
+					if (LOG_PROTOCOL) Log.i(TAG, "Received: " + id + " " + answer);
+					int index = Integer.parseInt(id.substring(1)) - firstId;
+					if (index < 0 || index >= requests) {
+						continue;
+					}
+					if (answer.compareTo("throw IllegalArgumentException") == 0) {
+						status[index] = STATUS_ILLEGAL_ARGUMENT;
+					} else if (answer.compareTo("throw IllegalStateException") == 0) {
+						status[index] = STATUS_ILLEGAL_STATE;
+					}
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Couldn't get I/O for the connection to: x.x.x.x.");
+            System.exit(1);
+		}
+		
+		if (status[0] == STATUS_ILLEGAL_ARGUMENT) {
+			throw new IllegalArgumentException(
+					"Sensor '" + sensor
+					+ "' is not supported.");
+		}
+		if (mStreaming && status[2] != 0) {
+			Log.w(TAG, "Subscriptions not available for " + sensor);
+		}
+	}
+	
+	/**
+	 * Starts a binary request with request id, see {@link #beginRequest(byte)}.
+	 * 
+	 * @param opcode, opcode of the request
+	 * @param id, id repeated in the answer
+	 * @return stream for the payload
+	 */
+	private DataOutputStream beginTaggedRequest(byte opcode, int id) throws IOException {
+		mRequest.reset();
+		mRequestData.writeByte(opcode | FLAG_TAGGED);
+		mRequestData.writeInt(id);
+		return mRequestData;
+	}
+	
+	/**
+	 * Writes the current binary request without sending it yet.
+	 */
+	private void queueRequest() throws IOException {
+		mDataOut.writeInt(mRequest.size());
+		mRequest.writeTo(mDataOut);
+	}
+	
+	/**
+	 * Asks the SensorSimulator for its protocol version.
+	 * 
+	 * @return protocol version, 1 if the SensorSimulator does not answer.
+	 */
+	protected int getProtocolVersion() {
+		int version = 1;
+		try {
+			mSocket.setSoTimeout(PROTOCOL_PROBE_TIMEOUT_MS);
+			mOut.println("getProtocolVersion()");
+			try {
+				version = Integer.parseInt(mIn.readLine());
+			} catch (SocketTimeoutException e) {
+				// Older SensorSimulator, does not know the command.
+			} catch (NumberFormatException e) {
+				Log.w(TAG, "Invalid protocol version.");
+			}
+			mSocket.setSoTimeout(0);
+		} catch (IOException e) {
+			System.err.println("Couldn't get I/O for the connection to: x.x.x.x.");
+            System.exit(1);
+		}
+		return version;
+	}
+	
+	/**
+	 * Asks for the protocol version and, in the same round trip, for
+	 * the catalog of sensors and transports. Older SensorSimulators
+	 * answer the version only and ignore hello(), so the catalog is
+	 * read from version 9 on.
+	 * 
+	 * If an instance is set in the preferences, it is selected first,
+	 * so that the catalog is the one of that instance. Versions before
+	 * 11 do not answer select() and serve their only instance.
+	 * 
+	 * @return protocol version spoken, 1 if the SensorSimulator does not answer.
+	 */
+	protected int hello() {
+		int version = 1;
+		String instance = mSensorSimulatorConvenience.getPreference(SensorSimulator.KEY_INSTANCE);
+		boolean select = instance != null && instance.length() > 0;
+		try {
+			mSocket.setSoTimeout(PROTOCOL_PROBE_TIMEOUT_MS);
+			mOut.println("getProtocolVersion()\n"
+					+ (select ? "select()\n" + instance + "\n" : "")
+					+ "hello()\n" + PROTOCOL_VERSION);
+			try {
+				version = Integer.parseInt(mIn.readLine());
+				if (select && version >= 11) {
+					String answer = mIn.readLine();
+					if (!"OK".equals(answer)) {
+						Log.w(TAG, "No instance " + instance + ": " + answer);
+					}
+				}
+				if (version >= 9) {
+					version = Integer.parseInt(mIn.readLine());
+					String[] lines = new String[Integer.parseInt(mIn.readLine())];
+					for (int i = 0; i < lines.length; i++) {
+						lines[i] = mIn.readLine();
+					}
+					mCatalog = new SensorCatalog(lines);
+				}
+			} catch (SocketTimeoutException e) {
+				// Older SensorSimulator, does not know the command.
+			} catch (NumberFormatException e) {
+				Log.w(TAG, "Invalid protocol version.");
+			}
+			mSocket.setSoTimeout(0);
+		} catch (IOException e) {
+			System.err.println("Couldn't get I/O for the connection to: x.x.x.x.");
+            System.exit(1);
+		}
+		return version;
+	}
+	
+	/**
+	 * Promises the SensorSimulator a request every HEARTBEAT_INTERVAL_MS,
+	 * and sends a ping() whenever it is due. The SensorSimulator
+	 * then closes the connection once this client is gone, even if
+	 * the emulator died without closing its socket.
+	 */
+	private void startHeartbeat() {
+		try {
+			if (mBinary) {
+				beginRequest(OP_HEARTBEAT).writeInt(HEARTBEAT_INTERVAL_MS);
+				sendRequest("heartbeat");
+			} else {
+				mOut.println("heartbeat()\n" + HEARTBEAT_INTERVAL_MS);
+				String answer = readAnswer();
+				if (!"OK".equals(answer)) {
+					Log.w(TAG, "Heartbeat refused: " + answer);
+					return;
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Couldn't get I/O for the connection to: x.x.x.x.");
+            System.exit(1);
+		}
+		mHandler.removeMessages(MSG_HEARTBEAT);
+		mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_HEARTBEAT),
+				HEARTBEAT_INTERVAL_MS);
+	}
+	
+	/**
+	 * Sends a request without effect, so that the SensorSimulator
+	 * knows this client is still there. With stamps, clock() is
+	 * sent instead, which also keeps the offset to its clock current.
+	 */
+	protected void ping() {
+		if (mStamped) {
+			readClock();
+			return;
+		}
+		try {
+			if (mBinary) {
+				beginRequest(OP_PING);
+				sendRequest("ping");
+				return;
+			}
+			if (LOG_PROTOCOL) Log.i(TAG, "Send: ping()");
+			mOut.println("ping()");
+			String answer = readAnswer();
+			if (LOG_PROTOCOL) Log.i(TAG, "Received: " + answer);
+		} catch (IOException e) {
+			System.err.println("Couldn't get I/O for the connection to: x.x.x.x.");
+            System.exit(1);
+		}
+	}
+	
+	/**
+	 * Address of a transport the SensorSimulator offers besides this
+	 * connection, like "multicast" or "http".
+	 * 
+	 * @param name, name of the transport
+	 * @return address, or null if not offered or not known.
+	 */
+	protected String getTransport(String name) {
+		return mCatalog == null ? null : mCatalog.getTransport(name);
+	}
+	
+	/**
+	 * Sets the smallest change of a sensor the SensorSimulator pushes.
+	 * Slowly changing sensors then cost almost nothing until they move.
+	 * Used for subscriptions made afterwards, and only by SensorSimulators
+	 * with protocol version 8 and higher; current subscriptions keep
+	 * their deadband until the sensor is subscribed again.
+	 * 
+	 * @param sensorbit, sensor integer
+	 * @param deadband, smallest change, 0 to push every value
+	 */
+	protected void setDeadband(int sensorbit, float deadband) {
+		if (sensorbit >= 1 && sensorbit <= MAX_SENSOR) {
+			mDeadbands[sensorbit - 1] = deadband;
+		}
+	}
+	
+	/**
+	 * Deadband of a sensor for a subscription about to be sent,
+	 * remembered to decode the deltas of that subscription.
+	 */
+	private float getDeadband(String sensor) {
+		int i = SensorNames.getSensorInteger(sensor) - 1;
+		if (i < 0 || i >= MAX_SENSOR) {
+			return 0;
+		}
+		mSubscribedDeadbands[i] = mProtocolVersion < 8 ? 0 : mDeadbands[i];
+		return mSubscribedDeadbands[i];
+	}
+	
+	/**
+	 * Deadband appended to the rate line of subscribe(), or "".
+	 */
+	private String getDeadbandArgument(String sensor) {
+		float deadband = getDeadband(sensor);
+		return deadband > 0 ? " " + deadband : "";
+	}
+	
+	/**
+	 * Appends deadband and (default) keyframe period to a binary
+	 * subscribe request, if a deadband is used.
+	 */
+	private void writeDeadband(DataOutputStream request, String sensor) throws IOException {
+		float deadband = getDeadband(sensor);
+		if (deadband > 0) {
+			request.writeFloat(deadband);
+			request.writeInt(0);
+		}
+	}
+	
+	/**
+	 * Lets the SensorSimulator push the values of a sensor
+	 * instead of reading them one by one.
+	 * 
+	 * @param sensor, name of the sensor
+	 * @param updatesPerSecond, rate of pushed values
+	 */
+	protected void subscribe(String sensor, float updatesPerSecond) {
+		if (mBinary) {
+			try {
+				DataOutputStream request = beginRequest(OP_SUBSCRIBE);
+				request.writeUTF(sensor);
+				request.writeFloat(updatesPerSecond);
+				writeDeadband(request, sensor);
+				expectPushes(sensor, updatesPerSecond);
+				try {
+					sendRequest(sensor);
+				} catch (IllegalStateException e) {
+					Log.w(TAG, "Subscriptions not available for " + sensor);
+				}
+			} catch (IOException e) {
+				System.err.println("Couldn't get I/O for the connection to: x.x.x.x.");
+	            System.exit(1);
+			}
+			return;
+		}
+
+		if (LOG_PROTOCOL) Log.i(TAG, "Send: subscribe() " + sensor);
+		mOut.println("subscribe()\n" + sensor + "\n" + updatesPerSecond
+				+ getDeadbandArgument(sensor));
+		expectPushes(sensor, updatesPerSecond);
+		
+		try {
+			String answer = readAnswer();
+			if (answer.compareTo("throw IllegalArgumentException") == 0) {
+				throw new IllegalArgumentException(
+						"Sensor '" + sensor
+						+ "' is not supported.");
+			} else if (answer.compareTo("throw IllegalStateException") == 0) {
+				Log.w(TAG, "Subscriptions not available for " + sensor);
+			}
+			if (LOG_PROTOCOL) Log.i(TAG, "Received: " + answer);
+		} catch (IOException e) {
+			System.err.println("Couldn't get I/O for the connection to: x.x.x.x.");
+            System.exit(1);
+		}
+	}
+	
+	/**
+	 * Stops pushing values of a sensor.
+	 * 
+	 * @param sensor, name of the sensor
+	 */
+	protected void unsubscribe(String sensor) {
+		if (mBinary) {
+			try {
+				beginRequest(OP_UNSUBSCRIBE).writeUTF(sensor);
+				sendRequest(sensor);
+				int i = SensorNames.getSensorInteger(sensor) - 1;
+				if (i >= 0 && i < MAX_SENSOR) {
+					mValuesPushed[i] = false;
+				}
+			} catch (IOException e) {
+				System.err.println("Couldn't get I/O for the connection to: x.x.x.x.");
+	            System.exit(1);
+			}
+			return;
+		}
+
+		if (LOG_PROTOCOL) Log.i(TAG, "Send: unsubscribe() " + sensor);
+		mOut.println("unsubscribe()\n" + sensor);
+		
+		try {
+			String answer = readAnswer();
+			if (answer.compareTo("throw IllegalArgumentException") == 0) {
+				throw new IllegalArgumentException(
+						"Sensor '" + sensor
+						+ "' is not supported.");
+			}
+			if (LOG_PROTOCOL) Log.i(TAG, "Received: " + answer);
+			
+			int i = SensorNames.getSensorInteger(sensor) - 1;
+			if (i >= 0 && i < MAX_SENSOR) {
+				mValuesPushed[i] = false;
+			}
+		} catch (IOException e) {
+			System.err.println("Couldn't get I/O for the connection to: x.x.x.x.");
+            System.exit(1);
+		}
+	}
+	
+	//////////////////////////////////////////////////////////////////
+	// DEPRECATED FUNCTIONS FOLLOW
+	
+
+	protected void disableSensor(String sensor) {
+		if (mBinary) {
+			try {
+				beginRequest(OP_DISABLE_SENSOR).writeUTF(sensor);
+				sendRequest(sensor);
+			} catch (IOException e) {
+				System.err.println("Couldn't get I/O for the connection to: x.x.x.x.");
+	            System.exit(1);
+			}
+			return;
+		}
+
+		Log.i(TAG2, "disableSensor()");
+		mOut.println("disableSensor()");
+		Log.i(TAG2, "Send: " + sensor);
+        mOut.println(sensor);
+        
+		try {
+			String answer = readAnswer();
+			if (answer.compareTo("throw IllegalArgumentException") == 0) {
+				throw new IllegalArgumentException(
+						"Sensor '" + sensor
+						+ "' is not supported.");
+			}
+			Log.i(TAG2, "Received: " + answer);
+			
+		} catch (IOException e) {
+			System.err.println("Couldn't get I/O for the connection to: x.x.x.x.");
+            System.exit(1);
+		}
+	}
+
+    protected void enableSensor(String sensor) {
+		if (mBinary) {
+			try {
+				beginRequest(OP_ENABLE_SENSOR).writeUTF(sensor);
+				sendRequest(sensor);
+			} catch (IOException e) {
+				System.err.println("Couldn't get I/O for the connection to: x.x.x.x.");
+	            System.exit(1);
+			}
+			return;
+		}
+
+		Log.i(TAG2, "enableSensor()");
+		mOut.println("enableSensor()");
+		Log.i(TAG2, "Send: " + sensor);
+        mOut.println(sensor);
+		
+		try {
+			String answer = readAnswer();
+			if (answer.compareTo("throw IllegalArgumentException") == 0) {
+				throw new IllegalArgumentException(
+						"Sensor '" + sensor
+						+ "' is not supported.");
+			}
+			Log.i(TAG2, "Received: " + answer);
+			
+		} catch (IOException e) {
+			System.err.println("Couldn't get I/O for the connection to: x.x.x.x.");
+            System.exit(1);
+		}
+	}
+	
+    protected String[] getSupportedSensors() {
+    	if (mMulticast != null) {
+    		return mMulticast.getSupportedSensors();
+    	}
+    	if (mCatalog != null) {
+    		return mCatalog.getSupportedSensors();
+    	}
+		if (mBinary) {
+			try {
+				beginRequest(OP_GET_SUPPORTED_SENSORS);
+				DataInputStream in = sendRequest(null);
+				String[] sensors = new String[in.readShort()];
+				for (int i=0; i<sensors.length; i++) {
+					sensors[i] = in.readUTF();
+				}
+				return sensors;
+			} catch (IOException e) {
+				System.err.println("Couldn't get I/O for the connection to: x.x.x.x.");
+	            System.exit(1);
+			}
+			return new String[0];
+		}
+
+		Log.i(TAG, "getSupportedSensors()");
+        
+		mOut.println("getSupportedSensors()");
+		String[] sensors = {""};
+		int num = 0;
+		
+		try {
+			String numstr = readAnswer();
+			Log.i(TAG, "Received: " + numstr);
+	        
+			num = Integer.parseInt(numstr);
+			
+			sensors = new String[num];
+			for (int i=0; i<num; i++) {
+				sensors[i] = mIn.readLine();
+				Log.i(TAG, "Received: " + sensors[i]);
+		        
+			}
+			
+		} catch (IOException e) {
+			System.err.println("Couldn't get I/O for the connection to: x.x.x.x.");
+            System.exit(1);
+		}
+		
+		return sensors;
+	}
+	
+    protected int getNumSensorValues(String sensor) {
+    	if (mCatalog != null) {
+    		if (!mCatalog.isSupported(sensor)) {
+    			throw new IllegalArgumentException(
+						"Sensor '" + sensor
+						+ "' is not supported.");
+    		}
+    		return mCatalog.getNumValues(sensor);
+    	}
+		if (mBinary) {
+			try {
+				beginRequest(OP_GET_NUM_SENSOR_VALUES).writeUTF(sensor);
+				return sendRequest(sensor).readByte();
+			} catch (IOException e) {
+				System.err.println("Couldn't get I/O for the connection to: x.x.x.x.");
+	            System.exit(1);
+			}
+			return 0;
+		}
+
+		if (LOG_PROTOCOL) Log.i(TAG, "Send: getNumSensorValues()");
+		mOut.println("getNumSensorValues()");
+		
+		if (LOG_PROTOCOL) Log.i(TAG, "Send: " + sensor);
+        mOut.println(sensor);
+        
+		int num = 0;
+		
+		try {
+			String numstr = readAnswer();
+			if (numstr.compareTo("throw IllegalArgumentException") == 0) {
+				throw new IllegalArgumentException(
+						"Sensor '" + sensor
+						+ "' is not supported.");
+			}
+			if (LOG_PROTOCOL) Log.i(TAG, "Received: " + numstr);
+	        
+			num = Integer.parseInt(numstr);
+		} catch (IOException e) {
+			System.err.println("Couldn't get I/O for the connection to: x.x.x.x.");
+            System.exit(1);
+		}
+		
+		return num;
 	}
 	
     protected void readSensor(String sensor, float[] sensorValues, String barcode2) {
@@ -704,12 +1937,34 @@ final class SensorSimulatorClient {
 					"readSensor for '" + sensor
 					+ "' called with sensorValues == null.");
 		}
+		if (mBinary) {
+			try {
+				beginRequest(OP_READ_SENSOR).writeUTF(sensor);
+				DataInputStream in = sendRequest(sensor);
+				int num = in.readByte();
+				if (sensorValues.length < num) {
+					throw new ArrayIndexOutOfBoundsException (
+							"readSensor for '" + sensor
+							+ "' called with sensorValues having too few elements ("
+							+ sensorValues.length + ") to hold the sensor values ("
+							+ num + ").");
+				}
+				for (int i=0; i<num; i++) {
+					sensorValues[i] = in.readFloat();
+				}
+				readStamp(SensorNames.getSensorInteger(sensor) - 1, in);
+			} catch (IOException e) {
+				System.err.println("Couldn't get I/O for the connection to: x.x.x.x.");
+	            System.exit(1);
+			}
+			return;
+		}
 		if (LOG_PROTOCOL) Log.i(TAG, "Send: getNumSensorValues()");
 		mOut.println("readSensor()\n" + sensor);
 		int num = 0;
 		
 		try {
-			String numstr = mIn.readLine();
+			String numstr = readAnswer();
 			if (numstr.compareTo("throw IllegalArgumentException") == 0) {
 				throw new IllegalArgumentException(
 						"Sensor '" + sensor
@@ -740,6 +1995,7 @@ final class SensorSimulatorClient {
 					barcode = barcode2;
 				}
 			}
+			readStampLine(SensorNames.getSensorInteger(sensor) - 1);
 		} catch (IOException e) {
 			System.err.println("Couldn't get I/O for the connection to: x.x.x.x.");
             System.exit(1);
@@ -750,6 +2006,34 @@ final class SensorSimulatorClient {
 	}
 	
     protected float[] getSensorUpdateRates(String sensor) {
+    	if (mCatalog != null) {
+    		if (!mCatalog.isSupported(sensor)) {
+    			throw new IllegalArgumentException(
+						"Sensor '" + sensor
+						+ "' is not supported.");
+    		}
+    		return mCatalog.getUpdateRates(sensor);
+    	}
+		if (mBinary) {
+			try {
+				beginRequest(OP_GET_SENSOR_UPDATE_RATES).writeUTF(sensor);
+				DataInputStream in = sendRequest(sensor);
+				int num = in.readShort();
+				if (num == 0) {
+					return null;
+				}
+				float[] rates = new float[num];
+				for (int i=0; i<num; i++) {
+					rates[i] = in.readFloat();
+				}
+				return rates;
+			} catch (IOException e) {
+				System.err.println("Couldn't get I/O for the connection to: x.x.x.x.");
+	            System.exit(1);
+			}
+			return null;
+		}
+
 		if (LOG_PROTOCOL) Log.i(TAG, "getSensorUpdateRates()");
         
 		mOut.println("getSensorUpdateRates()");
@@ -759,7 +2043,7 @@ final class SensorSimulatorClient {
         int num = 0;
 		
 		try {
-			String numstr = mIn.readLine();
+			String numstr = readAnswer();
 			if (numstr.compareTo("throw IllegalArgumentException") == 0) {
 				throw new IllegalArgumentException(
 						"Sensor '" + sensor
@@ -788,6 +2072,17 @@ final class SensorSimulatorClient {
 	}
 	
     protected float getSensorUpdateRate(String sensor) {
+		if (mBinary) {
+			try {
+				beginRequest(OP_GET_SENSOR_UPDATE_RATE).writeUTF(sensor);
+				return sendRequest(sensor).readFloat();
+			} catch (IOException e) {
+				System.err.println("Couldn't get I/O for the connection to: x.x.x.x.");
+	            System.exit(1);
+			}
+			return 0;
+		}
+
 		Log.i(TAG, "getSensorUpdateRate()");
         
 		mOut.println("getSensorUpdateRate()");
@@ -796,7 +2091,7 @@ final class SensorSimulatorClient {
         mOut.println(sensor);
         
 		try {
-			String numstr = mIn.readLine();
+			String numstr = readAnswer();
 			if (numstr.compareTo("throw IllegalArgumentException") == 0) {
 				throw new IllegalArgumentException(
 						"Sensor '" + sensor
@@ -821,6 +2116,19 @@ final class SensorSimulatorClient {
 	}
 	
     protected void setSensorUpdateRate(String sensor, float updatesPerSecond) {
+		if (mBinary) {
+			try {
+				DataOutputStream request = beginRequest(OP_SET_SENSOR_UPDATE_RATE);
+				request.writeUTF(sensor);
+				request.writeFloat(updatesPerSecond);
+				sendRequest(sensor);
+			} catch (IOException e) {
+				System.err.println("Couldn't get I/O for the connection to: x.x.x.x.");
+	            System.exit(1);
+			}
+			return;
+		}
+
 		Log.i(TAG, "setSensorUpdateRate()");
         
 		mOut.println("setSensorUpdateRate()");
@@ -829,7 +2137,7 @@ final class SensorSimulatorClient {
         mOut.println(sensor);
         
 		try {
-			String numstr = mIn.readLine();
+			String numstr = readAnswer();
 			if (numstr.compareTo("throw IllegalArgumentException") == 0) {
 				throw new IllegalArgumentException(
 						"Sensor '" + sensor
@@ -846,6 +2154,17 @@ final class SensorSimulatorClient {
 	}
 	
     protected void unsetSensorUpdateRate(String sensor) {
+		if (mBinary) {
+			try {
+				beginRequest(OP_UNSET_SENSOR_UPDATE_RATE).writeUTF(sensor);
+				sendRequest(sensor);
+			} catch (IOException e) {
+				System.err.println("Couldn't get I/O for the connection to: x.x.x.x.");
+	            System.exit(1);
+			}
+			return;
+		}
+
 		Log.i(TAG, "unsetSensorUpdateRate()");
         
 		mOut.println("unsetSensorUpdateRate()");
@@ -854,7 +2173,7 @@ final class SensorSimulatorClient {
         mOut.println(sensor);
         
 		try {
-			String numstr = mIn.readLine();
+			String numstr = readAnswer();
 			if (numstr.compareTo("throw IllegalArgumentException") == 0) {
 				throw new IllegalArgumentException(
 						"Sensor '" + sensor